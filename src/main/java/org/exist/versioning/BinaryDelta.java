@@ -0,0 +1,455 @@
+/**
+ * Versioning Module for eXist-db XQuery
+ * Copyright (C) 2008 eXist-db <exit-open@lists.sourceforge.net>
+ * http://exist-db.org
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 1, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.exist.versioning;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.util.Arrays;
+
+/**
+ * Delta encoding of binary revisions, in the style of rsync.
+ *
+ * The source is split into fixed size blocks, which are indexed by a rolling checksum.
+ * The target is streamed through a window of one block: wherever the window matches a
+ * source block, a copy instruction is written, otherwise the bytes are written as literals.
+ * Neither source nor target are loaded into memory: the source is read through a
+ * {@link SeekableByteChannel}, the target through an {@link InputStream}.
+ *
+ * Format: the magic bytes <code>EXBD</code>, a version byte, then a sequence of
+ * instructions, each starting with an opcode: {@link #OP_COPY} followed by the source offset
+ * and length as variable length integers, {@link #OP_LITERAL} followed by the length and the
+ * bytes, or {@link #OP_END} followed by the total length of the target.
+ */
+public class BinaryDelta {
+
+    private final static byte[] MAGIC = { 'E', 'X', 'B', 'D' };
+    private final static int VERSION = 1;
+
+    private final static int OP_END = 0;
+    private final static int OP_COPY = 1;
+    private final static int OP_LITERAL = 2;
+
+    public final static int DEFAULT_BLOCK_SIZE = 2048;
+
+    private final static int MAX_LITERAL = 64 * 1024;
+
+    private BinaryDelta() {
+    }
+
+    /**
+     * Write a delta which transforms source into target.
+     *
+     * @param source the source, read randomly
+     * @param target the target, read once sequentially
+     * @param out the stream to write the delta to
+     * @return the length of the target
+     * @throws IOException if reading or writing fails
+     */
+    public static long encode(final SeekableByteChannel source, final InputStream target, final OutputStream out)
+            throws IOException {
+        final long sourceSize = source.size();
+        final int blockSize = blockSize(sourceSize);
+        final BlockIndex index = new BlockIndex(source, blockSize);
+
+        out.write(MAGIC);
+        out.write(VERSION);
+
+        final Encoder encoder = new Encoder(out);
+        final byte[] window = new byte[blockSize];
+        final byte[] check = new byte[blockSize];
+        final ByteBuffer checkBuf = ByteBuffer.wrap(check);
+
+        // the window is a ring buffer: head is the position of its first byte
+        int filled = readFully(target, window, 0, blockSize);
+        long total = filled;
+        int head = 0;
+        int a = 0;
+        int b = 0;
+        if (filled == blockSize) {
+            for (int i = 0; i < blockSize; i++) {
+                a += window[i] & 0xff;
+                b += (blockSize - i) * (window[i] & 0xff);
+            }
+        }
+
+        while (filled == blockSize) {
+            final long match = index.find(((b & 0xffff) << 16) | (a & 0xffff), window, head, check, checkBuf);
+            if (match > -1) {
+                encoder.copy(match, blockSize);
+                filled = readFully(target, window, 0, blockSize);
+                total += filled;
+                head = 0;
+                a = 0;
+                b = 0;
+                if (filled == blockSize) {
+                    for (int i = 0; i < blockSize; i++) {
+                        a += window[i] & 0xff;
+                        b += (blockSize - i) * (window[i] & 0xff);
+                    }
+                }
+                continue;
+            }
+
+            // no match: emit the first byte of the window as literal and roll on
+            final int next = target.read();
+            final int first = window[head] & 0xff;
+            encoder.literal((byte) first);
+            if (next < 0) {
+                // less than a block left: the rest of the window is literal
+                for (int i = 1; i < blockSize; i++) {
+                    encoder.literal(window[(head + i) % blockSize]);
+                }
+                filled = 0;
+                break;
+            }
+            total++;
+            window[head] = (byte) next;
+            head = (head + 1) % blockSize;
+            a += next - first;
+            b += a - blockSize * first;
+        }
+        for (int i = 0; i < filled; i++) {
+            encoder.literal(window[(head + i) % blockSize]);
+        }
+        encoder.end(total);
+        return total;
+    }
+
+    private static int blockSize(final long sourceSize) {
+        // about the square root of the size, as rsync does, but at least the default
+        int size = DEFAULT_BLOCK_SIZE;
+        while ((long) size * size < sourceSize && size < 64 * 1024) {
+            size <<= 1;
+        }
+        return size;
+    }
+
+    private static int readFully(final InputStream in, final byte[] buf, final int off, final int len)
+            throws IOException {
+        int total = 0;
+        while (total < len) {
+            final int count = in.read(buf, off + total, len - total);
+            if (count < 0) {
+                break;
+            }
+            total += count;
+        }
+        return total;
+    }
+
+    private static void readFully(final SeekableByteChannel channel, final long position, final ByteBuffer buf)
+            throws IOException {
+        channel.position(position);
+        while (buf.hasRemaining()) {
+            if (channel.read(buf) < 0) {
+                throw new EOFException("Unexpected end of source at " + channel.position());
+            }
+        }
+    }
+
+    /**
+     * Open addressing hash table from the checksum of each block of the source to its block
+     * number. Candidates are verified against the source before they are used.
+     */
+    private static class BlockIndex {
+
+        private final SeekableByteChannel source;
+        private final int blockSize;
+        private final int[] table;
+        private final int[] next;
+        private final int[] checksums;
+        private final int mask;
+
+        BlockIndex(final SeekableByteChannel source, final int blockSize) throws IOException {
+            this.source = source;
+            this.blockSize = blockSize;
+            final int blocks = (int) Math.min(Integer.MAX_VALUE - 8, source.size() / blockSize);
+            int size = 16;
+            while (size < blocks * 2) {
+                size <<= 1;
+            }
+            this.mask = size - 1;
+            this.table = new int[size];
+            Arrays.fill(table, -1);
+            this.next = new int[blocks];
+            this.checksums = new int[blocks];
+
+            final ByteBuffer buf = ByteBuffer.allocate(blockSize);
+            source.position(0);
+            for (int block = 0; block < blocks; block++) {
+                buf.clear();
+                while (buf.hasRemaining()) {
+                    if (source.read(buf) < 0) {
+                        throw new EOFException("Unexpected end of source at block " + block);
+                    }
+                }
+                final byte[] data = buf.array();
+                int a = 0;
+                int b = 0;
+                for (int i = 0; i < blockSize; i++) {
+                    a += data[i] & 0xff;
+                    b += (blockSize - i) * (data[i] & 0xff);
+                }
+                final int checksum = ((b & 0xffff) << 16) | (a & 0xffff);
+                final int slot = slot(checksum);
+                checksums[block] = checksum;
+                next[block] = table[slot];
+                table[slot] = block;
+            }
+        }
+
+        private int slot(final int checksum) {
+            return (checksum * 0x9e3779b9) >>> 1 & mask;
+        }
+
+        /**
+         * @return the source offset of a block equal to the window, or -1
+         */
+        long find(final int checksum, final byte[] window, final int head, final byte[] check,
+                final ByteBuffer checkBuf) throws IOException {
+            for (int block = table[slot(checksum)]; block > -1; block = next[block]) {
+                if (checksums[block] != checksum) {
+                    continue;
+                }
+                final long offset = (long) block * blockSize;
+                checkBuf.clear();
+                readFully(source, offset, checkBuf);
+                boolean equal = true;
+                for (int i = 0; i < blockSize && equal; i++) {
+                    equal = check[i] == window[(head + i) % blockSize];
+                }
+                if (equal) {
+                    return offset;
+                }
+            }
+            return -1;
+        }
+    }
+
+    /**
+     * Writes instructions, merging adjacent copies and buffering literals.
+     */
+    private static class Encoder {
+
+        private final OutputStream out;
+        private final byte[] literals = new byte[MAX_LITERAL];
+        private int literalCount = 0;
+        private long copyOffset = -1;
+        private long copyLength = 0;
+
+        Encoder(final OutputStream out) {
+            this.out = out;
+        }
+
+        void copy(final long offset, final int length) throws IOException {
+            flushLiterals();
+            if (copyOffset > -1 && copyOffset + copyLength == offset) {
+                copyLength += length;
+                return;
+            }
+            flushCopy();
+            copyOffset = offset;
+            copyLength = length;
+        }
+
+        void literal(final byte b) throws IOException {
+            flushCopy();
+            literals[literalCount++] = b;
+            if (literalCount == literals.length) {
+                flushLiterals();
+            }
+        }
+
+        void end(final long total) throws IOException {
+            flushCopy();
+            flushLiterals();
+            out.write(OP_END);
+            writeLong(out, total);
+        }
+
+        private void flushCopy() throws IOException {
+            if (copyOffset > -1) {
+                out.write(OP_COPY);
+                writeLong(out, copyOffset);
+                writeLong(out, copyLength);
+                copyOffset = -1;
+                copyLength = 0;
+            }
+        }
+
+        private void flushLiterals() throws IOException {
+            if (literalCount > 0) {
+                out.write(OP_LITERAL);
+                writeLong(out, literalCount);
+                out.write(literals, 0, literalCount);
+                literalCount = 0;
+            }
+        }
+    }
+
+    private static void writeLong(final OutputStream out, long value) throws IOException {
+        while ((value & ~0x7fL) != 0) {
+            out.write((int) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static long readLong(final InputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            final int b = in.read();
+            if (b < 0) {
+                throw new EOFException("Truncated binary delta");
+            }
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed binary delta");
+    }
+
+    /**
+     * Reconstructs the target of a delta while it is read. Only one instruction is held in
+     * memory at a time.
+     */
+    public static class DecodingInputStream extends InputStream {
+
+        private final InputStream delta;
+        private final SeekableByteChannel source;
+        private final ByteBuffer copyBuf = ByteBuffer.allocate(8192);
+
+        private int op = -1;
+        private long remaining = 0;
+        private long sourcePosition = 0;
+        private long produced = 0;
+        private boolean done = false;
+
+        /**
+         * @param delta the delta as written by {@link BinaryDelta#encode}
+         * @param source the source the delta was computed against
+         * @throws IOException if the delta header is invalid
+         */
+        public DecodingInputStream(final InputStream delta, final SeekableByteChannel source) throws IOException {
+            this.delta = delta;
+            this.source = source;
+            for (final byte m : MAGIC) {
+                if (delta.read() != m) {
+                    throw new IOException("Not a binary delta");
+                }
+            }
+            final int version = delta.read();
+            if (version != VERSION) {
+                throw new IOException("Unsupported binary delta version: " + version);
+            }
+            copyBuf.limit(0);
+        }
+
+        @Override
+        public int read() throws IOException {
+            final byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            while (remaining == 0 && !copyBuf.hasRemaining()) {
+                if (done || !nextInstruction()) {
+                    return -1;
+                }
+            }
+            final int count;
+            if (op == OP_LITERAL) {
+                count = delta.read(b, off, (int) Math.min(len, remaining));
+                if (count < 0) {
+                    throw new EOFException("Truncated binary delta");
+                }
+                remaining -= count;
+            } else {
+                if (!copyBuf.hasRemaining()) {
+                    copyBuf.clear();
+                    copyBuf.limit((int) Math.min(copyBuf.capacity(), remaining));
+                    readFully(source, sourcePosition, copyBuf);
+                    copyBuf.flip();
+                    sourcePosition += copyBuf.limit();
+                    remaining -= copyBuf.limit();
+                }
+                count = Math.min(len, copyBuf.remaining());
+                copyBuf.get(b, off, count);
+            }
+            produced += count;
+            return count;
+        }
+
+        private boolean nextInstruction() throws IOException {
+            op = delta.read();
+            switch (op) {
+                case OP_COPY:
+                    sourcePosition = readLong(delta);
+                    remaining = readLong(delta);
+                    return true;
+                case OP_LITERAL:
+                    remaining = readLong(delta);
+                    return true;
+                case OP_END:
+                    final long total = readLong(delta);
+                    if (total != produced) {
+                        throw new IOException("Binary delta produced " + produced + " bytes, expected " + total);
+                    }
+                    done = true;
+                    return false;
+                default:
+                    throw new IOException("Malformed binary delta: unknown instruction " + op);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            delta.close();
+        }
+    }
+
+    /**
+     * Reconstruct the target of a delta.
+     *
+     * @param source the source the delta was computed against
+     * @param delta the delta
+     * @param out the stream to write the target to
+     * @throws IOException if reading or writing fails
+     */
+    public static void decode(final SeekableByteChannel source, final InputStream delta, final OutputStream out)
+            throws IOException {
+        try (final InputStream in = new DecodingInputStream(delta, source)) {
+            final byte[] buf = new byte[8192];
+            int count;
+            while ((count = in.read(buf, 0, buf.length)) > -1) {
+                out.write(buf, 0, count);
+            }
+        }
+    }
+}
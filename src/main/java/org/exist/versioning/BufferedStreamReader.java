@@ -0,0 +1,445 @@
+/**
+ * Versioning Module for eXist-db XQuery
+ * Copyright (C) 2008 eXist-db <exit-open@lists.sourceforge.net>
+ * http://exist-db.org
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 1, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.exist.versioning;
+
+import org.exist.dom.QName;
+import org.exist.numbering.NodeId;
+import org.exist.stax.EmbeddedXMLStreamReader;
+import org.exist.stax.ExtendedXMLStreamReader;
+
+import javax.xml.namespace.NamespaceContext;
+import javax.xml.stream.Location;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Reads a document to be patched from a reader and records the elements moved by the diff,
+ * so {@link Patch} can write them at their new position without access to the source
+ * document. An element moved to a later position is recorded while it is read at its old
+ * position. An element moved to an earlier position is read ahead of the patch: the events
+ * up to its end are buffered and returned by the reader afterwards.
+ *
+ * Only the events, names, attributes, node ids and text used by {@link Patch} are recorded;
+ * namespace declarations are not.
+ */
+final class BufferedStreamReader implements ExtendedXMLStreamReader {
+
+    /** the reader of the document, or null if reading a recorded element */
+    private final ExtendedXMLStreamReader reader;
+    private final Set<NodeId> moved;
+    private final Deque<Event> ahead = new ArrayDeque<>();
+    private final Map<NodeId, List<Event>> recording = new TreeMap<>();
+    private final Map<NodeId, List<Event>> recorded = new TreeMap<>();
+    private Event current = null;
+
+    /**
+     * @param reader the reader of the document
+     * @param moved the ids of the elements moved by the diff
+     */
+    BufferedStreamReader(final ExtendedXMLStreamReader reader, final Set<NodeId> moved) {
+        this.reader = reader;
+        this.moved = moved;
+    }
+
+    private BufferedStreamReader(final Collection<Event> events) {
+        this.reader = null;
+        this.moved = null;
+        this.ahead.addAll(events);
+    }
+
+    /**
+     * @param nodeId the id of an element moved by the diff
+     * @return a reader of the recorded element and its descendants
+     * @throws IOException if the element is not part of the document
+     */
+    ExtendedXMLStreamReader readMoved(final NodeId nodeId) throws XMLStreamException, IOException {
+        List<Event> events = recorded.remove(nodeId);
+        while (events == null && reader != null && reader.hasNext()) {
+            ahead.add(pull());
+            events = recorded.remove(nodeId);
+        }
+        if (events == null) {
+            throw new IOException("The diff moves node " + nodeId + ", but it was not found in the source document");
+        }
+        return new BufferedStreamReader(events);
+    }
+
+    private Event pull() throws XMLStreamException {
+        final Event event = new Event(reader, reader.next());
+        if (event.type == START_ELEMENT && moved.contains(event.nodeId)) {
+            recording.put(event.nodeId, new ArrayList<>());
+        }
+        for (final List<Event> events : recording.values()) {
+            events.add(event);
+        }
+        if (event.type == END_ELEMENT && recording.containsKey(event.nodeId)) {
+            recorded.put(event.nodeId, recording.remove(event.nodeId));
+        }
+        return event;
+    }
+
+    @Override
+    public boolean hasNext() throws XMLStreamException {
+        return !ahead.isEmpty() || (reader != null && reader.hasNext());
+    }
+
+    @Override
+    public int next() throws XMLStreamException {
+        current = ahead.isEmpty() ? pull() : ahead.poll();
+        return current.type;
+    }
+
+    @Override
+    public int nextTag() throws XMLStreamException {
+        int type = next();
+        while ((type == CHARACTERS && isWhiteSpace()) || type == COMMENT || type == PROCESSING_INSTRUCTION) {
+            type = next();
+        }
+        if (type != START_ELEMENT && type != END_ELEMENT) {
+            throw new XMLStreamException("Expected start or end tag, found event " + type);
+        }
+        return type;
+    }
+
+    @Override
+    public String getElementText() throws XMLStreamException {
+        if (getEventType() != START_ELEMENT) {
+            throw new XMLStreamException("Not positioned on a start tag");
+        }
+        final StringBuilder buf = new StringBuilder();
+        int type;
+        while ((type = next()) != END_ELEMENT) {
+            if (type == CHARACTERS || type == CDATA || type == SPACE) {
+                buf.append(current.text);
+            } else if (type == START_ELEMENT) {
+                throw new XMLStreamException("Element text contains an element");
+            }
+        }
+        return buf.toString();
+    }
+
+    @Override
+    public void require(final int type, final String namespaceURI, final String localName) throws XMLStreamException {
+        if (type != getEventType() || (namespaceURI != null && !namespaceURI.equals(getNamespaceURI())) ||
+                (localName != null && !localName.equals(getLocalName()))) {
+            throw new XMLStreamException("Required event " + type + " does not match the current event");
+        }
+    }
+
+    /**
+     * The reader buffered is closed by its owner.
+     */
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public Object getProperty(final String name) {
+        return EmbeddedXMLStreamReader.PROPERTY_NODE_ID.equals(name) && current != null ? current.nodeId : null;
+    }
+
+    @Override
+    public int getEventType() {
+        return current == null ? START_DOCUMENT : current.type;
+    }
+
+    @Override
+    public boolean isStartElement() {
+        return getEventType() == START_ELEMENT;
+    }
+
+    @Override
+    public boolean isEndElement() {
+        return getEventType() == END_ELEMENT;
+    }
+
+    @Override
+    public boolean isCharacters() {
+        return getEventType() == CHARACTERS;
+    }
+
+    @Override
+    public boolean isWhiteSpace() {
+        if (current == null || current.text == null) {
+            return false;
+        }
+        for (int i = 0; i < current.text.length(); i++) {
+            if (!Character.isWhitespace(current.text.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public QName getQName() {
+        return current.qname;
+    }
+
+    @Override
+    public javax.xml.namespace.QName getName() {
+        return current.qname.toJavaQName();
+    }
+
+    @Override
+    public boolean hasName() {
+        return current != null && current.qname != null;
+    }
+
+    @Override
+    public String getLocalName() {
+        return current.qname.getLocalPart();
+    }
+
+    @Override
+    public String getNamespaceURI() {
+        return current.qname.getNamespaceURI();
+    }
+
+    @Override
+    public String getPrefix() {
+        return current.qname.getPrefix();
+    }
+
+    @Override
+    public int getAttributeCount() {
+        return current.attrNames.length;
+    }
+
+    @Override
+    public QName getAttributeQName(final int index) {
+        return current.attrNames[index];
+    }
+
+    @Override
+    public javax.xml.namespace.QName getAttributeName(final int index) {
+        return current.attrNames[index].toJavaQName();
+    }
+
+    @Override
+    public String getAttributeNamespace(final int index) {
+        return current.attrNames[index].getNamespaceURI();
+    }
+
+    @Override
+    public String getAttributeLocalName(final int index) {
+        return current.attrNames[index].getLocalPart();
+    }
+
+    @Override
+    public String getAttributePrefix(final int index) {
+        return current.attrNames[index].getPrefix();
+    }
+
+    @Override
+    public String getAttributeType(final int index) {
+        return current.attrTypes[index];
+    }
+
+    @Override
+    public String getAttributeValue(final int index) {
+        return current.attrValues[index];
+    }
+
+    @Override
+    public NodeId getAttributeId(final int index) {
+        return current.attrIds[index];
+    }
+
+    @Override
+    public String getAttributeValue(final String namespaceURI, final String localName) {
+        for (int i = 0; i < current.attrNames.length; i++) {
+            final QName name = current.attrNames[i];
+            if (name.getLocalPart().equals(localName) &&
+                    (namespaceURI == null || namespaceURI.equals(name.getNamespaceURI()))) {
+                return current.attrValues[i];
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public boolean isAttributeSpecified(final int index) {
+        return true;
+    }
+
+    @Override
+    public int getNamespaceCount() {
+        return 0;
+    }
+
+    @Override
+    public String getNamespacePrefix(final int index) {
+        throw new IndexOutOfBoundsException("No namespace declarations recorded");
+    }
+
+    @Override
+    public String getNamespaceURI(final int index) {
+        throw new IndexOutOfBoundsException("No namespace declarations recorded");
+    }
+
+    @Override
+    public String getNamespaceURI(final String prefix) {
+        return null;
+    }
+
+    @Override
+    public NamespaceContext getNamespaceContext() {
+        return null;
+    }
+
+    @Override
+    public boolean hasText() {
+        return current != null && current.text != null;
+    }
+
+    @Override
+    public String getText() {
+        return current.text;
+    }
+
+    @Override
+    public char[] getTextCharacters() {
+        return current.text.toCharArray();
+    }
+
+    @Override
+    public int getTextCharacters(final int sourceStart, final char[] target, final int targetStart,
+            final int length) {
+        final int count = Math.min(length, current.text.length() - sourceStart);
+        current.text.getChars(sourceStart, sourceStart + count, target, targetStart);
+        return count;
+    }
+
+    @Override
+    public int getTextStart() {
+        return 0;
+    }
+
+    @Override
+    public int getTextLength() {
+        return current.text.length();
+    }
+
+    @Override
+    public String getPITarget() {
+        return current.target;
+    }
+
+    @Override
+    public String getPIData() {
+        return current.text;
+    }
+
+    @Override
+    public Location getLocation() {
+        return null;
+    }
+
+    @Override
+    public String getEncoding() {
+        return null;
+    }
+
+    @Override
+    public String getVersion() {
+        return null;
+    }
+
+    @Override
+    public boolean isStandalone() {
+        return false;
+    }
+
+    @Override
+    public boolean standaloneSet() {
+        return false;
+    }
+
+    @Override
+    public String getCharacterEncodingScheme() {
+        return null;
+    }
+
+    private final static class Event {
+
+        private final static QName[] NO_NAMES = new QName[0];
+        private final static String[] NO_STRINGS = new String[0];
+        private final static NodeId[] NO_IDS = new NodeId[0];
+
+        private final int type;
+        private final NodeId nodeId;
+        private QName qname = null;
+        private QName[] attrNames = NO_NAMES;
+        private String[] attrValues = NO_STRINGS;
+        private String[] attrTypes = NO_STRINGS;
+        private NodeId[] attrIds = NO_IDS;
+        /** text, or processing instruction data */
+        private String text = null;
+        private String target = null;
+
+        private Event(final XMLStreamReader reader, final int type) {
+            this.type = type;
+            this.nodeId = (NodeId) reader.getProperty(EmbeddedXMLStreamReader.PROPERTY_NODE_ID);
+            switch (type) {
+                case START_ELEMENT:
+                    final ExtendedXMLStreamReader extended = (ExtendedXMLStreamReader) reader;
+                    qname = new QName(reader.getLocalName(), reader.getNamespaceURI(), reader.getPrefix());
+                    final int count = reader.getAttributeCount();
+                    attrNames = new QName[count];
+                    attrValues = new String[count];
+                    attrTypes = new String[count];
+                    attrIds = new NodeId[count];
+                    for (int i = 0; i < count; i++) {
+                        attrNames[i] = new QName(reader.getAttributeLocalName(i), reader.getAttributeNamespace(i),
+                                reader.getAttributePrefix(i));
+                        attrValues[i] = reader.getAttributeValue(i);
+                        attrTypes[i] = reader.getAttributeType(i);
+                        attrIds[i] = extended.getAttributeId(i);
+                    }
+                    break;
+                case END_ELEMENT:
+                    qname = new QName(reader.getLocalName(), reader.getNamespaceURI(), reader.getPrefix());
+                    break;
+                case CHARACTERS:
+                case CDATA:
+                case SPACE:
+                case COMMENT:
+                    text = reader.getText();
+                    break;
+                case PROCESSING_INSTRUCTION:
+                    target = reader.getPITarget();
+                    text = reader.getPIData();
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+}
@@ -0,0 +1,165 @@
+/**
+ * Versioning Module for eXist-db XQuery
+ * Copyright (C) 2008 eXist-db <exit-open@lists.sourceforge.net>
+ * http://exist-db.org
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 1, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.exist.versioning;
+
+import org.exist.storage.BrokerPool;
+import org.exist.storage.txn.Txn;
+import org.exist.storage.txn.TxnListener;
+import org.exist.xmldb.XmldbURI;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tracks the most recent revision of each document, so rapid successive updates by the same
+ * user can be merged into a single revision. While a window is open, the
+ * {@link VersioningTrigger} replaces the version document of the window's revision instead of
+ * allocating a new one.
+ *
+ * A window is closed once it has been open for longer than the configured period, once it
+ * has received the configured maximum number of saves, or when another user updates the
+ * document. Windows only change once the transaction storing a save commits, so an aborted
+ * save neither opens a window nor counts against one.
+ */
+public class CoalescingWindow {
+
+    private final static int CLEANUP_THRESHOLD = 10000;
+
+    private final static Map<BrokerPool, CoalescingWindow> instances = new ConcurrentHashMap<>();
+
+    private final Map<XmldbURI, Window> windows = new ConcurrentHashMap<>();
+
+    public static CoalescingWindow getInstance(final BrokerPool pool) {
+        return instances.computeIfAbsent(pool, p -> new CoalescingWindow());
+    }
+
+    /**
+     * Look up the open window of a document a save may be merged into. The window is not
+     * changed: once the save created a revision, it is added by {@link #join}.
+     *
+     * @param docPath the absolute path of the document
+     * @param user the user saving the document
+     * @param period the maximum time a window stays open, in milliseconds
+     * @param maxSaves the maximum number of saves merged into one revision
+     * @return the revision to replace, or -1 if a new revision has to be created
+     */
+    public long find(final XmldbURI docPath, final String user, final long period, final int maxSaves) {
+        final Window window = windows.get(docPath);
+        if (window == null || System.currentTimeMillis() - window.opened > period ||
+                window.saves.get() >= maxSaves || !window.user.equals(user)) {
+            return -1;
+        }
+        return window.revision;
+    }
+
+    /**
+     * Count another save merged into the window of a revision once the transaction commits.
+     *
+     * @param transaction the transaction storing the save
+     * @param docPath the absolute path of the document
+     * @param revision the revision the save replaced, as returned by {@link #find}
+     */
+    public void join(final Txn transaction, final XmldbURI docPath, final long revision) {
+        transaction.registerListener(new TxnListener() {
+            @Override
+            public void commit() {
+                final Window window = windows.get(docPath);
+                if (window != null && window.revision == revision) {
+                    window.saves.incrementAndGet();
+                }
+            }
+
+            @Override
+            public void abort() {
+            }
+        });
+    }
+
+    /**
+     * Open a new window for a document once the transaction commits, replacing any previous
+     * one.
+     *
+     * @param transaction the transaction creating the revision
+     * @param docPath the absolute path of the document
+     * @param user the user who created the revision
+     * @param revision the revision which subsequent saves may replace
+     * @param period the maximum time a window stays open, in milliseconds
+     */
+    public void open(final Txn transaction, final XmldbURI docPath, final String user, final long revision,
+            final long period) {
+        transaction.registerListener(new TxnListener() {
+            @Override
+            public void commit() {
+                if (windows.size() > CLEANUP_THRESHOLD) {
+                    expire(period);
+                }
+                windows.put(docPath, new Window(user, revision));
+            }
+
+            @Override
+            public void abort() {
+            }
+        });
+    }
+
+    /**
+     * Close the window of a document once the transaction commits, e.g. because the document
+     * has been removed.
+     *
+     * @param transaction the current transaction
+     * @param docPath the absolute path of the document
+     */
+    public void close(final Txn transaction, final XmldbURI docPath) {
+        transaction.registerListener(new TxnListener() {
+            @Override
+            public void commit() {
+                windows.remove(docPath);
+            }
+
+            @Override
+            public void abort() {
+            }
+        });
+    }
+
+    private void expire(final long period) {
+        final long now = System.currentTimeMillis();
+        for (final Iterator<Window> i = windows.values().iterator(); i.hasNext(); ) {
+            if (now - i.next().opened > period) {
+                i.remove();
+            }
+        }
+    }
+
+    private final static class Window {
+
+        private final String user;
+        private final long revision;
+        private final long opened = System.currentTimeMillis();
+        private final AtomicInteger saves = new AtomicInteger(1);
+
+        private Window(final String user, final long revision) {
+            this.user = user;
+            this.revision = revision;
+        }
+    }
+}
@@ -0,0 +1,72 @@
+/**
+ * Versioning Module for eXist-db XQuery
+ * Copyright (C) 2008 eXist-db <exit-open@lists.sourceforge.net>
+ * http://exist-db.org
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 1, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.exist.versioning;
+
+import org.exist.scheduler.JobException;
+import org.exist.scheduler.UserJavaJob;
+import org.exist.storage.BrokerPool;
+import org.exist.xmldb.XmldbURI;
+
+import java.util.Map;
+
+/**
+ * Scheduler job running the {@link Compactor}. Parameters: <code>collection</code> (defaults to
+ * <code>/db</code>), <code>keep</code>, the number of latest revisions left unchanged, and
+ * <code>max-duration</code>, the number of seconds after which the run stops until the next
+ * time the job fires.
+ */
+public class CompactionJob extends UserJavaJob {
+
+    private final static String JOB_NAME = "VersioningCompaction";
+
+    public final static String PARAM_COLLECTION = "collection";
+    public final static String PARAM_KEEP = "keep";
+    public final static String PARAM_MAX_DURATION = "max-duration";
+
+    private String name = JOB_NAME;
+
+    @Override
+    public void execute(final BrokerPool pool, final Map<String, ?> params) throws JobException {
+        try {
+            final XmldbURI collection = XmldbURI.create(getParameter(params, PARAM_COLLECTION, "/db"));
+            final int keep = Integer.parseInt(getParameter(params, PARAM_KEEP, Integer.toString(Compactor.DEFAULT_KEEP)));
+            final long maxDuration = Long.parseLong(getParameter(params, PARAM_MAX_DURATION, "0")) * 1000;
+            Compactor.getInstance(pool).compact(collection, keep, maxDuration);
+        } catch (final Exception e) {
+            throw new JobException(JobException.JobExceptionAction.JOB_ABORT,
+                    "Failed to compact versions: " + e.getMessage());
+        }
+    }
+
+    private static String getParameter(final Map<String, ?> params, final String name, final String defaultValue) {
+        final Object value = params == null ? null : params.get(name);
+        return value == null ? defaultValue : value.toString().trim();
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public void setName(final String name) {
+        this.name = name;
+    }
+}
@@ -0,0 +1,418 @@
+/**
+ * Versioning Module for eXist-db XQuery
+ * Copyright (C) 2008 eXist-db <exit-open@lists.sourceforge.net>
+ * http://exist-db.org
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 1, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.exist.versioning;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.exist.collections.Collection;
+import org.exist.collections.IndexInfo;
+import org.exist.dom.memtree.DocumentBuilderReceiver;
+import org.exist.dom.memtree.MemTreeBuilder;
+import org.exist.dom.persistent.BinaryDocument;
+import org.exist.dom.persistent.DocumentImpl;
+import org.exist.dom.persistent.NodeProxy;
+import org.exist.dom.persistent.StoredNode;
+import org.exist.storage.BrokerPool;
+import org.exist.storage.DBBroker;
+import org.exist.storage.lock.Lock;
+import org.exist.storage.serializers.Serializer;
+import org.exist.storage.txn.TransactionManager;
+import org.exist.storage.txn.Txn;
+import org.exist.util.serializer.Receiver;
+import org.exist.xmldb.XmldbURI;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Squashes old history into a new base revision. For each document, all but the last n
+ * revisions are folded into <code>&lt;name&gt;.base</code>: the base is replaced by the content
+ * of the newest squashed revision, the diffs of the remaining revisions which were computed
+ * against the old base are recomputed against the new one and the version documents of the
+ * squashed revisions are removed.
+ *
+ * The <code>v:properties</code> of squashed revisions are moved into
+ * <code>&lt;name&gt;.squashed</code>, so revision numbers and metadata stay available to
+ * <code>v:revisions</code> and <code>v:history</code>. Restoring a squashed revision returns the
+ * new base.
+ *
+ * Each document is compacted in a transaction of its own. Progress is recorded per versions
+ * collection in a checkpoint file in the data directory, so a run which is stopped, runs out
+ * of time or is interrupted by a shutdown resumes where it left off on the next call.
+ */
+public class Compactor {
+
+    private final static Logger LOG = LogManager.getLogger(Compactor.class);
+
+    public final static int DEFAULT_KEEP = 10;
+
+    public final static String CHECKPOINT_FILE = "versioning-compaction.properties";
+
+    /** checkpoint value of a collection whose documents have all been compacted */
+    private final static String COMPLETE = "/";
+
+    private final static Map<BrokerPool, Compactor> instances = new ConcurrentHashMap<>();
+
+    private final BrokerPool pool;
+    private final Path checkpointFile;
+    private final AtomicBoolean running = new AtomicBoolean(false);
+    private volatile boolean stopRequested = false;
+
+    private Compactor(final BrokerPool pool) {
+        this.pool = pool;
+        final Path dataDir = (Path) pool.getConfiguration().getProperty(BrokerPool.PROPERTY_DATA_DIR);
+        this.checkpointFile = dataDir.resolve(CHECKPOINT_FILE);
+    }
+
+    public static Compactor getInstance(final BrokerPool pool) {
+        return instances.computeIfAbsent(pool, Compactor::new);
+    }
+
+    /**
+     * Ask a running compaction to stop after the current document. The next run resumes
+     * from the checkpoint.
+     */
+    public void stop() {
+        stopRequested = true;
+    }
+
+    /**
+     * Compact the versions of a collection and its descendants, resuming from the last
+     * checkpoint. Only one compaction runs at a time.
+     *
+     * @param collectionPath the versioned collection
+     * @param keep the number of latest revisions of each document which are left unchanged
+     * @param maxDuration the time in milliseconds after which the run stops, 0 for no limit
+     * @return true if all documents were compacted, false if the run stopped early
+     */
+    public boolean compact(final XmldbURI collectionPath, final int keep, final long maxDuration) throws Exception {
+        if (!running.compareAndSet(false, true)) {
+            LOG.warn("Compaction is already running, skipping " + collectionPath);
+            return false;
+        }
+        try {
+            stopRequested = false;
+            final long start = System.currentTimeMillis();
+            final long deadline = maxDuration > 0 ? start + maxDuration : Long.MAX_VALUE;
+            final Stats stats = new Stats();
+            final Properties checkpoints = loadCheckpoints();
+            final XmldbURI root = VersioningTrigger.VERSIONS_COLLECTION.append(collectionPath);
+            final boolean complete;
+            try (final DBBroker broker = pool.get(Optional.of(pool.getSecurityManager().getSystemSubject()))) {
+                broker.setTriggersEnabled(false);
+                try {
+                    complete = compactCollection(broker, root, Math.max(0, keep), deadline, checkpoints, stats);
+                } finally {
+                    broker.setTriggersEnabled(true);
+                }
+            }
+            if (complete) {
+                // start from the beginning next time
+                checkpoints.stringPropertyNames().stream()
+                        .filter(path -> path.equals(root.toString()) || path.startsWith(root.toString() + '/'))
+                        .forEach(checkpoints::remove);
+                saveCheckpoints(checkpoints);
+            }
+            LOG.info((complete ? "Compacted " : "Stopped compaction after ") + stats.documents + " documents below " +
+                    collectionPath + ", squashed " + stats.revisions + " revisions, rewrote " + stats.rewritten +
+                    " diffs in " + (System.currentTimeMillis() - start) + "ms");
+            return complete;
+        } finally {
+            running.set(false);
+        }
+    }
+
+    private boolean isInterrupted(final long deadline) {
+        return stopRequested || System.currentTimeMillis() > deadline || pool.isShuttingDown();
+    }
+
+    private boolean compactCollection(final DBBroker broker, final XmldbURI path, final int keep, final long deadline,
+            final Properties checkpoints, final Stats stats) throws Exception {
+        if (path.equals(ContentStore.CONTENT_COLLECTION)) {
+            return true;
+        }
+        final String key = path.toString();
+        final String checkpoint = checkpoints.getProperty(key);
+        final List<XmldbURI> children = new ArrayList<>();
+        try (final Collection vCollection = broker.openCollection(path, Lock.LockMode.WRITE_LOCK)) {
+            if (vCollection == null) {
+                return true;
+            }
+            if (!COMPLETE.equals(checkpoint)) {
+                // histories are sorted by document name, which makes the checkpoint a position
+                for (final VersionHistory history : VersionHistory.load(broker, vCollection).values()) {
+                    if (checkpoint != null && history.getDocumentName().compareTo(checkpoint) <= 0) {
+                        continue;
+                    }
+                    if (isInterrupted(deadline)) {
+                        return false;
+                    }
+                    compactHistory(broker, vCollection, history, keep, stats);
+                    checkpoints.setProperty(key, history.getDocumentName());
+                    saveCheckpoints(checkpoints);
+                }
+                checkpoints.setProperty(key, COMPLETE);
+                saveCheckpoints(checkpoints);
+            }
+            for (final Iterator<XmldbURI> i = vCollection.collectionIterator(broker); i.hasNext(); ) {
+                children.add(path.append(i.next()));
+            }
+        }
+        children.sort(Comparator.comparing(XmldbURI::toString));
+        for (final XmldbURI child : children) {
+            if (!compactCollection(broker, child, keep, deadline, checkpoints, stats)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void compactHistory(final DBBroker broker, final Collection vCollection, final VersionHistory history,
+            final int keep, final Stats stats) throws Exception {
+        final List<VersionHistory.Revision> revisions = new ArrayList<>(history.getRevisions().values());
+        // the newest diff revision outside of the kept ones becomes the new base
+        int point = -1;
+        for (int i = revisions.size() - 1 - keep; i > -1; i--) {
+            if (revisions.get(i).hasDiff()) {
+                point = i;
+                break;
+            }
+        }
+        if (point < 0) {
+            return;
+        }
+
+        final String name = history.getDocumentName();
+        final TransactionManager transact = pool.getTransactionManager();
+        try (final Txn transaction = transact.beginTransaction()) {
+            final org.exist.dom.memtree.DocumentImpl content =
+                    history.restore(broker, vCollection, revisions.get(point).getRevision());
+            if (content == null) {
+                return;
+            }
+            // the new base has to be stored to diff against it, while restores still need the old one
+            final XmldbURI tempUri = XmldbURI.create(name + VersioningTrigger.COMPACTING_SUFFIX);
+            store(broker, transaction, vCollection, tempUri, content);
+            final DocumentImpl newBase = vCollection.getDocument(broker, tempUri);
+
+            // compute all rewritten version documents before changing anything they are restored from
+            final Map<VersionHistory.Revision, org.exist.dom.memtree.DocumentImpl> rewritten = new LinkedHashMap<>();
+            boolean first = true;
+            for (int i = point + 1; i < revisions.size(); i++) {
+                final VersionHistory.Revision revision = revisions.get(i);
+                if (!revision.hasDiff()) {
+                    continue;
+                }
+                if (revision.getKeyframe() == null) {
+                    if (!revision.isChained()) {
+                        rewritten.put(revision, rediff(broker, transaction, vCollection, history, revision, newBase));
+                    } else if (first) {
+                        // its predecessor is the new base, so it no longer needs to be chained
+                        final Properties properties = revision.getProperties();
+                        properties.remove("storage");
+                        rewritten.put(revision, rewrite(broker, revision, properties, null));
+                    }
+                }
+                first = false;
+            }
+
+            for (final Map.Entry<VersionHistory.Revision, org.exist.dom.memtree.DocumentImpl> entry : rewritten.entrySet()) {
+                final VersionHistory.Revision revision = entry.getKey();
+                if (revision.getBinaryDiff() != null && !revision.isChained()) {
+                    remove(broker, transaction, vCollection, vCollection.getDocument(broker,
+                            XmldbURI.create(revision.getBinaryDiff())));
+                }
+                final XmldbURI versionUri = revision.getDocument().getFileURI();
+                store(broker, transaction, vCollection, versionUri, entry.getValue());
+                RevisionIndex.getInstance(pool).put(transaction, broker, vCollection,
+                        VersionHistory.Revision.read(vCollection.getDocument(broker, versionUri)));
+                stats.rewritten++;
+            }
+
+            squash(broker, transaction, vCollection, name, revisions.subList(0, point + 1));
+            stats.revisions += point + 1;
+
+            store(broker, transaction, vCollection, XmldbURI.create(name + VersioningTrigger.BASE_SUFFIX), content);
+            remove(broker, transaction, vCollection, newBase);
+
+            transact.commit(transaction);
+        }
+        stats.documents++;
+    }
+
+    /**
+     * Diff a base relative revision against the new base.
+     */
+    private static org.exist.dom.memtree.DocumentImpl rediff(final DBBroker broker, final Txn transaction,
+            final Collection vCollection, final VersionHistory history, final VersionHistory.Revision revision,
+            final DocumentImpl newBase) throws Exception {
+        final org.exist.dom.memtree.DocumentImpl content = history.restore(broker, vCollection, revision.getRevision());
+        final XmldbURI tempUri = XmldbURI.create(revision.getDocument().getFileURI().toString() +
+                VersioningTrigger.COMPACTING_SUFFIX);
+        store(broker, transaction, vCollection, tempUri, content);
+        final DocumentImpl temp = vCollection.getDocument(broker, tempUri);
+        try (final StandardDiff diff = new StandardDiff(broker)) {
+            diff.diff(newBase, temp);
+            return rewrite(broker, revision, revision.getProperties(), diff);
+        } finally {
+            remove(broker, transaction, vCollection, temp);
+        }
+    }
+
+    /**
+     * Copy a version document with new properties and, if given, a new diff.
+     */
+    private static org.exist.dom.memtree.DocumentImpl rewrite(final DBBroker broker,
+            final VersionHistory.Revision revision, final Properties properties, final StandardDiff diff)
+            throws Exception {
+        final MemTreeBuilder builder = new MemTreeBuilder();
+        builder.startDocument();
+        final DocumentBuilderReceiver receiver = new DocumentBuilderReceiver(builder);
+        VersioningTrigger.startVersion(receiver, properties);
+        final DocumentImpl versionDoc = revision.getDocument();
+        for (Node child = versionDoc.getDocumentElement().getFirstChild(); child != null; child = child.getNextSibling()) {
+            final String localName = child.getLocalName();
+            if (VersioningTrigger.PROPERTIES_ELEMENT.getLocalPart().equals(localName) ||
+                    (diff != null && ("diff".equals(localName) ||
+                            VersioningTrigger.ELEMENT_BINARY_DIFF.getLocalPart().equals(localName)))) {
+                continue;
+            }
+            copy(broker, versionDoc, child, receiver);
+        }
+        if (diff != null) {
+            diff.diff2XML(receiver);
+        }
+        receiver.endElement(VersioningTrigger.ELEMENT_VERSION);
+        receiver.endPrefixMapping(StandardDiff.PREFIX);
+        builder.endDocument();
+        return builder.getDocument();
+    }
+
+    /**
+     * Move the properties of the squashed revisions into <code>&lt;name&gt;.squashed</code> and
+     * remove their version documents and resources.
+     */
+    private void squash(final DBBroker broker, final Txn transaction, final Collection vCollection,
+            final String name, final List<VersionHistory.Revision> squashed) throws Exception {
+        final XmldbURI squashedUri = XmldbURI.create(name + VersioningTrigger.SQUASHED_SUFFIX);
+        final MemTreeBuilder builder = new MemTreeBuilder();
+        builder.startDocument();
+        final DocumentBuilderReceiver receiver = new DocumentBuilderReceiver(builder);
+        receiver.startPrefixMapping(StandardDiff.PREFIX, StandardDiff.NAMESPACE);
+        receiver.startElement(VersioningTrigger.ELEMENT_SQUASHED, null);
+        final DocumentImpl previous = vCollection.getDocument(broker, squashedUri);
+        if (previous != null) {
+            final Element root = previous.getDocumentElement();
+            for (Node child = root.getFirstChild(); child != null; child = child.getNextSibling()) {
+                copy(broker, previous, child, receiver);
+            }
+        }
+        for (final VersionHistory.Revision revision : squashed) {
+            VersioningTrigger.writeProperties(receiver, revision.getProperties());
+        }
+        receiver.endElement(VersioningTrigger.ELEMENT_SQUASHED);
+        receiver.endPrefixMapping(StandardDiff.PREFIX);
+        builder.endDocument();
+        store(broker, transaction, vCollection, squashedUri, builder.getDocument());
+        final RevisionIndex index = RevisionIndex.getInstance(pool);
+        for (final VersionHistory.Revision revision :
+                VersionHistory.Revision.readSquashed(vCollection.getDocument(broker, squashedUri))) {
+            index.put(transaction, broker, vCollection, revision);
+        }
+
+        final ContentStore contentStore = ContentStore.getInstance(pool);
+        for (final VersionHistory.Revision revision : squashed) {
+            for (final String resource : revision.getResources()) {
+                remove(broker, transaction, vCollection, vCollection.getDocument(broker, XmldbURI.create(resource)));
+            }
+            for (final String ref : revision.getContentRefs()) {
+                contentStore.release(broker, transaction, ref);
+            }
+            remove(broker, transaction, vCollection, revision.getDocument());
+        }
+    }
+
+    private static void copy(final DBBroker broker, final DocumentImpl doc, final Node node, final Receiver<?> receiver)
+            throws Exception {
+        final Serializer serializer = broker.getSerializer();
+        serializer.reset();
+        serializer.setProperty(Serializer.GENERATE_DOC_EVENTS, "false");
+        serializer.setReceiver(receiver);
+        serializer.toReceiver(new NodeProxy(doc, ((StoredNode) node).getNodeId()), false);
+    }
+
+    private static void remove(final DBBroker broker, final Txn transaction, final Collection vCollection,
+            final DocumentImpl doc) throws Exception {
+        if (doc == null) {
+            return;
+        }
+        if (doc instanceof BinaryDocument) {
+            vCollection.removeBinaryResource(transaction, broker, doc);
+        } else {
+            vCollection.removeXMLResource(transaction, broker, doc.getFileURI());
+        }
+    }
+
+    private static void store(final DBBroker broker, final Txn transaction, final Collection vCollection,
+            final XmldbURI uri, final Node node) throws Exception {
+        final IndexInfo info = vCollection.validateXMLResource(transaction, broker, uri, node);
+        vCollection.store(transaction, broker, info, node);
+    }
+
+    private Properties loadCheckpoints() throws IOException {
+        final Properties checkpoints = new Properties();
+        if (Files.exists(checkpointFile)) {
+            try (final InputStream is = Files.newInputStream(checkpointFile)) {
+                checkpoints.load(is);
+            }
+        }
+        return checkpoints;
+    }
+
+    private void saveCheckpoints(final Properties checkpoints) throws IOException {
+        final Path temp = checkpointFile.resolveSibling(CHECKPOINT_FILE + VersioningTrigger.TEMP_SUFFIX);
+        try (final OutputStream os = Files.newOutputStream(temp)) {
+            checkpoints.store(os, "Versioning compaction progress: last compacted document per versions collection");
+        }
+        Files.move(temp, checkpointFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private final static class Stats {
+        private long documents = 0;
+        private long revisions = 0;
+        private long rewritten = 0;
+    }
+}
@@ -0,0 +1,290 @@
+/**
+ * Versioning Module for eXist-db XQuery
+ * Copyright (C) 2008 eXist-db <exit-open@lists.sourceforge.net>
+ * http://exist-db.org
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 1, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.exist.versioning;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.exist.EXistException;
+import org.exist.collections.Collection;
+import org.exist.collections.triggers.TriggerException;
+import org.exist.dom.persistent.BinaryDocument;
+import org.exist.dom.persistent.DocumentImpl;
+import org.exist.security.PermissionDeniedException;
+import org.exist.storage.BrokerPool;
+import org.exist.storage.DBBroker;
+import org.exist.storage.lock.Lock;
+import org.exist.storage.txn.TransactionManager;
+import org.exist.storage.txn.Txn;
+import org.exist.storage.txn.TxnListener;
+import org.exist.util.LockException;
+import org.exist.util.crypto.digest.DigestType;
+import org.exist.util.crypto.digest.MessageDigest;
+import org.exist.xmldb.XmldbURI;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Shared store for binary revisions. Each distinct content is stored once, named after its
+ * SHA-256 digest, below <code>/db/system/versions/content</code>. Version documents reference
+ * it as <code>sha256:&lt;digest&gt;</code>, either directly or as the source of a binary delta.
+ *
+ * The digest is the one the database computed while streaming the binary into its blob
+ * store, so detecting identical content never loads the binary. Reference counts are taken
+ * from the {@link RevisionIndex}, which records the references of each revision, on first
+ * use and then maintained in memory as transactions commit.
+ *
+ * A transaction adding a reference reserves the content while holding the lock of its
+ * collection, and keeps the reservation until it ends. Content is removed once its last
+ * reference is {@link #release released} and committed, in a transaction of its own started
+ * by the releasing one. The count and the reservations are checked again under the same
+ * collection lock, so content is never removed while another transaction adds a reference.
+ */
+public class ContentStore {
+
+    private final static Logger LOG = LogManager.getLogger(ContentStore.class);
+
+    public final static XmldbURI CONTENT_COLLECTION = VersioningTrigger.VERSIONS_COLLECTION.append("content");
+
+    public final static String REF_PREFIX = "sha256:";
+
+    private final static Map<BrokerPool, ContentStore> instances = new ConcurrentHashMap<>();
+
+    private final BrokerPool pool;
+    private final Map<String, Integer> references = new HashMap<>();
+    private final Map<String, Integer> reserved = new HashMap<>();
+    private volatile boolean loaded = false;
+
+    private ContentStore(final BrokerPool pool) {
+        this.pool = pool;
+    }
+
+    public static ContentStore getInstance(final BrokerPool pool) {
+        return instances.computeIfAbsent(pool, ContentStore::new);
+    }
+
+    /**
+     * @param ref a reference as returned by {@link #store}
+     * @return true if the reference points into the content store
+     */
+    public static boolean isContentRef(final String ref) {
+        return ref != null && ref.startsWith(REF_PREFIX);
+    }
+
+    /**
+     * @param ref a reference as returned by {@link #store}
+     * @return the absolute path of the stored content
+     */
+    public static XmldbURI resolve(final String ref) {
+        final String digest = ref.substring(REF_PREFIX.length());
+        return CONTENT_COLLECTION.append(digest.substring(0, 2)).append(digest);
+    }
+
+    /**
+     * Add a reference to the content of a binary document, copying the content into the
+     * store unless it is already present. The reference count is increased when the
+     * transaction commits.
+     *
+     * @param broker the broker to use
+     * @param transaction the current transaction
+     * @param document the binary document to store
+     * @return the reference to the stored content
+     */
+    public String store(final DBBroker broker, final Txn transaction, final BinaryDocument document)
+            throws IOException, PermissionDeniedException, LockException, EXistException, TriggerException {
+        load(broker);
+        final MessageDigest digest = broker.getBinaryResourceContentDigest(transaction, document, DigestType.SHA_256);
+        final String ref = REF_PREFIX + toHex(digest.getValue());
+        final XmldbURI path = resolve(ref);
+
+        final Collection collection = broker.getOrCreateCollection(transaction, path.removeLastSegment());
+        broker.saveCollection(transaction, collection);
+        try (final Collection content = broker.openCollection(collection.getURI(), Lock.LockMode.WRITE_LOCK)) {
+            reserve(transaction, ref);
+            if (content.getDocument(broker, path.lastSegment()) == null) {
+                broker.copyResource(transaction, document, content, path.lastSegment(), DBBroker.PreserveType.DEFAULT);
+            } else if (LOG.isDebugEnabled()) {
+                LOG.debug("Content of " + document.getURI() + " is already stored as " + ref);
+            }
+        }
+        return ref;
+    }
+
+    /**
+     * Add a reference to content which is already stored, e.g. the source of a binary delta.
+     * The reference count is increased when the transaction commits.
+     *
+     * @param broker the broker to use
+     * @param transaction the current transaction
+     * @param ref the reference as returned by {@link #store}
+     * @return false if the content is no longer stored
+     */
+    public boolean retain(final DBBroker broker, final Txn transaction, final String ref)
+            throws IOException, PermissionDeniedException, LockException {
+        load(broker);
+        final XmldbURI path = resolve(ref);
+        try (final Collection content = broker.openCollection(path.removeLastSegment(), Lock.LockMode.WRITE_LOCK)) {
+            if (content == null || content.getDocument(broker, path.lastSegment()) == null) {
+                return false;
+            }
+            reserve(transaction, ref);
+        }
+        return true;
+    }
+
+    /**
+     * Drop a reference to stored content. The reference count is decreased when the
+     * transaction commits, and the content is removed if this was its last reference.
+     *
+     * @param broker the broker to use
+     * @param transaction the current transaction
+     * @param ref the reference as returned by {@link #store}
+     */
+    public void release(final DBBroker broker, final Txn transaction, final String ref)
+            throws IOException, PermissionDeniedException, LockException {
+        load(broker);
+        transaction.registerListener(new TxnListener() {
+            @Override
+            public void commit() {
+                synchronized (ContentStore.this) {
+                    references.computeIfPresent(ref, (r, c) -> c > 1 ? c - 1 : null);
+                }
+                purge(ref);
+            }
+
+            @Override
+            public void abort() {
+            }
+        });
+    }
+
+    /**
+     * @param broker the broker to use
+     * @param ref a reference as returned by {@link #store}
+     * @return the number of committed references to the content
+     */
+    public int getReferences(final DBBroker broker, final String ref) throws IOException, PermissionDeniedException,
+            LockException {
+        load(broker);
+        synchronized (this) {
+            return references.getOrDefault(ref, 0);
+        }
+    }
+
+    /**
+     * Reserve the content for the transaction until it ends. Must be called while holding the
+     * lock of the content collection.
+     */
+    private void reserve(final Txn transaction, final String ref) {
+        synchronized (this) {
+            reserved.merge(ref, 1, Integer::sum);
+        }
+        transaction.registerListener(new TxnListener() {
+            @Override
+            public void commit() {
+                synchronized (ContentStore.this) {
+                    unreserve(ref);
+                    references.merge(ref, 1, Integer::sum);
+                }
+            }
+
+            @Override
+            public void abort() {
+                synchronized (ContentStore.this) {
+                    unreserve(ref);
+                }
+                purge(ref);
+            }
+        });
+    }
+
+    private void unreserve(final String ref) {
+        reserved.computeIfPresent(ref, (r, c) -> c > 1 ? c - 1 : null);
+    }
+
+    private synchronized boolean isReferenced(final String ref) {
+        return references.containsKey(ref) || reserved.containsKey(ref);
+    }
+
+    /**
+     * Remove the content unless it is referenced or reserved. Runs in a transaction of its
+     * own, as the transaction which dropped the reference has already committed.
+     */
+    private void purge(final String ref) {
+        if (isReferenced(ref)) {
+            return;
+        }
+        final XmldbURI path = resolve(ref);
+        final TransactionManager transact = pool.getTransactionManager();
+        try (final DBBroker broker = pool.get(Optional.of(pool.getSecurityManager().getSystemSubject()));
+                final Txn transaction = transact.beginTransaction()) {
+            try (final Collection content = broker.openCollection(path.removeLastSegment(), Lock.LockMode.WRITE_LOCK)) {
+                if (content == null || isReferenced(ref)) {
+                    return;
+                }
+                final DocumentImpl doc = content.getDocument(broker, path.lastSegment());
+                if (doc == null) {
+                    return;
+                }
+                content.removeBinaryResource(transaction, broker, doc);
+            }
+            transact.commit(transaction);
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Removed unreferenced content " + ref);
+            }
+        } catch (final Exception e) {
+            // the content is orphaned but harmless: a later store of the same content reuses it
+            LOG.error("Failed to remove unreferenced content " + ref + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Take the reference counts from the revision index, which persists the references of
+     * each revision. Transactions only add or drop references after the counts are loaded.
+     */
+    private void load(final DBBroker broker) throws IOException, PermissionDeniedException, LockException {
+        if (loaded) {
+            return;
+        }
+        final Map<String, Integer> counts = RevisionIndex.getInstance(pool).countContentRefs(broker);
+        synchronized (this) {
+            if (loaded) {
+                return;
+            }
+            references.putAll(counts);
+            loaded = true;
+        }
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Loaded reference counts of " + counts.size() + " stored binaries");
+        }
+    }
+
+    private static String toHex(final byte[] data) {
+        final StringBuilder buf = new StringBuilder(data.length * 2);
+        for (final byte b : data) {
+            buf.append(Character.forDigit((b >> 4) & 0xf, 16));
+            buf.append(Character.forDigit(b & 0xf, 16));
+        }
+        return buf.toString();
+    }
+}
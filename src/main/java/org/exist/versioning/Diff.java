@@ -26,7 +26,10 @@ public interface Diff {
     void diff(DocumentImpl docA, DocumentImpl docB)
     throws DiffException;
 
+    void diff(DiffSource docA, DiffSource docB)
+    throws DiffException;
+
     String diff2XML() throws DiffException;
 
-    void diff2XML(Receiver receiver ) throws DiffException;
+    void diff2XML(Receiver<?> receiver ) throws DiffException;
 }
@@ -29,6 +29,9 @@ public class DiffNode {
     public final static int APPENDED = 2;
     public final static int DELETED = 3;
 
+    /** node type of a placeholder for an element moved from the source document, identified by its node id there */
+    public final static int MOVE = -1;
+
     protected int status = UNCHANGED;
 
     protected final NodeId nodeId;
@@ -0,0 +1,496 @@
+/**
+ * Versioning Module for eXist-db XQuery
+ * Copyright (C) 2008 eXist-db <exit-open@lists.sourceforge.net>
+ * http://exist-db.org
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 1, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.exist.versioning;
+
+import org.exist.dom.QName;
+import org.exist.numbering.NodeId;
+import org.exist.numbering.NodeIdFactory;
+
+import javax.xml.stream.XMLStreamReader;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The nodes of a document as read for diffing, held in parallel arrays: the event type,
+ * a hash of the content, an interned name id, the code compared by the sequence diff and the
+ * node id of each node. No string is kept for element, attribute or text nodes: the sequence
+ * diff matches them by their code, which is interned from the 64-bit hash of their content.
+ * Only the text of comments is kept, as the diff contains it.
+ *
+ * {@link DiffNode} objects are only created for the nodes of a change.
+ *
+ * Indexes are positions in the document. A streaming diff may {@link #trim} the nodes it has
+ * already matched, in which case only the nodes from {@link #getStart()} on are held.
+ *
+ * Above a threshold set by {@link #spillAbove}, the table is moved into a memory-mapped
+ * {@link DiffSpill}, which has to be released by {@link #close()}.
+ */
+public final class DiffNodes implements Closeable {
+
+    private final static int INITIAL_SIZE = 256;
+
+    private final Names names;
+    private int offset = 0;
+    private int size = 0;
+    private int[] types = new int[INITIAL_SIZE];
+    private long[] hashes = new long[INITIAL_SIZE];
+    private int[] nameIds = new int[INITIAL_SIZE];
+    private int[] codes = new int[INITIAL_SIZE];
+    private NodeId[] nodeIds = new NodeId[INITIAL_SIZE];
+    private final Map<Integer, String> comments = new HashMap<>();
+    private boolean complete = true;
+
+    private int spillThreshold = Integer.MAX_VALUE;
+    private Path spillDir = null;
+    private NodeIdFactory spillFactory = null;
+    private DiffSpill spill = null;
+
+    /**
+     * @param names the name table, which has to be shared by the documents compared
+     */
+    public DiffNodes(final Names names) {
+        this.names = names;
+    }
+
+    /**
+     * Move the nodes into a {@link DiffSpill} once there are more than the given number.
+     *
+     * @param threshold the number of nodes to keep on the heap
+     * @param dir the directory to create the spill files in
+     * @param factory the factory to read node ids back
+     */
+    void spillAbove(final int threshold, final Path dir, final NodeIdFactory factory) {
+        this.spillThreshold = threshold;
+        this.spillDir = dir;
+        this.spillFactory = factory;
+    }
+
+    /**
+     * @return true if the nodes were moved off the heap
+     */
+    public boolean isSpilled() {
+        return spill != null;
+    }
+
+    /**
+     * Add an element or end tag.
+     */
+    void add(final NodeId nodeId, final int type, final QName qname) throws IOException {
+        final long hash = Fingerprint.update(Fingerprint.update(Fingerprint.update(Fingerprint.EMPTY, type),
+                qname.getNamespaceURI()), qname.getLocalPart());
+        add(nodeId, type, hash, names.getId(qname));
+    }
+
+    /**
+     * Add an attribute, text, comment or processing instruction.
+     *
+     * @param nodeId the id of the node
+     * @param type the event type
+     * @param hash the hash of the content, as computed by {@link Fingerprint}
+     * @param value the text of a comment, or null
+     */
+    void add(final NodeId nodeId, final int type, final long hash, final String value) throws IOException {
+        if (value != null) {
+            comments.put(offset + size, value);
+        }
+        add(nodeId, type, Fingerprint.update(hash, type), -1);
+    }
+
+    private void add(final NodeId nodeId, final int type, final long hash, final int nameId) throws IOException {
+        final int code = names.getCode(type, hash, nameId);
+        if (spill == null && size >= spillThreshold) {
+            spill();
+        }
+        if (spill != null) {
+            spill.set(size++, type, hash, nameId, code, nodeId);
+            return;
+        }
+        if (size == types.length) {
+            final int capacity = size * 2;
+            types = Arrays.copyOf(types, capacity);
+            hashes = Arrays.copyOf(hashes, capacity);
+            nameIds = Arrays.copyOf(nameIds, capacity);
+            codes = Arrays.copyOf(codes, capacity);
+            nodeIds = Arrays.copyOf(nodeIds, capacity);
+        }
+        types[size] = type;
+        hashes[size] = hash;
+        nameIds[size] = nameId;
+        codes[size] = code;
+        nodeIds[size] = nodeId;
+        size++;
+    }
+
+    private void spill() throws IOException {
+        spill = DiffSpill.create(spillDir, spillFactory);
+        for (int i = 0; i < size; i++) {
+            spill.set(i, types[i], hashes[i], nameIds[i], codes[i], nodeIds[i]);
+        }
+        types = new int[0];
+        hashes = new long[0];
+        nameIds = new int[0];
+        codes = new int[0];
+        nodeIds = new NodeId[0];
+    }
+
+    /**
+     * Record that a node was read which is not held, e.g. a CDATA section.
+     */
+    void skipped() {
+        complete = false;
+    }
+
+    /**
+     * Give the nodes the ids of a document stored from them. The store numbers the nodes of a
+     * freshly built tree in document order, attributes included, see {@link DiffSource}. The
+     * document the nodes were read from may have other ids, e.g. if it was updated in place.
+     *
+     * @return false if the nodes were left unchanged, as a document stored from them would not
+     * contain the same nodes: a node was skipped, two texts follow each other and are merged
+     * when the document is built, or the nodes were trimmed
+     */
+    boolean renumber() throws IOException {
+        if (!complete || offset > 0) {
+            return false;
+        }
+        for (int i = 1; i < size; i++) {
+            if (getType(i) == XMLStreamReader.CHARACTERS && getType(i - 1) == XMLStreamReader.CHARACTERS) {
+                return false;
+            }
+        }
+        final Deque<NodeId> parents = new ArrayDeque<>();
+        NodeId parent = NodeId.DOCUMENT_NODE;
+        NodeId last = null;
+        for (int i = 0; i < size; i++) {
+            final int type = getType(i);
+            final NodeId nodeId;
+            if (type == XMLStreamReader.END_ELEMENT) {
+                nodeId = parent;
+                last = parent;
+                parent = parents.pop();
+            } else {
+                if (last != null) {
+                    nodeId = last.nextSibling();
+                } else {
+                    nodeId = parent == NodeId.DOCUMENT_NODE ? NodeId.ROOT_NODE : parent.newChild();
+                }
+                last = nodeId;
+                if (type == XMLStreamReader.START_ELEMENT) {
+                    parents.push(parent);
+                    parent = nodeId;
+                    last = null;
+                }
+            }
+            if (spill != null) {
+                spill.set(i, type, getHash(i), getNameId(i), getCode(i), nodeId);
+            } else {
+                nodeIds[i] = nodeId;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Release the spill files, if any. The nodes cannot be read afterwards.
+     */
+    @Override
+    public void close() {
+        if (spill != null) {
+            spill.close();
+            spill = null;
+        }
+    }
+
+    /**
+     * @return the number of nodes read, including any trimmed nodes
+     */
+    public int size() {
+        return offset + size;
+    }
+
+    /**
+     * @return the index of the first node held, 0 unless the nodes were trimmed
+     */
+    public int getStart() {
+        return offset;
+    }
+
+    /**
+     * Drop the nodes before the given index. The arrays are only compacted once the dropped
+     * nodes outweigh the kept ones, so trimming after every node costs constant time on average.
+     *
+     * @param from the index of the first node to keep
+     */
+    void trim(final int from) {
+        final int dropped = from - offset;
+        final int keep = size - dropped;
+        if (spill != null || dropped <= keep + INITIAL_SIZE) {
+            return;
+        }
+        System.arraycopy(types, dropped, types, 0, keep);
+        System.arraycopy(hashes, dropped, hashes, 0, keep);
+        System.arraycopy(nameIds, dropped, nameIds, 0, keep);
+        System.arraycopy(codes, dropped, codes, 0, keep);
+        System.arraycopy(nodeIds, dropped, nodeIds, 0, keep);
+        Arrays.fill(nodeIds, keep, size, null);
+        offset += dropped;
+        size = keep;
+        comments.keySet().removeIf(i -> i < offset);
+    }
+
+    public int getType(final int i) {
+        return spill != null ? spill.getType(i - offset) : types[i - offset];
+    }
+
+    /**
+     * @return the hash of the content of the node
+     */
+    public long getHash(final int i) {
+        return spill != null ? spill.getHash(i - offset) : hashes[i - offset];
+    }
+
+    /**
+     * @return the code the sequence diff compares: elements of the same name and nodes with
+     * the same hash have the same code
+     */
+    public int getCode(final int i) {
+        return spill != null ? spill.getCode(i - offset) : codes[i - offset];
+    }
+
+    public NodeId getNodeId(final int i) {
+        return spill != null ? spill.getNodeId(i - offset) : nodeIds[i - offset];
+    }
+
+    /**
+     * @return the id of the name of an element or end tag, -1 for other nodes
+     */
+    public int getNameId(final int i) {
+        return spill != null ? spill.getNameId(i - offset) : nameIds[i - offset];
+    }
+
+    /**
+     * @return true if both nodes are start tags of elements with the same name
+     */
+    public boolean isSameElement(final int i, final DiffNodes other, final int j) {
+        return getType(i) == XMLStreamReader.START_ELEMENT && other.getType(j) == XMLStreamReader.START_ELEMENT &&
+                getNameId(i) == other.getNameId(j);
+    }
+
+    /**
+     * @return the node as object, for use in a {@link Difference}
+     */
+    public DiffNode get(final int i) {
+        final int nameId = getNameId(i);
+        if (nameId > -1) {
+            return new DiffNode(getNodeId(i), getType(i), names.get(nameId));
+        }
+        return new DiffNode(getNodeId(i), getType(i), comments.get(i));
+    }
+
+    /**
+     * @return the nodes of a range as objects
+     */
+    public DiffNode[] get(final int from, final int to) {
+        final DiffNode[] nodes = new DiffNode[to - from];
+        for (int i = from; i < to; i++) {
+            nodes[i - from] = get(i);
+        }
+        return nodes;
+    }
+
+    /**
+     * Write the nodes. Names are written as a table of their own, so the nodes can be read
+     * into another diff. Trimmed nodes cannot be written.
+     *
+     * @param os the stream to write to
+     */
+    void write(final DataOutputStream os) throws IOException {
+        if (offset > 0) {
+            throw new IOException("Cannot write trimmed nodes");
+        }
+        final Names local = new Names();
+        final int[] localIds = new int[size];
+        for (int i = 0; i < size; i++) {
+            final int nameId = getNameId(i);
+            localIds[i] = nameId < 0 ? -1 : local.getId(names.get(nameId));
+        }
+        os.writeInt(local.qnames.size());
+        for (final QName qname : local.qnames) {
+            os.writeUTF(qname.getNamespaceURI() == null ? "" : qname.getNamespaceURI());
+            os.writeUTF(qname.getLocalPart());
+            os.writeUTF(qname.getPrefix() == null ? "" : qname.getPrefix());
+        }
+        os.writeInt(size);
+        for (int i = 0; i < size; i++) {
+            final NodeId nodeId = getNodeId(i);
+            os.writeByte(getType(i));
+            os.writeLong(getHash(i));
+            os.writeInt(localIds[i]);
+            final byte[] data = new byte[nodeId.size()];
+            nodeId.serialize(data, 0);
+            os.writeInt(nodeId.units());
+            os.writeInt(data.length);
+            os.write(data);
+            final String comment = comments.get(i);
+            os.writeBoolean(comment != null);
+            if (comment != null) {
+                final byte[] text = comment.getBytes(StandardCharsets.UTF_8);
+                os.writeInt(text.length);
+                os.write(text);
+            }
+        }
+    }
+
+    /**
+     * Read nodes written by {@link #write}.
+     *
+     * @param is the stream to read from
+     * @param names the name table of the diff the nodes are read for
+     * @param factory the factory to create node ids
+     * @return the nodes
+     */
+    static DiffNodes read(final DataInputStream is, final Names names, final NodeIdFactory factory)
+            throws IOException {
+        final int nameCount = is.readInt();
+        final int[] ids = new int[nameCount];
+        for (int i = 0; i < nameCount; i++) {
+            final String namespace = is.readUTF();
+            final String localPart = is.readUTF();
+            final String prefix = is.readUTF();
+            ids[i] = names.getId(new QName(localPart, namespace, prefix.isEmpty() ? null : prefix));
+        }
+        final DiffNodes nodes = new DiffNodes(names);
+        final int count = is.readInt();
+        for (int i = 0; i < count; i++) {
+            final int type = is.readByte();
+            final long hash = is.readLong();
+            final int localId = is.readInt();
+            final int units = is.readInt();
+            final byte[] data = new byte[is.readInt()];
+            is.readFully(data);
+            if (is.readBoolean()) {
+                final byte[] text = new byte[is.readInt()];
+                is.readFully(text);
+                nodes.comments.put(i, new String(text, StandardCharsets.UTF_8));
+            }
+            nodes.add(factory.createFromData(units, data, 0), type, hash, localId < 0 ? -1 : ids[localId]);
+        }
+        return nodes;
+    }
+
+    /**
+     * Interned element names and node codes, shared by the two documents of a diff so names
+     * can be compared by id and nodes by code.
+     */
+    public final static class Names {
+
+        private final Map<QName, Integer> ids = new HashMap<>();
+        private final List<QName> qnames = new ArrayList<>();
+
+        private int codeCount = 0;
+        /** code + 1 of the start and end tags by name id, 0 if none was assigned */
+        private int[] startCodes = new int[16];
+        private int[] endCodes = new int[16];
+        /** open addressing table of hashes and their code + 1 */
+        private long[] hashKeys = new long[INITIAL_SIZE];
+        private int[] hashCodes = new int[INITIAL_SIZE];
+        private int hashCount = 0;
+
+        /**
+         * @return the code of a node: the same for start or end tags with the same name id,
+         * or for other nodes with the same hash
+         */
+        int getCode(final int type, final long hash, final int nameId) {
+            if (nameId > -1) {
+                if (nameId >= startCodes.length) {
+                    startCodes = Arrays.copyOf(startCodes, Math.max(nameId + 1, startCodes.length * 2));
+                    endCodes = Arrays.copyOf(endCodes, startCodes.length);
+                }
+                final int[] codes = type == XMLStreamReader.START_ELEMENT ? startCodes : endCodes;
+                if (codes[nameId] == 0) {
+                    codes[nameId] = ++codeCount;
+                }
+                return codes[nameId] - 1;
+            }
+            if (hashCount * 2 >= hashKeys.length) {
+                rehash();
+            }
+            final int mask = hashKeys.length - 1;
+            int slot = slot(hash, mask);
+            while (hashCodes[slot] != 0) {
+                if (hashKeys[slot] == hash) {
+                    return hashCodes[slot] - 1;
+                }
+                slot = (slot + 1) & mask;
+            }
+            hashKeys[slot] = hash;
+            hashCodes[slot] = ++codeCount;
+            hashCount++;
+            return hashCodes[slot] - 1;
+        }
+
+        private void rehash() {
+            final long[] keys = hashKeys;
+            final int[] codes = hashCodes;
+            hashKeys = new long[keys.length * 2];
+            hashCodes = new int[keys.length * 2];
+            final int mask = hashKeys.length - 1;
+            for (int i = 0; i < keys.length; i++) {
+                if (codes[i] != 0) {
+                    int slot = slot(keys[i], mask);
+                    while (hashCodes[slot] != 0) {
+                        slot = (slot + 1) & mask;
+                    }
+                    hashKeys[slot] = keys[i];
+                    hashCodes[slot] = codes[i];
+                }
+            }
+        }
+
+        private static int slot(final long hash, final int mask) {
+            return (int) ((hash * 0x9e3779b97f4a7c15L) >>> 32) & mask;
+        }
+
+        int getId(final QName qname) {
+            Integer id = ids.get(qname);
+            if (id == null) {
+                id = qnames.size();
+                qnames.add(qname);
+                ids.put(qname, id);
+            }
+            return id;
+        }
+
+        QName get(final int id) {
+            return qnames.get(id);
+        }
+    }
+}
@@ -0,0 +1,183 @@
+/**
+ * Versioning Module for eXist-db XQuery
+ * Copyright (C) 2008 eXist-db <exit-open@lists.sourceforge.net>
+ * http://exist-db.org
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 1, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.exist.versioning;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.exist.EXistException;
+import org.exist.collections.Collection;
+import org.exist.collections.triggers.TriggerException;
+import org.exist.dom.persistent.BinaryDocument;
+import org.exist.dom.persistent.DocumentImpl;
+import org.exist.security.PermissionDeniedException;
+import org.exist.storage.DBBroker;
+import org.exist.storage.txn.Txn;
+import org.exist.util.LockException;
+import org.exist.xmldb.XmldbURI;
+
+import javax.xml.stream.XMLStreamException;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * The node table of a document in the versions collection, as read for diffing, stored next
+ * to it as <code>&lt;name&gt;.skeleton</code>. It holds the type, content hash, name and node
+ * id of each node. The next diff against the document reads the skeleton instead of the
+ * document, so only the modified document has to be read.
+ *
+ * A skeleton records the id and modification time of the document it was read from and is
+ * ignored once the document was replaced, e.g. by a new <code>.head</code> or by compaction.
+ */
+public final class DiffSkeleton {
+
+    private final static Logger LOG = LogManager.getLogger(DiffSkeleton.class);
+
+    public final static String SKELETON_SUFFIX = ".skeleton";
+
+    private final static int MAGIC = 0x4558534b; // EXSK
+    private final static byte FORMAT_VERSION = 1;
+
+    private DiffSkeleton() {
+    }
+
+    /**
+     * @param transaction the current transaction
+     * @param document a document in the versions collection
+     * @return the source to diff against, reading the skeleton of the document if it is up to date
+     */
+    public static DiffSource source(final Txn transaction, final DocumentImpl document) {
+        return new DiffSource.Stored(document) {
+            @Override
+            DiffNodes getNodes(final DBBroker broker, final DiffNodes.Names names) {
+                return load(broker, transaction, document, names);
+            }
+        };
+    }
+
+    private static DiffNodes load(final DBBroker broker, final Txn transaction, final DocumentImpl document,
+            final DiffNodes.Names names) {
+        try {
+            final DocumentImpl skeleton = document.getCollection().getDocument(broker,
+                    XmldbURI.create(document.getFileURI().toString() + SKELETON_SUFFIX));
+            if (!(skeleton instanceof BinaryDocument)) {
+                return null;
+            }
+            try (final DataInputStream is = new DataInputStream(new BufferedInputStream(
+                    broker.getBinaryResource(transaction, (BinaryDocument) skeleton)))) {
+                if (is.readInt() != MAGIC || is.readByte() != FORMAT_VERSION ||
+                        is.readInt() != document.getDocId() ||
+                        is.readLong() != document.getLastModified()) {
+                    return null;
+                }
+                try (final DataInputStream nodes = new DataInputStream(new BufferedInputStream(new InflaterInputStream(is)))) {
+                    return DiffNodes.read(nodes, names, broker.getBrokerPool().getNodeFactory());
+                }
+            }
+        } catch (final IOException | PermissionDeniedException e) {
+            LOG.warn("Failed to read skeleton of " + document.getURI() + ": " + e.getMessage(), e);
+            return null;
+        }
+    }
+
+    /**
+     * Store the skeleton of a document in the versions collection.
+     *
+     * @param broker the broker to use
+     * @param transaction the current transaction
+     * @param vCollection the versions collection containing the document
+     * @param document the document
+     * @param nodes the nodes of the document, with the node ids it has in the database
+     */
+    public static void store(final DBBroker broker, final Txn transaction, final Collection vCollection,
+            final DocumentImpl document, final DiffNodes nodes) throws IOException, PermissionDeniedException,
+            LockException, EXistException, TriggerException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (final DataOutputStream os = new DataOutputStream(bytes)) {
+            os.writeInt(MAGIC);
+            os.writeByte(FORMAT_VERSION);
+            os.writeInt(document.getDocId());
+            os.writeLong(document.getLastModified());
+            os.flush();
+            final DeflaterOutputStream deflater = new DeflaterOutputStream(os);
+            final DataOutputStream data = new DataOutputStream(deflater);
+            nodes.write(data);
+            data.flush();
+            deflater.finish();
+        }
+
+        final XmldbURI uri = XmldbURI.create(document.getFileURI().toString() + SKELETON_SUFFIX);
+        if (vCollection.getDocument(broker, uri) != null) {
+            vCollection.removeBinaryResource(transaction, broker, uri);
+        }
+        try (final InputStream is = new ByteArrayInputStream(bytes.toByteArray())) {
+            vCollection.addBinaryResource(transaction, broker, uri, is, VersioningTrigger.BINARY_DELTA_MIME_TYPE,
+                    bytes.size());
+        }
+    }
+
+    /**
+     * Store the skeleton of a document stored from an in-memory copy of the modified document
+     * of a diff, e.g. a new <code>.head</code>. The nodes the diff read are given the ids of
+     * the stored document, so it does not have to be read. If that is not possible, the
+     * document is read.
+     *
+     * @param broker the broker to use
+     * @param transaction the current transaction
+     * @param vCollection the versions collection containing the document
+     * @param document the stored document
+     * @param diff the diff whose modified document the document was copied from
+     */
+    public static void store(final DBBroker broker, final Txn transaction, final Collection vCollection,
+            final DocumentImpl document, final StandardDiff diff) throws IOException, PermissionDeniedException,
+            LockException, EXistException, TriggerException, XMLStreamException {
+        final DiffNodes nodes = diff.getTargetNodes();
+        if (nodes != null && nodes.renumber()) {
+            store(broker, transaction, vCollection, document, nodes);
+        } else {
+            store(broker, transaction, vCollection, document);
+        }
+    }
+
+    /**
+     * Store the skeleton of a document, reading its nodes from the database. Used for documents
+     * stored from an in-memory copy, as the skeleton has to record the node ids the document was
+     * given when it was stored.
+     *
+     * @param broker the broker to use
+     * @param transaction the current transaction
+     * @param vCollection the versions collection containing the document
+     * @param document the stored document
+     */
+    public static void store(final DBBroker broker, final Txn transaction, final Collection vCollection,
+            final DocumentImpl document) throws IOException, PermissionDeniedException, LockException,
+            EXistException, TriggerException, XMLStreamException {
+        try (final StandardDiff diff = new StandardDiff(broker)) {
+            store(broker, transaction, vCollection, document,
+                    diff.getNodes(broker, DiffSource.of(document), new DiffNodes.Names()));
+        }
+    }
+}
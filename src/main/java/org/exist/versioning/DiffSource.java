@@ -0,0 +1,263 @@
+/**
+ * Versioning Module for eXist-db XQuery
+ * Copyright (C) 2008 eXist-db <exit-open@lists.sourceforge.net>
+ * http://exist-db.org
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 1, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.exist.versioning;
+
+import org.exist.dom.QName;
+import org.exist.dom.memtree.InMemoryXMLStreamReader;
+import org.exist.dom.memtree.NodeImpl;
+import org.exist.dom.persistent.AttrImpl;
+import org.exist.dom.persistent.DocumentImpl;
+import org.exist.dom.persistent.IStoredNode;
+import org.exist.dom.persistent.NodeProxy;
+import org.exist.numbering.NodeId;
+import org.exist.stax.ExtendedXMLStreamReader;
+import org.exist.storage.DBBroker;
+import org.exist.storage.serializers.Serializer;
+import org.exist.util.serializer.AttrList;
+import org.exist.util.serializer.Receiver;
+import org.w3c.dom.Attr;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import org.xml.sax.SAXException;
+
+import javax.xml.stream.XMLStreamException;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A document to be diffed, either stored in the database or an in-memory document, e.g. a
+ * restored revision. Nodes are addressed by their node id in both cases, so the diff of an
+ * in-memory document uses the same references as the diff of a stored copy.
+ *
+ * This relies on an in-memory document and the document stored from it having the same node
+ * ids: both number the nodes of a freshly built tree in document order, attributes included.
+ * It holds for the documents built by the memtree builder from a serialized or patched
+ * document, which are the only in-memory documents the trigger stores.
+ */
+public abstract class DiffSource {
+
+    private final static AtomicLong documentReads = new AtomicLong();
+
+    /**
+     * @param document a stored document
+     * @return the source reading the document
+     */
+    public static DiffSource of(final DocumentImpl document) {
+        return new Stored(document);
+    }
+
+    /**
+     * @param document an in-memory document
+     * @return the source reading the document
+     */
+    public static DiffSource of(final org.exist.dom.memtree.DocumentImpl document) {
+        return new InMemory(document);
+    }
+
+    /**
+     * @param broker the broker to use
+     * @return a reader positioned before the first child of the document
+     */
+    public abstract ExtendedXMLStreamReader newReader(DBBroker broker) throws XMLStreamException, IOException;
+
+    /**
+     * @param broker the broker to use
+     * @param nodeId the id of an element
+     * @return a reader positioned before the element, reading the element and its descendants
+     */
+    public abstract ExtendedXMLStreamReader newReader(DBBroker broker, NodeId nodeId)
+            throws XMLStreamException, IOException;
+
+    /**
+     * Write a node and its descendants to a receiver.
+     *
+     * @param broker the broker to use
+     * @param nodeId the id of an element, text, comment or processing instruction
+     * @param receiver the receiver to write to
+     */
+    public abstract void serialize(DBBroker broker, NodeId nodeId, Receiver<?> receiver) throws SAXException;
+
+    /**
+     * Add an attribute of the document to a list of attributes.
+     *
+     * @param broker the broker to use
+     * @param nodeId the id of the attribute
+     * @param attribs the list to add the attribute to
+     */
+    public abstract void addAttribute(DBBroker broker, NodeId nodeId, AttrList attribs);
+
+    /**
+     * @param broker the broker to use
+     * @param nodeId the id of a text node
+     * @return the text of the node, or null if it does not exist
+     */
+    public abstract String getText(DBBroker broker, NodeId nodeId);
+
+    /**
+     * @param broker the broker to use
+     * @param names the name table of the diff
+     * @return the nodes of the document if they are available without reading it, else null
+     */
+    DiffNodes getNodes(final DBBroker broker, final DiffNodes.Names names) {
+        return null;
+    }
+
+    /**
+     * @return the number of times a stored document was read from its start, e.g. to read
+     * its nodes for a diff
+     */
+    static long getDocumentReads() {
+        return documentReads.get();
+    }
+
+    static class Stored extends DiffSource {
+
+        private final DocumentImpl document;
+
+        Stored(final DocumentImpl document) {
+            this.document = document;
+        }
+
+        @Override
+        public ExtendedXMLStreamReader newReader(final DBBroker broker) throws XMLStreamException, IOException {
+            documentReads.incrementAndGet();
+            return broker.newXMLStreamReader(
+                    new NodeProxy(document, NodeId.DOCUMENT_NODE, document.getFirstChildAddress()), false);
+        }
+
+        @Override
+        public ExtendedXMLStreamReader newReader(final DBBroker broker, final NodeId nodeId)
+                throws XMLStreamException, IOException {
+            final IStoredNode<?> node = broker.objectWith(document, nodeId);
+            if (node == null) {
+                throw new IOException("Node " + nodeId + " not found in " + document.getURI());
+            }
+            return broker.newXMLStreamReader(node, false);
+        }
+
+        @Override
+        public void serialize(final DBBroker broker, final NodeId nodeId, final Receiver<?> receiver)
+                throws SAXException {
+            final Serializer serializer = broker.getSerializer();
+            serializer.reset();
+            serializer.setProperty(Serializer.GENERATE_DOC_EVENTS, "false");
+            serializer.setReceiver(receiver);
+            serializer.toReceiver(new NodeProxy(document, nodeId), false);
+        }
+
+        @Override
+        public void addAttribute(final DBBroker broker, final NodeId nodeId, final AttrList attribs) {
+            final AttrImpl attr = (AttrImpl) broker.objectWith(document, nodeId);
+            attribs.addAttribute(new QName(attr.getLocalName(), attr.getNamespaceURI(), attr.getPrefix()),
+                    attr.getValue(), attr.getType());
+        }
+
+        @Override
+        public String getText(final DBBroker broker, final NodeId nodeId) {
+            final IStoredNode<?> node = broker.objectWith(document, nodeId);
+            return node == null ? null : node.getNodeValue();
+        }
+    }
+
+    private final static class InMemory extends DiffSource {
+
+        private final org.exist.dom.memtree.DocumentImpl document;
+        private volatile Map<NodeId, Node> nodes = null;
+
+        private InMemory(final org.exist.dom.memtree.DocumentImpl document) {
+            this.document = document;
+        }
+
+        @Override
+        public ExtendedXMLStreamReader newReader(final DBBroker broker) {
+            return new InMemoryXMLStreamReader(document, document);
+        }
+
+        @Override
+        public ExtendedXMLStreamReader newReader(final DBBroker broker, final NodeId nodeId) throws IOException {
+            final Node node = getNode(nodeId);
+            if (node == null) {
+                throw new IOException("Node " + nodeId + " not found in in-memory document");
+            }
+            return new InMemoryXMLStreamReader(document, (NodeImpl) node);
+        }
+
+        @Override
+        public void serialize(final DBBroker broker, final NodeId nodeId, final Receiver<?> receiver)
+                throws SAXException {
+            final Node node = getNode(nodeId);
+            if (node != null) {
+                ((NodeImpl) node).streamTo(broker.getSerializer(), receiver);
+            }
+        }
+
+        @Override
+        public void addAttribute(final DBBroker broker, final NodeId nodeId, final AttrList attribs) {
+            final Attr attr = (Attr) getNode(nodeId);
+            if (attr != null) {
+                attribs.addAttribute(new QName(attr.getLocalName(), attr.getNamespaceURI(), attr.getPrefix()),
+                        attr.getValue());
+            }
+        }
+
+        @Override
+        public String getText(final DBBroker broker, final NodeId nodeId) {
+            final Node node = getNode(nodeId);
+            return node == null ? null : node.getNodeValue();
+        }
+
+        /**
+         * Look up a node by its id. The ids of all nodes are collected on first use, as only
+         * the nodes of inserted ranges are ever looked up. A parallel {@link TreeDiff} looks up
+         * the key attributes of its partitions concurrently, so the map is only published once
+         * it is complete.
+         */
+        private Node getNode(final NodeId nodeId) {
+            Map<NodeId, Node> map = nodes;
+            if (map == null) {
+                synchronized (this) {
+                    map = nodes;
+                    if (map == null) {
+                        map = new HashMap<>();
+                        collect(document, map);
+                        nodes = map;
+                    }
+                }
+            }
+            return map.get(nodeId);
+        }
+
+        private static void collect(final Node parent, final Map<NodeId, Node> nodes) {
+            for (Node child = parent.getFirstChild(); child != null; child = child.getNextSibling()) {
+                nodes.put(((NodeImpl) child).getNodeId(), child);
+                if (child.getNodeType() == Node.ELEMENT_NODE) {
+                    final NamedNodeMap attrs = child.getAttributes();
+                    for (int i = 0; i < attrs.getLength(); i++) {
+                        final Node attr = attrs.item(i);
+                        nodes.put(((NodeImpl) attr).getNodeId(), attr);
+                    }
+                    collect(child, nodes);
+                }
+            }
+        }
+    }
+}
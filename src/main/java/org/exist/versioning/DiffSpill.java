@@ -0,0 +1,287 @@
+/**
+ * Versioning Module for eXist-db XQuery
+ * Copyright (C) 2008 eXist-db <exit-open@lists.sourceforge.net>
+ * http://exist-db.org
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 1, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.exist.versioning;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.exist.numbering.NodeId;
+import org.exist.numbering.NodeIdFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Node table of a {@link DiffNodes} moved out of the Java heap into memory-mapped temporary
+ * files. Each node is a fixed-width record of type, name id, hash, code and the position of
+ * its node id, whose bytes are appended to a second file. Both files are mapped in segments,
+ * so nodes are read by index without any copy on the heap.
+ *
+ * The files are unmapped and deleted on {@link #close()}. Files left behind by a crash are
+ * deleted when the first spill is created in the directory. Only files older than the running
+ * JVM are deleted, which can belong to no diff still running: the database directory is only
+ * used by one process.
+ */
+final class DiffSpill implements Closeable {
+
+    private final static Logger LOG = LogManager.getLogger(DiffSpill.class);
+
+    public final static String SPILL_DIR = "versioning-spill";
+
+    private final static String SUFFIX = ".spill";
+
+    /** type, name id, hash, node id units, node id length, node id offset, code and padding */
+    private final static int RECORD_SIZE = 40;
+    private final static int SEGMENT_SIZE = RECORD_SIZE * 1024 * 1024;
+
+    private final static Set<Path> purged = new HashSet<>();
+
+    private final static long JVM_START = ManagementFactory.getRuntimeMXBean().getStartTime();
+
+    private final static Unmapper UNMAPPER = Unmapper.create();
+
+    private final NodeIdFactory factory;
+    private final Segments records;
+    private final Segments ids;
+    private long idLength = 0;
+
+    private DiffSpill(final Path dir, final NodeIdFactory factory) throws IOException {
+        this.factory = factory;
+        this.records = new Segments(Files.createTempFile(dir, "nodes", SUFFIX));
+        Segments idSegments = null;
+        try {
+            idSegments = new Segments(Files.createTempFile(dir, "ids", SUFFIX));
+        } finally {
+            if (idSegments == null) {
+                records.close();
+            }
+        }
+        this.ids = idSegments;
+    }
+
+    /**
+     * Create a spill in the given directory.
+     *
+     * @param dir the directory to create the files in
+     * @param factory the factory to read node ids
+     * @return the new spill
+     */
+    static synchronized DiffSpill create(final Path dir, final NodeIdFactory factory) throws IOException {
+        if (purged.add(dir)) {
+            Files.createDirectories(dir);
+            try (final DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*" + SUFFIX)) {
+                for (final Path file : files) {
+                    if (Files.getLastModifiedTime(file).toMillis() < JVM_START) {
+                        LOG.info("Deleting stale spill file " + file);
+                        Files.deleteIfExists(file);
+                    }
+                }
+            }
+        }
+        return new DiffSpill(dir, factory);
+    }
+
+    /**
+     * Write the node at the given index. Nodes have to be written in order.
+     */
+    void set(final int i, final int type, final long hash, final int nameId, final int code, final NodeId nodeId)
+            throws IOException {
+        final byte[] data = new byte[nodeId.size()];
+        nodeId.serialize(data, 0);
+        final long position = (long) i * RECORD_SIZE;
+        final MappedByteBuffer segment = records.get(position);
+        final int offset = (int) (position % SEGMENT_SIZE);
+        segment.putInt(offset, type);
+        segment.putInt(offset + 4, nameId);
+        segment.putLong(offset + 8, hash);
+        segment.putInt(offset + 16, nodeId.units());
+        segment.putInt(offset + 20, data.length);
+        segment.putLong(offset + 24, idLength);
+        segment.putInt(offset + 32, code);
+        ids.put(idLength, data);
+        idLength += data.length;
+    }
+
+    int getType(final int i) {
+        return record(i).getInt(offset(i));
+    }
+
+    int getNameId(final int i) {
+        return record(i).getInt(offset(i) + 4);
+    }
+
+    long getHash(final int i) {
+        return record(i).getLong(offset(i) + 8);
+    }
+
+    int getCode(final int i) {
+        return record(i).getInt(offset(i) + 32);
+    }
+
+    NodeId getNodeId(final int i) {
+        final MappedByteBuffer segment = record(i);
+        final int offset = offset(i);
+        final byte[] data = new byte[segment.getInt(offset + 20)];
+        ids.get(segment.getLong(offset + 24), data);
+        return factory.createFromData(segment.getInt(offset + 16), data, 0);
+    }
+
+    private MappedByteBuffer record(final int i) {
+        return records.segments.get((int) ((long) i * RECORD_SIZE / SEGMENT_SIZE));
+    }
+
+    private static int offset(final int i) {
+        return (int) ((long) i * RECORD_SIZE % SEGMENT_SIZE);
+    }
+
+    @Override
+    public void close() {
+        records.close();
+        ids.close();
+    }
+
+    /**
+     * A file mapped in segments of equal size, grown as it is written.
+     */
+    private final static class Segments {
+
+        private final Path file;
+        private final FileChannel channel;
+        private final List<MappedByteBuffer> segments = new ArrayList<>();
+
+        private Segments(final Path file) throws IOException {
+            this.file = file;
+            this.channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+
+        /**
+         * @return the segment containing the position, mapping it if necessary
+         */
+        private MappedByteBuffer get(final long position) throws IOException {
+            final int index = (int) (position / SEGMENT_SIZE);
+            while (segments.size() <= index) {
+                segments.add(channel.map(FileChannel.MapMode.READ_WRITE, (long) segments.size() * SEGMENT_SIZE,
+                        SEGMENT_SIZE));
+            }
+            return segments.get(index);
+        }
+
+        private void put(final long position, final byte[] data) throws IOException {
+            for (int i = 0; i < data.length; i++) {
+                get(position + i).put((int) ((position + i) % SEGMENT_SIZE), data[i]);
+            }
+        }
+
+        private void get(final long position, final byte[] data) {
+            for (int i = 0; i < data.length; i++) {
+                data[i] = segments.get((int) ((position + i) / SEGMENT_SIZE)).get((int) ((position + i) % SEGMENT_SIZE));
+            }
+        }
+
+        private void close() {
+            // a file still mapped cannot be deleted on some platforms
+            for (final MappedByteBuffer segment : segments) {
+                UNMAPPER.unmap(segment);
+            }
+            segments.clear();
+            try {
+                channel.close();
+            } catch (final IOException e) {
+                LOG.warn("Failed to close spill file " + file + ": " + e.getMessage(), e);
+            }
+            try {
+                Files.deleteIfExists(file);
+            } catch (final IOException e) {
+                LOG.warn("Failed to delete spill file " + file + ": " + e.getMessage(), e);
+                file.toFile().deleteOnExit();
+            }
+        }
+    }
+
+    /**
+     * Releases the mapping of a buffer, instead of leaving it to the garbage collector. The
+     * buffer must not be read afterwards. Uses <code>sun.misc.Unsafe.invokeCleaner</code> where
+     * available (Java 9 and later), else the cleaner of the buffer (Java 8). If neither can be
+     * accessed, the mapping is left to the garbage collector.
+     */
+    private static abstract class Unmapper {
+
+        abstract void unmap(MappedByteBuffer buffer);
+
+        static Unmapper create() {
+            try {
+                final Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+                final Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+                final Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+                theUnsafe.setAccessible(true);
+                final Object unsafe = theUnsafe.get(null);
+                return new Unmapper() {
+                    @Override
+                    void unmap(final MappedByteBuffer buffer) {
+                        try {
+                            invokeCleaner.invoke(unsafe, buffer);
+                        } catch (final ReflectiveOperationException e) {
+                            LOG.warn("Failed to unmap spill file: " + e.getMessage(), e);
+                        }
+                    }
+                };
+            } catch (final ReflectiveOperationException | RuntimeException e) {
+                // Java 8
+            }
+            try {
+                final Method cleaner = Class.forName("sun.nio.ch.DirectBuffer").getMethod("cleaner");
+                final Method clean = Class.forName("sun.misc.Cleaner").getMethod("clean");
+                return new Unmapper() {
+                    @Override
+                    void unmap(final MappedByteBuffer buffer) {
+                        try {
+                            final Object bufferCleaner = cleaner.invoke(buffer);
+                            if (bufferCleaner != null) {
+                                clean.invoke(bufferCleaner);
+                            }
+                        } catch (final ReflectiveOperationException e) {
+                            LOG.warn("Failed to unmap spill file: " + e.getMessage(), e);
+                        }
+                    }
+                };
+            } catch (final ReflectiveOperationException | RuntimeException e) {
+                LOG.info("Spill files cannot be unmapped, leaving it to the garbage collector: " + e.getMessage());
+                return new Unmapper() {
+                    @Override
+                    void unmap(final MappedByteBuffer buffer) {
+                    }
+                };
+            }
+        }
+    }
+}
@@ -19,18 +19,16 @@
  */
 package org.exist.versioning;
 
-import org.exist.dom.persistent.NodeProxy;
-import org.exist.dom.persistent.AttrImpl;
-import org.exist.dom.persistent.DocumentImpl;
 import org.exist.dom.QName;
 import org.exist.numbering.NodeId;
 import org.exist.storage.DBBroker;
-import org.exist.storage.serializers.Serializer;
 import org.exist.util.serializer.Receiver;
 import org.exist.util.serializer.AttrList;
 import org.xml.sax.SAXException;
 
+import javax.xml.XMLConstants;
 import javax.xml.stream.XMLStreamReader;
+import java.io.IOException;
 
 public abstract class Difference implements Comparable<Difference> {
 
@@ -38,6 +36,7 @@ public abstract class Difference implements Comparable<Difference> {
     public final static int DELETE = 1;
     public final static int APPEND = 2;
     public final static int UPDATE = 3;
+    public final static int TEXT_EDIT = 4;
 
     public final static QName ELEMENT_INSERT = new QName("insert", StandardDiff.NAMESPACE, StandardDiff.PREFIX);
     public final static QName ATTR_REF = new QName("ref", "", "");
@@ -50,39 +49,47 @@ public abstract class Difference implements Comparable<Difference> {
     public final static QName ELEMENT_COMMENT = new QName("comment", StandardDiff.NAMESPACE, StandardDiff.PREFIX);
     public final static QName ELEMENT_APPEND = new QName("append", StandardDiff.NAMESPACE, StandardDiff.PREFIX);
     public final static QName ELEMENT_DELETE = new QName("delete", StandardDiff.NAMESPACE, StandardDiff.PREFIX);
+    public final static QName ELEMENT_MOVE = new QName("move", StandardDiff.NAMESPACE, StandardDiff.PREFIX);
+    public final static QName ELEMENT_TEXT_EDIT = new QName("text-edit", StandardDiff.NAMESPACE, StandardDiff.PREFIX);
+    public final static QName ELEMENT_RANGE = new QName("range", StandardDiff.NAMESPACE, StandardDiff.PREFIX);
+    public final static QName ATTR_OFFSET = new QName("offset", "", "");
+    public final static QName ATTR_LENGTH = new QName("length", "", "");
+    /** the replacement of a range as written by earlier versions, now the content of the range */
+    public final static QName ATTR_TEXT = new QName("text", "", "");
+    public final static QName ATTR_XML_SPACE = new QName("space", XMLConstants.XML_NS_URI, "xml");
 
     protected final int type;
-    protected final NodeProxy refChild;
+    protected final NodeId refChild;
 
-    public Difference(final int type, final NodeProxy refChild) {
+    public Difference(final int type, final NodeId refChild) {
         this.type = type;
         this.refChild = refChild;
     }
 
-    public abstract void serialize(final DBBroker broker, final Receiver handler);
+    public abstract void serialize(final DBBroker broker, final Receiver<?> handler);
 
     @Override
     public boolean equals(final Object obj) {
         final Difference other = (Difference) obj;
-        return refChild.getNodeId().equals(other.refChild.getNodeId());
+        return refChild.equals(other.refChild);
     }
 
     @Override
     public int compareTo(final Difference other) {
-        return refChild.getNodeId().compareTo(other.refChild.getNodeId());
+        return refChild.compareTo(other.refChild);
     }
 
     public static class Insert extends Difference {
 
-        protected final DocumentImpl otherDoc;
+        protected final DiffSource otherDoc;
         protected DiffNode[] nodes;
 
-        public Insert(final NodeProxy reference, final DocumentImpl otherDoc) {
+        public Insert(final NodeId reference, final DiffSource otherDoc) {
             super(INSERT, reference);
             this.otherDoc = otherDoc;
         }
 
-        public Insert(final int type, final NodeProxy reference, final DocumentImpl otherDoc) {
+        public Insert(final int type, final NodeId reference, final DiffSource otherDoc) {
             super(type, reference);
             this.otherDoc = otherDoc;
         }
@@ -99,10 +106,10 @@ public abstract class Difference implements Comparable<Difference> {
         }
 
         @Override
-        public void serialize(final DBBroker broker, final Receiver handler) {
+        public void serialize(final DBBroker broker, final Receiver<?> handler) {
             try {
                 final AttrList attribs = new AttrList();
-                attribs.addAttribute(ATTR_REF, refChild.getNodeId().toString());
+                attribs.addAttribute(ATTR_REF, refChild.toString());
                 handler.startElement(ELEMENT_INSERT, attribs);
                 serializeChildren(broker, handler);
                 handler.endElement(ELEMENT_INSERT);
@@ -111,15 +118,13 @@ public abstract class Difference implements Comparable<Difference> {
             }
         }
 
-        protected void serializeChildren(final DBBroker broker, final Receiver handler) throws SAXException {
+        protected void serializeChildren(final DBBroker broker, final Receiver<?> handler) throws SAXException {
             AttrList attribs;
             for (int i = 0; i < nodes.length; i++) {
                 switch (nodes[i].nodeType) {
                     case XMLStreamReader.ATTRIBUTE:
                         attribs = new AttrList();
-                        final AttrImpl attr = (AttrImpl) broker.objectWith(otherDoc, nodes[i].nodeId);
-                        attribs.addAttribute(new QName(attr.getLocalName(), attr.getNamespaceURI(), attr.getPrefix()),
-                                attr.getValue(), attr.getType());
+                        otherDoc.addAttribute(broker, nodes[i].nodeId, attribs);
                         handler.startElement(ELEMENT_ATTRIBUTE, attribs);
                         handler.endElement(ELEMENT_ATTRIBUTE);
                         break;
@@ -132,12 +137,7 @@ public abstract class Difference implements Comparable<Difference> {
                             if (nodes[j].nodeType == XMLStreamReader.END_ELEMENT &&
                                     nodes[j].nodeId.equals(nodeId)) {
                                 isClosed = true;
-                                final NodeProxy proxy = new NodeProxy(otherDoc, nodes[i].nodeId);
-                                final Serializer serializer = broker.getSerializer();
-                                serializer.reset();
-                                serializer.setProperty(Serializer.GENERATE_DOC_EVENTS, "false");
-                                serializer.setReceiver(handler);
-                                serializer.toReceiver(proxy, false);
+                                otherDoc.serialize(broker, nodes[i].nodeId, handler);
                                 i = j;
                                 break;
                             }
@@ -159,19 +159,28 @@ public abstract class Difference implements Comparable<Difference> {
                         handler.startElement(ELEMENT_END, attribs);
                         handler.endElement(ELEMENT_END);
                         break;
+                    case DiffNode.MOVE:
+                        // the element is moved here from the source document, referenced by its node id
+                        attribs = new AttrList();
+                        attribs.addAttribute(ATTR_REF, nodes[i].nodeId.toString());
+                        handler.startElement(ELEMENT_MOVE, attribs);
+                        handler.endElement(ELEMENT_MOVE);
+                        break;
                     case XMLStreamReader.COMMENT:
                         attribs = new AttrList();
                         handler.startElement(ELEMENT_COMMENT, attribs);
                         handler.characters(nodes[i].value);
                         handler.endElement(ELEMENT_COMMENT);
                         break;
+                    case XMLStreamReader.CHARACTERS:
+                        // a text node does not need the serializer
+                        final String text = otherDoc.getText(broker, nodes[i].nodeId);
+                        if (text != null) {
+                            handler.characters(text);
+                        }
+                        break;
                     default:
-                        final NodeProxy proxy = new NodeProxy(otherDoc, nodes[i].nodeId);
-                        final Serializer serializer = broker.getSerializer();
-                        serializer.reset();
-                        serializer.setProperty(Serializer.GENERATE_DOC_EVENTS, "false");
-                        serializer.setReceiver(handler);
-                        serializer.toReceiver(proxy, false);
+                        otherDoc.serialize(broker, nodes[i].nodeId, handler);
                         break;
                 }
             }
@@ -180,15 +189,15 @@ public abstract class Difference implements Comparable<Difference> {
 
     public final static class Append extends Insert {
 
-        public Append(final NodeProxy reference, final DocumentImpl otherDoc) {
+        public Append(final NodeId reference, final DiffSource otherDoc) {
             super(APPEND, reference, otherDoc);
         }
 
         @Override
-        public void serialize(final DBBroker broker, final Receiver handler) {
+        public void serialize(final DBBroker broker, final Receiver<?> handler) {
             try {
                 final AttrList attribs = new AttrList();
-                attribs.addAttribute(ATTR_REF, refChild.getNodeId().toString());
+                attribs.addAttribute(ATTR_REF, refChild.toString());
                 handler.startElement(ELEMENT_APPEND, attribs);
                 serializeChildren(broker, handler);
                 handler.endElement(ELEMENT_APPEND);
@@ -202,24 +211,24 @@ public abstract class Difference implements Comparable<Difference> {
 
         protected final int event;
 
-        public Delete(final NodeProxy reference) {
+        public Delete(final NodeId reference) {
             this(-1, reference);
         }
 
-        public Delete(final int event, final NodeProxy reference) {
+        public Delete(final int event, final NodeId reference) {
             super(DELETE, reference);
             this.event = event;
         }
 
         @Override
-        public void serialize(final DBBroker broker, final Receiver handler) {
+        public void serialize(final DBBroker broker, final Receiver<?> handler) {
             try {
                 final AttrList attribs = new AttrList();
                 if (event == XMLStreamReader.START_ELEMENT || event == XMLStreamReader.END_ELEMENT) {
                     String ev = event == XMLStreamReader.START_ELEMENT ? "start" : "end";
                     attribs.addAttribute(ATTR_EVENT, ev);
                 }
-                attribs.addAttribute(ATTR_REF, refChild.getNodeId().toString());
+                attribs.addAttribute(ATTR_REF, refChild.toString());
                 handler.startElement(ELEMENT_DELETE, attribs);
                 handler.endElement(ELEMENT_DELETE);
             } catch (final SAXException e) {
@@ -227,4 +236,80 @@ public abstract class Difference implements Comparable<Difference> {
             }
         }
     }
+
+    /**
+     * Replaces ranges of the text of a text node. Offsets and lengths count the chars of the
+     * source text; ranges are ordered and do not overlap. The replacement is the content of
+     * its range, which preserves whitespace, so whitespace-only replacements survive
+     * whitespace stripping when the version document is stored.
+     */
+    public final static class TextEdit extends Difference {
+
+        private final int[] offsets;
+        private final int[] lengths;
+        private final String[] replacements;
+
+        public TextEdit(final NodeId reference, final int[] offsets, final int[] lengths, final String[] replacements) {
+            super(TEXT_EDIT, reference);
+            this.offsets = offsets;
+            this.lengths = lengths;
+            this.replacements = replacements;
+        }
+
+        public int getRangeCount() {
+            return offsets.length;
+        }
+
+        public int getOffset(final int range) {
+            return offsets[range];
+        }
+
+        public int getLength(final int range) {
+            return lengths[range];
+        }
+
+        public String getReplacement(final int range) {
+            return replacements[range];
+        }
+
+        /**
+         * @param text the text of the source node
+         * @return the text of the modified node
+         */
+        public String apply(final String text) throws IOException {
+            final StringBuilder buf = new StringBuilder(text.length());
+            int pos = 0;
+            for (int i = 0; i < offsets.length; i++) {
+                if (offsets[i] < pos || offsets[i] + lengths[i] > text.length()) {
+                    throw new IOException("Text edit does not match the text of node " + refChild);
+                }
+                buf.append(text, pos, offsets[i]).append(replacements[i]);
+                pos = offsets[i] + lengths[i];
+            }
+            return buf.append(text, pos, text.length()).toString();
+        }
+
+        @Override
+        public void serialize(final DBBroker broker, final Receiver<?> handler) {
+            try {
+                AttrList attribs = new AttrList();
+                attribs.addAttribute(ATTR_REF, refChild.toString());
+                handler.startElement(ELEMENT_TEXT_EDIT, attribs);
+                for (int i = 0; i < offsets.length; i++) {
+                    attribs = new AttrList();
+                    attribs.addAttribute(ATTR_OFFSET, Integer.toString(offsets[i]));
+                    attribs.addAttribute(ATTR_LENGTH, Integer.toString(lengths[i]));
+                    attribs.addAttribute(ATTR_XML_SPACE, "preserve");
+                    handler.startElement(ELEMENT_RANGE, attribs);
+                    if (!replacements[i].isEmpty()) {
+                        handler.characters(replacements[i]);
+                    }
+                    handler.endElement(ELEMENT_RANGE);
+                }
+                handler.endElement(ELEMENT_TEXT_EDIT);
+            } catch (final SAXException e) {
+                e.printStackTrace();
+            }
+        }
+    }
 }
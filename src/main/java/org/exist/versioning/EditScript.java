@@ -0,0 +1,635 @@
+/**
+ * Versioning Module for eXist-db XQuery
+ * Copyright (C) 2008 eXist-db <exit-open@lists.sourceforge.net>
+ * http://exist-db.org
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 1, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.exist.versioning;
+
+import org.exist.dom.INodeHandle;
+import org.exist.dom.QName;
+import org.exist.numbering.NodeId;
+import org.exist.numbering.NodeIdFactory;
+import org.exist.storage.DBBroker;
+import org.exist.util.serializer.AttrList;
+import org.exist.util.serializer.Receiver;
+import org.w3c.dom.Document;
+import org.xml.sax.SAXException;
+
+import javax.xml.stream.XMLStreamReader;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Compact binary encoding of a list of {@link Difference}s, an alternative to the
+ * <code>v:diff</code> element of a version document.
+ *
+ * The encoding starts with the magic bytes <code>EXES</code>, a version byte and a flags
+ * byte telling if the rest is deflated. Each difference is written as an opcode followed by
+ * the node id of its reference node as number of units and the node id's bytes. Inserts and
+ * appends are followed by their content as a sequence of events, closed by
+ * {@link #EVENT_END}. Names are written once and referenced by index afterwards. An element
+ * moved from elsewhere in the source document is a {@link #EVENT_MOVE} event holding its
+ * node id in the source, written like the node ids of the differences. A text edit lists its ranges as count, followed by offset, length
+ * and replacement of each range.
+ */
+public class EditScript {
+
+    private final static byte[] MAGIC = { 'E', 'X', 'E', 'S' };
+    private final static int VERSION = 2;
+    /** version 1 wrote the node id of a moved element as string */
+    private final static int VERSION_STRING_MOVES = 1;
+
+    private final static int FLAG_DEFLATE = 1;
+
+    private final static int OP_END = 0;
+    private final static int OP_INSERT = 1;
+    private final static int OP_APPEND = 2;
+    private final static int OP_DELETE = 3;
+    private final static int OP_TEXT_EDIT = 4;
+
+    public final static int EVENT_END = 0;
+    public final static int EVENT_START_ELEMENT = 1;
+    public final static int EVENT_END_ELEMENT = 2;
+    public final static int EVENT_CHARACTERS = 3;
+    public final static int EVENT_CDATA = 4;
+    public final static int EVENT_COMMENT = 5;
+    public final static int EVENT_PI = 6;
+    /** an attribute inserted into an existing element */
+    public final static int EVENT_ATTRIBUTE = 7;
+    /** a start tag whose end tag is not part of the insert */
+    public final static int EVENT_START_TAG = 8;
+    /** an end tag whose start tag is not part of the insert */
+    public final static int EVENT_END_TAG = 9;
+    /** an element of the source document moved here, identified by its node id */
+    public final static int EVENT_MOVE = 10;
+
+    private EditScript() {
+    }
+
+    /**
+     * Encode a list of differences.
+     *
+     * @param broker the broker used to read the content of inserts
+     * @param changes the differences to write
+     * @param os the stream to write to
+     * @param compress true to deflate the output
+     * @throws IOException if writing fails
+     * @throws SAXException if the content of an insert could not be read
+     */
+    public static void write(final DBBroker broker, final List<Difference> changes, final OutputStream os,
+            final boolean compress) throws IOException, SAXException {
+        os.write(MAGIC);
+        os.write(VERSION);
+        os.write(compress ? FLAG_DEFLATE : 0);
+        final Deflater deflater = compress ? new Deflater() : null;
+        try {
+            final DeflaterOutputStream deflaterStream = compress ? new DeflaterOutputStream(os, deflater) : null;
+            final Output out = new Output(compress ? deflaterStream : os);
+            final PayloadWriter payloadWriter = new PayloadWriter(out, broker.getBrokerPool().getNodeFactory());
+            for (final Difference change : changes) {
+                if (change instanceof Difference.Delete) {
+                    out.write(OP_DELETE);
+                    out.writeNodeId(change.refChild);
+                    out.writeInt(((Difference.Delete) change).event + 1);
+                } else if (change instanceof Difference.TextEdit) {
+                    final Difference.TextEdit edit = (Difference.TextEdit) change;
+                    out.write(OP_TEXT_EDIT);
+                    out.writeNodeId(change.refChild);
+                    out.writeInt(edit.getRangeCount());
+                    for (int i = 0; i < edit.getRangeCount(); i++) {
+                        out.writeInt(edit.getOffset(i));
+                        out.writeInt(edit.getLength(i));
+                        out.writeString(edit.getReplacement(i));
+                    }
+                } else {
+                    out.write(change.type == Difference.APPEND ? OP_APPEND : OP_INSERT);
+                    out.writeNodeId(change.refChild);
+                    ((Difference.Insert) change).serializeChildren(broker, payloadWriter);
+                    payloadWriter.checkClosed();
+                    out.write(EVENT_END);
+                }
+            }
+            out.write(OP_END);
+            if (deflaterStream != null) {
+                deflaterStream.finish();
+            }
+        } finally {
+            if (deflater != null) {
+                deflater.end();
+            }
+        }
+    }
+
+    /**
+     * Decode a list of differences.
+     *
+     * @param is the stream to read from
+     * @param factory the factory to create node ids with
+     * @param handler receives the decoded differences
+     * @throws IOException if the input is not a valid edit script
+     */
+    public static void read(final InputStream is, final NodeIdFactory factory, final Handler handler) throws IOException {
+        for (final byte m : MAGIC) {
+            if (is.read() != m) {
+                throw new IOException("Not a binary edit script");
+            }
+        }
+        final int version = is.read();
+        if (version != VERSION && version != VERSION_STRING_MOVES) {
+            throw new IOException("Unsupported edit script version: " + version);
+        }
+        final int flags = is.read();
+        final Inflater inflater = (flags & FLAG_DEFLATE) != 0 ? new Inflater() : null;
+        try {
+            final Input in = new Input(inflater != null ? new InflaterInputStream(is, inflater) : is, factory,
+                    version == VERSION_STRING_MOVES);
+            int op;
+            while ((op = in.read()) != OP_END) {
+                final NodeId nodeId = in.readNodeId();
+                switch (op) {
+                    case OP_DELETE:
+                        handler.delete(nodeId, in.readInt() - 1);
+                        break;
+                    case OP_INSERT:
+                        handler.insert(nodeId, in.readPayload());
+                        break;
+                    case OP_APPEND:
+                        handler.append(nodeId, in.readPayload());
+                        break;
+                    case OP_TEXT_EDIT:
+                        final int count = in.readInt();
+                        final int[] offsets = new int[count];
+                        final int[] lengths = new int[count];
+                        final String[] replacements = new String[count];
+                        for (int i = 0; i < count; i++) {
+                            offsets[i] = in.readInt();
+                            lengths[i] = in.readInt();
+                            replacements[i] = in.readString();
+                        }
+                        handler.textEdit(new Difference.TextEdit(nodeId, offsets, lengths, replacements));
+                        break;
+                    default:
+                        throw new IOException("Malformed edit script: unknown operation " + op);
+                }
+            }
+        } finally {
+            if (inflater != null) {
+                inflater.end();
+            }
+        }
+    }
+
+    /**
+     * Receives the differences decoded by {@link #read}.
+     */
+    public interface Handler {
+
+        /**
+         * @param nodeId the node to delete
+         * @param event {@link XMLStreamReader#START_ELEMENT} or {@link XMLStreamReader#END_ELEMENT}
+         *              if only the start or end tag is deleted, -1 to delete the subtree
+         */
+        void delete(NodeId nodeId, int event);
+
+        void insert(NodeId nodeId, Payload payload);
+
+        void append(NodeId nodeId, Payload payload);
+
+        void textEdit(Difference.TextEdit edit);
+    }
+
+    /**
+     * The content of an insert or append as a sequence of events.
+     */
+    public static class Payload {
+
+        private final List<Event> events = new ArrayList<>();
+
+        public List<Event> getEvents() {
+            return events;
+        }
+    }
+
+    public static class Event {
+
+        public final int type;
+        public final QName qname;
+        /** text, attribute value or processing instruction data */
+        public final String value;
+        /** processing instruction target */
+        public final String target;
+        public final AttrList attribs;
+        public final int attrType;
+        /** the source node of a move */
+        public final NodeId nodeId;
+
+        Event(final int type, final QName qname, final String value, final AttrList attribs, final int attrType) {
+            this(type, qname, value, null, attribs, attrType);
+        }
+
+        Event(final NodeId nodeId) {
+            this.type = EVENT_MOVE;
+            this.qname = null;
+            this.value = null;
+            this.target = null;
+            this.attribs = null;
+            this.attrType = 0;
+            this.nodeId = nodeId;
+        }
+
+        Event(final int type, final QName qname, final String value, final String target, final AttrList attribs,
+                final int attrType) {
+            this.type = type;
+            this.qname = qname;
+            this.value = value;
+            this.target = target;
+            this.attribs = attribs;
+            this.attrType = attrType;
+            this.nodeId = null;
+        }
+    }
+
+    /**
+     * Encodes the events generated by {@link Difference.Insert#serializeChildren}. The marker
+     * elements <code>v:attribute</code>, <code>v:start</code>, <code>v:end</code> and
+     * <code>v:comment</code> are translated into their own event types.
+     */
+    private static class PayloadWriter implements Receiver<INodeHandle<?>> {
+
+        private final Output out;
+        private final NodeIdFactory factory;
+        private int depth = 0;
+        private QName marker = null;
+        private StringBuilder markerText = null;
+
+        PayloadWriter(final Output out, final NodeIdFactory factory) {
+            this.out = out;
+            this.factory = factory;
+        }
+
+        void checkClosed() throws SAXException {
+            if (depth != 0 || marker != null) {
+                throw new SAXException("Unbalanced content in insert");
+            }
+        }
+
+        @Override
+        public void startElement(final QName qname, final AttrList attribs) throws SAXException {
+            try {
+                if (depth == 0 && StandardDiff.NAMESPACE.equals(qname.getNamespaceURI())) {
+                    marker = qname;
+                    if (Difference.ELEMENT_ATTRIBUTE.equals(qname)) {
+                        for (int i = 0; attribs != null && i < attribs.getLength(); i++) {
+                            out.write(EVENT_ATTRIBUTE);
+                            out.writeQName(attribs.getQName(i));
+                            out.writeString(attribs.getValue(i));
+                            out.writeInt(attribs.getType(i));
+                        }
+                    } else if (Difference.ELEMENT_START.equals(qname) || Difference.ELEMENT_END.equals(qname)) {
+                        out.write(Difference.ELEMENT_START.equals(qname) ? EVENT_START_TAG : EVENT_END_TAG);
+                        String namespace = null;
+                        String name = null;
+                        for (int i = 0; attribs != null && i < attribs.getLength(); i++) {
+                            if (Difference.ATTR_NAMESPACE.equals(attribs.getQName(i))) {
+                                namespace = attribs.getValue(i);
+                            } else if (Difference.ATTR_NAME.equals(attribs.getQName(i))) {
+                                name = attribs.getValue(i);
+                            }
+                        }
+                        out.writeQName(new QName(QName.extractLocalName(name), namespace, QName.extractPrefix(name)));
+                    } else if (Difference.ELEMENT_COMMENT.equals(qname)) {
+                        markerText = new StringBuilder();
+                    } else if (Difference.ELEMENT_MOVE.equals(qname)) {
+                        out.write(EVENT_MOVE);
+                        out.writeNodeId(factory.createFromString(attribs.getValue(0)));
+                    }
+                    return;
+                }
+                out.write(EVENT_START_ELEMENT);
+                out.writeQName(qname);
+                final int count = attribs == null ? 0 : attribs.getLength();
+                out.writeInt(count);
+                for (int i = 0; i < count; i++) {
+                    out.writeQName(attribs.getQName(i));
+                    out.writeString(attribs.getValue(i));
+                    out.writeInt(attribs.getType(i));
+                }
+                depth++;
+            } catch (final IOException | QName.IllegalQNameException e) {
+                throw new SAXException(e.getMessage(), e);
+            }
+        }
+
+        @Override
+        public void endElement(final QName qname) throws SAXException {
+            try {
+                if (marker != null) {
+                    if (markerText != null) {
+                        out.write(EVENT_COMMENT);
+                        out.writeString(markerText.toString());
+                        markerText = null;
+                    }
+                    marker = null;
+                    return;
+                }
+                out.write(EVENT_END_ELEMENT);
+                out.writeQName(qname);
+                depth--;
+            } catch (final IOException e) {
+                throw new SAXException(e.getMessage(), e);
+            }
+        }
+
+        @Override
+        public void characters(final CharSequence seq) throws SAXException {
+            if (markerText != null) {
+                markerText.append(seq);
+                return;
+            }
+            writeText(EVENT_CHARACTERS, seq.toString());
+        }
+
+        @Override
+        public void cdataSection(final char[] ch, final int start, final int len) throws SAXException {
+            writeText(EVENT_CDATA, new String(ch, start, len));
+        }
+
+        @Override
+        public void comment(final char[] ch, final int start, final int length) throws SAXException {
+            writeText(EVENT_COMMENT, new String(ch, start, length));
+        }
+
+        @Override
+        public void processingInstruction(final String target, final String data) throws SAXException {
+            try {
+                out.write(EVENT_PI);
+                out.writeString(target);
+                out.writeString(data);
+            } catch (final IOException e) {
+                throw new SAXException(e.getMessage(), e);
+            }
+        }
+
+        @Override
+        public void attribute(final QName qname, final String value) throws SAXException {
+            try {
+                out.write(EVENT_ATTRIBUTE);
+                out.writeQName(qname);
+                out.writeString(value);
+                out.writeInt(0);
+            } catch (final IOException e) {
+                throw new SAXException(e.getMessage(), e);
+            }
+        }
+
+        private void writeText(final int event, final String text) throws SAXException {
+            try {
+                out.write(event);
+                out.writeString(text);
+            } catch (final IOException e) {
+                throw new SAXException(e.getMessage(), e);
+            }
+        }
+
+        @Override
+        public void startDocument() {
+        }
+
+        @Override
+        public void endDocument() {
+        }
+
+        @Override
+        public void startPrefixMapping(final String prefix, final String namespaceURI) {
+        }
+
+        @Override
+        public void endPrefixMapping(final String prefix) {
+        }
+
+        @Override
+        public void documentType(final String name, final String publicId, final String systemId) {
+        }
+
+        @Override
+        public void highlightText(final CharSequence seq) throws SAXException {
+            characters(seq);
+        }
+
+        @Override
+        public void setCurrentNode(final INodeHandle<?> node) {
+        }
+
+        @Override
+        public Document getDocument() {
+            return null;
+        }
+    }
+
+    private static class Output {
+
+        private final OutputStream os;
+        private final Map<String, Integer> names = new HashMap<>();
+
+        Output(final OutputStream os) {
+            this.os = os;
+        }
+
+        void write(final int b) throws IOException {
+            os.write(b);
+        }
+
+        void writeInt(int value) throws IOException {
+            while ((value & ~0x7f) != 0) {
+                os.write((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            os.write(value);
+        }
+
+        void writeNodeId(final NodeId nodeId) throws IOException {
+            final byte[] data = new byte[nodeId.size()];
+            nodeId.serialize(data, 0);
+            writeInt(nodeId.units());
+            writeInt(data.length);
+            os.write(data);
+        }
+
+        void writeString(final String value) throws IOException {
+            if (value == null) {
+                writeInt(0);
+                return;
+            }
+            final byte[] data = value.getBytes(StandardCharsets.UTF_8);
+            writeInt(data.length + 1);
+            os.write(data);
+        }
+
+        /**
+         * Write a name as index into the names written before, or as 0 followed by the
+         * name if it occurs for the first time.
+         */
+        void writeName(final String name) throws IOException {
+            final Integer index = names.get(name == null ? "" : name);
+            if (index != null) {
+                writeInt(index + 1);
+            } else {
+                names.put(name == null ? "" : name, names.size());
+                writeInt(0);
+                writeString(name == null ? "" : name);
+            }
+        }
+
+        void writeQName(final QName qname) throws IOException {
+            writeName(qname.getNamespaceURI());
+            writeName(qname.getLocalPart());
+            writeName(qname.getPrefix());
+        }
+    }
+
+    private static class Input {
+
+        private final InputStream is;
+        private final NodeIdFactory factory;
+        private final boolean stringMoves;
+        private final List<String> names = new ArrayList<>();
+
+        Input(final InputStream is, final NodeIdFactory factory, final boolean stringMoves) {
+            this.is = is;
+            this.factory = factory;
+            this.stringMoves = stringMoves;
+        }
+
+        int read() throws IOException {
+            final int b = is.read();
+            if (b < 0) {
+                throw new EOFException("Truncated edit script");
+            }
+            return b;
+        }
+
+        int readInt() throws IOException {
+            int value = 0;
+            for (int shift = 0; shift < 32; shift += 7) {
+                final int b = read();
+                value |= (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IOException("Malformed edit script");
+        }
+
+        byte[] readBytes(final int length) throws IOException {
+            final byte[] data = new byte[length];
+            int offset = 0;
+            while (offset < length) {
+                final int count = is.read(data, offset, length - offset);
+                if (count < 0) {
+                    throw new EOFException("Truncated edit script");
+                }
+                offset += count;
+            }
+            return data;
+        }
+
+        NodeId readNodeId() throws IOException {
+            final int units = readInt();
+            final byte[] data = readBytes(readInt());
+            return factory.createFromData(units, data, 0);
+        }
+
+        String readString() throws IOException {
+            final int length = readInt();
+            if (length == 0) {
+                return null;
+            }
+            return new String(readBytes(length - 1), StandardCharsets.UTF_8);
+        }
+
+        String readName() throws IOException {
+            final int index = readInt();
+            if (index > 0) {
+                return names.get(index - 1);
+            }
+            final String name = readString();
+            names.add(name);
+            return name;
+        }
+
+        QName readQName() throws IOException {
+            final String namespace = readName();
+            final String localName = readName();
+            final String prefix = readName();
+            return new QName(localName, namespace, prefix.isEmpty() ? null : prefix);
+        }
+
+        Payload readPayload() throws IOException {
+            final Payload payload = new Payload();
+            int event;
+            while ((event = read()) != EVENT_END) {
+                switch (event) {
+                    case EVENT_START_ELEMENT:
+                        final QName qname = readQName();
+                        final int count = readInt();
+                        final AttrList attribs = new AttrList();
+                        for (int i = 0; i < count; i++) {
+                            attribs.addAttribute(readQName(), readString(), readInt());
+                        }
+                        payload.events.add(new Event(event, qname, null, attribs, 0));
+                        break;
+                    case EVENT_END_ELEMENT:
+                    case EVENT_START_TAG:
+                    case EVENT_END_TAG:
+                        payload.events.add(new Event(event, readQName(), null, null, 0));
+                        break;
+                    case EVENT_ATTRIBUTE:
+                        final QName attrName = readQName();
+                        final String value = readString();
+                        payload.events.add(new Event(event, attrName, value, null, readInt()));
+                        break;
+                    case EVENT_CHARACTERS:
+                    case EVENT_CDATA:
+                    case EVENT_COMMENT:
+                        payload.events.add(new Event(event, null, readString(), null, 0));
+                        break;
+                    case EVENT_MOVE:
+                        payload.events.add(new Event(stringMoves ? factory.createFromString(readString()) : readNodeId()));
+                        break;
+                    case EVENT_PI:
+                        final String target = readString();
+                        payload.events.add(new Event(event, null, readString(), target, null, 0));
+                        break;
+                    default:
+                        throw new IOException("Malformed edit script: unknown event " + event);
+                }
+            }
+            return payload;
+        }
+    }
+}
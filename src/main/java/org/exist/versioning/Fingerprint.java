@@ -0,0 +1,66 @@
+/**
+ * Versioning Module for eXist-db XQuery
+ * Copyright (C) 2008 eXist-db <exit-open@lists.sourceforge.net>
+ * http://exist-db.org
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 1, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.exist.versioning;
+
+/**
+ * 64-bit FNV-1a hash used to fingerprint the content of a document while it is read
+ * for diffing. Two documents with the same sequence of nodes have the same fingerprint.
+ */
+public final class Fingerprint {
+
+    public final static long EMPTY = 0xcbf29ce484222325L;
+
+    private final static long PRIME = 0x100000001b3L;
+
+    private Fingerprint() {
+    }
+
+    public static long update(long hash, final int value) {
+        for (int i = 0; i < 4; i++) {
+            hash ^= (value >>> (i * 8)) & 0xff;
+            hash *= PRIME;
+        }
+        return hash;
+    }
+
+    public static long update(long hash, final CharSequence value) {
+        if (value == null) {
+            return update(hash, -1);
+        }
+        final int len = value.length();
+        for (int i = 0; i < len; i++) {
+            final char ch = value.charAt(i);
+            hash ^= ch & 0xff;
+            hash *= PRIME;
+            hash ^= ch >>> 8;
+            hash *= PRIME;
+        }
+        return update(hash, len);
+    }
+
+    public static String toString(final long fingerprint) {
+        final String hex = Long.toHexString(fingerprint);
+        final StringBuilder buf = new StringBuilder(16);
+        for (int i = hex.length(); i < 16; i++) {
+            buf.append('0');
+        }
+        return buf.append(hex).toString();
+    }
+}
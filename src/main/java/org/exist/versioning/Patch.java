@@ -20,20 +20,26 @@
 package org.exist.versioning;
 
 import org.exist.dom.persistent.AttrImpl;
+import org.exist.dom.persistent.BinaryDocument;
 import org.exist.dom.persistent.DocumentImpl;
 import org.exist.dom.persistent.ElementImpl;
 import org.exist.dom.persistent.NodeProxy;
 import org.exist.dom.QName;
+import org.exist.dom.persistent.LockedDocument;
 import org.exist.dom.persistent.StoredNode;
-import org.exist.dom.persistent.NodeSet;
-import org.exist.dom.persistent.NewArrayNodeSet;
 import org.exist.numbering.NodeId;
 import org.exist.security.PermissionDeniedException;
 import org.exist.stax.EmbeddedXMLStreamReader;
 import org.exist.stax.ExtendedXMLStreamReader;
 import org.exist.storage.DBBroker;
+import org.exist.storage.lock.Lock.LockMode;
+import org.exist.storage.txn.TransactionException;
+import org.exist.storage.txn.TransactionManager;
+import org.exist.storage.txn.Txn;
 import org.exist.util.serializer.AttrList;
 import org.exist.util.serializer.Receiver;
+import org.exist.xmldb.XmldbURI;
+import org.exist.xquery.ErrorCodes;
 import org.exist.xquery.XPathException;
 import org.exist.xquery.XQuery;
 import org.exist.xquery.value.Sequence;
@@ -45,7 +51,11 @@ import org.xml.sax.SAXException;
 
 import javax.xml.stream.XMLStreamException;
 import javax.xml.stream.XMLStreamReader;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.*;
 
 /**
@@ -59,6 +69,9 @@ public class Patch {
     public final static String CHANGE_INSERT = "added";
     public final static String CHANGE_APPEND = "appended";
     public final static String CHANGE_DELETED = "deleted";
+    public final static String CHANGE_MOVED = "moved";
+    public final static String CHANGE_MOVED_FROM = "moved-from";
+    public final static String CHANGE_EDITED = "edited";
 
     private final static String D_START = "start";
     private final static String D_END = "end";
@@ -70,12 +83,18 @@ public class Patch {
     private Map<NodeId, String> deletedNodes = null;
     private Map<NodeId, ElementImpl> insertedNodes = null;
     private Map<NodeId, ElementImpl> appendedNodes = null;
+    private Map<NodeId, EditScript.Payload> insertedPayloads = null;
+    private Map<NodeId, EditScript.Payload> appendedPayloads = null;
+    private Set<NodeId> movedNodes = null;
+    private Map<NodeId, Difference.TextEdit> textEdits = null;
+    private DiffSource source = null;
+    /** buffers the moved elements if the document is only available as a reader */
+    private BufferedStreamReader movedSource = null;
 
     private boolean annotate = false;
     private Deque<QName> elementStack = null;
 
-    private NewArrayNodeSet changeSet = null;
-    private DocumentImpl diffDoc;
+    private NavigableSet<NodeId> changeSet = null;
 
     /**
      * Create a new Patch instance using the specified broker and diff document.
@@ -87,50 +106,87 @@ public class Patch {
      */
     public Patch(DBBroker broker, DocumentImpl diff) throws XPathException {
         this.broker = broker;
-        this.diffDoc = diff;
         parseDiff(broker, diff);
     }
 
+    /**
+     * Create a new Patch instance applying a diff which was just computed and is not stored,
+     * e.g. between two restored revisions.
+     *
+     * @param broker the DBBroker to use
+     * @param diff the computed diff to apply
+     *
+     * @throws DiffException
+     */
+    public Patch(final DBBroker broker, final StandardDiff diff) throws DiffException {
+        this.broker = broker;
+        initMaps();
+        final ByteArrayOutputStream os = new ByteArrayOutputStream();
+        diff.diff2Binary(os, false);
+        try {
+            readEditScript(broker, new ByteArrayInputStream(os.toByteArray()));
+        } catch (final IOException e) {
+            throw new DiffException("Failed to read diff: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Apply the diff to the given source document. Write output to the specified receiver.
+     * Elements moved by the diff are read from the source by their node id.
+     *
+     * @throws DiffException
+     */
+    public void patch(final DiffSource source, final Receiver<?> receiver) throws DiffException {
+        this.source = source;
+        try {
+            final ExtendedXMLStreamReader reader = source.newReader(broker);
+            try {
+                patch(reader, receiver);
+            } finally {
+                reader.close();
+            }
+        } catch (final XMLStreamException | IOException e) {
+            throw new DiffException("Caught exception while reading source document for patch: " +
+                    e.getMessage(), e);
+        } finally {
+            this.source = null;
+        }
+    }
+
+    /**
+     * Apply the diff to the given source document and annotate the changes. Write output to
+     * the specified receiver.
+     *
+     * @throws DiffException
+     */
+    public void annotate(final DiffSource source, final Receiver<?> receiver) throws DiffException {
+        this.source = source;
+        try {
+            final ExtendedXMLStreamReader reader = source.newReader(broker);
+            try {
+                annotate(reader, receiver);
+            } finally {
+                reader.close();
+            }
+        } catch (final XMLStreamException | IOException e) {
+            throw new DiffException("Caught exception while reading source document for patch: " +
+                    e.getMessage(), e);
+        } finally {
+            this.source = null;
+        }
+    }
+
     /**
      * Apply the diff to the given source data stream passed as an XMLStreamReader. Write
-     * output to the specified receiver.
+     * output to the specified receiver. The elements moved by the diff are buffered as they
+     * are read, reading ahead if an element is moved to an earlier position.
      *
      * @throws DiffException
      */
-    public void patch(ExtendedXMLStreamReader reader, Receiver receiver) throws DiffException {
+    public void patch(ExtendedXMLStreamReader reader, Receiver<?> receiver) throws DiffException {
         annotate = false;
         try {
-            NodeId skipSubtree = null;
-            while (reader.hasNext()) {
-                int status = reader.next();
-                NodeId nodeId = (NodeId) reader.getProperty(EmbeddedXMLStreamReader.PROPERTY_NODE_ID);
-                if (status != XMLStreamReader.END_ELEMENT) {
-                    ElementImpl insertedNode = insertedNodes.get(nodeId);
-                    if (insertedNode != null) {
-                        insertNode(insertedNode, receiver, null);
-                    }
-                } else {
-                    ElementImpl appendedNode = appendedNodes.get(nodeId);
-                    if (appendedNode != null) {
-                        insertNode(appendedNode, receiver, null);
-                    }
-                }
-                String opt = deletedNodes.get(nodeId);
-                if (opt == D_SUBTREE) {
-                    if (status == XMLStreamReader.START_ELEMENT)
-                        skipSubtree = nodeId;
-                } else if (opt == D_BOTH) {
-                    //skip
-                } else if (opt == D_END && status == XMLStreamReader.END_ELEMENT) {
-                    // skip
-                } else if (opt == D_START && status == XMLStreamReader.START_ELEMENT) {
-                    // skip
-                } else if (skipSubtree == null)
-                    copyNode(reader, receiver, status, false, null);
-                if (status == XMLStreamReader.END_ELEMENT && skipSubtree != null &&
-                        skipSubtree.equals(nodeId))
-                    skipSubtree = null;
-            }
+            patchNodes(bufferMoves(reader), receiver, null);
         } catch (XMLStreamException e) {
             throw new DiffException("Caught exception while reading source document for patch: " +
                     e.getMessage(), e);
@@ -138,48 +194,80 @@ public class Patch {
             throw new DiffException("Caught exception while patching document: " + e.getMessage(), e);
         } catch (SAXException e) {
             throw new DiffException("Caught exception while serializing patch output: " + e.getMessage(), e);
+        } finally {
+            movedSource = null;
         }
     }
 
-    public void annotate(ExtendedXMLStreamReader reader, Receiver receiver) throws DiffException {
+    /**
+     * @param movedRoot the element read if the reader reads an element moved by the diff,
+     *                  else null
+     */
+    private void patchNodes(ExtendedXMLStreamReader reader, Receiver<?> receiver, NodeId movedRoot)
+            throws XMLStreamException, IOException, SAXException {
+        NodeId skipSubtree = null;
+        NodeId skipMoved = null;
+        while (reader.hasNext()) {
+            int status = reader.next();
+            NodeId nodeId = (NodeId) reader.getProperty(EmbeddedXMLStreamReader.PROPERTY_NODE_ID);
+            if (skipMoved != null) {
+                // written where it was moved to, together with the changes inside it
+                if (status == XMLStreamReader.END_ELEMENT && skipMoved.equals(nodeId))
+                    skipMoved = null;
+                continue;
+            }
+            // content inserted before a moved element belongs to its old position
+            final boolean atMovedRoot = nodeId != null && nodeId.equals(movedRoot);
+            if (status != XMLStreamReader.END_ELEMENT) {
+                ElementImpl insertedNode = atMovedRoot ? null : insertedNodes.get(nodeId);
+                if (insertedNode != null) {
+                    insertNode(insertedNode, receiver, null);
+                } else if (!atMovedRoot && insertedPayloads.containsKey(nodeId)) {
+                    insertPayload(insertedPayloads.get(nodeId), receiver, null);
+                }
+            } else {
+                ElementImpl appendedNode = appendedNodes.get(nodeId);
+                if (appendedNode != null) {
+                    insertNode(appendedNode, receiver, null);
+                } else if (appendedPayloads.containsKey(nodeId)) {
+                    insertPayload(appendedPayloads.get(nodeId), receiver, null);
+                }
+            }
+            if (status == XMLStreamReader.START_ELEMENT && !atMovedRoot && movedNodes.contains(nodeId)) {
+                skipMoved = nodeId;
+                continue;
+            }
+            if (status == XMLStreamReader.CHARACTERS && skipSubtree == null && textEdits.containsKey(nodeId)) {
+                receiver.characters(textEdits.get(nodeId).apply(reader.getText()));
+                continue;
+            }
+            String opt = deletedNodes.get(nodeId);
+            if (opt == D_SUBTREE) {
+                if (status == XMLStreamReader.START_ELEMENT)
+                    skipSubtree = nodeId;
+            } else if (opt == D_BOTH) {
+                //skip
+            } else if (opt == D_END && status == XMLStreamReader.END_ELEMENT) {
+                // skip
+            } else if (opt == D_START && status == XMLStreamReader.START_ELEMENT) {
+                // skip
+            } else if (skipSubtree == null)
+                copyNode(reader, receiver, status, false, null);
+            if (status == XMLStreamReader.END_ELEMENT && skipSubtree != null &&
+                    skipSubtree.equals(nodeId))
+                skipSubtree = null;
+            // the reader of a stored element continues after its end
+            if (atMovedRoot && status == XMLStreamReader.END_ELEMENT)
+                break;
+        }
+    }
+
+    public void annotate(ExtendedXMLStreamReader reader, Receiver<?> receiver) throws DiffException {
         annotate = true;
         elementStack = new ArrayDeque<>();
         buildChangeSet();
         try {
-            NodeId skipSubtree = null;
-            while (reader.hasNext()) {
-                int status = reader.next();
-                NodeId nodeId = (NodeId) reader.getProperty(EmbeddedXMLStreamReader.PROPERTY_NODE_ID);
-                if (status != XMLStreamReader.END_ELEMENT) {
-                    ElementImpl insertedNode = insertedNodes.get(nodeId);
-                    if (insertedNode != null) {
-                        insertNode(insertedNode, receiver, CHANGE_INSERT);
-                    }
-                } else {
-                    ElementImpl appendedNode = appendedNodes.get(nodeId);
-                    if (appendedNode != null) {
-                        insertNode(appendedNode, receiver, CHANGE_APPEND);
-                    }
-                }
-                boolean skip = false;
-                String opt = deletedNodes.get(nodeId);
-                if (opt != null) {
-                    if (opt == D_SUBTREE) {
-                        if (status == XMLStreamReader.START_ELEMENT)
-                            skipSubtree = nodeId;
-                        skip = true;
-                    } else if (opt == D_BOTH ||
-                            (opt == D_END && status == XMLStreamReader.END_ELEMENT) ||
-                            (opt == D_START && status == XMLStreamReader.START_ELEMENT)) {
-                        skip = true;
-                    }
-                }
-                if (annotate || (!skip && skipSubtree == null))
-                    copyNode(reader, receiver, status, skip || (skipSubtree != null && skipSubtree == nodeId), CHANGE_DELETED);
-                if (status == XMLStreamReader.END_ELEMENT && skipSubtree != null &&
-                        skipSubtree.equals(nodeId))
-                    skipSubtree = null;
-            }
+            annotateNodes(bufferMoves(reader), receiver, null);
         } catch (XMLStreamException e) {
             throw new DiffException("Caught exception while reading source document for patch: " +
                     e.getMessage(), e);
@@ -187,16 +275,134 @@ public class Patch {
             throw new DiffException("Caught exception while patching document: " + e.getMessage(), e);
         } catch (SAXException e) {
             throw new DiffException("Caught exception while serializing patch output: " + e.getMessage(), e);
+        } finally {
+            movedSource = null;
         }
         changeSet = null;
     }
 
-    private void insertNode(StoredNode insertedNode, Receiver receiver, String changeMessage) throws XMLStreamException, IOException, SAXException {
+    /**
+     * @return the reader to patch, buffering the elements moved by the diff if they cannot be
+     * read from the source document
+     */
+    private ExtendedXMLStreamReader bufferMoves(final ExtendedXMLStreamReader reader) {
+        if (source != null || movedNodes.isEmpty()) {
+            movedSource = null;
+            return reader;
+        }
+        movedSource = new BufferedStreamReader(reader, movedNodes);
+        return movedSource;
+    }
+
+    /**
+     * @param movedRoot the element read if the reader reads an element moved by the diff,
+     *                  else null
+     */
+    private void annotateNodes(ExtendedXMLStreamReader reader, Receiver<?> receiver, NodeId movedRoot)
+            throws XMLStreamException, IOException, SAXException {
+        NodeId skipSubtree = null;
+        NodeId skipMoved = null;
+        while (reader.hasNext()) {
+            int status = reader.next();
+            NodeId nodeId = (NodeId) reader.getProperty(EmbeddedXMLStreamReader.PROPERTY_NODE_ID);
+            if (skipMoved != null) {
+                // show the element at its old position as it was
+                copyNode(reader, receiver, status, false, null);
+                if (status == XMLStreamReader.END_ELEMENT && skipMoved.equals(nodeId))
+                    skipMoved = null;
+                continue;
+            }
+            final boolean atMovedRoot = nodeId != null && nodeId.equals(movedRoot);
+            if (status != XMLStreamReader.END_ELEMENT) {
+                ElementImpl insertedNode = atMovedRoot ? null : insertedNodes.get(nodeId);
+                if (insertedNode != null) {
+                    insertNode(insertedNode, receiver, CHANGE_INSERT);
+                } else if (!atMovedRoot && insertedPayloads.containsKey(nodeId)) {
+                    insertPayload(insertedPayloads.get(nodeId), receiver, CHANGE_INSERT);
+                }
+            } else {
+                ElementImpl appendedNode = appendedNodes.get(nodeId);
+                if (appendedNode != null) {
+                    insertNode(appendedNode, receiver, CHANGE_APPEND);
+                } else if (appendedPayloads.containsKey(nodeId)) {
+                    insertPayload(appendedPayloads.get(nodeId), receiver, CHANGE_APPEND);
+                }
+            }
+            if (status == XMLStreamReader.START_ELEMENT) {
+                if (atMovedRoot) {
+                    copyNode(reader, receiver, status, true, CHANGE_MOVED);
+                    continue;
+                } else if (movedNodes.contains(nodeId)) {
+                    copyNode(reader, receiver, status, true, CHANGE_MOVED_FROM);
+                    skipMoved = nodeId;
+                    continue;
+                }
+            }
+            if (status == XMLStreamReader.CHARACTERS && skipSubtree == null && textEdits.containsKey(nodeId)) {
+                final AttrList attrs = new AttrList();
+                attrs.addAttribute(ATTR_CHANGE, CHANGE_EDITED);
+                receiver.startElement(ELEMENT_WRAPPER, attrs);
+                receiver.characters(textEdits.get(nodeId).apply(reader.getText()));
+                receiver.endElement(ELEMENT_WRAPPER);
+                continue;
+            }
+            boolean skip = false;
+            String opt = deletedNodes.get(nodeId);
+            if (opt != null) {
+                if (opt == D_SUBTREE) {
+                    if (status == XMLStreamReader.START_ELEMENT)
+                        skipSubtree = nodeId;
+                    skip = true;
+                } else if (opt == D_BOTH ||
+                        (opt == D_END && status == XMLStreamReader.END_ELEMENT) ||
+                        (opt == D_START && status == XMLStreamReader.START_ELEMENT)) {
+                    skip = true;
+                }
+            }
+            if (annotate || (!skip && skipSubtree == null))
+                copyNode(reader, receiver, status, skip || (skipSubtree != null && skipSubtree == nodeId), CHANGE_DELETED);
+            if (status == XMLStreamReader.END_ELEMENT && skipSubtree != null &&
+                    skipSubtree.equals(nodeId))
+                skipSubtree = null;
+            // the reader of a stored element continues after its end
+            if (atMovedRoot && status == XMLStreamReader.END_ELEMENT)
+                break;
+        }
+    }
+
+    /**
+     * Write an element moved by the diff to its new position: the element is read from the
+     * source document, or from the buffer if the document is patched from a reader, and the
+     * changes within it are applied on the way.
+     */
+    private void moveNode(final NodeId nodeId, final Receiver<?> receiver)
+            throws XMLStreamException, IOException, SAXException {
+        final ExtendedXMLStreamReader reader = source != null ? source.newReader(broker, nodeId) :
+                movedSource.readMoved(nodeId);
+        try {
+            if (annotate) {
+                annotateNodes(reader, receiver, nodeId);
+            } else {
+                patchNodes(reader, receiver, nodeId);
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    private void insertNode(StoredNode<?> insertedNode, Receiver<?> receiver, String changeMessage) throws XMLStreamException, IOException, SAXException {
         ExtendedXMLStreamReader reader = broker.newXMLStreamReader(insertedNode, false);
         reader.next();
         int treeLevel = 0;
+        // the reader does not stop at the end of the insert, but continues with the following changes
+        int level = 0;
         while (reader.hasNext()) {
             int status = reader.next();
+            if (status == XMLStreamReader.START_ELEMENT) {
+                level++;
+            } else if (status == XMLStreamReader.END_ELEMENT && level-- == 0) {
+                break;
+            }
             if ((status == XMLStreamReader.START_ELEMENT || status == XMLStreamReader.END_ELEMENT) &&
                     StandardDiff.NAMESPACE.equals(reader.getNamespaceURI())) {
                 if (status == XMLStreamReader.START_ELEMENT) {
@@ -207,6 +413,7 @@ public class Patch {
                             receiver.attribute(qname, reader.getAttributeValue(i));
                         }
                     } else if ("comment".equals(reader.getLocalName())) {
+                        level--;
                         StringBuilder buf = new StringBuilder();
                         while (reader.hasNext()) {
                             status = reader.next();
@@ -219,6 +426,9 @@ public class Patch {
                         }
                         char[] ch = buf.toString().toCharArray();
                         receiver.comment(ch, 0, ch.length);
+                    } else if ("move".equals(reader.getLocalName())) {
+                        moveNode(broker.getBrokerPool().getNodeFactory().createFromString(
+                                reader.getAttributeValue("", "ref")), receiver);
                     } else if ("start".equals(reader.getLocalName())) {
                         final String namespace = reader.getAttributeValue("", "namespace");
                         final String name = reader.getAttributeValue("", "name");
@@ -250,7 +460,84 @@ public class Patch {
         }
     }
 
-    private void copyNode(ExtendedXMLStreamReader reader, Receiver receiver, int status,
+    /**
+     * Write the content of an insert read from a binary edit script. Corresponds to
+     * {@link #insertNode(StoredNode, Receiver, String)}.
+     */
+    private void insertPayload(final EditScript.Payload payload, final Receiver<?> receiver, final String changeMessage)
+            throws SAXException, XMLStreamException, IOException {
+        int treeLevel = 0;
+        for (final EditScript.Event event : payload.getEvents()) {
+            final boolean onFirstNode = treeLevel == 0 && annotate;
+            switch (event.type) {
+                case EditScript.EVENT_ATTRIBUTE:
+                    receiver.attribute(event.qname, event.value);
+                    break;
+                case EditScript.EVENT_START_TAG:
+                    receiver.startElement(event.qname, null);
+                    if (annotate) {
+                        receiver.attribute(ATTR_CHANGE, "tag-" + changeMessage);
+                    }
+                    break;
+                case EditScript.EVENT_END_TAG:
+                    receiver.endElement(event.qname);
+                    break;
+                case EditScript.EVENT_START_ELEMENT:
+                    final AttrList attrs = new AttrList();
+                    if (onFirstNode) {
+                        attrs.addAttribute(ATTR_CHANGE, changeMessage);
+                    }
+                    for (int i = 0; i < event.attribs.getLength(); i++) {
+                        attrs.addAttribute(event.attribs.getQName(i), event.attribs.getValue(i),
+                                event.attribs.getType(i));
+                    }
+                    receiver.startElement(event.qname, attrs);
+                    if (elementStack != null) {
+                        elementStack.push(event.qname);
+                    }
+                    treeLevel++;
+                    break;
+                case EditScript.EVENT_END_ELEMENT:
+                    receiver.endElement(event.qname);
+                    if (elementStack != null) {
+                        elementStack.pop();
+                    }
+                    treeLevel--;
+                    break;
+                case EditScript.EVENT_CHARACTERS:
+                case EditScript.EVENT_CDATA:
+                    if (onFirstNode) {
+                        final AttrList wrapperAttrs = new AttrList();
+                        if (event.type == EditScript.EVENT_CHARACTERS) {
+                            wrapperAttrs.addAttribute(ATTR_CHANGE, changeMessage);
+                        }
+                        receiver.startElement(ELEMENT_WRAPPER, wrapperAttrs);
+                    }
+                    if (event.type == EditScript.EVENT_CHARACTERS) {
+                        receiver.characters(event.value);
+                    } else {
+                        final char[] cdata = event.value.toCharArray();
+                        receiver.cdataSection(cdata, 0, cdata.length);
+                    }
+                    if (onFirstNode) {
+                        receiver.endElement(ELEMENT_WRAPPER);
+                    }
+                    break;
+                case EditScript.EVENT_COMMENT:
+                    final char[] ch = event.value.toCharArray();
+                    receiver.comment(ch, 0, ch.length);
+                    break;
+                case EditScript.EVENT_PI:
+                    receiver.processingInstruction(event.target, event.value);
+                    break;
+                case EditScript.EVENT_MOVE:
+                    moveNode(event.nodeId, receiver);
+                    break;
+            }
+        }
+    }
+
+    private void copyNode(ExtendedXMLStreamReader reader, Receiver<?> receiver, int status,
                           boolean onFirstNode, String changeMessage) throws SAXException, XMLStreamException, IOException {
         AttrList attrs;
         switch (status) {
@@ -261,8 +548,7 @@ public class Patch {
                         attrs.addAttribute(ATTR_CHANGE, changeMessage);
                     else {
                         NodeId nodeId = (NodeId) reader.getProperty(EmbeddedXMLStreamReader.PROPERTY_NODE_ID);
-                        NodeSet children = changeSet.selectParentChild(new NodeProxy(diffDoc, nodeId), NodeSet.ANCESTOR);
-                        if (children != null && !children.isEmpty())
+                        if (hasChangedChild(nodeId))
                             attrs.addAttribute(ATTR_CHANGE, "changed");
                     }
                     if (elementStack.size() == 0)
@@ -276,7 +562,7 @@ public class Patch {
                     // check if an attribute has to be inserted before the current attribute
                     ElementImpl insertedNode = insertedNodes.get(nodeId);
                     if (insertedNode != null) {
-                        StoredNode child = (StoredNode) insertedNode.getFirstChild();
+                        StoredNode<?> child = (StoredNode<?>) insertedNode.getFirstChild();
                         while (child != null) {
                             if (StandardDiff.NAMESPACE.equals(child.getNamespaceURI()) && "attribute".equals(child.getLocalName())) {
                                 NamedNodeMap map = child.getAttributes();
@@ -287,7 +573,13 @@ public class Patch {
                                                 attr.getType(), attr.getNodeId());
                                 }
                             }
-                            child = (StoredNode) child.getNextSibling();
+                            child = (StoredNode<?>) child.getNextSibling();
+                        }
+                    } else if (insertedPayloads.containsKey(nodeId)) {
+                        for (final EditScript.Event event : insertedPayloads.get(nodeId).getEvents()) {
+                            if (event.type == EditScript.EVENT_ATTRIBUTE) {
+                                attrs.addAttribute(event.qname, event.value, event.attrType);
+                            }
                         }
                     }
 
@@ -342,10 +634,23 @@ public class Patch {
         }
     }
 
-    private void parseDiff(final DBBroker broker, final DocumentImpl doc) throws XPathException {
+    private void initMaps() {
         deletedNodes = new TreeMap<>();
         insertedNodes = new TreeMap<>();
         appendedNodes = new TreeMap<>();
+        insertedPayloads = new TreeMap<>();
+        appendedPayloads = new TreeMap<>();
+        movedNodes = new TreeSet<>();
+        textEdits = new TreeMap<>();
+    }
+
+    private void parseDiff(final DBBroker broker, final DocumentImpl doc) throws XPathException {
+        initMaps();
+        final String binaryDiff = getBinaryDiffRef(doc);
+        if (binaryDiff != null) {
+            parseBinaryDiff(broker, doc, binaryDiff);
+            return;
+        }
         XQuery service = broker.getBrokerPool().getXQueryService();
         Sequence changes;
 		try {
@@ -353,7 +658,7 @@ public class Patch {
 			        "doc('" + doc.getURI().toString() + "')/v:version/v:diff/*",
 			        Sequence.EMPTY_SEQUENCE);
 		} catch (PermissionDeniedException e) {
-			throw new XPathException(e);
+			throw new XPathException(ErrorCodes.ERROR, e.getMessage(), e);
 		}
         for (SequenceIterator i = changes.iterate(); i.hasNext(); ) {
             NodeProxy p = (NodeProxy) i.nextItem();
@@ -382,13 +687,137 @@ public class Patch {
                    }
                } else if (child.getLocalName().equals("insert")) {
                    insertedNodes.put(id, (ElementImpl)child);
+                   collectMoves(broker, child);
                } else if (child.getLocalName().equals("append")) {
                    appendedNodes.put(id, (ElementImpl)child);
+                   collectMoves(broker, child);
+               } else if (child.getLocalName().equals(Difference.ELEMENT_TEXT_EDIT.getLocalPart())) {
+                   textEdits.put(id, parseTextEdit(id, child));
                }
             }
         }
     }
 
+    /**
+     * Record the elements moved into an insert or append, so they are skipped at their old
+     * position.
+     */
+    private void collectMoves(final DBBroker broker, final Element change) {
+        for (Node child = change.getFirstChild(); child != null; child = child.getNextSibling()) {
+            if (child.getNodeType() == Node.ELEMENT_NODE && StandardDiff.NAMESPACE.equals(child.getNamespaceURI()) &&
+                    Difference.ELEMENT_MOVE.getLocalPart().equals(child.getLocalName())) {
+                movedNodes.add(parseRef(broker, child, "ref"));
+            }
+        }
+    }
+
+    private static Difference.TextEdit parseTextEdit(final NodeId id, final Element edit) {
+        final List<Element> ranges = new ArrayList<>();
+        for (Node child = edit.getFirstChild(); child != null; child = child.getNextSibling()) {
+            if (child.getNodeType() == Node.ELEMENT_NODE && StandardDiff.NAMESPACE.equals(child.getNamespaceURI()) &&
+                    Difference.ELEMENT_RANGE.getLocalPart().equals(child.getLocalName())) {
+                ranges.add((Element) child);
+            }
+        }
+        final int[] offsets = new int[ranges.size()];
+        final int[] lengths = new int[ranges.size()];
+        final String[] replacements = new String[ranges.size()];
+        for (int i = 0; i < offsets.length; i++) {
+            final Element range = ranges.get(i);
+            offsets[i] = Integer.parseInt(range.getAttribute(Difference.ATTR_OFFSET.getLocalPart()));
+            lengths[i] = Integer.parseInt(range.getAttribute(Difference.ATTR_LENGTH.getLocalPart()));
+            if (range.hasAttribute(Difference.ATTR_TEXT.getLocalPart())) {
+                replacements[i] = range.getAttribute(Difference.ATTR_TEXT.getLocalPart());
+            } else {
+                final StringBuilder buf = new StringBuilder();
+                for (Node text = range.getFirstChild(); text != null; text = text.getNextSibling()) {
+                    if (text.getNodeType() == Node.TEXT_NODE || text.getNodeType() == Node.CDATA_SECTION_NODE) {
+                        buf.append(text.getNodeValue());
+                    }
+                }
+                replacements[i] = buf.toString();
+            }
+        }
+        return new Difference.TextEdit(id, offsets, lengths, replacements);
+    }
+
+    private void collectMoves(final EditScript.Payload payload) {
+        for (final EditScript.Event event : payload.getEvents()) {
+            if (event.type == EditScript.EVENT_MOVE) {
+                movedNodes.add(event.nodeId);
+            }
+        }
+    }
+
+    private static String getBinaryDiffRef(final DocumentImpl doc) {
+        final Element root = doc.getDocumentElement();
+        for (Node child = root == null ? null : root.getFirstChild(); child != null; child = child.getNextSibling()) {
+            if (child.getNodeType() == Node.ELEMENT_NODE && StandardDiff.NAMESPACE.equals(child.getNamespaceURI()) &&
+                    VersioningTrigger.ELEMENT_BINARY_DIFF.getLocalPart().equals(child.getLocalName())) {
+                return ((Element) child).getAttribute(VersioningTrigger.ATTRIBUTE_REF.getLocalPart());
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Read the changes from a binary edit script stored next to the version document.
+     */
+    private void parseBinaryDiff(final DBBroker broker, final DocumentImpl doc, final String ref)
+            throws XPathException {
+        final XmldbURI path = doc.getCollection().getURI().append(ref);
+        final TransactionManager transact = broker.getBrokerPool().getTransactionManager();
+        try (final LockedDocument script = broker.getXMLResource(path, LockMode.READ_LOCK);
+                final Txn transaction = transact.beginTransaction()) {
+            if (script == null || !(script.getDocument() instanceof BinaryDocument)) {
+                throw new XPathException(ErrorCodes.ERROR, "Binary diff not found: " + path);
+            }
+            try (final InputStream is = new BufferedInputStream(
+                    broker.getBinaryResource(transaction, (BinaryDocument) script.getDocument()))) {
+                readEditScript(broker, is);
+            }
+            transaction.commit();
+        } catch (final IOException | PermissionDeniedException | TransactionException e) {
+            throw new XPathException(ErrorCodes.ERROR, e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Read the changes from a binary edit script.
+     */
+    private void readEditScript(final DBBroker broker, final InputStream is) throws IOException {
+        EditScript.read(is, broker.getBrokerPool().getNodeFactory(), new EditScript.Handler() {
+            @Override
+            public void delete(final NodeId nodeId, final int event) {
+                final String opt = deletedNodes.get(nodeId);
+                if (event == XMLStreamReader.START_ELEMENT) {
+                    deletedNodes.put(nodeId, opt == D_END ? D_BOTH : D_START);
+                } else if (event == XMLStreamReader.END_ELEMENT) {
+                    deletedNodes.put(nodeId, opt == D_START ? D_BOTH : D_END);
+                } else {
+                    deletedNodes.put(nodeId, D_SUBTREE);
+                }
+            }
+
+            @Override
+            public void insert(final NodeId nodeId, final EditScript.Payload payload) {
+                insertedPayloads.put(nodeId, payload);
+                collectMoves(payload);
+            }
+
+            @Override
+            public void append(final NodeId nodeId, final EditScript.Payload payload) {
+                appendedPayloads.put(nodeId, payload);
+                collectMoves(payload);
+            }
+
+            @Override
+            public void textEdit(final Difference.TextEdit edit) {
+                textEdits.put(edit.refChild, edit);
+            }
+        });
+    }
+
     private NodeId parseRef(DBBroker broker, Node child, String attr) {
         String idval = ((Element)child).getAttribute(attr);
         return broker.getBrokerPool().getNodeFactory().createFromString(idval);
@@ -406,15 +835,29 @@ public class Patch {
     }
 
     private void buildChangeSet() {
-        changeSet = new NewArrayNodeSet();
-        for (NodeId nodeId : insertedNodes.keySet()) {
-            changeSet.add(new NodeProxy(diffDoc, nodeId));
-        }
-        for (NodeId nodeId : appendedNodes.keySet()) {
-            changeSet.add(new NodeProxy(diffDoc, nodeId));
-        }
-        for (NodeId nodeId : deletedNodes.keySet()) {
-            changeSet.add(new NodeProxy(diffDoc, nodeId));
+        changeSet = new TreeSet<>();
+        changeSet.addAll(insertedNodes.keySet());
+        changeSet.addAll(appendedNodes.keySet());
+        changeSet.addAll(insertedPayloads.keySet());
+        changeSet.addAll(appendedPayloads.keySet());
+        changeSet.addAll(deletedNodes.keySet());
+        changeSet.addAll(movedNodes);
+        changeSet.addAll(textEdits.keySet());
+    }
+
+    /**
+     * @return true if a child of the node is changed by the diff. Changes are ordered by node id,
+     * so the descendants of the node directly follow it.
+     */
+    private boolean hasChangedChild(final NodeId nodeId) {
+        for (final NodeId changed : changeSet.tailSet(nodeId, false)) {
+            if (!changed.isDescendantOf(nodeId)) {
+                return false;
+            }
+            if (changed.getParentId().equals(nodeId)) {
+                return true;
+            }
         }
+        return false;
     }
 }
@@ -0,0 +1,41 @@
+/**
+ * Versioning Module for eXist-db XQuery
+ * Copyright (C) 2008 eXist-db <exit-open@lists.sourceforge.net>
+ * http://exist-db.org
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 1, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.exist.versioning;
+
+import org.exist.storage.DBBroker;
+import org.exist.storage.StartupTrigger;
+import org.exist.storage.txn.Txn;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Starts the {@link VersionPruner} with the database. Without it, the pruner starts when a
+ * collection with a retention policy is first used. Configured in the
+ * <code>startup</code> section of <code>conf.xml</code>.
+ */
+public class PrunerStartupTrigger implements StartupTrigger {
+
+    @Override
+    public void execute(final DBBroker sysBroker, final Txn transaction,
+            final Map<String, List<? extends Object>> params) {
+        VersionPruner.getInstance(sysBroker.getBrokerPool());
+    }
+}
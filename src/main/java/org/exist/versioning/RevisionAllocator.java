@@ -0,0 +1,201 @@
+/**
+ * Versioning Module for eXist-db XQuery
+ * Copyright (C) 2008 eXist-db <exit-open@lists.sourceforge.net>
+ * http://exist-db.org
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 1, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.exist.versioning;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.exist.security.PermissionDeniedException;
+import org.exist.storage.BrokerPool;
+import org.exist.storage.DBBroker;
+import org.exist.util.LockException;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hands out revision numbers to the {@link VersioningTrigger}.
+ *
+ * Revisions are taken from an in-memory counter. Only the upper bound of the block
+ * of revisions currently handed out is written to <code>versions.dbx</code> in the
+ * data directory, once per block. After a crash, allocation resumes behind the
+ * persisted bound: revision numbers are never reused, but up to one block of numbers
+ * may be skipped.
+ *
+ * If <code>versions.dbx</code> is missing, truncated or unreadable, allocation resumes
+ * behind the highest revision in the {@link RevisionIndex}. If that cannot be read
+ * either, no revision is handed out.
+ */
+public class RevisionAllocator {
+
+    private final static Logger LOG = LogManager.getLogger(RevisionAllocator.class);
+
+    public final static String FILE_NAME = "versions.dbx";
+
+    public final static int DEFAULT_BLOCK_SIZE = 1000;
+
+    private final static Map<Path, RevisionAllocator> instances = new ConcurrentHashMap<>();
+
+    private final Path file;
+    private final int blockSize;
+    private final AtomicLong current;
+    private volatile long reserved;
+
+    /**
+     * Finds the highest revision number in use if the persisted bound is lost.
+     */
+    interface Recovery {
+
+        /**
+         * @return the highest revision number in use, or 0 if there is none
+         * @throws IOException if the revisions in use could not be determined
+         */
+        long highestRevision() throws IOException;
+    }
+
+    RevisionAllocator(final Path file, final int blockSize, final Recovery recovery) throws IOException {
+        this.file = file;
+        this.blockSize = blockSize;
+        long last = readReserved(file);
+        if (last < 0) {
+            last = recovery.highestRevision();
+            LOG.info("No revision bound in " + file + ". Resuming behind revision " + last +
+                    " of the revision index");
+            writeReserved(last);
+        }
+        this.current = new AtomicLong(last);
+        this.reserved = last;
+    }
+
+    /**
+     * Returns the allocator for the data directory of the database instance of the given broker.
+     *
+     * @param broker the broker to use for recovery if the persisted bound is lost
+     * @return the shared allocator
+     * @throws IOException if the allocator could neither read the persisted bound nor recover it
+     */
+    public static RevisionAllocator getInstance(final DBBroker broker) throws IOException {
+        final Path dataDir = ((Path) broker.getBrokerPool().getConfiguration()
+                .getProperty(BrokerPool.PROPERTY_DATA_DIR)).toAbsolutePath();
+        final RevisionAllocator allocator = instances.get(dataDir);
+        if (allocator != null) {
+            return allocator;
+        }
+        synchronized (instances) {
+            RevisionAllocator created = instances.get(dataDir);
+            if (created == null) {
+                created = new RevisionAllocator(dataDir.resolve(FILE_NAME), DEFAULT_BLOCK_SIZE, () -> {
+                    try {
+                        return RevisionIndex.getInstance(broker.getBrokerPool()).getHighestRevision(broker);
+                    } catch (final PermissionDeniedException | LockException e) {
+                        throw new IOException("Failed to read the revision index: " + e.getMessage(), e);
+                    }
+                });
+                instances.put(dataDir, created);
+            }
+            return created;
+        }
+    }
+
+    /**
+     * Allocate the next revision number. Revision numbers are unique and increase
+     * monotonically per data directory.
+     *
+     * @return the new revision number
+     * @throws IOException if a new block of revisions could not be reserved
+     */
+    public long next() throws IOException {
+        final long rev = current.incrementAndGet();
+        if (rev <= reserved) {
+            return rev;
+        }
+        synchronized (this) {
+            if (rev > reserved) {
+                final long bound = rev + blockSize - 1;
+                writeReserved(bound);
+                reserved = bound;
+            }
+        }
+        return rev;
+    }
+
+    /**
+     * @return the highest revision number which has been handed out so far
+     */
+    public long current() {
+        return Math.min(current.get(), reserved);
+    }
+
+    /**
+     * Replace the persisted bound. The bound is written to a temporary file which is moved
+     * over the old one, so a crash leaves either the old or the new bound.
+     */
+    private void writeReserved(final long bound) throws IOException {
+        final ByteBuffer buf = ByteBuffer.allocate(8);
+        buf.putLong(bound);
+        buf.flip();
+        final Path temp = file.resolveSibling(FILE_NAME + VersioningTrigger.TEMP_SUFFIX);
+        try (final FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            while (buf.hasRemaining()) {
+                channel.write(buf);
+            }
+            channel.force(false);
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Reserved revisions up to " + bound + " in " + file);
+        }
+    }
+
+    /**
+     * @return the persisted bound, or -1 if it is missing or damaged
+     */
+    private static long readReserved(final Path file) {
+        if (!Files.exists(file)) {
+            return -1;
+        }
+        final ByteBuffer buf = ByteBuffer.allocate(8);
+        try (final FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            while (buf.hasRemaining()) {
+                if (channel.read(buf, buf.position()) < 0) {
+                    break;
+                }
+            }
+        } catch (final IOException e) {
+            LOG.error("Failed to read " + file + ": " + e.getMessage(), e);
+            return -1;
+        }
+        if (buf.hasRemaining()) {
+            LOG.error("Revision bound in " + file + " is truncated");
+            return -1;
+        }
+        buf.flip();
+        final long bound = buf.getLong();
+        return bound < 0 ? -1 : bound;
+    }
+}
@@ -0,0 +1,328 @@
+/**
+ * Versioning Module for eXist-db XQuery
+ * Copyright (C) 2008 eXist-db <exit-open@lists.sourceforge.net>
+ * http://exist-db.org
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 1, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.exist.versioning;
+
+import org.exist.collections.Collection;
+import org.exist.dom.persistent.DocumentImpl;
+import org.exist.security.PermissionDeniedException;
+import org.exist.storage.BrokerPool;
+import org.exist.storage.DBBroker;
+import org.exist.storage.lock.Lock;
+import org.exist.storage.txn.Txn;
+import org.exist.storage.txn.TxnListener;
+import org.exist.util.LockException;
+import org.exist.xmldb.XmldbURI;
+import org.exist.xquery.XPathException;
+
+import javax.xml.stream.XMLStreamException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Cache of restored revisions, keyed by document path and revision. Restoring a revision
+ * applies the diffs from the closest base or keyframe; the result is kept in memory so
+ * repeated requests for the same revision neither read nor apply the diffs again.
+ *
+ * The cache is bounded by the total number of nodes of the cached documents and evicts the
+ * least recently used revisions first. Entries are invalidated when the {@link RevisionIndex}
+ * records a change to their revision, and all entries of a document when the document is
+ * removed or moved.
+ */
+public class RevisionCache {
+
+    public final static long DEFAULT_MAX_NODES = 1000000;
+
+    private final static Map<BrokerPool, RevisionCache> instances = new ConcurrentHashMap<>();
+
+    private final LinkedHashMap<Key, org.exist.dom.memtree.DocumentImpl> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long maxNodes = DEFAULT_MAX_NODES;
+    private long nodes = 0;
+    private long generation = 0;
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    public static RevisionCache getInstance(final BrokerPool pool) {
+        return instances.computeIfAbsent(pool, p -> new RevisionCache());
+    }
+
+    /**
+     * Set the maximum number of nodes held by the cache. A value of 0 disables the cache.
+     *
+     * @param maxNodes the maximum number of nodes
+     */
+    public synchronized void setMaxNodes(final long maxNodes) {
+        this.maxNodes = maxNodes;
+        evict();
+    }
+
+    /**
+     * Restore a revision of a document as <code>v:doc</code> does: the diffs between the
+     * closest base or keyframe and the revision are applied in order.
+     *
+     * @param broker the broker to use
+     * @param docPath the absolute path of the document
+     * @param rev the revision to restore. The latest revision up to this one is returned.
+     * @return the restored document, or null if no diff has to be applied to the base or keyframe
+     * returned by {@link #getSource}
+     */
+    public org.exist.dom.memtree.DocumentImpl restore(final DBBroker broker, final XmldbURI docPath, final long rev)
+            throws PermissionDeniedException, LockException, IOException, XPathException, DiffException,
+            XMLStreamException {
+        final List<RevisionIndex.Record> chain = getChain(broker, docPath, rev);
+        if (chain.isEmpty() || chain.size() == 1 && chain.get(0).getKeyframe() != null) {
+            return null;
+        }
+        final Key key = new Key(docPath, chain.get(0).getRevision());
+        final long start;
+        synchronized (this) {
+            final org.exist.dom.memtree.DocumentImpl cached = entries.get(key);
+            if (cached != null) {
+                hits++;
+                return cached;
+            }
+            misses++;
+            start = generation;
+        }
+
+        final List<DocumentImpl> diffs = new ArrayList<>(chain.size());
+        final DocumentImpl source;
+        try (final Collection vCollection = broker.openCollection(versionsCollection(docPath), Lock.LockMode.READ_LOCK)) {
+            if (vCollection == null) {
+                return null;
+            }
+            source = getSource(broker, vCollection, docPath, chain);
+            for (int i = chain.size() - 1; i > -1; i--) {
+                final RevisionIndex.Record record = chain.get(i);
+                if (record.getKeyframe() != null) {
+                    continue;
+                }
+                final DocumentImpl diff = vCollection.getDocument(broker, XmldbURI.create(record.getResource()));
+                if (diff == null) {
+                    throw new IOException("Version document not found: " + record.getResource());
+                }
+                diffs.add(diff);
+            }
+        }
+        if (source == null) {
+            return null;
+        }
+        final org.exist.dom.memtree.DocumentImpl result = VersionHistory.patch(broker, source, diffs);
+
+        synchronized (this) {
+            // do not cache the result if the revision changed while it was restored
+            final int size = result.getSize();
+            if (start == generation && size <= maxNodes) {
+                final org.exist.dom.memtree.DocumentImpl old = entries.put(key, result);
+                if (old != null) {
+                    nodes -= old.getSize();
+                }
+                nodes += size;
+                evict();
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the stored document the diffs of a revision apply to: the keyframe of the chain,
+     * or else the base revision.
+     *
+     * @param broker the broker to use
+     * @param docPath the absolute path of the document
+     * @param rev the revision to restore
+     * @return the base or keyframe, or null if the document has no base revision
+     */
+    public DocumentImpl getSource(final DBBroker broker, final XmldbURI docPath, final long rev)
+            throws PermissionDeniedException, LockException, IOException {
+        final List<RevisionIndex.Record> chain = getChain(broker, docPath, rev);
+        try (final Collection vCollection = broker.openCollection(versionsCollection(docPath), Lock.LockMode.READ_LOCK)) {
+            return vCollection == null ? null : getSource(broker, vCollection, docPath, chain);
+        }
+    }
+
+    private static DocumentImpl getSource(final DBBroker broker, final Collection vCollection, final XmldbURI docPath,
+            final List<RevisionIndex.Record> chain) throws PermissionDeniedException, LockException {
+        final String keyframe = chain.isEmpty() ? null : chain.get(chain.size() - 1).getKeyframe();
+        if (keyframe != null) {
+            return vCollection.getDocument(broker, XmldbURI.create(keyframe));
+        }
+        return vCollection.getDocument(broker,
+                XmldbURI.create(docPath.lastSegment().toString() + VersioningTrigger.BASE_SUFFIX));
+    }
+
+    /**
+     * Collect the revisions whose diffs restore a revision, newest first. If the chain starts
+     * at a keyframe, the keyframe revision is the last element.
+     */
+    private static List<RevisionIndex.Record> getChain(final DBBroker broker, final XmldbURI docPath, final long rev)
+            throws PermissionDeniedException, LockException, IOException {
+        final List<RevisionIndex.Record> chain = new ArrayList<>();
+        for (final RevisionIndex.Record record : RevisionIndex.getInstance(broker.getBrokerPool())
+                .getRevisions(broker, docPath).headMap(rev, true).descendingMap().values()) {
+            if (!record.hasDiff()) {
+                continue;
+            }
+            chain.add(record);
+            if (record.getKeyframe() != null || !record.isChained()) {
+                break;
+            }
+        }
+        return chain;
+    }
+
+    private static XmldbURI versionsCollection(final XmldbURI docPath) {
+        return VersioningTrigger.VERSIONS_COLLECTION.append(docPath.removeLastSegment());
+    }
+
+    /**
+     * Drop a cached revision, e.g. because its version document was rewritten or removed.
+     *
+     * @param docPath the absolute path of the document
+     * @param revision the revision number
+     */
+    public synchronized void invalidate(final XmldbURI docPath, final long revision) {
+        generation++;
+        final org.exist.dom.memtree.DocumentImpl old = entries.remove(new Key(docPath, revision));
+        if (old != null) {
+            nodes -= old.getSize();
+        }
+    }
+
+    /**
+     * Drop all cached revisions of a document once the transaction commits.
+     *
+     * @param transaction the current transaction
+     * @param docPath the absolute path of the document
+     */
+    public void invalidate(final Txn transaction, final XmldbURI docPath) {
+        transaction.registerListener(new TxnListener() {
+            @Override
+            public void commit() {
+                synchronized (RevisionCache.this) {
+                    generation++;
+                    for (final Iterator<Map.Entry<Key, org.exist.dom.memtree.DocumentImpl>> i =
+                            entries.entrySet().iterator(); i.hasNext(); ) {
+                        final Map.Entry<Key, org.exist.dom.memtree.DocumentImpl> entry = i.next();
+                        if (entry.getKey().docPath.equals(docPath)) {
+                            nodes -= entry.getValue().getSize();
+                            i.remove();
+                        }
+                    }
+                }
+            }
+
+            @Override
+            public void abort() {
+            }
+        });
+    }
+
+    /**
+     * Drop all cached revisions.
+     */
+    public synchronized void clear() {
+        generation++;
+        entries.clear();
+        nodes = 0;
+    }
+
+    /**
+     * @return the number of requests answered from the cache
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * @return the number of requests which had to restore the revision
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * @return the number of revisions dropped to stay below the maximum number of nodes
+     */
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * @return the number of cached revisions
+     */
+    public synchronized int getSize() {
+        return entries.size();
+    }
+
+    /**
+     * @return the total number of nodes of the cached revisions
+     */
+    public synchronized long getNodes() {
+        return nodes;
+    }
+
+    public synchronized long getMaxNodes() {
+        return maxNodes;
+    }
+
+    private void evict() {
+        for (final Iterator<org.exist.dom.memtree.DocumentImpl> i = entries.values().iterator();
+                nodes > maxNodes && i.hasNext(); ) {
+            nodes -= i.next().getSize();
+            i.remove();
+            evictions++;
+        }
+    }
+
+    private final static class Key {
+
+        private final XmldbURI docPath;
+        private final long revision;
+
+        private Key(final XmldbURI docPath, final long revision) {
+            this.docPath = docPath;
+            this.revision = revision;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) o;
+            return revision == other.revision && docPath.equals(other.docPath);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(docPath, revision);
+        }
+    }
+}
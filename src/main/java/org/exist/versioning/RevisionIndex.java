@@ -0,0 +1,972 @@
+/**
+ * Versioning Module for eXist-db XQuery
+ * Copyright (C) 2008 eXist-db <exit-open@lists.sourceforge.net>
+ * http://exist-db.org
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 1, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.exist.versioning;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.exist.collections.Collection;
+import org.exist.dom.persistent.BinaryDocument;
+import org.exist.dom.persistent.DocumentImpl;
+import org.exist.security.PermissionDeniedException;
+import org.exist.storage.BrokerPool;
+import org.exist.storage.DBBroker;
+import org.exist.storage.lock.Lock;
+import org.exist.storage.txn.Txn;
+import org.exist.storage.txn.TxnListener;
+import org.exist.util.LockException;
+import org.exist.xmldb.XmldbURI;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Index of the revisions of all versioned documents, keyed by document path and revision
+ * number. It holds the metadata of each revision, so revision lookups neither query nor
+ * parse the version documents.
+ *
+ * The index is kept in memory and backed by an append-only journal,
+ * <code>versions-index.dbx</code> in the data directory. Inside the transaction which stores
+ * or removes version documents, a prepare record naming the changed document is written and
+ * synced to disk before the transaction can commit; transactions preparing at the same time
+ * share a single sync. The changes themselves are applied and
+ * journaled together with a commit record when the transaction commits. On first use the
+ * journal is replayed; the revisions of documents prepared without commit record, e.g.
+ * because the database crashed before it was written, are read again from the version
+ * documents. If the journal is missing or was written in another format, the index is
+ * rebuilt from the version documents. The journal is rewritten as a snapshot in the
+ * background when it grows much larger than the index.
+ */
+public class RevisionIndex {
+
+    private final static Logger LOG = LogManager.getLogger(RevisionIndex.class);
+
+    public final static String FILE_NAME = "versions-index.dbx";
+
+    private final static int MAGIC = 0x45585249; // EXRI
+    private final static byte FORMAT_VERSION = 4;
+
+    private final static byte RECORD_PUT = 1;
+    private final static byte RECORD_REMOVE = 2;
+    private final static byte RECORD_PREPARE = 3;
+    private final static byte RECORD_COMMIT = 4;
+
+    private final static int MIN_SNAPSHOT_RECORDS = 1000;
+
+    private final static String SNAPSHOT_SUFFIX = ".snapshot";
+
+    private final static Map<BrokerPool, RevisionIndex> instances = new ConcurrentHashMap<>();
+
+    private final BrokerPool pool;
+    private final Path file;
+    private final Map<XmldbURI, NavigableMap<Long, Record>> documents = new ConcurrentHashMap<>();
+    private final Map<Long, Pending> pending = new HashMap<>();
+    private final Set<XmldbURI> inDoubt = ConcurrentHashMap.newKeySet();
+    private final Object syncLock = new Object();
+    private final ExecutorService snapshots;
+    private volatile boolean loaded = false;
+    private FileChannel channel = null;
+    private DataOutputStream journal = null;
+    /** number of records in the journal */
+    private long records = 0;
+    /** number of revisions in the index */
+    private long revisionCount = 0;
+    /** number of prepare records written, and synced to disk */
+    private long prepared = 0;
+    private long synced = 0;
+    /** incremented whenever the journal is replaced */
+    private long generation = 0;
+    private boolean snapshotScheduled = false;
+
+    private RevisionIndex(final BrokerPool pool) {
+        this.pool = pool;
+        final Path dataDir = (Path) pool.getConfiguration().getProperty(BrokerPool.PROPERTY_DATA_DIR);
+        this.file = dataDir.resolve(FILE_NAME);
+        this.snapshots = Executors.newSingleThreadExecutor(r -> {
+            final Thread thread = new Thread(r, "versioning-index-snapshot");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public static RevisionIndex getInstance(final BrokerPool pool) {
+        return instances.computeIfAbsent(pool, RevisionIndex::new);
+    }
+
+    /**
+     * @param versionsCollection the path of a versions collection
+     * @param documentName the name of a versioned document
+     * @return the absolute path of the versioned document
+     */
+    public static XmldbURI sourcePath(final XmldbURI versionsCollection, final String documentName) {
+        return XmldbURI.create(versionsCollection.toString().substring(
+                VersioningTrigger.VERSIONS_COLLECTION.toString().length())).append(documentName);
+    }
+
+    /**
+     * @param broker the broker to use
+     * @param docPath the absolute path of the document
+     * @return the revisions of the document in ascending order
+     */
+    public NavigableMap<Long, Record> getRevisions(final DBBroker broker, final XmldbURI docPath)
+            throws PermissionDeniedException, LockException, IOException {
+        load(broker);
+        final NavigableMap<Long, Record> revisions = documents.get(docPath);
+        return revisions == null ? Collections.emptyNavigableMap() : Collections.unmodifiableNavigableMap(revisions);
+    }
+
+    /**
+     * @param broker the broker to use
+     * @param docPath the absolute path of the document
+     * @param revision the revision number
+     * @return the revision or null if it does not exist
+     */
+    public Record getRevision(final DBBroker broker, final XmldbURI docPath, final long revision)
+            throws PermissionDeniedException, LockException, IOException {
+        return getRevisions(broker, docPath).get(revision);
+    }
+
+    /**
+     * @param broker the broker to use
+     * @param docPath the absolute path of the document
+     * @return the latest revision or null if the document has no revisions
+     */
+    public Record getHead(final DBBroker broker, final XmldbURI docPath)
+            throws PermissionDeniedException, LockException, IOException {
+        final Map.Entry<Long, Record> last = getRevisions(broker, docPath).lastEntry();
+        return last == null ? null : last.getValue();
+    }
+
+    /**
+     * @param broker the broker to use
+     * @return the highest revision number of all documents, or 0 if there are no revisions
+     */
+    public long getHighestRevision(final DBBroker broker) throws PermissionDeniedException, LockException,
+            IOException {
+        load(broker);
+        long highest = 0;
+        for (final NavigableMap<Long, Record> revisions : documents.values()) {
+            final Map.Entry<Long, Record> last = revisions.lastEntry();
+            if (last != null && last.getKey() > highest) {
+                highest = last.getKey();
+            }
+        }
+        return highest;
+    }
+
+    /**
+     * Count the references of all revisions into the {@link ContentStore}.
+     *
+     * @param broker the broker to use
+     * @return the number of revisions referencing each stored content
+     */
+    public Map<String, Integer> countContentRefs(final DBBroker broker) throws PermissionDeniedException,
+            LockException, IOException {
+        load(broker);
+        final Map<String, Integer> counts = new HashMap<>();
+        for (final NavigableMap<Long, Record> revisions : documents.values()) {
+            for (final Record record : revisions.values()) {
+                for (final String ref : record.contentRefs) {
+                    counts.merge(ref, 1, Integer::sum);
+                }
+            }
+        }
+        return counts;
+    }
+
+    /**
+     * Check if a revision newer than the given base revision has been committed with a key
+     * other than the given one. Revisions without key never conflict.
+     *
+     * @param broker the broker to use
+     * @param docPath the absolute path of the document
+     * @param baseRev the revision the client based its changes on
+     * @param key the key of the client
+     * @return true if there is a conflicting revision
+     */
+    public boolean newerRevisionExists(final DBBroker broker, final XmldbURI docPath, final long baseRev,
+            final String key) throws PermissionDeniedException, LockException, IOException {
+        final NavigableMap<Long, Record> revisions = getRevisions(broker, docPath);
+        final Map.Entry<Long, Record> last = revisions.lastEntry();
+        if (last == null || baseRev >= last.getKey()) {
+            return false;
+        }
+        // the client is behind: only the revisions it did not store itself conflict
+        for (final Record record : revisions.tailMap(baseRev, false).descendingMap().values()) {
+            if (record.key != null && !record.key.equals(key)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Record a new or changed version document once the transaction commits.
+     *
+     * @param transaction the current transaction
+     * @param broker the broker to use
+     * @param vCollection the versions collection containing the version document
+     * @param revision the revision as read from the version document
+     * @throws IOException if the change could not be prepared in the journal
+     */
+    public void put(final Txn transaction, final DBBroker broker, final Collection vCollection,
+            final VersionHistory.Revision revision) throws PermissionDeniedException, LockException, IOException {
+        if (revision == null) {
+            return;
+        }
+        final XmldbURI docPath = sourcePath(vCollection.getURI(), revision.getDocumentName());
+        final Record record = Record.of(broker, vCollection, revision);
+        load(broker);
+        prepare(transaction, docPath, () -> apply(docPath, record), os -> writePut(os, docPath, record));
+    }
+
+    /**
+     * Remove a revision from the index once the transaction commits.
+     *
+     * @param transaction the current transaction
+     * @param broker the broker to use
+     * @param docPath the absolute path of the document
+     * @param revision the revision number
+     * @throws IOException if the change could not be prepared in the journal
+     */
+    public void remove(final Txn transaction, final DBBroker broker, final XmldbURI docPath, final long revision)
+            throws PermissionDeniedException, LockException, IOException {
+        load(broker);
+        prepare(transaction, docPath, () -> applyRemove(docPath, revision), os -> {
+            os.writeByte(RECORD_REMOVE);
+            os.writeUTF(docPath.toString());
+            os.writeLong(revision);
+        });
+    }
+
+    /**
+     * Write a prepare record for the document to the journal and sync it, unless the
+     * transaction already prepared a change of the document. The change is applied and
+     * journaled once the transaction commits.
+     */
+    private void prepare(final Txn transaction, final XmldbURI docPath, final Runnable change,
+            final JournalRecord record) throws IOException {
+        final long sequence;
+        synchronized (this) {
+            final long txnId = transaction.getId();
+            Pending changes = pending.get(txnId);
+            if (changes == null) {
+                changes = new Pending();
+                pending.put(txnId, changes);
+                transaction.registerListener(new TxnListener() {
+                    @Override
+                    public void commit() {
+                        committed(txnId);
+                    }
+
+                    @Override
+                    public void abort() {
+                        aborted(txnId);
+                    }
+                });
+            }
+            changes.changes.add(change);
+            changes.records.add(record);
+            if (!changes.documents.add(docPath)) {
+                return;
+            }
+            writePrepare(journal(), txnId, docPath);
+            records++;
+            sequence = ++prepared;
+        }
+        sync(sequence);
+    }
+
+    /**
+     * Wait until the journal is synced to disk up to the given prepare record. The sync is
+     * done outside the monitor of the index and covers all prepare records written until
+     * it starts, so transactions preparing at the same time share it.
+     */
+    private void sync(final long sequence) throws IOException {
+        synchronized (syncLock) {
+            final FileChannel target;
+            final long upTo;
+            synchronized (this) {
+                if (synced >= sequence) {
+                    return;
+                }
+                journal.flush();
+                target = channel;
+                upTo = prepared;
+            }
+            try {
+                target.force(false);
+            } catch (final ClosedChannelException e) {
+                synchronized (this) {
+                    // a snapshot replaced the journal, syncing all prepare records
+                    if (synced < sequence) {
+                        throw e;
+                    }
+                }
+                return;
+            }
+            synchronized (this) {
+                synced = Math.max(synced, upTo);
+            }
+        }
+    }
+
+    private synchronized void committed(final long txnId) {
+        final Pending changes = pending.remove(txnId);
+        if (changes == null) {
+            return;
+        }
+        for (final Runnable change : changes.changes) {
+            change.run();
+        }
+        try {
+            final DataOutputStream os = journal();
+            for (final JournalRecord record : changes.records) {
+                record.write(os);
+            }
+            os.writeByte(RECORD_COMMIT);
+            os.writeLong(txnId);
+            os.flush();
+            records += changes.records.size() + 1;
+            if (records > MIN_SNAPSHOT_RECORDS && records > 4L * revisionCount && !snapshotScheduled) {
+                snapshotScheduled = true;
+                snapshots.execute(this::snapshot);
+            }
+        } catch (final IOException e) {
+            // the prepare records remain without commit: the documents are read again on the next start
+            LOG.error("Failed to write revision index " + file + ": " + e.getMessage(), e);
+        }
+    }
+
+    private synchronized void aborted(final long txnId) {
+        final Pending changes = pending.remove(txnId);
+        if (changes != null) {
+            // the index may have been built while the transaction was running
+            inDoubt.addAll(changes.documents);
+        }
+    }
+
+    private void apply(final XmldbURI docPath, final Record record) {
+        if (documents.computeIfAbsent(docPath, p -> new ConcurrentSkipListMap<>())
+                .put(record.revision, record) == null) {
+            revisionCount++;
+        }
+        RevisionCache.getInstance(pool).invalidate(docPath, record.revision);
+    }
+
+    private void applyRemove(final XmldbURI docPath, final long revision) {
+        final NavigableMap<Long, Record> revisions = documents.get(docPath);
+        if (revisions != null && revisions.remove(revision) != null) {
+            revisionCount--;
+            if (revisions.isEmpty()) {
+                documents.remove(docPath, revisions);
+            }
+        }
+        RevisionCache.getInstance(pool).invalidate(docPath, revision);
+    }
+
+    private long size() {
+        long size = 0;
+        for (final NavigableMap<Long, Record> revisions : documents.values()) {
+            size += revisions.size();
+        }
+        return size;
+    }
+
+    private void load(final DBBroker broker) throws PermissionDeniedException, LockException, IOException {
+        if (loaded && inDoubt.isEmpty()) {
+            return;
+        }
+        synchronized (this) {
+            if (!loaded) {
+                if (!Files.exists(file) || !replay()) {
+                    rebuild(broker);
+                }
+                loaded = true;
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug("Loaded revision index of " + documents.size() + " documents from " + file);
+                }
+            }
+            if (!inDoubt.isEmpty()) {
+                resolve(broker);
+            }
+        }
+    }
+
+    /**
+     * Read the revisions of all documents whose changes are in doubt from the version
+     * documents and replace the journal, so no prepare record without commit remains.
+     */
+    private void resolve(final DBBroker broker) throws PermissionDeniedException, LockException, IOException {
+        LOG.info("Reading revisions of " + inDoubt.size() + " documents from version documents");
+        final Map<XmldbURI, List<XmldbURI>> collections = new HashMap<>();
+        for (final XmldbURI docPath : inDoubt) {
+            collections.computeIfAbsent(XmldbURI.create(VersioningTrigger.VERSIONS_COLLECTION.toString() +
+                    docPath.removeLastSegment().toString()), p -> new ArrayList<>()).add(docPath);
+        }
+        broker.pushSubject(broker.getBrokerPool().getSecurityManager().getSystemSubject());
+        try {
+            for (final Map.Entry<XmldbURI, List<XmldbURI>> entry : collections.entrySet()) {
+                final Map<XmldbURI, NavigableMap<Long, Record>> read = new HashMap<>();
+                try (final Collection vCollection = broker.openCollection(entry.getKey(), Lock.LockMode.READ_LOCK)) {
+                    if (vCollection != null) {
+                        read(broker, vCollection, read);
+                    }
+                }
+                for (final XmldbURI docPath : entry.getValue()) {
+                    final NavigableMap<Long, Record> revisions = read.get(docPath);
+                    if (revisions == null) {
+                        documents.remove(docPath);
+                    } else {
+                        documents.put(docPath, revisions);
+                    }
+                    inDoubt.remove(docPath);
+                }
+            }
+        } finally {
+            broker.popSubject();
+        }
+        revisionCount = size();
+        RevisionCache.getInstance(pool).clear();
+        writeSnapshot();
+    }
+
+    /**
+     * @return false if the journal was written in another format
+     */
+    private boolean replay() throws IOException {
+        final CountingInputStream counter = new CountingInputStream(Files.newInputStream(file));
+        try (final DataInputStream is = new DataInputStream(counter)) {
+            try {
+                if (is.readInt() != MAGIC || is.readByte() != FORMAT_VERSION) {
+                    LOG.info("Revision index " + file + " has an unknown format");
+                    return false;
+                }
+            } catch (final EOFException e) {
+                return false;
+            }
+            final Map<Long, Set<XmldbURI>> prepared = new HashMap<>();
+            long valid = counter.count;
+            try {
+                while (true) {
+                    final int type = is.read();
+                    if (type < 0) {
+                        break;
+                    }
+                    switch (type) {
+                        case RECORD_PUT:
+                            final XmldbURI docPath = XmldbURI.create(is.readUTF());
+                            apply(docPath, Record.read(is));
+                            break;
+                        case RECORD_REMOVE:
+                            applyRemove(XmldbURI.create(is.readUTF()), is.readLong());
+                            break;
+                        case RECORD_PREPARE:
+                            final long txnId = is.readLong();
+                            prepared.computeIfAbsent(txnId, id -> new HashSet<>()).add(XmldbURI.create(is.readUTF()));
+                            break;
+                        case RECORD_COMMIT:
+                            prepared.remove(is.readLong());
+                            break;
+                        default:
+                            throw new IOException("Unknown record type " + type + " in revision index " + file);
+                    }
+                    records++;
+                    valid = counter.count;
+                }
+            } catch (final EOFException e) {
+                // a record was cut off by a crash: drop it
+                LOG.warn("Truncating incomplete record at the end of revision index " + file);
+                try (final FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                    channel.truncate(valid);
+                }
+            }
+            for (final Set<XmldbURI> docPaths : prepared.values()) {
+                inDoubt.addAll(docPaths);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Rebuild the index from the version documents and replace the journal.
+     *
+     * @param broker the broker to use
+     * @return the number of revisions indexed
+     */
+    public synchronized long rebuild(final DBBroker broker) throws PermissionDeniedException, LockException,
+            IOException {
+        LOG.info("Building revision index from version documents");
+        final long start = System.currentTimeMillis();
+        documents.clear();
+        inDoubt.clear();
+        RevisionCache.getInstance(pool).clear();
+        broker.pushSubject(broker.getBrokerPool().getSecurityManager().getSystemSubject());
+        try {
+            rebuild(broker, VersioningTrigger.VERSIONS_COLLECTION);
+        } finally {
+            broker.popSubject();
+        }
+        revisionCount = size();
+        writeSnapshot();
+        loaded = true;
+        final long size = revisionCount;
+        LOG.info("Indexed " + size + " revisions of " + documents.size() + " documents in " +
+                (System.currentTimeMillis() - start) + "ms");
+        return size;
+    }
+
+    private void rebuild(final DBBroker broker, final XmldbURI path) throws PermissionDeniedException, LockException {
+        if (path.equals(ContentStore.CONTENT_COLLECTION)) {
+            return;
+        }
+        final List<XmldbURI> children = new ArrayList<>();
+        try (final Collection vCollection = broker.openCollection(path, Lock.LockMode.READ_LOCK)) {
+            if (vCollection == null) {
+                return;
+            }
+            read(broker, vCollection, documents);
+            for (final Iterator<XmldbURI> i = vCollection.collectionIterator(broker); i.hasNext(); ) {
+                children.add(path.append(i.next()));
+            }
+        }
+        for (final XmldbURI child : children) {
+            rebuild(broker, child);
+        }
+    }
+
+    /**
+     * Read the revisions of all documents in a versions collection from their version documents.
+     */
+    private static void read(final DBBroker broker, final Collection vCollection,
+            final Map<XmldbURI, NavigableMap<Long, Record>> revisions) throws PermissionDeniedException,
+            LockException {
+        final XmldbURI path = vCollection.getURI();
+        for (final VersionHistory history : VersionHistory.load(broker, vCollection).values()) {
+            final XmldbURI docPath = sourcePath(path, history.getDocumentName());
+            for (final VersionHistory.Revision revision : history.getRevisions().values()) {
+                revisions.computeIfAbsent(docPath, p -> new ConcurrentSkipListMap<>())
+                        .put(revision.getRevision(), Record.of(broker, vCollection, revision));
+            }
+        }
+        for (final Iterator<DocumentImpl> i = vCollection.iterator(broker); i.hasNext(); ) {
+            final DocumentImpl doc = i.next();
+            if (!(doc instanceof BinaryDocument) &&
+                    doc.getFileURI().toString().endsWith(VersioningTrigger.SQUASHED_SUFFIX)) {
+                for (final VersionHistory.Revision revision : VersionHistory.Revision.readSquashed(doc)) {
+                    revisions.computeIfAbsent(sourcePath(path, revision.getDocumentName()),
+                            p -> new ConcurrentSkipListMap<>())
+                            .put(revision.getRevision(), Record.of(broker, vCollection, revision));
+                }
+            }
+        }
+    }
+
+    /**
+     * Replace the journal with one record per revision, followed by the prepare records of
+     * the transactions which are still running.
+     */
+    private void writeSnapshot() throws IOException {
+        final Path temp = file.resolveSibling(FILE_NAME + VersioningTrigger.TEMP_SUFFIX);
+        final long count;
+        try (final FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            count = writeRecords(out, preparedDocuments());
+            out.force(false);
+        }
+        replaceJournal(temp, count);
+    }
+
+    /**
+     * Write a snapshot without blocking the transactions which commit meanwhile. The
+     * revisions are written outside the monitor of the index. The records journaled while
+     * they were written are appended to the snapshot before it replaces the journal; as
+     * replaying a record twice does not change the index, revisions already contained in
+     * the snapshot do no harm.
+     */
+    void snapshot() {
+        final long start;
+        final long startRecords;
+        final long startGeneration;
+        final Map<Long, Set<XmldbURI>> preparedDocuments;
+        synchronized (this) {
+            snapshotScheduled = false;
+            if (pool.isShuttingDownOrDown()) {
+                return;
+            }
+            try {
+                journal().flush();
+                start = channel.size();
+            } catch (final IOException e) {
+                LOG.error("Failed to write revision index " + file + ": " + e.getMessage(), e);
+                return;
+            }
+            startRecords = records;
+            startGeneration = generation;
+            preparedDocuments = preparedDocuments();
+        }
+        final Path temp = file.resolveSibling(FILE_NAME + SNAPSHOT_SUFFIX + VersioningTrigger.TEMP_SUFFIX);
+        try {
+            final long count;
+            try (final FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                count = writeRecords(out, preparedDocuments);
+            }
+            synchronized (this) {
+                if (generation != startGeneration || pool.isShuttingDownOrDown()) {
+                    // the journal was replaced meanwhile
+                    return;
+                }
+                journal.flush();
+                try (final FileChannel in = FileChannel.open(file, StandardOpenOption.READ);
+                     final FileChannel out = FileChannel.open(temp, StandardOpenOption.WRITE,
+                             StandardOpenOption.APPEND)) {
+                    final long end = in.size();
+                    for (long position = start; position < end; ) {
+                        position += in.transferTo(position, end - position, out);
+                    }
+                    out.force(false);
+                }
+                replaceJournal(temp, count + records - startRecords);
+            }
+        } catch (final IOException e) {
+            LOG.error("Failed to write snapshot of revision index " + file + ": " + e.getMessage(), e);
+        } finally {
+            try {
+                Files.deleteIfExists(temp);
+            } catch (final IOException e) {
+                LOG.warn("Failed to delete " + temp + ": " + e.getMessage(), e);
+            }
+        }
+    }
+
+    /**
+     * Write the header, the given prepare records and one record per revision.
+     *
+     * @return the number of records written
+     */
+    private long writeRecords(final FileChannel out, final Map<Long, Set<XmldbURI>> preparedDocuments)
+            throws IOException {
+        long count = 0;
+        final DataOutputStream os = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(out)));
+        os.writeInt(MAGIC);
+        os.writeByte(FORMAT_VERSION);
+        for (final Map.Entry<Long, Set<XmldbURI>> entry : preparedDocuments.entrySet()) {
+            for (final XmldbURI docPath : entry.getValue()) {
+                writePrepare(os, entry.getKey(), docPath);
+                count++;
+            }
+        }
+        for (final Map.Entry<XmldbURI, NavigableMap<Long, Record>> entry : documents.entrySet()) {
+            for (final Record record : entry.getValue().values()) {
+                writePut(os, entry.getKey(), record);
+                count++;
+            }
+        }
+        os.flush();
+        return count;
+    }
+
+    private Map<Long, Set<XmldbURI>> preparedDocuments() {
+        final Map<Long, Set<XmldbURI>> preparedDocuments = new HashMap<>();
+        for (final Map.Entry<Long, Pending> entry : pending.entrySet()) {
+            preparedDocuments.put(entry.getKey(), new HashSet<>(entry.getValue().documents));
+        }
+        return preparedDocuments;
+    }
+
+    /**
+     * Replace the journal with a snapshot synced to disk, which contains the prepare
+     * records of all running transactions.
+     */
+    private void replaceJournal(final Path snapshot, final long count) throws IOException {
+        if (journal != null) {
+            journal.close();
+            journal = null;
+            channel = null;
+        }
+        Files.move(snapshot, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        records = count;
+        synced = prepared;
+        generation++;
+    }
+
+    private DataOutputStream journal() throws IOException {
+        if (journal == null) {
+            channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.APPEND);
+            journal = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+        }
+        return journal;
+    }
+
+    private static void writePrepare(final DataOutputStream os, final long txnId, final XmldbURI docPath)
+            throws IOException {
+        os.writeByte(RECORD_PREPARE);
+        os.writeLong(txnId);
+        os.writeUTF(docPath.toString());
+    }
+
+    private static void writePut(final DataOutputStream os, final XmldbURI docPath, final Record record)
+            throws IOException {
+        os.writeByte(RECORD_PUT);
+        os.writeUTF(docPath.toString());
+        record.write(os);
+    }
+
+    private static void writeString(final DataOutputStream os, final String value) throws IOException {
+        os.writeBoolean(value != null);
+        if (value != null) {
+            os.writeUTF(value);
+        }
+    }
+
+    private static String readString(final DataInputStream is) throws IOException {
+        return is.readBoolean() ? is.readUTF() : null;
+    }
+
+    @FunctionalInterface
+    private interface JournalRecord {
+        void write(DataOutputStream os) throws IOException;
+    }
+
+    /**
+     * The changes of a running transaction, applied once it commits.
+     */
+    private final static class Pending {
+        private final Set<XmldbURI> documents = new HashSet<>();
+        private final List<Runnable> changes = new ArrayList<>();
+        private final List<JournalRecord> records = new ArrayList<>();
+    }
+
+    private final static class CountingInputStream extends FilterInputStream {
+        private long count = 0;
+
+        private CountingInputStream(final InputStream in) {
+            super(new BufferedInputStream(in));
+        }
+
+        @Override
+        public int read() throws IOException {
+            final int b = super.read();
+            if (b > -1) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+            final int n = super.read(b, off, len);
+            if (n > 0) {
+                count += n;
+            }
+            return n;
+        }
+    }
+
+    /**
+     * The metadata of a single revision.
+     */
+    public final static class Record {
+
+        private final long revision;
+        private final String resource;
+        private final String type;
+        private final String date;
+        private final String user;
+        private final String key;
+        private final String fingerprint;
+        private final boolean chained;
+        private final String keyframe;
+        private final long size;
+        private final List<String> contentRefs;
+
+        private Record(final long revision, final String resource, final String type, final String date,
+                final String user, final String key, final String fingerprint, final boolean chained,
+                final String keyframe, final long size, final List<String> contentRefs) {
+            this.revision = revision;
+            this.resource = resource;
+            this.type = type;
+            this.date = date;
+            this.user = user;
+            this.key = key;
+            this.fingerprint = fingerprint;
+            this.chained = chained;
+            this.keyframe = keyframe;
+            this.size = size;
+            this.contentRefs = contentRefs;
+        }
+
+        static Record of(final DBBroker broker, final Collection vCollection, final VersionHistory.Revision revision)
+                throws PermissionDeniedException {
+            final boolean squashed = VersioningTrigger.ELEMENT_SQUASHED.getLocalPart().equals(revision.getType());
+            long size = squashed ? 0 : revision.getDocument().getContentLength();
+            if (revision.getBinaryDiff() != null) {
+                final DocumentImpl script = vCollection.getDocument(broker, XmldbURI.create(revision.getBinaryDiff()));
+                if (script != null) {
+                    size = script.getContentLength();
+                }
+            }
+            return new Record(revision.getRevision(), revision.getDocument().getFileURI().toString(),
+                    revision.getType(), revision.getDate(), revision.getUser(), revision.getKey(),
+                    revision.getFingerprint(), revision.isChained(), revision.getKeyframe(), size,
+                    revision.getContentRefs());
+        }
+
+        private void write(final DataOutputStream os) throws IOException {
+            os.writeLong(revision);
+            os.writeUTF(resource);
+            writeString(os, type);
+            writeString(os, date);
+            writeString(os, user);
+            writeString(os, key);
+            writeString(os, fingerprint);
+            os.writeBoolean(chained);
+            writeString(os, keyframe);
+            os.writeLong(size);
+            os.writeByte(contentRefs.size());
+            for (final String ref : contentRefs) {
+                os.writeUTF(ref);
+            }
+        }
+
+        private static Record read(final DataInputStream is) throws IOException {
+            final long revision = is.readLong();
+            final String resource = is.readUTF();
+            final String type = readString(is);
+            final String date = readString(is);
+            final String user = readString(is);
+            final String key = readString(is);
+            final String fingerprint = readString(is);
+            final boolean chained = is.readBoolean();
+            final String keyframe = readString(is);
+            final long size = is.readLong();
+            final int refs = is.readByte();
+            final List<String> contentRefs = new ArrayList<>(refs);
+            for (int i = 0; i < refs; i++) {
+                contentRefs.add(is.readUTF());
+            }
+            return new Record(revision, resource, type, date, user, key, fingerprint, chained, keyframe, size,
+                    contentRefs);
+        }
+
+        public long getRevision() {
+            return revision;
+        }
+
+        /**
+         * @return the name of the version document in the versions collection, or of the
+         * <code>&lt;name&gt;.squashed</code> document holding the properties of a squashed revision
+         */
+        public String getResource() {
+            return resource;
+        }
+
+        /**
+         * @see VersionHistory.Revision#getType()
+         */
+        public String getType() {
+            return type;
+        }
+
+        public String getDate() {
+            return date;
+        }
+
+        public String getUser() {
+            return user;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public String getFingerprint() {
+            return fingerprint;
+        }
+
+        /**
+         * @return true if the revision contains a diff, either as XML or binary edit script
+         */
+        public boolean hasDiff() {
+            return "diff".equals(type) || VersioningTrigger.ELEMENT_BINARY_DIFF.getLocalPart().equals(type);
+        }
+
+        /**
+         * @return true if the diff was computed against the previous revision instead of the base
+         */
+        public boolean isChained() {
+            return chained;
+        }
+
+        public String getKeyframe() {
+            return keyframe;
+        }
+
+        /**
+         * @return true if the properties of the revision were squashed into the base by the
+         * {@link Compactor}
+         */
+        public boolean isSquashed() {
+            return VersioningTrigger.ELEMENT_SQUASHED.getLocalPart().equals(type);
+        }
+
+        /**
+         * @return the size of the stored diff in bytes: the size of the binary edit script or
+         * else of the version document
+         */
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * @return the references into the {@link ContentStore} held by the revision
+         */
+        public List<String> getContentRefs() {
+            return contentRefs;
+        }
+    }
+}
@@ -0,0 +1,327 @@
+/**
+ * Versioning Module for eXist-db XQuery
+ * Copyright (C) 2008 eXist-db <exit-open@lists.sourceforge.net>
+ * http://exist-db.org
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 1, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.exist.versioning;
+
+import bmsi.util.Diff;
+
+import java.util.BitSet;
+
+/**
+ * Sequence diff of two ranges of int codes, e.g. the {@link DiffNodes#getCode codes} of the
+ * nodes of two documents, equal codes meaning equal elements. It is the algorithm of
+ * {@link Diff}, Myers' O(ND) diff in linear space with the same cut-off for expensive
+ * comparisons and the same shifting of the changes, but compares the codes where they are
+ * held instead of a copy of boxed keys. The script is returned as the changes of {@link Diff},
+ * so it is a drop-in replacement.
+ */
+final class SequenceDiff {
+
+    /**
+     * The codes of a sequence, read by index.
+     */
+    interface Codes {
+        int get(int i);
+    }
+
+    private final Codes a;
+    private final Codes b;
+    private final int aFrom;
+    private final int bFrom;
+    private final int n;
+    private final int m;
+
+    private final BitSet changedA = new BitSet();
+    private final BitSet changedB = new BitSet();
+
+    /** furthest reaching x of the forward and backward searches, indexed by diagonal x - y */
+    private final int[] fd;
+    private final int[] bd;
+    private final int diagOffset;
+    private final int tooExpensive;
+
+    private SequenceDiff(final Codes a, final int aFrom, final int aTo, final Codes b, final int bFrom, final int bTo) {
+        this.a = a;
+        this.b = b;
+        this.aFrom = aFrom;
+        this.bFrom = bFrom;
+        this.n = aTo - aFrom;
+        this.m = bTo - bFrom;
+        final int diags = n + m + 3;
+        this.fd = new int[diags];
+        this.bd = new int[diags];
+        this.diagOffset = m + 1;
+        int expensive = 1;
+        for (int d = diags; d != 0; d >>= 2) {
+            expensive <<= 1;
+        }
+        this.tooExpensive = Math.max(256, expensive);
+    }
+
+    /**
+     * @return the changes turning the codes of a into the codes of b, in order, with positions
+     * relative to the start of the ranges, or null if they are equal
+     */
+    static Diff.change diff(final Codes a, final int aFrom, final int aTo, final Codes b, final int bFrom,
+            final int bTo) {
+        if (aFrom == aTo || bFrom == bTo) {
+            return aFrom < aTo || bFrom < bTo ? new Diff.change(0, 0, aTo - aFrom, bTo - bFrom, null) : null;
+        }
+        final SequenceDiff diff = new SequenceDiff(a, aFrom, aTo, b, bFrom, bTo);
+        diff.compare(0, diff.n, 0, diff.m);
+        shiftBoundaries(diff.changedA, diff.changedB, a, aFrom, diff.n);
+        shiftBoundaries(diff.changedB, diff.changedA, b, bFrom, diff.m);
+        return diff.script();
+    }
+
+    /**
+     * @return the changes turning a into b, or null if they are equal
+     */
+    static Diff.change diff(final int[] a, final int[] b) {
+        return diff(i -> a[i], 0, a.length, i -> b[i], 0, b.length);
+    }
+
+    private boolean equal(final int x, final int y) {
+        return a.get(aFrom + x) == b.get(bFrom + y);
+    }
+
+    /**
+     * Mark the changes between a[xoff, xlim) and b[yoff, ylim).
+     */
+    private void compare(int xoff, int xlim, int yoff, int ylim) {
+        while (xoff < xlim && yoff < ylim && equal(xoff, yoff)) {
+            xoff++;
+            yoff++;
+        }
+        while (xlim > xoff && ylim > yoff && equal(xlim - 1, ylim - 1)) {
+            xlim--;
+            ylim--;
+        }
+        if (xoff == xlim) {
+            changedB.set(yoff, ylim);
+        } else if (yoff == ylim) {
+            changedA.set(xoff, xlim);
+        } else {
+            final long split = split(xoff, xlim, yoff, ylim);
+            final int x = (int) (split >>> 32);
+            final int y = (int) split;
+            compare(xoff, x, yoff, y);
+            compare(x, xlim, y, ylim);
+        }
+    }
+
+    /**
+     * Find the midpoint of the shortest edit script of a[xoff, xlim) and b[yoff, ylim), or,
+     * if it is too expensive to find, a point far along a good diagonal.
+     *
+     * @return x in the upper and y in the lower half
+     */
+    private long split(final int xoff, final int xlim, final int yoff, final int ylim) {
+        final int dmin = xoff - ylim;
+        final int dmax = xlim - yoff;
+        final int fmid = xoff - yoff;
+        final int bmid = xlim - ylim;
+        int fmin = fmid;
+        int fmax = fmid;
+        int bmin = bmid;
+        int bmax = bmid;
+        final boolean odd = ((fmid - bmid) & 1) != 0;
+
+        fd[diagOffset + fmid] = xoff;
+        bd[diagOffset + bmid] = xlim;
+
+        for (int c = 1; ; c++) {
+            if (fmin > dmin) {
+                fd[diagOffset + --fmin - 1] = -1;
+            } else {
+                ++fmin;
+            }
+            if (fmax < dmax) {
+                fd[diagOffset + ++fmax + 1] = -1;
+            } else {
+                --fmax;
+            }
+            for (int d = fmax; d >= fmin; d -= 2) {
+                final int tlo = fd[diagOffset + d - 1];
+                final int thi = fd[diagOffset + d + 1];
+                int x = tlo >= thi ? tlo + 1 : thi;
+                int y = x - d;
+                while (x < xlim && y < ylim && equal(x, y)) {
+                    x++;
+                    y++;
+                }
+                fd[diagOffset + d] = x;
+                if (odd && bmin <= d && d <= bmax && bd[diagOffset + d] <= x) {
+                    return point(x, y);
+                }
+            }
+
+            if (bmin > dmin) {
+                bd[diagOffset + --bmin - 1] = Integer.MAX_VALUE;
+            } else {
+                ++bmin;
+            }
+            if (bmax < dmax) {
+                bd[diagOffset + ++bmax + 1] = Integer.MAX_VALUE;
+            } else {
+                --bmax;
+            }
+            for (int d = bmax; d >= bmin; d -= 2) {
+                final int tlo = bd[diagOffset + d - 1];
+                final int thi = bd[diagOffset + d + 1];
+                int x = tlo < thi ? tlo : thi - 1;
+                int y = x - d;
+                while (x > xoff && y > yoff && equal(x - 1, y - 1)) {
+                    x--;
+                    y--;
+                }
+                bd[diagOffset + d] = x;
+                if (!odd && fmin <= d && d <= fmax && x <= fd[diagOffset + d]) {
+                    return point(x, y);
+                }
+            }
+
+            if (c >= tooExpensive) {
+                // give up on the optimal script: take the diagonal which got furthest
+                int fxybest = -1;
+                int fxbest = xoff;
+                for (int d = fmax; d >= fmin; d -= 2) {
+                    int x = Math.min(fd[diagOffset + d], xlim);
+                    int y = x - d;
+                    if (ylim < y) {
+                        x = ylim + d;
+                        y = ylim;
+                    }
+                    if (fxybest < x + y) {
+                        fxybest = x + y;
+                        fxbest = x;
+                    }
+                }
+                int bxybest = Integer.MAX_VALUE;
+                int bxbest = xlim;
+                for (int d = bmax; d >= bmin; d -= 2) {
+                    int x = Math.max(xoff, bd[diagOffset + d]);
+                    int y = x - d;
+                    if (y < yoff) {
+                        x = yoff + d;
+                        y = yoff;
+                    }
+                    if (x + y < bxybest) {
+                        bxybest = x + y;
+                        bxbest = x;
+                    }
+                }
+                if ((xlim + ylim) - bxybest < fxybest - (xoff + yoff)) {
+                    return point(fxbest, fxybest - fxbest);
+                }
+                return point(bxbest, bxybest - bxbest);
+            }
+        }
+    }
+
+    private static long point(final int x, final int y) {
+        return ((long) x << 32) | (y & 0xffffffffL);
+    }
+
+    /**
+     * Shift each run of changes as far down as it can go, merging it with the runs it reaches,
+     * then back up to a run of changes in the other sequence if one corresponds to it.
+     */
+    private static void shiftBoundaries(final BitSet changed, final BitSet otherChanged, final Codes codes,
+            final int from, final int end) {
+        int i = 0;
+        int j = 0;
+        while (true) {
+            while (i < end && !changed.get(i)) {
+                while (otherChanged.get(j++)) {
+                    // skip the changes of the other sequence
+                }
+                i++;
+            }
+            if (i == end) {
+                return;
+            }
+            int start = i;
+            while (changed.get(++i)) {
+                // find the end of the run
+            }
+            while (otherChanged.get(j)) {
+                j++;
+            }
+
+            int corresponding;
+            int runLength;
+            do {
+                runLength = i - start;
+                while (start > 0 && codes.get(from + start - 1) == codes.get(from + i - 1)) {
+                    changed.set(--start);
+                    changed.clear(--i);
+                    while (start > 0 && changed.get(start - 1)) {
+                        start--;
+                    }
+                    while (j > 0 && otherChanged.get(--j)) {
+                        // move back over the changes of the other sequence
+                    }
+                }
+                corresponding = j > 0 && otherChanged.get(j - 1) ? i : end;
+                while (i != end && codes.get(from + start) == codes.get(from + i)) {
+                    changed.clear(start++);
+                    changed.set(i++);
+                    while (changed.get(i)) {
+                        i++;
+                    }
+                    while (otherChanged.get(++j)) {
+                        corresponding = i;
+                    }
+                }
+            } while (runLength != i - start);
+
+            while (corresponding < i) {
+                changed.set(--start);
+                changed.clear(--i);
+                while (j > 0 && otherChanged.get(--j)) {
+                    // move back over the changes of the other sequence
+                }
+            }
+        }
+    }
+
+    private Diff.change script() {
+        Diff.change script = null;
+        int i = n;
+        int j = m;
+        while (i > 0 || j > 0) {
+            if ((i > 0 && changedA.get(i - 1)) || (j > 0 && changedB.get(j - 1))) {
+                final int lastA = i;
+                final int lastB = j;
+                while (i > 0 && changedA.get(i - 1)) {
+                    i--;
+                }
+                while (j > 0 && changedB.get(j - 1)) {
+                    j--;
+                }
+                script = new Diff.change(i, j, lastA - i, lastB - j, script);
+            } else {
+                i--;
+                j--;
+            }
+        }
+        return script;
+    }
+}
@@ -23,11 +23,12 @@ import bmsi.util.Diff;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.exist.dom.persistent.DocumentImpl;
-import org.exist.dom.persistent.NodeProxy;
 import org.exist.dom.QName;
 import org.exist.numbering.NodeId;
 import org.exist.stax.ExtendedXMLStreamReader;
+import org.exist.storage.BrokerPool;
 import org.exist.storage.DBBroker;
+import org.exist.util.serializer.AttrList;
 import org.exist.util.serializer.Receiver;
 import org.exist.util.serializer.SAXSerializer;
 import org.exist.util.serializer.SerializerPool;
@@ -37,14 +38,22 @@ import javax.xml.stream.XMLStreamException;
 import javax.xml.stream.XMLStreamReader;
 import javax.xml.transform.OutputKeys;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.StringWriter;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Properties;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
 import java.util.TreeMap;
 
-public class StandardDiff implements org.exist.versioning.Diff {
+public class StandardDiff implements org.exist.versioning.Diff, AutoCloseable {
 
     private final static Logger LOG = LogManager.getLogger(StandardDiff.class);
 
@@ -57,15 +66,185 @@ public class StandardDiff implements org.exist.versioning.Diff {
 
     private List<Difference> changes = null;
 
+    private long fingerprint = Fingerprint.EMPTY;
+    private long fingerprintB = Fingerprint.EMPTY;
+    private int changedNodes = 0;
+    private int nodeCount = 0;
+    private DiffNodes sourceNodes = null;
+    private DiffNodes targetNodes = null;
+    private boolean sourceCached = false;
+
+    private int spillThreshold = Integer.MAX_VALUE;
+    private final List<DiffNodes> spillable = new ArrayList<>();
+
+    private Set<String> identityAttributes = Collections.emptySet();
+
+    private int textEditThreshold = Integer.MAX_VALUE;
+
+    private boolean verifyMatches = false;
+
     public StandardDiff(final DBBroker broker) {
         this.broker = broker;
     }
 
+    /**
+     * Move the nodes read from a document off the heap, into memory-mapped files below
+     * the data directory, once there are more than the given number. The files are
+     * deleted by {@link #close()}.
+     *
+     * @param threshold the maximum number of nodes per document kept on the heap
+     */
+    public void setSpillThreshold(final int threshold) {
+        this.spillThreshold = threshold > 0 ? threshold : Integer.MAX_VALUE;
+    }
+
+    /**
+     * Match elements deleted in one place and inserted in another by the given attributes.
+     * Such an element is written as <code>v:move</code> referencing the element in the source
+     * document, followed by the changes within it, instead of deleting it and inserting a copy.
+     *
+     * @param attributes the qualified names of the identifying attributes, e.g. xml:id
+     */
+    public void setIdentityAttributes(final Set<String> attributes) {
+        this.identityAttributes = attributes;
+    }
+
+    /**
+     * @return the qualified names of the attributes identifying elements
+     */
+    protected Set<String> getIdentityAttributes() {
+        return identityAttributes;
+    }
+
+    /**
+     * Write a text node which is replaced by another of at least the given number of chars as
+     * <code>v:text-edit</code>, listing the changed ranges of its text, instead of deleting it
+     * and inserting the new text in full.
+     *
+     * @param threshold the minimum length of the new text, or 0 to always insert the new text
+     */
+    public void setTextEditThreshold(final int threshold) {
+        this.textEditThreshold = threshold > 0 ? threshold : Integer.MAX_VALUE;
+    }
+
+    /**
+     * Read both documents again after the sequence diff and compare the content of all
+     * nodes it matched, to detect nodes matched because their 64-bit hashes collide. Such a
+     * collision is far less likely than a corrupted document, so this is only meant for
+     * debugging: it reads both documents a second time.
+     *
+     * @param verify true to compare the content of the matched nodes
+     */
+    public void setVerifyMatches(final boolean verify) {
+        this.verifyMatches = verify;
+    }
+
+    /**
+     * @param source the document
+     * @param nodes the nodes of the document
+     * @param element the index of a start tag
+     * @param attributes the qualified names of the identifying attributes
+     * @return the name of the element together with the name and value of its first
+     * identifying attribute, or null if it has none
+     */
+    protected String getIdentity(final DiffSource source, final DiffNodes nodes, final int element,
+            final Set<String> attributes) {
+        if (attributes.isEmpty() || nodes.getType(element) != XMLStreamReader.START_ELEMENT) {
+            return null;
+        }
+        for (int i = element + 1; i < nodes.size() && nodes.getType(i) == XMLStreamReader.ATTRIBUTE; i++) {
+            final AttrList attribs = new AttrList();
+            source.addAttribute(broker, nodes.getNodeId(i), attribs);
+            if (attribs.getLength() > 0 && attributes.contains(attribs.getQName(0).getStringValue())) {
+                return nodes.getNameId(element) + " " + attribs.getQName(0).getStringValue() + '=' +
+                        attribs.getValue(0);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Create the table for the nodes of a document, which will be spilled above the
+     * configured threshold.
+     */
+    protected DiffNodes newNodes(final DiffNodes.Names names) {
+        final DiffNodes nodes = new DiffNodes(names);
+        if (spillThreshold < Integer.MAX_VALUE) {
+            final BrokerPool pool = broker.getBrokerPool();
+            final Path dataDir = (Path) pool.getConfiguration().getProperty(BrokerPool.PROPERTY_DATA_DIR);
+            nodes.spillAbove(spillThreshold, dataDir.resolve(DiffSpill.SPILL_DIR), pool.getNodeFactory());
+            spillable.add(nodes);
+        }
+        return nodes;
+    }
+
+    /**
+     * Release the nodes read, deleting any spill files. Has to be called once the diff
+     * and its {@link #getSourceNodes() source} and {@link #getTargetNodes() target nodes}
+     * are no longer used, whether the diff succeeded or not.
+     */
+    @Override
+    public void close() {
+        for (final DiffNodes nodes : spillable) {
+            nodes.close();
+        }
+        spillable.clear();
+    }
+
     @Override
     public void diff(final DocumentImpl docA, final DocumentImpl docB) throws DiffException {
+        diffIfChanged(DiffSource.of(docA), DiffSource.of(docB), null);
+    }
+
+    @Override
+    public void diff(final DiffSource docA, final DiffSource docB) throws DiffException {
+        diffIfChanged(docA, docB, null);
+    }
+
+    /**
+     * Diff two documents unless the modified document has the given fingerprint. The
+     * modified document is read first, so if it is unchanged, neither the source document
+     * is read nor the diff computed.
+     *
+     * @param docA the source document
+     * @param docB the modified document
+     * @param unchangedFingerprint fingerprint of the last known content of the modified
+     *                             document as returned by {@link #getFingerprint()}, or null
+     * @return false if docB has the given fingerprint and no diff was computed
+     * @throws DiffException if the documents could not be read
+     */
+    public boolean diffIfChanged(final DocumentImpl docA, final DocumentImpl docB, final String unchangedFingerprint)
+            throws DiffException {
+        return diffIfChanged(DiffSource.of(docA), DiffSource.of(docB), unchangedFingerprint);
+    }
+
+    /**
+     * Diff two documents, each of which may be stored or in memory, unless the modified
+     * document has the given fingerprint.
+     *
+     * @see #diffIfChanged(DocumentImpl, DocumentImpl, String)
+     */
+    public boolean diffIfChanged(final DiffSource docA, final DiffSource docB, final String unchangedFingerprint)
+            throws DiffException {
         try {
-            final DiffNode[] nodesA = getNodes(broker, docA);
-            final DiffNode[] nodesB = getNodes(broker, docB);
+            sourceNodes = null;
+            targetNodes = null;
+            sourceCached = false;
+            final DiffNodes.Names names = new DiffNodes.Names();
+            final DiffNodes nodesB = getNodes(broker, docB, names);
+            fingerprintB = fingerprint;
+            nodeCount = nodesB.size();
+            changedNodes = 0;
+            if (getFingerprint().equals(unchangedFingerprint)) {
+                this.changes = new ArrayList<>();
+                return false;
+            }
+            DiffNodes nodesA = docA.getNodes(broker, names);
+            sourceCached = nodesA != null;
+            if (nodesA == null) {
+                nodesA = getNodes(broker, docA, names);
+            }
+            sourceNodes = nodesA;
 
             if (LOG.isTraceEnabled()) {
                 LOG.trace("Source:");
@@ -74,19 +253,190 @@ public class StandardDiff implements org.exist.versioning.Diff {
                 debugNodes(nodesB);
             }
 
-            final Diff diff = new Diff(nodesA, nodesB);
-            final Diff.change script = diff.diff_2(false);
-            this.changes = getChanges(script, docA, docB, nodesA, nodesB);
+            Diff.change script = computeScript(docA, nodesA, docB, nodesB);
+            if (verifyMatches) {
+                try (final NodeValues valuesA = new NodeValues(docA.newReader(broker), 0);
+                        final NodeValues valuesB = new NodeValues(docB.newReader(broker), 0)) {
+                    script = verify(script, valuesA, 0, nodesA.size(), valuesB, 0, nodesB.size());
+                }
+            }
+            setChanges(script, docA, docB, nodesA, nodesB);
+            targetNodes = nodesB;
+            return true;
         } catch (final XMLStreamException | IOException e) {
             throw new DiffException(e.getMessage(), e);
         }
     }
 
-    private void debugNodes(final DiffNode[] nodes) {
+    /**
+     * Record the result of a diff.
+     *
+     * @param script the edit script computed for the nodes
+     * @param docA the source document
+     * @param docB the modified document
+     * @param nodesA the nodes of the source document
+     * @param nodesB the nodes of the modified document
+     */
+    protected void setChanges(final Diff.change script, final DiffSource docA, final DiffSource docB,
+            final DiffNodes nodesA, final DiffNodes nodesB) throws XMLStreamException, IOException {
+        changedNodes = 0;
+        for (Diff.change next = script; next != null; next = next.link) {
+            changedNodes += next.inserted + next.deleted;
+        }
+        nodeCount = nodesB.size();
+        this.changes = getChanges(script, docA, docB, nodesA, nodesB);
+    }
+
+    /**
+     * Record the result of a diff computed by a subclass.
+     *
+     * @param changes the changes
+     * @param changedNodes the number of nodes inserted or deleted
+     * @param nodeCount the number of nodes of the modified document
+     */
+    protected void setChanges(final Changes changes, final int changedNodes, final int nodeCount) {
+        this.changedNodes = changedNodes;
+        this.nodeCount = nodeCount;
+        this.changes = changes.toList();
+    }
+
+    /**
+     * Record the fingerprint of the modified document read by a subclass.
+     */
+    protected void setFingerprint(final long fingerprint) {
+        this.fingerprintB = fingerprint;
+    }
+
+    /**
+     * Compute the edit script transforming the nodes of the source document into the nodes
+     * of the modified document.
+     *
+     * @param docA the source document
+     * @param nodesA the nodes of the source document
+     * @param docB the modified document
+     * @param nodesB the nodes of the modified document
+     * @return the changes in document order, indexes refer to the nodes
+     */
+    protected Diff.change computeScript(final DiffSource docA, final DiffNodes nodesA, final DiffSource docB,
+            final DiffNodes nodesB) {
+        return SequenceDiff.diff(nodesA::getCode, 0, nodesA.size(), nodesB::getCode, 0, nodesB.size());
+    }
+
+    /**
+     * Compare the content of the nodes an edit script matched. Nodes are matched by a hash of
+     * their content, so two different nodes may be matched if their hashes collide. Each such
+     * pair is turned into a change replacing the node. The readers are left open, so ranges
+     * following each other can be verified one after the other.
+     *
+     * @param script the edit script of two ranges, with positions relative to the ranges
+     * @param valuesA reads the nodes of the source document, from aFrom on
+     * @param aFrom the start of the range of the source document
+     * @param aTo the end of the range of the source document
+     * @param valuesB reads the nodes of the modified document, from bFrom on
+     * @param bFrom the start of the range of the modified document
+     * @param bTo the end of the range of the modified document
+     * @return the script with a change for each pair of matched nodes whose content differs
+     */
+    protected static Diff.change verify(final Diff.change script, final NodeValues valuesA, final int aFrom,
+            final int aTo, final NodeValues valuesB, final int bFrom, final int bTo) throws XMLStreamException {
+        final List<int[]> changes = new ArrayList<>();
+        boolean collided = false;
+        int i = aFrom;
+        int j = bFrom;
+        for (Diff.change next = script; ; next = next.link) {
+            final int matchEnd = next == null ? aTo : aFrom + next.line0;
+            for (; i < matchEnd; i++, j++) {
+                if (!valuesA.matches(i, valuesB, j)) {
+                    LOG.debug("Hash collision between nodes " + i + " and " + j);
+                    collided = true;
+                    addChange(changes, i - aFrom, j - bFrom, 1, 1);
+                }
+            }
+            if (next == null) {
+                break;
+            }
+            addChange(changes, next.line0, next.line1, next.deleted, next.inserted);
+            i = aFrom + next.line0 + next.deleted;
+            j = bFrom + next.line1 + next.inserted;
+        }
+        if (!collided) {
+            return script;
+        }
+        Diff.change verified = null;
+        for (int k = changes.size() - 1; k > -1; k--) {
+            final int[] change = changes.get(k);
+            verified = new Diff.change(change[0], change[1], change[2], change[3], verified);
+        }
+        return verified;
+    }
+
+    /**
+     * Append a change, merging it with the last one if it continues it.
+     */
+    private static void addChange(final List<int[]> changes, final int line0, final int line1, final int deleted,
+            final int inserted) {
+        if (!changes.isEmpty()) {
+            final int[] last = changes.get(changes.size() - 1);
+            if (last[0] + last[2] == line0 && last[1] + last[3] == line1) {
+                last[2] += deleted;
+                last[3] += inserted;
+                return;
+            }
+        }
+        changes.add(new int[] { line0, line1, deleted, inserted });
+    }
+
+    /**
+     * @return the fingerprint of the content of the modified document, available after
+     * the diff has been computed
+     */
+    public String getFingerprint() {
+        return Fingerprint.toString(fingerprintB);
+    }
+
+    /**
+     * @return the nodes of the source document, available after the diff has been computed
+     */
+    public DiffNodes getSourceNodes() {
+        return sourceNodes;
+    }
+
+    /**
+     * @return the nodes of the modified document, available after a diff has been computed
+     * by this class or a subclass using its {@link #diffIfChanged} method, else null
+     */
+    public DiffNodes getTargetNodes() {
+        return targetNodes;
+    }
+
+    /**
+     * @return true if the nodes of the source document were read from a {@link DiffSkeleton}
+     * instead of the document
+     */
+    public boolean isSourceCached() {
+        return sourceCached;
+    }
+
+    /**
+     * @return the number of nodes inserted or deleted by the diff
+     */
+    public int getChangedNodeCount() {
+        return changedNodes;
+    }
+
+    /**
+     * @return the number of nodes read from the modified document, counting start and end
+     * tags separately
+     */
+    public int getNodeCount() {
+        return nodeCount;
+    }
+
+    private void debugNodes(final DiffNodes nodes) {
         final StringBuilder buf = new StringBuilder();
         buf.append('\n');
-        for (int i = 0; i < nodes.length; i++) {
-            final DiffNode node = nodes[i];
+        for (int i = nodes.getStart(); i < nodes.size(); i++) {
+            final DiffNode node = nodes.get(i);
             buf.append(Integer.toString(i)).append(' ').append(node.toString()).append('\n');
         }
         LOG.trace(buf.toString());
@@ -110,24 +460,56 @@ public class StandardDiff implements org.exist.versioning.Diff {
         }
     }
     
-    public void diff2XML(Receiver receiver ) throws DiffException {
+    /**
+     * Write the diff as binary edit script.
+     *
+     * @param os the stream to write to
+     * @param compress true to deflate the edit script
+     * @throws DiffException if the diff could not be written
+     * @see EditScript
+     */
+    public void diff2Binary(final OutputStream os, final boolean compress) throws DiffException {
+        try {
+            EditScript.write(broker, changes, os, compress);
+        } catch (final IOException | SAXException e) {
+            throw new DiffException("error while serializing diff: " + e.getMessage(), e);
+        }
+    }
+
+    public void diff2XML(Receiver<?> receiver ) throws DiffException {
         try {
             receiver.startElement(DIFF_ELEMENT, null);
             for (int i = 0; i < changes.size(); i++) {
-                Difference diff = (Difference) changes.get(i);
+                Difference diff = changes.get(i);
                 diff.serialize(broker, receiver);
             }
             receiver.endElement(DIFF_ELEMENT);
-            receiver.endDocument();
         } catch (SAXException e) {
             throw new DiffException("error while serializing diff: " + e.getMessage(), e);
         }
     }
 
 
-    protected List<Difference> getChanges(Diff.change script, DocumentImpl docA, DocumentImpl docB, DiffNode[] nodesA, DiffNode[] nodesB) throws XMLStreamException {
-        List<Difference> changes = new ArrayList<Difference>();
-        Map<NodeId, Difference> inserts = new TreeMap<NodeId, Difference>();
+    protected List<Difference> getChanges(Diff.change script, DiffSource docA, DiffSource docB, DiffNodes nodesA, DiffNodes nodesB) throws XMLStreamException, IOException {
+        final Changes changes = new Changes();
+        addChanges(script, docA, docB, nodesA, nodesB, changes);
+        return changes.toList();
+    }
+
+    /**
+     * Turn an edit script into changes and add them to the given ones.
+     *
+     * @param script the edit script, indexes refer to the nodes
+     * @param changes the changes to add to
+     */
+    protected void addChanges(Diff.change script, DiffSource docA, DiffSource docB, DiffNodes nodesA,
+            DiffNodes nodesB, Changes changes) throws XMLStreamException, IOException {
+        // elements moved: start index in A -> end index in A, start index in B -> { start in A, end in B }
+        final Map<Integer, Integer> movedA = new HashMap<>();
+        final Map<Integer, int[]> movedB = new HashMap<>();
+        if (!identityAttributes.isEmpty()) {
+            script = findMoves(script, docA, docB, nodesA, nodesB, movedA, movedB);
+        }
         Diff.change next = script;
         while (next != null) {
             int start0 = next.line0;
@@ -135,6 +517,14 @@ public class StandardDiff implements org.exist.versioning.Diff {
             int last = start + next.inserted;
             int lastDeleted = start0 + next.deleted;
 
+            if (next.deleted == 1 && next.inserted == 1) {
+                final Difference.TextEdit edit = getTextEdit(docA, docB, nodesA, nodesB, start0, start);
+                if (edit != null) {
+                    changes.add(edit);
+                    next = next.link;
+                    continue;
+                }
+            }
             if (next.inserted > 0) {
                 if (next.deleted == 0) {
                     // Simplify edit script: if there's a set of start tags at the end of the
@@ -143,11 +533,9 @@ public class StandardDiff implements org.exist.versioning.Diff {
                     // inserted element instead of a sequence of end/start tags.
                     int offsetFix = 0;
                     for (int i = last - 1; i > start; i--) {
-                        DiffNode node = nodesB[i];
-                        if (node.nodeType == XMLStreamReader.START_ELEMENT && start - (last - i) > 0) {
-                            DiffNode before = nodesB[start - (last - i)];
-                            if (before.nodeType == XMLStreamReader.START_ELEMENT &&
-                                before.qname.equals(node.qname))
+                        if (nodesB.getType(i) == XMLStreamReader.START_ELEMENT && start - (last - i) > nodesB.getStart() &&
+                                start - (last - i) >= changes.startB && start0 - (last - i) >= changes.startA) {
+                            if (nodesB.isSameElement(start - (last - i), nodesB, i))
                                 offsetFix++;
                         } else
                             break;
@@ -158,27 +546,25 @@ public class StandardDiff implements org.exist.versioning.Diff {
                         last = start + next.inserted;
                     }
                 }
-                Difference.Insert diff;
-                if (nodesA[start0].nodeType == XMLStreamReader.END_ELEMENT) {
-                    diff = new Difference.Append(new NodeProxy(docA, nodesA[start0].nodeId), docB);
-                    changes.add(diff);
-                } else {
-                    diff = (Difference.Insert) inserts.get(nodesA[start0].nodeId);
-                    if (diff == null) {
-                        diff = new Difference.Insert(new NodeProxy(docA, nodesA[start0].nodeId), docB);
-                        inserts.put(nodesA[start0].nodeId, diff);
+                // a patch only takes the attributes of nodes inserted before an attribute: insert
+                // the content following them before the first node of the element which is not one
+                if (nodesA.getType(start0) == XMLStreamReader.ATTRIBUTE) {
+                    int content = start;
+                    while (content < last && nodesB.getType(content) == XMLStreamReader.ATTRIBUTE) {
+                        content++;
+                    }
+                    int ref = start0;
+                    while (ref < nodesA.size() && nodesA.getType(ref) == XMLStreamReader.ATTRIBUTE) {
+                        ref++;
+                    }
+                    if (content < last && ref < nodesA.size()) {
+                        insert(docB, nodesA, ref, nodesB, content, last, movedB, changes);
+                        last = content;
                     }
                 }
-                
-                // now scan the chunk and collect the nodes
-                DiffNode[] nodes = new DiffNode[last - start];
-                int j = 0;
-                for (int i = start; i < last; i++, j++) {
-                    if (LOG.isTraceEnabled())
-                        LOG.trace(Integer.toString(i) + " " + nodesB[i]);
-                    nodes[j] = nodesB[i];
+                if (start < last) {
+                    insert(docB, nodesA, start0, nodesB, start, last, movedB, changes);
                 }
-                diff.addNodes(nodes);
             }
             if (next.deleted > 0) {
             	// This is a simple test to correct an issue when two nodes of the same 
@@ -186,14 +572,8 @@ public class StandardDiff implements org.exist.versioning.Diff {
             	// element doesn't get it's start node deleted and the second does. So 
             	// the second element basically ends up with the first one's start element.
             	// Which causes problems for the second element's attributes.
-            	DiffNode beforeElement = nodesA[start0 - 1];
-            	DiffNode lastElement = nodesA[lastDeleted - 1];
-
-            	if(beforeElement.qname != null 
-            			&& lastElement.qname != null 
-            			&& beforeElement.qname.equals(lastElement.qname) 
-            			&& beforeElement.nodeType == XMLStreamReader.START_ELEMENT 
-            			&& lastElement.nodeType == XMLStreamReader.START_ELEMENT) {
+            	if(start0 > Math.max(nodesA.getStart(), changes.startA) &&
+            			nodesA.isSameElement(start0 - 1, nodesA, lastDeleted - 1)) {
             		start0--;
             		lastDeleted--;
             	}
@@ -201,12 +581,18 @@ public class StandardDiff implements org.exist.versioning.Diff {
             	if (LOG.isTraceEnabled())
                     LOG.trace("Deleted: " + start0 + " last: " + lastDeleted);
                 for (int i = start0; i < lastDeleted; i++) {
+                    final Integer movedEnd = movedA.get(i);
+                    if (movedEnd != null) {
+                        // moved, not deleted
+                        i = movedEnd;
+                        continue;
+                    }
                     boolean elementDeleted = false;
-                    if (nodesA[i].nodeType == XMLStreamReader.START_ELEMENT) {
+                    if (nodesA.getType(i) == XMLStreamReader.START_ELEMENT) {
                         for (int j = i; j < lastDeleted; j++) {
-                            if (nodesA[j].nodeType == XMLStreamReader.END_ELEMENT &&
-                                    nodesA[j].nodeId.equals(nodesA[i].nodeId)) {
-                                Difference.Delete diff = new Difference.Delete(new NodeProxy(docA, nodesA[i].nodeId));
+                            if (nodesA.getType(j) == XMLStreamReader.END_ELEMENT &&
+                                    nodesA.getNodeId(j).equals(nodesA.getNodeId(i))) {
+                                Difference.Delete diff = new Difference.Delete(nodesA.getNodeId(i));
                                 changes.add(diff);
                                 i = j;
                                 elementDeleted = true;
@@ -215,56 +601,390 @@ public class StandardDiff implements org.exist.versioning.Diff {
                         }
                     }
                     if (!elementDeleted) {
-                        Difference.Delete diff = new Difference.Delete(nodesA[i].nodeType, new NodeProxy(docA, nodesA[i].nodeId));
+                        Difference.Delete diff = new Difference.Delete(nodesA.getType(i), nodesA.getNodeId(i));
                         changes.add(diff);
                     }
                 }
             }
             next = next.link;
         }
-        for (Difference diff : inserts.values()) {
-            changes.add(diff);
-        }
-        return changes;
-    }
-
-    protected DiffNode[] getNodes(DBBroker broker, DocumentImpl root) throws XMLStreamException, IOException {
-        ExtendedXMLStreamReader reader = broker.newXMLStreamReader(new NodeProxy(root, NodeId.DOCUMENT_NODE, root.getFirstChildAddress()), false);
-        List<DiffNode> nodes = new ArrayList<DiffNode>();
-        DiffNode node;
-        while (reader.hasNext()) {
-            int status = reader.next();
-            NodeId nodeId = (NodeId) reader.getProperty(ExtendedXMLStreamReader.PROPERTY_NODE_ID);
-            switch (status) {
-                case XMLStreamReader.START_ELEMENT:
-                    node = new DiffNode(nodeId, status, reader.getQName());
-                    nodes.add(node);
-
-                    for (int i = 0; i < reader.getAttributeCount(); i++) {
-                        nodeId = reader.getAttributeId(i);
-                        String value = reader.getAttributeQName(i).getStringValue() + '=' +
-                                reader.getAttributeValue(i);
-                        node = new DiffNode(nodeId, XMLStreamReader.ATTRIBUTE, value);
-                        nodes.add(node);
-                    }
-                    break;
-                case XMLStreamReader.END_ELEMENT:
-                    node = new DiffNode(nodeId, status, reader.getQName());
-                    nodes.add(node);
-                    break;
-                case XMLStreamReader.CHARACTERS:
-                case XMLStreamReader.COMMENT:
-                    node = new DiffNode(nodeId, status, reader.getText());
-                    nodes.add(node);
-                    break;
-                case XMLStreamReader.PROCESSING_INSTRUCTION:
-                    String value = reader.getPITarget() + " " + reader.getPIData();
-                    nodes.add(new DiffNode(nodeId, status, value));
-                    break;
+    }
+
+    /**
+     * Insert a range of nodes of the modified document before a node of the source document,
+     * or append them to its element if the node is an end tag.
+     */
+    private static void insert(final DiffSource docB, final DiffNodes nodesA, final int ref, final DiffNodes nodesB,
+            final int from, final int to, final Map<Integer, int[]> movedB, final Changes changes) {
+        final Difference.Insert diff = nodesA.getType(ref) == XMLStreamReader.END_ELEMENT ?
+                changes.getAppend(nodesA.getNodeId(ref), docB) :
+                changes.getInsert(nodesA.getNodeId(ref), docB);
+
+        // now scan the chunk and collect the nodes
+        final DiffNode[] nodes = movedB.isEmpty() ? nodesB.get(from, to) :
+                getInserted(nodesA, nodesB, from, to, movedB);
+        if (LOG.isTraceEnabled()) {
+            for (int i = 0; i < nodes.length; i++)
+                LOG.trace(Integer.toString(from + i) + " " + nodes[i]);
+        }
+        diff.addNodes(nodes);
+    }
+
+    /**
+     * @return the edit turning the text node at index a into the one at index b, or null if
+     * they are not both text nodes, the new text is below the threshold or the edit would not
+     * be shorter than the new text
+     */
+    private Difference.TextEdit getTextEdit(final DiffSource docA, final DiffSource docB,
+            final DiffNodes nodesA, final DiffNodes nodesB, final int a, final int b) {
+        if (textEditThreshold == Integer.MAX_VALUE || nodesA.getType(a) != XMLStreamReader.CHARACTERS ||
+                nodesB.getType(b) != XMLStreamReader.CHARACTERS) {
+            return null;
+        }
+        final String newText = docB.getText(broker, nodesB.getNodeId(b));
+        if (newText == null || newText.length() < textEditThreshold) {
+            return null;
+        }
+        final String oldText = docA.getText(broker, nodesA.getNodeId(a));
+        return oldText == null ? null : TextDiff.diff(nodesA.getNodeId(a), oldText, newText);
+    }
+
+    /**
+     * Find complete elements deleted by one change and inserted by another which have the
+     * same identity. Each pair is recorded as a move, and the changes within the moved
+     * element are appended to the script.
+     *
+     * @return the script extended by the changes within the moved elements
+     */
+    private Diff.change findMoves(final Diff.change script, final DiffSource docA, final DiffSource docB,
+            final DiffNodes nodesA, final DiffNodes nodesB, final Map<Integer, Integer> movedA,
+            final Map<Integer, int[]> movedB) throws XMLStreamException, IOException {
+        final Map<String, Integer> deleted = new HashMap<>();
+        final Map<String, Integer> inserted = new HashMap<>();
+        final Set<String> ambiguous = new HashSet<>();
+        final List<Diff.change> all = new ArrayList<>();
+        for (Diff.change next = script; next != null; next = next.link) {
+            all.add(next);
+            collectElements(docA, nodesA, next.line0, next.line0 + next.deleted, deleted, ambiguous);
+            collectElements(docB, nodesB, next.line1, next.line1 + next.inserted, inserted, ambiguous);
+        }
+        final List<int[]> inner = new ArrayList<>();
+        for (final Map.Entry<String, Integer> entry : deleted.entrySet()) {
+            final Integer b = inserted.get(entry.getKey());
+            if (b == null || ambiguous.contains(entry.getKey())) {
+                continue;
+            }
+            final int a = entry.getValue();
+            final int endA = elementEnd(nodesA, a, nodesA.size());
+            final int endB = elementEnd(nodesB, b, nodesB.size());
+            movedA.put(a, endA);
+            movedB.put(b, new int[] { a, endB });
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Moved: " + nodesA.getNodeId(a) + " to " + nodesB.getNodeId(b));
+            }
+            final Diff.change moved;
+            try (final NodeValues valuesA = new NodeValues(docA.newReader(broker, nodesA.getNodeId(a)), a);
+                    final NodeValues valuesB = new NodeValues(docB.newReader(broker, nodesB.getNodeId(b)), b)) {
+                moved = verify(SequenceDiff.diff(nodesA::getCode, a, endA + 1, nodesB::getCode, b, endB + 1),
+                        valuesA, a, endA + 1, valuesB, b, endB + 1);
+            }
+            for (Diff.change next = moved; next != null; next = next.link) {
+                inner.add(new int[] { a + next.line0, b + next.line1, next.deleted, next.inserted });
+            }
+        }
+        if (movedA.isEmpty()) {
+            return script;
+        }
+        Diff.change extended = null;
+        for (int i = inner.size() - 1; i > -1; i--) {
+            final int[] change = inner.get(i);
+            extended = new Diff.change(change[0], change[1], change[2], change[3], extended);
+        }
+        for (int i = all.size() - 1; i > -1; i--) {
+            final Diff.change change = all.get(i);
+            extended = new Diff.change(change.line0, change.line1, change.deleted, change.inserted, extended);
+        }
+        return extended;
+    }
+
+    /**
+     * Collect the identities of the complete elements in a range which are not contained in
+     * another complete element of the range.
+     */
+    private void collectElements(final DiffSource source, final DiffNodes nodes, final int from, final int to,
+            final Map<String, Integer> elements, final Set<String> ambiguous) {
+        for (int i = from; i < to; i++) {
+            if (nodes.getType(i) != XMLStreamReader.START_ELEMENT) {
+                continue;
+            }
+            final int end = elementEnd(nodes, i, to);
+            if (end < 0) {
+                continue;
+            }
+            final String identity = getIdentity(source, nodes, i, identityAttributes);
+            if (identity != null && elements.put(identity, i) != null) {
+                ambiguous.add(identity);
+            }
+            i = end;
+        }
+    }
+
+    /**
+     * @return the index of the end tag of the element starting at the given index, or -1
+     * if it does not end before the given index
+     */
+    private static int elementEnd(final DiffNodes nodes, final int element, final int to) {
+        int depth = 0;
+        for (int i = element; i < to; i++) {
+            final int type = nodes.getType(i);
+            if (type == XMLStreamReader.START_ELEMENT) {
+                depth++;
+            } else if (type == XMLStreamReader.END_ELEMENT && --depth == 0) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the inserted nodes of a range, with a {@link DiffNode#MOVE} placeholder for
+     * each moved element
+     */
+    private static DiffNode[] getInserted(final DiffNodes nodesA, final DiffNodes nodesB, final int from,
+            final int to, final Map<Integer, int[]> movedB) {
+        final List<DiffNode> nodes = new ArrayList<>(to - from);
+        for (int i = from; i < to; i++) {
+            final int[] moved = movedB.get(i);
+            if (moved != null) {
+                nodes.add(new DiffNode(nodesA.getNodeId(moved[0]), DiffNode.MOVE, ""));
+                i = moved[1];
+            } else {
+                nodes.add(nodesB.get(i));
+            }
+        }
+        return nodes.toArray(new DiffNode[0]);
+    }
+
+    protected DiffNodes getNodes(final DBBroker broker, final DiffSource root, final DiffNodes.Names names)
+            throws XMLStreamException, IOException {
+        final NodeStream stream = new NodeStream(root.newReader(broker), newNodes(names));
+        while (stream.next()) {
+            // read all nodes
+        }
+        fingerprint = stream.getFingerprint();
+        return stream.getNodes();
+    }
+
+    /**
+     * Reads the nodes of a document one event at a time, computing the fingerprint of the
+     * content on the way.
+     */
+    static final class NodeStream {
+
+        private final ExtendedXMLStreamReader reader;
+        private final DiffNodes nodes;
+        private long hash = Fingerprint.EMPTY;
+
+        NodeStream(final ExtendedXMLStreamReader reader, final DiffNodes nodes) {
+            this.reader = reader;
+            this.nodes = nodes;
+        }
+
+        /**
+         * Read the next node. An element is added together with its attributes.
+         *
+         * @return false if the end of the document was reached
+         */
+        boolean next() throws XMLStreamException, IOException {
+            while (reader.hasNext()) {
+                final int status = reader.next();
+                final NodeId nodeId = (NodeId) reader.getProperty(ExtendedXMLStreamReader.PROPERTY_NODE_ID);
+                switch (status) {
+                    case XMLStreamReader.START_ELEMENT:
+                        final QName qname = reader.getQName();
+                        nodes.add(nodeId, status, qname);
+                        hash = Fingerprint.update(Fingerprint.update(Fingerprint.update(hash, status),
+                                qname.getNamespaceURI()), qname.getLocalPart());
+
+                        for (int i = 0; i < reader.getAttributeCount(); i++) {
+                            final String value = reader.getAttributeQName(i).getStringValue() + '=' +
+                                    reader.getAttributeValue(i);
+                            final String namespace = reader.getAttributeNamespace(i);
+                            nodes.add(reader.getAttributeId(i), XMLStreamReader.ATTRIBUTE,
+                                    Fingerprint.update(Fingerprint.update(Fingerprint.EMPTY, namespace), value), null);
+                            hash = Fingerprint.update(Fingerprint.update(Fingerprint.update(hash, XMLStreamReader.ATTRIBUTE),
+                                    namespace), value);
+                        }
+                        return true;
+                    case XMLStreamReader.END_ELEMENT:
+                        nodes.add(nodeId, status, reader.getQName());
+                        hash = Fingerprint.update(hash, status);
+                        return true;
+                    case XMLStreamReader.CHARACTERS:
+                    case XMLStreamReader.COMMENT:
+                        final String text = reader.getText();
+                        nodes.add(nodeId, status, Fingerprint.update(Fingerprint.EMPTY, text),
+                                status == XMLStreamReader.COMMENT ? text : null);
+                        hash = Fingerprint.update(Fingerprint.update(hash, status), text);
+                        return true;
+                    case XMLStreamReader.PROCESSING_INSTRUCTION:
+                        final String value = reader.getPITarget() + " " + reader.getPIData();
+                        nodes.add(nodeId, status, Fingerprint.update(Fingerprint.EMPTY, value), null);
+                        hash = Fingerprint.update(Fingerprint.update(hash, status), value);
+                        return true;
+                    case XMLStreamReader.CDATA:
+                    case XMLStreamReader.SPACE:
+                    case XMLStreamReader.ENTITY_REFERENCE:
+                        nodes.skipped();
+                        break;
+                }
             }
+            return false;
+        }
+
+        DiffNodes getNodes() {
+            return nodes;
+        }
+
+        long getFingerprint() {
+            return hash;
+        }
+    }
+
+    /**
+     * The changes of a diff, collected from one or more edit scripts. Nodes inserted before or
+     * appended to the same node are merged into one change, as a patch applies a single one.
+     */
+    protected static final class Changes {
+
+        private final List<Difference> changes = new ArrayList<>();
+        private final Map<NodeId, Difference.Insert> inserts = new TreeMap<>();
+        private final Map<NodeId, Difference.Append> appends = new HashMap<>();
+        private int startA = 0;
+        private int startB = 0;
+
+        /**
+         * Set the first nodes the scripts added next may change. The nodes before them were
+         * diffed by the scripts added before, so the changes are not moved across them.
+         */
+        void setStart(final int a, final int b) {
+            this.startA = a;
+            this.startB = b;
+        }
+
+        void add(final Difference change) {
+            changes.add(change);
+        }
+
+        Difference.Insert getInsert(final NodeId reference, final DiffSource otherDoc) {
+            return inserts.computeIfAbsent(reference, ref -> new Difference.Insert(ref, otherDoc));
+        }
+
+        Difference.Append getAppend(final NodeId reference, final DiffSource otherDoc) {
+            return appends.computeIfAbsent(reference, ref -> {
+                final Difference.Append append = new Difference.Append(ref, otherDoc);
+                changes.add(append);
+                return append;
+            });
+        }
+
+        /**
+         * @return the changes, followed by the inserts in document order
+         */
+        List<Difference> toList() {
+            final List<Difference> list = new ArrayList<>(changes.size() + inserts.size());
+            list.addAll(changes);
+            list.addAll(inserts.values());
+            return list;
         }
-        DiffNode[] array = new DiffNode[nodes.size()];
-        return nodes.toArray(array);
     }
 
-}
\ No newline at end of file
+    /**
+     * Reads the content of the nodes of a document again, by the indexes {@link NodeStream}
+     * gave them, to compare the nodes an edit script matched. The nodes have to be read in
+     * order.
+     */
+    static final class NodeValues implements AutoCloseable {
+
+        private final ExtendedXMLStreamReader reader;
+        /** index of the first node of the event read last */
+        private int start;
+        private int count = 0;
+        private int[] types = new int[8];
+        private String[] values = new String[8];
+
+        /**
+         * @param reader the reader, positioned before the node at the given index
+         * @param first the index of the first node read
+         */
+        NodeValues(final ExtendedXMLStreamReader reader, final int first) {
+            this.reader = reader;
+            this.start = first;
+        }
+
+        /**
+         * @return true if node i of this document and node j of the other one have the same
+         * type and content. Start and end tags are only compared by type, as they are matched
+         * by name.
+         */
+        boolean matches(final int i, final NodeValues other, final int j) throws XMLStreamException {
+            if (!advance(i) || !other.advance(j)) {
+                return false;
+            }
+            final int k = i - start;
+            final int l = j - other.start;
+            return types[k] == other.types[l] && Objects.equals(values[k], other.values[l]);
+        }
+
+        private boolean advance(final int i) throws XMLStreamException {
+            while (i >= start + count) {
+                start += count;
+                count = 0;
+                if (!read()) {
+                    return false;
+                }
+            }
+            return i >= start;
+        }
+
+        private boolean read() throws XMLStreamException {
+            while (reader.hasNext()) {
+                final int status = reader.next();
+                switch (status) {
+                    case XMLStreamReader.START_ELEMENT:
+                        add(status, null);
+                        for (int i = 0; i < reader.getAttributeCount(); i++) {
+                            add(XMLStreamReader.ATTRIBUTE, reader.getAttributeNamespace(i) + ' ' +
+                                    reader.getAttributeQName(i).getStringValue() + '=' + reader.getAttributeValue(i));
+                        }
+                        return true;
+                    case XMLStreamReader.END_ELEMENT:
+                        add(status, null);
+                        return true;
+                    case XMLStreamReader.CHARACTERS:
+                    case XMLStreamReader.COMMENT:
+                        add(status, reader.getText());
+                        return true;
+                    case XMLStreamReader.PROCESSING_INSTRUCTION:
+                        add(status, reader.getPITarget() + " " + reader.getPIData());
+                        return true;
+                }
+            }
+            return false;
+        }
+
+        private void add(final int type, final String value) {
+            if (count == types.length) {
+                types = Arrays.copyOf(types, count * 2);
+                values = Arrays.copyOf(values, count * 2);
+            }
+            types[count] = type;
+            values[count++] = value;
+        }
+
+        @Override
+        public void close() throws XMLStreamException {
+            reader.close();
+        }
+    }
+}
@@ -0,0 +1,297 @@
+/**
+ * Versioning Module for eXist-db XQuery
+ * Copyright (C) 2008 eXist-db <exit-open@lists.sourceforge.net>
+ * http://exist-db.org
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 1, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.exist.versioning;
+
+import bmsi.util.Diff;
+import org.exist.storage.DBBroker;
+
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Diff for very large documents. Both documents are read in lockstep and their nodes are
+ * dropped as soon as they match, so matching content is never held in memory. At the first
+ * mismatch, a window of a bounded number of nodes is read from each document and diffed. The
+ * changes up to the last start tag the sequence diff matched are kept, the nodes before it are
+ * dropped and the next window starts from there. Once a window ends with a run of matching
+ * nodes, the documents are read in lockstep again.
+ *
+ * The sequence diff therefore never sees more than a window of nodes of each document, however
+ * large the documents are and wherever they differ. The changes are written in the same format
+ * as by {@link StandardDiff}. Changes spanning more than a window may be described less
+ * compactly than by a diff of the whole document, and elements are only found to be moved
+ * within a window.
+ */
+public class StreamingDiff extends StandardDiff {
+
+    public final static int DEFAULT_WINDOW = 50000;
+
+    /** number of matched nodes kept before a window, and needed at its end to read in lockstep again */
+    private final static int CONTEXT = 64;
+
+    private final DBBroker broker;
+    private final int window;
+
+    public StreamingDiff(final DBBroker broker) {
+        this(broker, DEFAULT_WINDOW);
+    }
+
+    /**
+     * @param broker the broker to use
+     * @param window the maximum number of nodes of each document the sequence diff compares at once
+     */
+    public StreamingDiff(final DBBroker broker, final int window) {
+        super(broker);
+        this.broker = broker;
+        this.window = Math.max(window, CONTEXT * 2);
+    }
+
+    /**
+     * Diff two documents. Unlike {@link StandardDiff}, both documents are always read, as
+     * they are read in lockstep: the given fingerprint only prevents the changes from being
+     * recorded.
+     */
+    @Override
+    public boolean diffIfChanged(final DiffSource docA, final DiffSource docB, final String unchangedFingerprint)
+            throws DiffException {
+        try (final NodeValues valuesA = new NodeValues(docA.newReader(broker), 0);
+                final NodeValues valuesB = new NodeValues(docB.newReader(broker), 0)) {
+            final DiffNodes.Names names = new DiffNodes.Names();
+            final NodeStream streamA = new NodeStream(docA.newReader(broker), newNodes(names));
+            final NodeStream streamB = new NodeStream(docB.newReader(broker), newNodes(names));
+            final DiffNodes nodesA = streamA.getNodes();
+            final DiffNodes nodesB = streamB.getNodes();
+            final Changes changes = new Changes();
+            int changedNodes = 0;
+
+            // the nodes before a and b are diffed. The nodes from there up to matchedA and
+            // matchedB are matched, but not taken yet: the last node of a document must not be
+            // taken while the other one continues, as the nodes which follow could not be
+            // inserted before a node of the source document.
+            int a = 0;
+            int b = 0;
+            int matchedA = 0;
+            int matchedB = 0;
+            boolean moreA = true;
+            boolean moreB = true;
+            boolean lockstep = true;
+            while (true) {
+                while (lockstep && moreA && moreB) {
+                    moreA = streamA.next();
+                    moreB = streamB.next();
+                    if (!moreA || !moreB) {
+                        break;
+                    }
+                    a = matchedA;
+                    b = matchedB;
+                    if (!matches(nodesA, a, nodesB, b, valuesA, valuesB)) {
+                        break;
+                    }
+                    matchedA = nodesA.size();
+                    matchedB = nodesB.size();
+                    nodesA.trim(a - CONTEXT);
+                    nodesB.trim(b - CONTEXT);
+                }
+
+                nodesA.trim(a - CONTEXT);
+                nodesB.trim(b - CONTEXT);
+                while (moreA && nodesA.size() < a + window) {
+                    moreA = streamA.next();
+                }
+                while (moreB && nodesB.size() < b + window) {
+                    moreB = streamB.next();
+                }
+                final int windowA = nodesA.size();
+                final int windowB = nodesB.size();
+                final Diff.change script = SequenceDiff.diff(nodesA::getCode, a, windowA, nodesB::getCode, b,
+                        windowB);
+                final boolean last = !moreA && !moreB;
+
+                // the windows end in the same nodes: read in lockstep again
+                final boolean resync = !last && matchedTail(script, windowA - a) >= CONTEXT;
+                final int cutA;
+                if (last) {
+                    cutA = windowA;
+                } else if (resync) {
+                    cutA = windowA - 1;
+                } else {
+                    cutA = anchor(script, nodesA, a, windowA, windowB - b);
+                }
+                final List<int[]> chunk = new ArrayList<>();
+                int cutB = b + cut(script, cutA - a, last, chunk);
+                if (cutA == a && cutB == b) {
+                    // the only node left of the source document matches the first one of the
+                    // window of the other: insert that node before it instead
+                    chunk.add(new int[] { 0, 0, 0, 1 });
+                    cutB++;
+                }
+
+                final List<int[]> verified = new ArrayList<>();
+                for (Diff.change next = verify(toScript(chunk, 0, 0), valuesA, a, cutA, valuesB, b, cutB);
+                        next != null; next = next.link) {
+                    verified.add(new int[] { next.line0, next.line1, next.deleted, next.inserted });
+                    changedNodes += next.deleted + next.inserted;
+                }
+                changes.setStart(a, b);
+                addChanges(toScript(verified, a, b), docA, docB, nodesA, nodesB, changes);
+
+                if (last) {
+                    break;
+                }
+                // the matched node left before the cut has to be verified before it is taken
+                lockstep = resync && valuesA.matches(cutA, valuesB, cutB);
+                a = cutA;
+                b = cutB;
+                matchedA = lockstep ? windowA : a;
+                matchedB = lockstep ? windowB : b;
+            }
+
+            setFingerprint(streamB.getFingerprint());
+            if (getFingerprint().equals(unchangedFingerprint)) {
+                setChanges(new Changes(), 0, nodesB.size());
+                close();
+                return false;
+            }
+            setChanges(changes, changedNodes, nodesB.size());
+            close();
+            return true;
+        } catch (final XMLStreamException | IOException e) {
+            throw new DiffException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * The nodes of the source document are not kept, they cannot be stored as skeleton.
+     *
+     * @return null
+     */
+    @Override
+    public DiffNodes getSourceNodes() {
+        return null;
+    }
+
+    @Override
+    public boolean isSourceCached() {
+        return false;
+    }
+
+    /**
+     * @return true if the nodes read last, from a and from b, are equal in both documents
+     */
+    private static boolean matches(final DiffNodes nodesA, final int a, final DiffNodes nodesB, final int b,
+            final NodeValues valuesA, final NodeValues valuesB) throws XMLStreamException {
+        if (nodesA.size() - a != nodesB.size() - b) {
+            return false;
+        }
+        for (int i = a, j = b; i < nodesA.size(); i++, j++) {
+            if (nodesA.getCode(i) != nodesB.getCode(j)) {
+                return false;
+            }
+        }
+        for (int i = a, j = b; i < nodesA.size(); i++, j++) {
+            if (!valuesA.matches(i, valuesB, j)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the number of nodes matched after the last change of a script
+     */
+    private static int matchedTail(final Diff.change script, final int length) {
+        Diff.change last = null;
+        for (Diff.change next = script; next != null; next = next.link) {
+            last = next;
+        }
+        return last == null ? length : length - last.line0 - last.deleted;
+    }
+
+    /**
+     * Nodes near the end of a window may be reported as changed because their counterpart lies
+     * beyond the other window. Find the last start tag matched in the first three quarters of
+     * both windows to cut them at.
+     *
+     * @return the index of the start tag in the source document, or the last index of its
+     * window if no start tag was matched
+     */
+    private static int anchor(final Diff.change script, final DiffNodes nodesA, final int a, final int windowA,
+            final int lengthB) {
+        final int limitA = (windowA - a) * 3 / 4;
+        final int limitB = lengthB * 3 / 4;
+        int anchor = -1;
+        int i = 0;
+        int j = 0;
+        for (Diff.change next = script; i < limitA && j < limitB; next = next.link) {
+            final int matchEnd = next == null ? windowA - a : next.line0;
+            for (; i < matchEnd && i < limitA && j < limitB; i++, j++) {
+                if (i > 0 && nodesA.getType(a + i) == XMLStreamReader.START_ELEMENT) {
+                    anchor = i;
+                }
+            }
+            if (next == null) {
+                break;
+            }
+            i = next.line0 + next.deleted;
+            j = next.line1 + next.inserted;
+        }
+        return anchor < 0 ? windowA - 1 : a + anchor;
+    }
+
+    /**
+     * Cut a script at the given node of the source document, splitting the change it falls
+     * into. Any cut is a valid diff of the ranges before it, if not always the shortest.
+     *
+     * @param script the script, relative to the windows
+     * @param cutA the index to cut at, relative to the window of the source document
+     * @param all true to take the whole script
+     * @param chunk the list to add the changes before the cut to
+     * @return the index to cut the modified document at, relative to its window
+     */
+    private static int cut(final Diff.change script, final int cutA, final boolean all, final List<int[]> chunk) {
+        int i = 0;
+        int j = 0;
+        for (Diff.change next = script; next != null; next = next.link) {
+            if (!all && cutA <= next.line0) {
+                return j + cutA - i;
+            }
+            if (!all && cutA < next.line0 + next.deleted) {
+                chunk.add(new int[] { next.line0, next.line1, cutA - next.line0, next.inserted });
+                return next.line1 + next.inserted;
+            }
+            chunk.add(new int[] { next.line0, next.line1, next.deleted, next.inserted });
+            i = next.line0 + next.deleted;
+            j = next.line1 + next.inserted;
+        }
+        return j + cutA - i;
+    }
+
+    private static Diff.change toScript(final List<int[]> changes, final int a, final int b) {
+        Diff.change script = null;
+        for (int i = changes.size() - 1; i > -1; i--) {
+            final int[] change = changes.get(i);
+            script = new Diff.change(a + change[0], b + change[1], change[2], change[3], script);
+        }
+        return script;
+    }
+}
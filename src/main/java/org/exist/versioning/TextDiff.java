@@ -0,0 +1,193 @@
+/**
+ * Versioning Module for eXist-db XQuery
+ * Copyright (C) 2008 eXist-db <exit-open@lists.sourceforge.net>
+ * http://exist-db.org
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 1, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.exist.versioning;
+
+import org.exist.numbering.NodeId;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Diff of the text of two versions of a text node, as ranges of the old text to replace.
+ *
+ * The common prefix and suffix are trimmed first. If the remaining middle is long, it is
+ * split into words and whitespace, and the tokens are matched in linear time: tokens which
+ * occur exactly once in both texts are anchors, matched in order, and each match is
+ * extended to the equal tokens next to it. Every run of unmatched tokens becomes a range,
+ * so a few scattered typos in a long paragraph become a few short ranges. Text moved to an
+ * earlier position is not matched, but replaced.
+ */
+public final class TextDiff {
+
+    /** middles shorter than this are replaced as a whole */
+    private final static int MIN_WORD_DIFF = 64;
+
+    private TextDiff() {
+    }
+
+    /**
+     * @param reference the node id of the text node in the source document
+     * @param oldText the text of the source node
+     * @param newText the text of the modified node
+     * @return the edit, or null if it would not be shorter than the new text
+     */
+    public static Difference.TextEdit diff(final NodeId reference, final String oldText, final String newText) {
+        final int min = Math.min(oldText.length(), newText.length());
+        int prefix = 0;
+        while (prefix < min && oldText.charAt(prefix) == newText.charAt(prefix)) {
+            prefix++;
+        }
+        if (prefix > 0 && Character.isHighSurrogate(oldText.charAt(prefix - 1))) {
+            prefix--;
+        }
+        int suffix = 0;
+        while (suffix < min - prefix &&
+                oldText.charAt(oldText.length() - 1 - suffix) == newText.charAt(newText.length() - 1 - suffix)) {
+            suffix++;
+        }
+        if (suffix > 0 && Character.isLowSurrogate(oldText.charAt(oldText.length() - suffix))) {
+            suffix--;
+        }
+        final String oldMiddle = oldText.substring(prefix, oldText.length() - suffix);
+        final String newMiddle = newText.substring(prefix, newText.length() - suffix);
+
+        final List<int[]> ranges = new ArrayList<>();
+        final List<String> replacements = new ArrayList<>();
+        if (oldMiddle.length() < MIN_WORD_DIFF || newMiddle.length() < MIN_WORD_DIFF) {
+            ranges.add(new int[] { prefix, oldMiddle.length() });
+            replacements.add(newMiddle);
+        } else {
+            final String[] oldTokens = tokenize(oldMiddle);
+            final String[] newTokens = tokenize(newMiddle);
+            final int[] oldOffsets = offsets(oldTokens);
+            final int[] newOffsets = offsets(newTokens);
+            final int[] matches = match(oldTokens, newTokens);
+            // the end of both token lists closes the last run of unmatched tokens
+            int i = 0;
+            int j = 0;
+            for (int k = 0; k <= newTokens.length; k++) {
+                if (k < newTokens.length && matches[k] < 0) {
+                    continue;
+                }
+                final int m = k < newTokens.length ? matches[k] : oldTokens.length;
+                if (m > i || k > j) {
+                    ranges.add(new int[] { prefix + oldOffsets[i], oldOffsets[m] - oldOffsets[i] });
+                    replacements.add(newMiddle.substring(newOffsets[j], newOffsets[k]));
+                }
+                i = m + 1;
+                j = k + 1;
+            }
+        }
+
+        int size = 0;
+        for (final String replacement : replacements) {
+            size += replacement.length();
+        }
+        if (size * 2 > newText.length()) {
+            return null;
+        }
+        final int[] offsets = new int[ranges.size()];
+        final int[] lengths = new int[ranges.size()];
+        for (int i = 0; i < offsets.length; i++) {
+            offsets[i] = ranges.get(i)[0];
+            lengths[i] = ranges.get(i)[1];
+        }
+        return new Difference.TextEdit(reference, offsets, lengths, replacements.toArray(new String[0]));
+    }
+
+    /**
+     * Match the tokens of two texts in order.
+     *
+     * @return for each new token, the index of the old token it is matched with, or -1
+     */
+    static int[] match(final String[] oldTokens, final String[] newTokens) {
+        // for each token, the index of its only occurrence in either text, or -2 if it occurs more often
+        final Map<String, int[]> occurrences = new HashMap<>();
+        for (int i = 0; i < oldTokens.length; i++) {
+            occurrences.merge(oldTokens[i], new int[] { i, -1 }, (o, n) -> new int[] { -2, o[1] });
+        }
+        for (int j = 0; j < newTokens.length; j++) {
+            final int[] occurrence = occurrences.get(newTokens[j]);
+            if (occurrence != null) {
+                occurrence[1] = occurrence[1] == -1 ? j : -2;
+            }
+        }
+
+        final int[] matches = new int[newTokens.length];
+        final boolean[] matched = new boolean[oldTokens.length];
+        Arrays.fill(matches, -1);
+        // anchors: unique tokens, taken while they are in the same order in both texts
+        int last = -1;
+        for (int j = 0; j < newTokens.length; j++) {
+            final int[] occurrence = occurrences.get(newTokens[j]);
+            if (occurrence != null && occurrence[0] > last && occurrence[1] == j) {
+                matches[j] = occurrence[0];
+                matched[occurrence[0]] = true;
+                last = occurrence[0];
+            }
+        }
+        // extend each match to the equal tokens following and preceding it
+        for (int j = 0; j < newTokens.length - 1; j++) {
+            final int i = matches[j] + 1;
+            if (i > 0 && matches[j + 1] < 0 && i < oldTokens.length && !matched[i] &&
+                    oldTokens[i].equals(newTokens[j + 1])) {
+                matches[j + 1] = i;
+                matched[i] = true;
+            }
+        }
+        for (int j = newTokens.length - 1; j > 0; j--) {
+            final int i = matches[j] - 1;
+            if (i > -1 && matches[j - 1] < 0 && !matched[i] && oldTokens[i].equals(newTokens[j - 1])) {
+                matches[j - 1] = i;
+                matched[i] = true;
+            }
+        }
+        return matches;
+    }
+    /**
+     * Split a text into alternating runs of whitespace and other characters.
+     */
+    private static String[] tokenize(final String text) {
+        final List<String> tokens = new ArrayList<>();
+        int start = 0;
+        for (int i = 1; i <= text.length(); i++) {
+            if (i == text.length() ||
+                    Character.isWhitespace(text.charAt(i)) != Character.isWhitespace(text.charAt(i - 1))) {
+                tokens.add(text.substring(start, i));
+                start = i;
+            }
+        }
+        return tokens.toArray(new String[0]);
+    }
+
+    /**
+     * @return the offset of each token in the text, followed by the length of the text
+     */
+    private static int[] offsets(final String[] tokens) {
+        final int[] offsets = new int[tokens.length + 1];
+        for (int i = 0; i < tokens.length; i++) {
+            offsets[i + 1] = offsets[i] + tokens[i].length();
+        }
+        return offsets;
+    }
+}
@@ -0,0 +1,345 @@
+/**
+ * Versioning Module for eXist-db XQuery
+ * Copyright (C) 2008 eXist-db <exit-open@lists.sourceforge.net>
+ * http://exist-db.org
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 1, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.exist.versioning;
+
+import bmsi.util.Diff;
+import org.exist.storage.DBBroker;
+
+import javax.xml.stream.XMLStreamReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Diff which compares documents subtree by subtree. A hash is computed bottom-up for every
+ * subtree; the children of two matching elements are aligned by their hashes, so identical
+ * subtrees are matched as a whole and never compared node by node. Only subtrees whose
+ * hashes differ are descended into, and a sequence diff of their nodes is computed where
+ * the children cannot be paired up.
+ *
+ * The changes are written in the same format as by {@link StandardDiff}, but a change
+ * inside a large document costs about as much as the size of the changed subtrees.
+ *
+ * If {@link #setParallel parallel}, the subtrees at a given depth, e.g. the records of a
+ * large container element, are partitions which are diffed concurrently on a
+ * {@link ForkJoinPool}. Partitions which changed are paired by position or, if
+ * {@link #setIdentityAttributes identity attributes} are configured, by their identity. The edit scripts of the
+ * partitions are joined in document order; the changes are then built on the calling
+ * thread, as only that thread may use the broker.
+ */
+public class TreeDiff extends StandardDiff {
+
+    public final static int DEFAULT_PARTITION_DEPTH = 1;
+
+    /** pairs of partitions smaller than this number of nodes are diffed on the calling thread */
+    private final static int MIN_PARTITION_SIZE = 512;
+
+    private ForkJoinPool forkJoinPool = null;
+    private int partitionDepth = DEFAULT_PARTITION_DEPTH;
+
+    public TreeDiff(final DBBroker broker) {
+        super(broker);
+    }
+
+    /**
+     * Diff the subtrees at the given depth concurrently.
+     *
+     * @param forkJoinPool the pool to run the diffs of the partitions on
+     * @param partitionDepth the depth of the partitions, 1 for the children of the root element
+     */
+    public void setParallel(final ForkJoinPool forkJoinPool, final int partitionDepth) {
+        this.forkJoinPool = forkJoinPool;
+        this.partitionDepth = Math.max(partitionDepth, 1);
+    }
+
+    @Override
+    protected Diff.change computeScript(final DiffSource docA, final DiffNodes nodesA, final DiffSource docB,
+            final DiffNodes nodesB) {
+        final Tree treeA = new Tree(nodesA, docA);
+        final Tree treeB = new Tree(nodesB, docB);
+        final List<Object> parts = new ArrayList<>();
+        diffRange(treeA, 0, nodesA.size(), treeB, 0, nodesB.size(), 0, parts);
+        final List<int[]> changes = new ArrayList<>();
+        join(parts, changes);
+
+        Diff.change script = null;
+        for (int i = changes.size() - 1; i > -1; i--) {
+            final int[] change = changes.get(i);
+            script = new Diff.change(change[0], change[1], change[2], change[3], script);
+        }
+        return script;
+    }
+
+    /**
+     * Collect the changes in document order, waiting for the partitions diffed concurrently.
+     *
+     * @param parts changes as int[] { line0, line1, deleted, inserted } and tasks returning
+     *              further parts
+     * @param changes the list to add the changes to
+     */
+    @SuppressWarnings("unchecked")
+    private static void join(final List<Object> parts, final List<int[]> changes) {
+        for (final Object part : parts) {
+            if (part instanceof ForkJoinTask) {
+                join(((ForkJoinTask<List<Object>>) part).join(), changes);
+            } else {
+                changes.add((int[]) part);
+            }
+        }
+    }
+
+    /**
+     * Align the sibling subtrees in a range of both documents and descend into the pairs of
+     * elements which differ.
+     */
+    private void diffRange(final Tree treeA, final int aFrom, final int aTo, final Tree treeB, final int bFrom,
+            final int bTo, final int depth, final List<Object> out) {
+        final int[] unitsA = treeA.units(aFrom, aTo);
+        final int[] unitsB = treeB.units(bFrom, bTo);
+        final boolean partition = forkJoinPool != null && depth == partitionDepth;
+        final Map<Unit, Integer> codes = new HashMap<>();
+        final Diff.change script = SequenceDiff.diff(treeA.codes(unitsA, codes), treeB.codes(unitsB, codes));
+        for (Diff.change next = script; next != null; next = next.link) {
+            if (next.deleted == next.inserted) {
+                // the same number of subtrees was replaced: compare them pairwise
+                for (int k = 0; k < next.deleted; k++) {
+                    diffPair(treeA, unitsA[next.line0 + k], treeB, unitsB[next.line1 + k], depth, partition, out);
+                }
+            } else if (partition && !getIdentityAttributes().isEmpty()) {
+                diffByKey(treeA, unitsA, next.line0, next.line0 + next.deleted, aTo, treeB, unitsB, next.line1,
+                        next.line1 + next.inserted, bTo, depth, out);
+            } else {
+                diffNodes(treeA, position(unitsA, next.line0, aTo), position(unitsA, next.line0 + next.deleted, aTo),
+                        treeB, position(unitsB, next.line1, bTo), position(unitsB, next.line1 + next.inserted, bTo),
+                        out);
+            }
+        }
+    }
+
+    /**
+     * Compare two subtrees, concurrently if they are partitions.
+     */
+    private void diffPair(final Tree treeA, final int a, final Tree treeB, final int b, final int depth,
+            final boolean fork, final List<Object> out) {
+        if (fork && treeA.end[a] - a + treeB.end[b] - b > MIN_PARTITION_SIZE) {
+            out.add(forkJoinPool.submit(() -> {
+                final List<Object> part = new ArrayList<>();
+                diffPair(treeA, a, treeB, b, depth, false, part);
+                return part;
+            }));
+        } else if (treeA.nodes.isSameElement(a, treeB.nodes, b)) {
+            // same element: compare attributes and children, which follow the start tag
+            diffRange(treeA, a + 1, treeA.end[a], treeB, b + 1, treeB.end[b], depth + 1, out);
+        } else {
+            diffNodes(treeA, a, treeA.end[a] + 1, treeB, b, treeB.end[b] + 1, out);
+        }
+    }
+
+    /**
+     * Pair the subtrees of a changed range which have the same identity, in document order.
+     * The subtrees in between the pairs are diffed as sequences.
+     */
+    private void diffByKey(final Tree treeA, final int[] unitsA, final int fromA, final int toA, final int aTo,
+            final Tree treeB, final int[] unitsB, final int fromB, final int toB, final int bTo, final int depth,
+            final List<Object> out) {
+        final Map<String, Integer> keysB = new HashMap<>();
+        for (int k = fromB; k < toB; k++) {
+            final String key = getIdentity(treeB.source, treeB.nodes, unitsB[k], getIdentityAttributes());
+            if (key != null) {
+                keysB.putIfAbsent(key, k);
+            }
+        }
+        int nextA = fromA;
+        int nextB = fromB;
+        for (int k = fromA; k < toA && !keysB.isEmpty(); k++) {
+            final String key = getIdentity(treeA.source, treeA.nodes, unitsA[k], getIdentityAttributes());
+            final Integer m = key == null ? null : keysB.get(key);
+            if (m == null || m < nextB) {
+                continue;
+            }
+            diffNodes(treeA, position(unitsA, nextA, aTo), unitsA[k], treeB, position(unitsB, nextB, bTo), unitsB[m],
+                    out);
+            diffPair(treeA, unitsA[k], treeB, unitsB[m], depth, true, out);
+            nextA = k + 1;
+            nextB = m + 1;
+        }
+        diffNodes(treeA, position(unitsA, nextA, aTo), position(unitsA, toA, aTo), treeB,
+                position(unitsB, nextB, bTo), position(unitsB, toB, bTo), out);
+    }
+
+    /**
+     * @return the index of the first node of a unit, or the end of the range after the last unit
+     */
+    private static int position(final int[] units, final int unit, final int end) {
+        return unit < units.length ? units[unit] : end;
+    }
+
+    /**
+     * Compute a sequence diff of the nodes of two ranges, as {@link StandardDiff} does for
+     * the whole document.
+     */
+    private void diffNodes(final Tree treeA, final int aFrom, final int aTo, final Tree treeB, final int bFrom,
+            final int bTo, final List<Object> out) {
+        if (aFrom == aTo || bFrom == bTo) {
+            if (aFrom < aTo || bFrom < bTo) {
+                out.add(new int[] { aFrom, bFrom, aTo - aFrom, bTo - bFrom });
+            }
+            return;
+        }
+        final Diff.change script = SequenceDiff.diff(treeA.nodes::getCode, aFrom, aTo, treeB.nodes::getCode, bFrom,
+                bTo);
+        for (Diff.change next = script; next != null; next = next.link) {
+            out.add(new int[] { aFrom + next.line0, bFrom + next.line1, next.deleted, next.inserted });
+        }
+    }
+
+    /**
+     * The nodes of a document with the extent and hash of the subtree starting at each node.
+     */
+    private final static class Tree {
+
+        private final DiffNodes nodes;
+        private final DiffSource source;
+        /** index of the end tag of an element, or of the node itself for other nodes */
+        private final int[] end;
+        private final long[] hash;
+
+        private Tree(final DiffNodes nodes, final DiffSource source) {
+            this.nodes = nodes;
+            this.source = source;
+            this.end = new int[nodes.size()];
+            this.hash = new long[nodes.size()];
+
+            int[] open = new int[64];
+            long[] hashes = new long[64];
+            int depth = 0;
+            for (int i = 0; i < nodes.size(); i++) {
+                switch (nodes.getType(i)) {
+                    case XMLStreamReader.START_ELEMENT:
+                        if (depth == open.length) {
+                            open = grow(open);
+                            hashes = grow(hashes);
+                        }
+                        open[depth] = i;
+                        hashes[depth++] = nodes.getHash(i);
+                        break;
+                    case XMLStreamReader.END_ELEMENT:
+                        final int start = open[--depth];
+                        end[start] = i;
+                        end[i] = i;
+                        hash[start] = Fingerprint.update(hashes[depth], XMLStreamReader.END_ELEMENT);
+                        if (depth > 0) {
+                            hashes[depth - 1] = combine(hashes[depth - 1], hash[start]);
+                        }
+                        break;
+                    default:
+                        end[i] = i;
+                        hash[i] = nodes.getHash(i);
+                        if (depth > 0) {
+                            hashes[depth - 1] = combine(hashes[depth - 1], hash[i]);
+                        }
+                        break;
+                }
+            }
+        }
+
+        /**
+         * @return the indexes of the subtrees starting in a range
+         */
+        private int[] units(final int from, final int to) {
+            int count = 0;
+            for (int i = from; i < to; i = end[i] + 1) {
+                count++;
+            }
+            final int[] units = new int[count];
+            count = 0;
+            for (int i = from; i < to; i = end[i] + 1) {
+                units[count++] = i;
+            }
+            return units;
+        }
+
+        /**
+         * @param units the subtrees to compare
+         * @param codes the codes of the subtrees of both ranges compared
+         * @return the codes of the subtrees, equal for subtrees with equal hash and length
+         */
+        private int[] codes(final int[] units, final Map<Unit, Integer> codes) {
+            final int[] keys = new int[units.length];
+            for (int i = 0; i < units.length; i++) {
+                final Unit unit = new Unit(hash[units[i]], end[units[i]] - units[i]);
+                Integer code = codes.get(unit);
+                if (code == null) {
+                    code = codes.size();
+                    codes.put(unit, code);
+                }
+                keys[i] = code;
+            }
+            return keys;
+        }
+
+        private static long combine(final long hash, final long child) {
+            return Fingerprint.update(Fingerprint.update(hash, (int) child), (int) (child >>> 32));
+        }
+
+        private static int[] grow(final int[] array) {
+            final int[] grown = new int[array.length * 2];
+            System.arraycopy(array, 0, grown, 0, array.length);
+            return grown;
+        }
+
+        private static long[] grow(final long[] array) {
+            final long[] grown = new long[array.length * 2];
+            System.arraycopy(array, 0, grown, 0, array.length);
+            return grown;
+        }
+    }
+
+    /**
+     * A subtree as compared by the sequence diff: equal if hash and number of nodes match.
+     */
+    private final static class Unit {
+
+        private final long hash;
+        private final int length;
+
+        private Unit(final long hash, final int length) {
+            this.hash = hash;
+            this.length = length;
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (!(obj instanceof Unit)) {
+                return false;
+            }
+            final Unit other = (Unit) obj;
+            return hash == other.hash && length == other.length;
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) (hash ^ (hash >>> 32));
+        }
+    }
+}
@@ -0,0 +1,411 @@
+/**
+ * Versioning Module for eXist-db XQuery
+ * Copyright (C) 2008 eXist-db <exit-open@lists.sourceforge.net>
+ * http://exist-db.org
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 1, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.exist.versioning;
+
+import org.exist.EXistException;
+import org.exist.collections.Collection;
+import org.exist.collections.IndexInfo;
+import org.exist.collections.triggers.TriggerException;
+import org.exist.dom.INodeHandle;
+import org.exist.dom.QName;
+import org.exist.security.PermissionDeniedException;
+import org.exist.storage.DBBroker;
+import org.exist.storage.txn.Txn;
+import org.exist.util.LockException;
+import org.exist.util.serializer.AttrList;
+import org.exist.util.serializer.Receiver;
+import org.exist.xmldb.XmldbURI;
+import org.w3c.dom.Document;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.DTDHandler;
+import org.xml.sax.EntityResolver;
+import org.xml.sax.ErrorHandler;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXNotRecognizedException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.ext.LexicalHandler;
+import org.xml.sax.helpers.AttributesImpl;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * A <code>v:version</code> document to be stored in the versions collection. The properties and
+ * the other small elements written to it are recorded as events. The diff is not copied: the
+ * {@link StandardDiff} writes it again whenever the document is read. The document is passed
+ * to the collection as {@link XMLReader}, which eXist reads once for validation and once for
+ * storing, so the edit script is neither serialized, parsed nor kept in memory.
+ */
+final class VersionDocument implements Receiver<INodeHandle<?>> {
+
+    private final static String LEXICAL_HANDLER = "http://xml.org/sax/properties/lexical-handler";
+
+    private final List<Event> events = new ArrayList<>();
+
+    /**
+     * @param properties the version properties
+     */
+    VersionDocument(final Properties properties) throws SAXException {
+        VersioningTrigger.startVersion(this, properties);
+    }
+
+    /**
+     * Write the XML diff at the current position.
+     *
+     * @param diff the diff, which must not be closed before the document was stored
+     */
+    void diff(final StandardDiff diff) {
+        events.add(receiver -> {
+            try {
+                diff.diff2XML(receiver);
+            } catch (final DiffException e) {
+                throw new SAXException(e.getMessage(), e);
+            }
+        });
+    }
+
+    /**
+     * Close the version element and store the document.
+     *
+     * @param broker the broker to use
+     * @param transaction the current transaction
+     * @param vCollection the versions collection
+     * @param uri the name of the version document
+     */
+    void store(final DBBroker broker, final Txn transaction, final Collection vCollection, final XmldbURI uri)
+            throws IOException, SAXException, EXistException, PermissionDeniedException, LockException,
+            TriggerException {
+        endElement(VersioningTrigger.ELEMENT_VERSION);
+        endPrefixMapping(StandardDiff.PREFIX);
+        final Reader reader = new Reader();
+        final InputSource source = new InputSource();
+        final IndexInfo info = vCollection.validateXMLResource(transaction, broker, uri, source, reader);
+        vCollection.store(transaction, broker, info, source, reader);
+    }
+
+    @Override
+    public void startDocument() {
+    }
+
+    @Override
+    public void endDocument() {
+    }
+
+    @Override
+    public void startPrefixMapping(final String prefix, final String namespaceURI) {
+        events.add(receiver -> receiver.startPrefixMapping(prefix, namespaceURI));
+    }
+
+    @Override
+    public void endPrefixMapping(final String prefix) {
+        events.add(receiver -> receiver.endPrefixMapping(prefix));
+    }
+
+    @Override
+    public void startElement(final QName qname, final AttrList attribs) {
+        events.add(receiver -> receiver.startElement(qname, attribs));
+    }
+
+    @Override
+    public void endElement(final QName qname) {
+        events.add(receiver -> receiver.endElement(qname));
+    }
+
+    @Override
+    public void characters(final CharSequence seq) {
+        final String text = seq.toString();
+        events.add(receiver -> receiver.characters(text));
+    }
+
+    @Override
+    public void attribute(final QName qname, final String value) {
+        events.add(receiver -> receiver.attribute(qname, value));
+    }
+
+    @Override
+    public void comment(final char[] ch, final int start, final int length) {
+        final char[] text = new char[length];
+        System.arraycopy(ch, start, text, 0, length);
+        events.add(receiver -> receiver.comment(text, 0, text.length));
+    }
+
+    @Override
+    public void cdataSection(final char[] ch, final int start, final int len) {
+        final char[] text = new char[len];
+        System.arraycopy(ch, start, text, 0, len);
+        events.add(receiver -> receiver.cdataSection(text, 0, text.length));
+    }
+
+    @Override
+    public void processingInstruction(final String target, final String data) {
+        events.add(receiver -> receiver.processingInstruction(target, data));
+    }
+
+    @Override
+    public void documentType(final String name, final String publicId, final String systemId) {
+    }
+
+    @Override
+    public void highlightText(final CharSequence seq) {
+        characters(seq);
+    }
+
+    @Override
+    public void setCurrentNode(final INodeHandle<?> node) {
+    }
+
+    @Override
+    public Document getDocument() {
+        return null;
+    }
+
+    @FunctionalInterface
+    private interface Event {
+        void writeTo(Receiver<INodeHandle<?>> receiver) throws SAXException;
+    }
+
+    /**
+     * Reports the events of the document to the handlers set by the collection.
+     */
+    private final class Reader implements XMLReader {
+
+        private ContentHandler contentHandler;
+        private LexicalHandler lexicalHandler;
+        private ErrorHandler errorHandler;
+        private EntityResolver entityResolver;
+        private DTDHandler dtdHandler;
+
+        @Override
+        public void parse(final InputSource input) throws SAXException {
+            final ToSAX receiver = new ToSAX(contentHandler, lexicalHandler);
+            contentHandler.startDocument();
+            for (final Event event : events) {
+                event.writeTo(receiver);
+            }
+            receiver.flush();
+            contentHandler.endDocument();
+        }
+
+        @Override
+        public void parse(final String systemId) throws SAXException {
+            parse(new InputSource(systemId));
+        }
+
+        @Override
+        public boolean getFeature(final String name) throws SAXNotRecognizedException {
+            if ("http://xml.org/sax/features/namespaces".equals(name)) {
+                return true;
+            } else if ("http://xml.org/sax/features/namespace-prefixes".equals(name)) {
+                return false;
+            }
+            throw new SAXNotRecognizedException(name);
+        }
+
+        @Override
+        public void setFeature(final String name, final boolean value) {
+        }
+
+        @Override
+        public Object getProperty(final String name) throws SAXNotRecognizedException {
+            if (LEXICAL_HANDLER.equals(name)) {
+                return lexicalHandler;
+            }
+            throw new SAXNotRecognizedException(name);
+        }
+
+        @Override
+        public void setProperty(final String name, final Object value) throws SAXNotRecognizedException {
+            if (!LEXICAL_HANDLER.equals(name)) {
+                throw new SAXNotRecognizedException(name);
+            }
+            lexicalHandler = (LexicalHandler) value;
+        }
+
+        @Override
+        public void setEntityResolver(final EntityResolver resolver) {
+            this.entityResolver = resolver;
+        }
+
+        @Override
+        public EntityResolver getEntityResolver() {
+            return entityResolver;
+        }
+
+        @Override
+        public void setDTDHandler(final DTDHandler handler) {
+            this.dtdHandler = handler;
+        }
+
+        @Override
+        public DTDHandler getDTDHandler() {
+            return dtdHandler;
+        }
+
+        @Override
+        public void setContentHandler(final ContentHandler handler) {
+            this.contentHandler = handler;
+        }
+
+        @Override
+        public ContentHandler getContentHandler() {
+            return contentHandler;
+        }
+
+        @Override
+        public void setErrorHandler(final ErrorHandler handler) {
+            this.errorHandler = handler;
+        }
+
+        @Override
+        public ErrorHandler getErrorHandler() {
+            return errorHandler;
+        }
+    }
+
+    /**
+     * Translates receiver events to SAX. Unlike {@link org.exist.util.serializer.ReceiverToSAX},
+     * attributes may follow the start tag they belong to, as written by
+     * {@link VersioningTrigger}.
+     */
+    private final static class ToSAX implements Receiver<INodeHandle<?>> {
+
+        private final ContentHandler contentHandler;
+        private final LexicalHandler lexicalHandler;
+        private QName element = null;
+        private final AttributesImpl attributes = new AttributesImpl();
+
+        private ToSAX(final ContentHandler contentHandler, final LexicalHandler lexicalHandler) {
+            this.contentHandler = contentHandler;
+            this.lexicalHandler = lexicalHandler;
+        }
+
+        /**
+         * Report the pending start tag.
+         */
+        private void flush() throws SAXException {
+            if (element != null) {
+                contentHandler.startElement(element.getNamespaceURI(), element.getLocalPart(),
+                        element.getStringValue(), attributes);
+                element = null;
+                attributes.clear();
+            }
+        }
+
+        @Override
+        public void startDocument() {
+        }
+
+        @Override
+        public void endDocument() {
+        }
+
+        @Override
+        public void startPrefixMapping(final String prefix, final String namespaceURI) throws SAXException {
+            flush();
+            contentHandler.startPrefixMapping(prefix, namespaceURI);
+        }
+
+        @Override
+        public void endPrefixMapping(final String prefix) throws SAXException {
+            flush();
+            contentHandler.endPrefixMapping(prefix);
+        }
+
+        @Override
+        public void startElement(final QName qname, final AttrList attribs) throws SAXException {
+            flush();
+            element = qname;
+            if (attribs != null) {
+                for (int i = 0; i < attribs.getLength(); i++) {
+                    attribute(attribs.getQName(i), attribs.getValue(i));
+                }
+            }
+        }
+
+        @Override
+        public void endElement(final QName qname) throws SAXException {
+            flush();
+            contentHandler.endElement(qname.getNamespaceURI(), qname.getLocalPart(), qname.getStringValue());
+        }
+
+        @Override
+        public void characters(final CharSequence seq) throws SAXException {
+            flush();
+            final String text = seq.toString();
+            contentHandler.characters(text.toCharArray(), 0, text.length());
+        }
+
+        @Override
+        public void attribute(final QName qname, final String value) throws SAXException {
+            if (element == null) {
+                throw new SAXException("Attribute " + qname + " does not follow a start tag");
+            }
+            attributes.addAttribute(qname.getNamespaceURI(), qname.getLocalPart(), qname.getStringValue(),
+                    "CDATA", value);
+        }
+
+        @Override
+        public void comment(final char[] ch, final int start, final int length) throws SAXException {
+            flush();
+            if (lexicalHandler != null) {
+                lexicalHandler.comment(ch, start, length);
+            }
+        }
+
+        @Override
+        public void cdataSection(final char[] ch, final int start, final int len) throws SAXException {
+            flush();
+            if (lexicalHandler != null) {
+                lexicalHandler.startCDATA();
+            }
+            contentHandler.characters(ch, start, len);
+            if (lexicalHandler != null) {
+                lexicalHandler.endCDATA();
+            }
+        }
+
+        @Override
+        public void processingInstruction(final String target, final String data) throws SAXException {
+            flush();
+            contentHandler.processingInstruction(target, data);
+        }
+
+        @Override
+        public void documentType(final String name, final String publicId, final String systemId) {
+        }
+
+        @Override
+        public void highlightText(final CharSequence seq) throws SAXException {
+            characters(seq);
+        }
+
+        @Override
+        public void setCurrentNode(final INodeHandle<?> node) {
+        }
+
+        @Override
+        public Document getDocument() {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,472 @@
+/**
+ * Versioning Module for eXist-db XQuery
+ * Copyright (C) 2008 eXist-db <exit-open@lists.sourceforge.net>
+ * http://exist-db.org
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 1, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.exist.versioning;
+
+import org.exist.collections.Collection;
+import org.exist.dom.memtree.DocumentBuilderReceiver;
+import org.exist.dom.memtree.MemTreeBuilder;
+import org.exist.dom.persistent.BinaryDocument;
+import org.exist.dom.persistent.DocumentImpl;
+import org.exist.dom.persistent.NodeProxy;
+import org.exist.numbering.NodeId;
+import org.exist.security.PermissionDeniedException;
+import org.exist.storage.DBBroker;
+import org.exist.storage.serializers.Serializer;
+import org.exist.util.LockException;
+import org.exist.xmldb.XmldbURI;
+import org.exist.xquery.XPathException;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.xml.sax.SAXException;
+
+import javax.xml.stream.XMLStreamException;
+import java.io.IOException;
+import java.time.LocalDateTime;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Properties;
+import java.util.TreeMap;
+
+/**
+ * The revisions of a single document, read from the version documents in its versions
+ * collection. Only the top level elements of each version document are read, never the diff.
+ */
+public class VersionHistory {
+
+    private final String documentName;
+    private final NavigableMap<Long, Revision> revisions = new TreeMap<>();
+
+    private VersionHistory(final String documentName) {
+        this.documentName = documentName;
+    }
+
+    /**
+     * Read the histories of all documents in a versions collection.
+     *
+     * @param broker the broker to use
+     * @param vCollection the versions collection
+     * @return the histories, keyed by document name
+     */
+    public static Map<String, VersionHistory> load(final DBBroker broker, final Collection vCollection)
+            throws PermissionDeniedException, LockException {
+        final Map<String, VersionHistory> histories = new TreeMap<>();
+        for (final Iterator<DocumentImpl> i = vCollection.iterator(broker); i.hasNext(); ) {
+            final DocumentImpl doc = i.next();
+            if (doc instanceof BinaryDocument || !isVersionName(doc.getFileURI().toString())) {
+                continue;
+            }
+            final Revision revision = Revision.read(doc);
+            if (revision != null) {
+                histories.computeIfAbsent(revision.documentName, VersionHistory::new).revisions
+                        .put(revision.revision, revision);
+            }
+        }
+        return histories;
+    }
+
+    private static boolean isVersionName(final String name) {
+        final int dot = name.lastIndexOf('.');
+        if (dot < 1 || dot == name.length() - 1) {
+            return false;
+        }
+        for (int i = dot + 1; i < name.length(); i++) {
+            if (!Character.isDigit(name.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public String getDocumentName() {
+        return documentName;
+    }
+
+    public NavigableMap<Long, Revision> getRevisions() {
+        return revisions;
+    }
+
+    /**
+     * Restore a revision by applying the diffs from the closest keyframe or base-relative
+     * revision, as <code>v:doc</code> does.
+     *
+     * @param broker the broker to use
+     * @param vCollection the versions collection
+     * @param rev the revision to restore
+     * @return the restored document, or null if there is no base revision
+     */
+    public org.exist.dom.memtree.DocumentImpl restore(final DBBroker broker, final Collection vCollection,
+            final long rev) throws PermissionDeniedException, XPathException, DiffException, IOException,
+            XMLStreamException, SAXException {
+        final List<Revision> chain = new ArrayList<>();
+        DocumentImpl source = null;
+        for (final Revision revision : revisions.headMap(rev, true).descendingMap().values()) {
+            if (!revision.hasDiff()) {
+                continue;
+            }
+            if (revision.keyframe != null) {
+                source = vCollection.getDocument(broker, XmldbURI.create(revision.keyframe));
+                break;
+            }
+            chain.add(revision);
+            if (!revision.isChained()) {
+                break;
+            }
+        }
+        if (source == null) {
+            source = vCollection.getDocument(broker, XmldbURI.create(documentName + VersioningTrigger.BASE_SUFFIX));
+            if (source == null) {
+                return null;
+            }
+        }
+
+        if (chain.isEmpty()) {
+            // no diffs to apply: copy the source
+            final MemTreeBuilder builder = new MemTreeBuilder();
+            builder.startDocument();
+            final Serializer serializer = broker.getSerializer();
+            serializer.reset();
+            serializer.setProperty(Serializer.GENERATE_DOC_EVENTS, "false");
+            serializer.setReceiver(new DocumentBuilderReceiver(builder));
+            serializer.toReceiver(new NodeProxy(source, NodeId.DOCUMENT_NODE), false);
+            builder.endDocument();
+            return builder.getDocument();
+        }
+
+        final List<DocumentImpl> diffs = new ArrayList<>(chain.size());
+        for (int i = chain.size() - 1; i > -1; i--) {
+            diffs.add(chain.get(i).document);
+        }
+        return patch(broker, source, diffs);
+    }
+
+    /**
+     * Apply a sequence of diffs to a stored document, each to the result of the previous one.
+     *
+     * @param broker the broker to use
+     * @param source the document to apply the first diff to
+     * @param diffs the version documents holding the diffs, oldest first
+     * @return the patched document
+     */
+    static org.exist.dom.memtree.DocumentImpl patch(final DBBroker broker, final DocumentImpl source,
+            final List<DocumentImpl> diffs) throws XPathException, DiffException, IOException, XMLStreamException {
+        DiffSource current = DiffSource.of(source);
+        org.exist.dom.memtree.DocumentImpl result = null;
+        for (final DocumentImpl diff : diffs) {
+            final MemTreeBuilder builder = new MemTreeBuilder();
+            builder.startDocument();
+            new Patch(broker, diff).patch(current, new DocumentBuilderReceiver(builder));
+            builder.endDocument();
+            result = builder.getDocument();
+            current = DiffSource.of(result);
+        }
+        return result;
+    }
+
+    /**
+     * A single revision of a document.
+     */
+    public static class Revision {
+
+        private final DocumentImpl document;
+        private final String documentName;
+        private final long revision;
+        private final String date;
+        private final String user;
+        private final String storage;
+        private final String fingerprint;
+        private final Properties properties = new Properties();
+        private String type = null;
+        private boolean diff = false;
+        private String keyframe = null;
+        private String binaryDiff = null;
+        private String replacedBinary = null;
+        private String replacedBinaryBase = null;
+        private String replacedXml = null;
+        private boolean removed = false;
+
+        private Revision(final DocumentImpl document, final String documentName, final long revision,
+                final String date, final String user, final String storage, final String fingerprint) {
+            this.document = document;
+            this.documentName = documentName;
+            this.revision = revision;
+            this.date = date;
+            this.user = user;
+            this.storage = storage;
+            this.fingerprint = fingerprint;
+        }
+
+        static Revision read(final DocumentImpl doc) {
+            final Element root = doc.getDocumentElement();
+            if (root == null || !StandardDiff.NAMESPACE.equals(root.getNamespaceURI()) ||
+                    !VersioningTrigger.ELEMENT_VERSION.getLocalPart().equals(root.getLocalName())) {
+                return null;
+            }
+            Revision rev = null;
+            final List<Element> content = new ArrayList<>();
+            for (Node node = root.getFirstChild(); node != null; node = node.getNextSibling()) {
+                if (node.getNodeType() != Node.ELEMENT_NODE) {
+                    continue;
+                }
+                if (VersioningTrigger.PROPERTIES_ELEMENT.getLocalPart().equals(node.getLocalName())) {
+                    rev = fromProperties(doc, (Element) node);
+                } else {
+                    content.add((Element) node);
+                }
+            }
+            if (rev == null) {
+                return null;
+            }
+            for (final Element element : content) {
+                final String attr = element.getAttribute(VersioningTrigger.ATTRIBUTE_REF.getLocalPart());
+                final String ref = attr == null || attr.isEmpty() ? null : attr;
+                if (!"keyframe".equals(element.getLocalName())) {
+                    rev.type = element.getLocalName();
+                }
+                switch (element.getLocalName()) {
+                    case "diff":
+                        rev.diff = true;
+                        break;
+                    case "binary-diff":
+                        rev.diff = true;
+                        rev.binaryDiff = ref;
+                        break;
+                    case "keyframe":
+                        rev.keyframe = ref;
+                        break;
+                    case "replaced-binary":
+                        rev.replacedBinary = ref;
+                        final String base = element.getAttribute(VersioningTrigger.ATTRIBUTE_BASE.getLocalPart());
+                        rev.replacedBinaryBase = base == null || base.isEmpty() ? null : base;
+                        break;
+                    case "replaced-xml":
+                        rev.replacedXml = ref;
+                        break;
+                    case "removed":
+                        rev.removed = true;
+                        break;
+                    default:
+                        break;
+                }
+            }
+            return rev;
+        }
+
+        /**
+         * Read the revisions whose properties were moved into a <code>&lt;name&gt;.squashed</code>
+         * document by the {@link Compactor}. They have no content of their own.
+         *
+         * @param doc the squashed document
+         * @return the squashed revisions
+         */
+        static List<Revision> readSquashed(final DocumentImpl doc) {
+            final List<Revision> squashed = new ArrayList<>();
+            final Element root = doc.getDocumentElement();
+            if (root == null || !StandardDiff.NAMESPACE.equals(root.getNamespaceURI()) ||
+                    !VersioningTrigger.ELEMENT_SQUASHED.getLocalPart().equals(root.getLocalName())) {
+                return squashed;
+            }
+            for (Node node = root.getFirstChild(); node != null; node = node.getNextSibling()) {
+                if (node.getNodeType() == Node.ELEMENT_NODE &&
+                        VersioningTrigger.PROPERTIES_ELEMENT.getLocalPart().equals(node.getLocalName())) {
+                    final Revision rev = fromProperties(doc, (Element) node);
+                    if (rev != null) {
+                        rev.type = VersioningTrigger.ELEMENT_SQUASHED.getLocalPart();
+                        squashed.add(rev);
+                    }
+                }
+            }
+            return squashed;
+        }
+
+        private static Revision fromProperties(final DocumentImpl doc, final Element element) {
+            final Properties properties = new Properties();
+            for (Node prop = element.getFirstChild(); prop != null; prop = prop.getNextSibling()) {
+                if (prop.getNodeType() == Node.ELEMENT_NODE) {
+                    properties.setProperty(prop.getLocalName(), prop.getTextContent());
+                }
+            }
+            final String documentName = properties.getProperty("document");
+            final String revision = properties.getProperty("revision");
+            if (documentName == null || revision == null) {
+                return null;
+            }
+            final Revision rev;
+            try {
+                rev = new Revision(doc, documentName, Long.parseLong(revision.trim()), properties.getProperty("date"),
+                        properties.getProperty("user"), properties.getProperty("storage"),
+                        properties.getProperty("fingerprint"));
+            } catch (final NumberFormatException e) {
+                return null;
+            }
+            rev.properties.putAll(properties);
+            return rev;
+        }
+
+        public DocumentImpl getDocument() {
+            return document;
+        }
+
+        public String getDocumentName() {
+            return documentName;
+        }
+
+        public long getRevision() {
+            return revision;
+        }
+
+        public String getDate() {
+            return date;
+        }
+
+        /**
+         * @return the date of the revision in milliseconds, or -1 if it cannot be parsed
+         */
+        public long getTime() {
+            if (date == null) {
+                return -1;
+            }
+            try {
+                return OffsetDateTime.parse(date.trim()).toInstant().toEpochMilli();
+            } catch (final DateTimeParseException e) {
+                try {
+                    return LocalDateTime.parse(date.trim()).toInstant(ZoneOffset.UTC).toEpochMilli();
+                } catch (final DateTimeParseException e2) {
+                    return -1;
+                }
+            }
+        }
+
+        public String getUser() {
+            return user;
+        }
+
+        public String getFingerprint() {
+            return fingerprint;
+        }
+
+        public String getKey() {
+            return properties.getProperty("key");
+        }
+
+        /**
+         * @return the local name of the element holding the content of the revision, e.g.
+         * <code>diff</code> or <code>replaced-binary</code>, <code>squashed</code> for revisions
+         * squashed by the {@link Compactor}, or null if the revision has no content
+         */
+        public String getType() {
+            return type;
+        }
+
+        /**
+         * @return a copy of all properties of the revision, as written to <code>v:properties</code>
+         */
+        public Properties getProperties() {
+            final Properties copy = new Properties();
+            copy.putAll(properties);
+            return copy;
+        }
+
+        /**
+         * @return true if the revision contains a diff, either as XML or binary edit script
+         */
+        public boolean hasDiff() {
+            return diff;
+        }
+
+        /**
+         * @return true if the diff was computed against the previous revision instead of the base
+         */
+        public boolean isChained() {
+            return VersioningTrigger.STORAGE_CHAIN.equals(storage);
+        }
+
+        public String getKeyframe() {
+            return keyframe;
+        }
+
+        /**
+         * @return the name of the binary edit script holding the diff, or null if the diff is
+         * stored as XML
+         */
+        public String getBinaryDiff() {
+            return binaryDiff;
+        }
+
+        /**
+         * @return the <code>ref</code> of the <code>v:replaced-binary</code> element: stored
+         * content, a delta or a binary in the versions collection
+         */
+        public String getReplacedBinary() {
+            return replacedBinary;
+        }
+
+        /**
+         * @return the stored content a binary delta applies to, or null
+         */
+        public String getReplacedBinaryBase() {
+            return replacedBinaryBase;
+        }
+
+        public boolean isRemoved() {
+            return removed;
+        }
+
+        /**
+         * @return the names of the resources in the versions collection which belong to this
+         * revision and are removed with it
+         */
+        public List<String> getResources() {
+            final List<String> resources = new ArrayList<>();
+            if (keyframe != null) {
+                resources.add(keyframe);
+            }
+            if (binaryDiff != null) {
+                resources.add(binaryDiff);
+            }
+            if (replacedXml != null) {
+                resources.add(replacedXml);
+            }
+            if (replacedBinary != null && !ContentStore.isContentRef(replacedBinary)) {
+                resources.add(replacedBinary);
+            }
+            return resources;
+        }
+
+        /**
+         * @return the references into the {@link ContentStore} held by this revision
+         */
+        public List<String> getContentRefs() {
+            final List<String> refs = new ArrayList<>();
+            if (ContentStore.isContentRef(replacedBinary)) {
+                refs.add(replacedBinary);
+            }
+            if (ContentStore.isContentRef(replacedBinaryBase)) {
+                refs.add(replacedBinaryBase);
+            }
+            return refs;
+        }
+    }
+}
@@ -0,0 +1,431 @@
+/**
+ * Versioning Module for eXist-db XQuery
+ * Copyright (C) 2008 eXist-db <exit-open@lists.sourceforge.net>
+ * http://exist-db.org
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 1, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.exist.versioning;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.exist.collections.Collection;
+import org.exist.collections.CollectionConfigurationManager;
+import org.exist.collections.IndexInfo;
+import org.exist.collections.triggers.TriggerException;
+import org.exist.dom.memtree.DocumentBuilderReceiver;
+import org.exist.dom.memtree.MemTreeBuilder;
+import org.exist.dom.persistent.BinaryDocument;
+import org.exist.dom.persistent.DocumentImpl;
+import org.exist.dom.persistent.NodeProxy;
+import org.exist.dom.persistent.StoredNode;
+import org.exist.storage.BrokerPool;
+import org.exist.storage.DBBroker;
+import org.exist.storage.lock.Lock;
+import org.exist.storage.serializers.Serializer;
+import org.exist.storage.txn.TransactionManager;
+import org.exist.storage.txn.Txn;
+import org.exist.xmldb.XmldbURI;
+import org.exist.xquery.value.Sequence;
+import org.exist.xquery.value.SequenceIterator;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Removes revisions according to the retention policies configured on the
+ * {@link VersioningTrigger} of each collection. A policy keeps the last n revisions of each
+ * document, all revisions younger than a number of days and, optionally, the last revision of
+ * every day before that. The latest revision of a document is always kept.
+ *
+ * Chained revisions (see the trigger's <code>storage</code> parameter) depend on their
+ * predecessors. If a kept revision's predecessor is removed, the kept revision is restored
+ * before the removal and stored as keyframe, so restores stay correct.
+ *
+ * A background thread wakes up every minute and reads the policies from the collection
+ * configurations, so collections are pruned whether they were used since the database started
+ * or not, and changed or removed policies apply to the next run. Each collection is pruned
+ * once per <code>prune-interval</code>, each document in a transaction of its own.
+ */
+public class VersionPruner {
+
+    private final static Logger LOG = LogManager.getLogger(VersionPruner.class);
+
+    public final static long DEFAULT_INTERVAL = 60 * 60 * 1000L;
+
+    private final static long TICK = 60 * 1000L;
+
+    private final static long DAY = 24 * 60 * 60 * 1000L;
+
+    private final static String FIND_POLICIES =
+            "declare namespace cc=\"http://exist-db.org/collection-config/1.0\";\n" +
+            "collection('" + CollectionConfigurationManager.CONFIG_COLLECTION + "')//cc:trigger[@class = '" +
+            VersioningTrigger.class.getName() + "']";
+
+    private final static Map<BrokerPool, VersionPruner> instances = new ConcurrentHashMap<>();
+
+    private final BrokerPool pool;
+    private final Map<XmldbURI, Long> lastRuns = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService executor;
+
+    private VersionPruner(final BrokerPool pool) {
+        this.pool = pool;
+        this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            final Thread thread = new Thread(r, "versioning-pruner");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleWithFixedDelay(this::pruneAll, TICK, TICK, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Returns the pruner for the given database instance, creating and starting it if
+     * necessary.
+     *
+     * @param pool the database instance
+     * @return the shared pruner
+     */
+    public static VersionPruner getInstance(final BrokerPool pool) {
+        return instances.computeIfAbsent(pool, VersionPruner::new);
+    }
+
+    /**
+     * Prune all collections whose policy is due, as configured when the run starts.
+     */
+    void pruneAll() {
+        if (pool.isShuttingDown()) {
+            return;
+        }
+        final Map<XmldbURI, Policy> policies;
+        try {
+            policies = readPolicies();
+        } catch (final Exception e) {
+            LOG.error("Failed to read retention policies: " + e.getMessage(), e);
+            return;
+        }
+        lastRuns.keySet().retainAll(policies.keySet());
+        for (final Map.Entry<XmldbURI, Policy> entry : policies.entrySet()) {
+            final long now = System.currentTimeMillis();
+            final Long lastRun = lastRuns.get(entry.getKey());
+            if (lastRun != null && now - lastRun < entry.getValue().interval) {
+                continue;
+            }
+            lastRuns.put(entry.getKey(), now);
+            try {
+                prune(entry.getKey(), entry.getValue(), policies);
+            } catch (final Exception e) {
+                LOG.error("Failed to prune versions of " + entry.getKey() + ": " + e.getMessage(), e);
+            }
+        }
+    }
+
+    /**
+     * Read the retention policies from the configurations of the versioned collections.
+     *
+     * @return the policies by collection path
+     */
+    Map<XmldbURI, Policy> readPolicies() throws Exception {
+        final Map<XmldbURI, Policy> policies = new TreeMap<>(Comparator.comparing(XmldbURI::toString));
+        try (final DBBroker broker = pool.get(Optional.of(pool.getSecurityManager().getSystemSubject()))) {
+            final Sequence triggers = pool.getXQueryService().execute(broker, FIND_POLICIES, null);
+            for (final SequenceIterator i = triggers.iterate(); i.hasNext(); ) {
+                final NodeProxy trigger = (NodeProxy) i.nextItem();
+                final XmldbURI configPath = trigger.getOwnerDocument().getCollection().getURI();
+                final XmldbURI collectionPath = XmldbURI.create(
+                        configPath.toString().substring(CollectionConfigurationManager.CONFIG_COLLECTION.length()));
+                final Map<String, List<?>> parameters = new HashMap<>();
+                for (Node child = trigger.getNode().getFirstChild(); child != null; child = child.getNextSibling()) {
+                    if (child.getNodeType() == Node.ELEMENT_NODE && "parameter".equals(child.getLocalName())) {
+                        final Element parameter = (Element) child;
+                        parameters.put(parameter.getAttribute("name"),
+                                Collections.singletonList(parameter.getAttribute("value")));
+                    }
+                }
+                try {
+                    final Policy policy = VersioningTrigger.getRetentionPolicy(parameters);
+                    if (policy != null) {
+                        policies.put(collectionPath, policy);
+                    }
+                } catch (final TriggerException e) {
+                    LOG.warn("Ignoring retention policy of " + collectionPath + ": " + e.getMessage());
+                }
+            }
+        }
+        return policies;
+    }
+
+    /**
+     * Prune the versions of a collection and its descendants, except for descendants which
+     * have a policy of their own.
+     *
+     * @param collectionPath the versioned collection
+     * @param policy the retention policy
+     * @return the number of revisions removed
+     */
+    public long prune(final XmldbURI collectionPath, final Policy policy) throws Exception {
+        return prune(collectionPath, policy, readPolicies());
+    }
+
+    private long prune(final XmldbURI collectionPath, final Policy policy, final Map<XmldbURI, Policy> policies)
+            throws Exception {
+        final long start = System.currentTimeMillis();
+        final Stats stats = new Stats();
+        try (final DBBroker broker = pool.get(Optional.of(pool.getSecurityManager().getSystemSubject()))) {
+            broker.setTriggersEnabled(false);
+            try {
+                pruneCollection(broker, VersioningTrigger.VERSIONS_COLLECTION.append(collectionPath), policy,
+                        policies, stats, true);
+            } finally {
+                broker.setTriggersEnabled(true);
+            }
+        }
+        if (stats.revisions > 0 || LOG.isDebugEnabled()) {
+            LOG.info("Pruned " + stats.revisions + " revisions of " + stats.documents + " documents below " +
+                    collectionPath + ", rebased " + stats.rebased + " revisions, reclaimed " + stats.bytes +
+                    " bytes in " + (System.currentTimeMillis() - start) + "ms");
+        }
+        return stats.revisions;
+    }
+
+    private void pruneCollection(final DBBroker broker, final XmldbURI path, final Policy policy,
+            final Map<XmldbURI, Policy> policies, final Stats stats, final boolean root) throws Exception {
+        if (path.equals(ContentStore.CONTENT_COLLECTION) || (!root && policies.containsKey(sourcePath(path)))) {
+            // pruned with its own policy
+            return;
+        }
+        final List<XmldbURI> children = new ArrayList<>();
+        try (final Collection vCollection = broker.openCollection(path, Lock.LockMode.WRITE_LOCK)) {
+            if (vCollection == null) {
+                return;
+            }
+            for (final VersionHistory history : VersionHistory.load(broker, vCollection).values()) {
+                if (pool.isShuttingDown()) {
+                    return;
+                }
+                pruneHistory(broker, vCollection, history, policy, stats);
+            }
+            for (final Iterator<XmldbURI> i = vCollection.collectionIterator(broker); i.hasNext(); ) {
+                children.add(path.append(i.next()));
+            }
+        }
+        for (final XmldbURI child : children) {
+            pruneCollection(broker, child, policy, policies, stats, false);
+        }
+    }
+
+    private static XmldbURI sourcePath(final XmldbURI versionsPath) {
+        return XmldbURI.create(versionsPath.toString().substring(VersioningTrigger.VERSIONS_COLLECTION.toString().length()));
+    }
+
+    private void pruneHistory(final DBBroker broker, final Collection vCollection, final VersionHistory history,
+            final Policy policy, final Stats stats) throws Exception {
+        final List<VersionHistory.Revision> revisions = new ArrayList<>(history.getRevisions().values());
+        final long[] times = new long[revisions.size()];
+        for (int i = 0; i < times.length; i++) {
+            times[i] = revisions.get(i).getTime();
+        }
+        final boolean[] keep = policy.select(times, System.currentTimeMillis());
+        int removed = 0;
+        for (final boolean k : keep) {
+            if (!k) {
+                removed++;
+            }
+        }
+        if (removed == 0) {
+            return;
+        }
+
+        final TransactionManager transact = pool.getTransactionManager();
+        try (final Txn transaction = transact.beginTransaction()) {
+            // restore kept revisions which depend on a removed one before anything is removed
+            final Map<VersionHistory.Revision, org.exist.dom.memtree.DocumentImpl> rebase = new HashMap<>();
+            int previousDiff = -1;
+            for (int i = 0; i < revisions.size(); i++) {
+                final VersionHistory.Revision revision = revisions.get(i);
+                if (!revision.hasDiff()) {
+                    continue;
+                }
+                if (keep[i] && revision.isChained() && revision.getKeyframe() == null &&
+                        previousDiff > -1 && !keep[previousDiff]) {
+                    rebase.put(revision, history.restore(broker, vCollection, revision.getRevision()));
+                }
+                previousDiff = i;
+            }
+            for (final Map.Entry<VersionHistory.Revision, org.exist.dom.memtree.DocumentImpl> entry : rebase.entrySet()) {
+                addKeyframe(broker, transaction, vCollection, entry.getKey(), entry.getValue());
+                stats.rebased++;
+            }
+
+            final ContentStore contentStore = ContentStore.getInstance(pool);
+            final RevisionIndex index = RevisionIndex.getInstance(pool);
+            for (int i = 0; i < revisions.size(); i++) {
+                if (keep[i]) {
+                    continue;
+                }
+                final VersionHistory.Revision revision = revisions.get(i);
+                for (final String resource : revision.getResources()) {
+                    remove(broker, transaction, vCollection, vCollection.getDocument(broker, XmldbURI.create(resource)),
+                            stats);
+                }
+                for (final String ref : revision.getContentRefs()) {
+                    contentStore.release(broker, transaction, ref);
+                }
+                remove(broker, transaction, vCollection, revision.getDocument(), stats);
+                index.remove(transaction, broker, RevisionIndex.sourcePath(vCollection.getURI(), history.getDocumentName()),
+                        revision.getRevision());
+                stats.revisions++;
+            }
+            transact.commit(transaction);
+        }
+        stats.documents++;
+    }
+
+    private static void remove(final DBBroker broker, final Txn transaction, final Collection vCollection,
+            final DocumentImpl doc, final Stats stats) throws Exception {
+        if (doc == null) {
+            return;
+        }
+        stats.bytes += doc.getContentLength();
+        if (doc instanceof BinaryDocument) {
+            vCollection.removeBinaryResource(transaction, broker, doc);
+        } else {
+            vCollection.removeXMLResource(transaction, broker, doc.getFileURI());
+        }
+    }
+
+    /**
+     * Store the content of a revision as keyframe and add a <code>v:keyframe</code> reference to
+     * its version document.
+     */
+    private static void addKeyframe(final DBBroker broker, final Txn transaction, final Collection vCollection,
+            final VersionHistory.Revision revision, final org.exist.dom.memtree.DocumentImpl content)
+            throws Exception {
+        final DocumentImpl versionDoc = revision.getDocument();
+        final XmldbURI versionUri = versionDoc.getFileURI();
+        final XmldbURI keyframeUri = XmldbURI.create(versionUri.toString() + VersioningTrigger.KEYFRAME_SUFFIX);
+        store(broker, transaction, vCollection, keyframeUri, content);
+
+        final MemTreeBuilder builder = new MemTreeBuilder();
+        builder.startDocument();
+        final DocumentBuilderReceiver receiver = new DocumentBuilderReceiver(builder);
+        receiver.startPrefixMapping(StandardDiff.PREFIX, StandardDiff.NAMESPACE);
+        receiver.startElement(VersioningTrigger.ELEMENT_VERSION, null);
+        final Serializer serializer = broker.getSerializer();
+        final Element root = versionDoc.getDocumentElement();
+        for (Node child = root.getFirstChild(); child != null; child = child.getNextSibling()) {
+            serializer.reset();
+            serializer.setProperty(Serializer.GENERATE_DOC_EVENTS, "false");
+            serializer.setReceiver(receiver);
+            serializer.toReceiver(new NodeProxy(versionDoc, ((StoredNode) child).getNodeId()), false);
+        }
+        receiver.startElement(VersioningTrigger.ELEMENT_KEYFRAME, null);
+        receiver.attribute(VersioningTrigger.ATTRIBUTE_REF, keyframeUri.toString());
+        receiver.endElement(VersioningTrigger.ELEMENT_KEYFRAME);
+        receiver.endElement(VersioningTrigger.ELEMENT_VERSION);
+        receiver.endPrefixMapping(StandardDiff.PREFIX);
+        builder.endDocument();
+        store(broker, transaction, vCollection, versionUri, builder.getDocument());
+        RevisionIndex.getInstance(broker.getBrokerPool()).put(transaction, broker, vCollection,
+                VersionHistory.Revision.read(vCollection.getDocument(broker, versionUri)));
+    }
+
+    private static void store(final DBBroker broker, final Txn transaction, final Collection vCollection,
+            final XmldbURI uri, final Node node) throws Exception {
+        final IndexInfo info = vCollection.validateXMLResource(transaction, broker, uri, node);
+        vCollection.store(transaction, broker, info, node);
+    }
+
+    private final static class Stats {
+        private long revisions = 0;
+        private long documents = 0;
+        private long rebased = 0;
+        private long bytes = 0;
+    }
+
+    /**
+     * Retention policy for the versions of a collection.
+     */
+    public static class Policy {
+
+        private final int revisions;
+        private final int days;
+        private final boolean daily;
+        private final long interval;
+
+        /**
+         * @param revisions the number of latest revisions to keep, 0 to keep none based on count
+         * @param days the number of days to keep all revisions, 0 to keep none based on age
+         * @param daily true to keep the last revision of each day for older revisions
+         */
+        public Policy(final int revisions, final int days, final boolean daily) {
+            this(revisions, days, daily, DEFAULT_INTERVAL);
+        }
+
+        /**
+         * @param revisions the number of latest revisions to keep, 0 to keep none based on count
+         * @param days the number of days to keep all revisions, 0 to keep none based on age
+         * @param daily true to keep the last revision of each day for older revisions
+         * @param interval the time between two runs in milliseconds
+         */
+        public Policy(final int revisions, final int days, final boolean daily, final long interval) {
+            this.revisions = revisions;
+            this.days = days;
+            this.daily = daily;
+            this.interval = interval;
+        }
+
+        /**
+         * @param times the times of the revisions of a document in ascending order, -1 if unknown
+         * @param now the current time
+         * @return for each revision, true if it should be kept
+         */
+        boolean[] select(final long[] times, final long now) {
+            final int count = times.length;
+            final boolean[] keep = new boolean[count];
+            LocalDate lastDay = null;
+            for (int i = count - 1; i > -1; i--) {
+                final long time = times[i];
+                if (i == count - 1 || (this.revisions > 0 && i >= count - this.revisions) ||
+                        (days > 0 && time >= now - days * DAY) || time < 0) {
+                    keep[i] = true;
+                } else if (daily) {
+                    // walking backwards, the first revision seen of each day is its last one
+                    final LocalDate day = Instant.ofEpochMilli(time).atZone(ZoneOffset.UTC).toLocalDate();
+                    keep[i] = !day.equals(lastDay);
+                }
+                if (time > -1) {
+                    lastDay = Instant.ofEpochMilli(time).atZone(ZoneOffset.UTC).toLocalDate();
+                }
+            }
+            return keep;
+        }
+    }
+}
@@ -19,19 +19,25 @@
  */
 package org.exist.versioning;
 
+import org.exist.collections.Collection;
+import org.exist.collections.CollectionConfiguration;
 import org.exist.dom.persistent.DocumentImpl;
 import org.exist.dom.persistent.NodeHandle;
 import org.exist.dom.QName;
 import org.exist.util.serializer.AttrList;
 import org.exist.security.PermissionDeniedException;
+import org.exist.storage.BrokerPool;
+import org.exist.storage.DBBroker;
 import org.exist.storage.serializers.CustomMatchListener;
-import org.exist.xquery.XPathException;
+import org.exist.util.LockException;
 import org.exist.xmldb.XmldbURI;
 import org.xml.sax.SAXException;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class VersioningFilter extends CustomMatchListener {
 
@@ -41,8 +47,32 @@ public class VersioningFilter extends CustomMatchListener {
     public final static QName ATTR_KEY = new QName("key", StandardDiff.NAMESPACE, StandardDiff.PREFIX);
     public final static QName ATTR_PATH = new QName("path", StandardDiff.NAMESPACE, StandardDiff.PREFIX);
 
+    private final static Map<BrokerPool, Map<XmldbURI, VersionedFlag>> versionedCollections = new ConcurrentHashMap<>();
+
     private int elementStack = 0;
 
+    /**
+     * Check if the {@link VersioningTrigger} is configured on a collection. The result is
+     * cached with the configuration it was read from. Storing or removing a
+     * <code>collection.xconf</code> replaces the configuration, so the flag is read again.
+     *
+     * @param broker the broker to use
+     * @param collection the collection
+     * @return true if the collection is versioned
+     */
+    static boolean isVersioned(final DBBroker broker, final Collection collection) {
+        final Map<XmldbURI, VersionedFlag> flags =
+                versionedCollections.computeIfAbsent(broker.getBrokerPool(), p -> new ConcurrentHashMap<>());
+        final CollectionConfiguration configuration = collection.getConfiguration(broker);
+        VersionedFlag flag = flags.get(collection.getURI());
+        if (flag == null || flag.configuration != configuration) {
+            flag = new VersionedFlag(configuration,
+                    configuration != null && configuration.triggerRegistered(VersioningTrigger.class));
+            flags.put(collection.getURI(), flag);
+        }
+        return flag.versioned;
+    }
+
     @Override
     public void startElement(final QName qname, final AttrList attribs) throws SAXException {
         if (elementStack == 0) {
@@ -50,17 +80,17 @@ public class VersioningFilter extends CustomMatchListener {
             if (node != null) {
                 final DocumentImpl doc = node.getOwnerDocument();
                 final XmldbURI uri = doc.getURI();
-                if (!uri.startsWith(XmldbURI.SYSTEM_COLLECTION_URI)) {
+                if (!uri.startsWith(XmldbURI.SYSTEM)) {
                     
-                    if (doc.getCollection().getConfiguration(getBroker()).triggerRegistered(VersioningTrigger.class)) {
+                    if (isVersioned(getBroker(), doc.getCollection())) {
                         try {
-                            final long rev = VersioningHelper.getCurrentRevision(getBroker(), doc.getURI());
+                            final long rev = VersioningHelper.getCurrentRevision(getBroker(), uri);
                             final long time = System.currentTimeMillis();
                             final String key = Long.toHexString(time) + Long.toHexString(rev);
                             attribs.addAttribute(ATTR_REVISION, rev == 0 ? "0" : Long.toString(rev));
                             attribs.addAttribute(ATTR_KEY, key);
                             attribs.addAttribute(ATTR_PATH, doc.getURI().toString());
-                        } catch (XPathException | IOException | PermissionDeniedException e) {
+                        } catch (LockException | IOException | PermissionDeniedException e) {
                             LOG.error("Exception while retrieving versioning info: " + e.getMessage(), e);
                         }
                     }
@@ -76,4 +106,14 @@ public class VersioningFilter extends CustomMatchListener {
         --elementStack;
         nextListener.endElement(qname);
     }
-}
\ No newline at end of file
+
+    private final static class VersionedFlag {
+        private final CollectionConfiguration configuration;
+        private final boolean versioned;
+
+        private VersionedFlag(final CollectionConfiguration configuration, final boolean versioned) {
+            this.configuration = configuration;
+            this.versioned = versioned;
+        }
+    }
+}
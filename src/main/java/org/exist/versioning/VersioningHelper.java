@@ -19,172 +19,171 @@
  */
 package org.exist.versioning;
 
+import org.exist.dom.persistent.BinaryDocument;
+import org.exist.dom.persistent.LockedDocument;
 import org.exist.security.PermissionDeniedException;
-import org.exist.source.StringSource;
-import org.exist.storage.BrokerPool;
 import org.exist.storage.DBBroker;
-import org.exist.storage.XQueryPool;
+import org.exist.storage.lock.Lock;
+import org.exist.storage.txn.Txn;
+import org.exist.util.LockException;
 import org.exist.xmldb.XmldbURI;
-import org.exist.xquery.CompiledXQuery;
-import org.exist.xquery.XPathException;
-import org.exist.xquery.XQuery;
-import org.exist.xquery.XQueryContext;
-import org.exist.xquery.value.IntegerValue;
-import org.exist.xquery.value.Sequence;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.util.NavigableMap;
 
 public class VersioningHelper {
 
-    private final static String GET_CURRENT_REV =
-            "declare namespace v=\"http://exist-db.org/versioning\";\n" +
-            "declare variable $collection external;\n" +
-            "declare variable $document external;\n" +
-            "max(" +
-            "   for $r in collection($collection)//v:properties[v:document = $document]/v:revision\n" +
-            "   return xs:long($r)" +
-            ")";
-
-    private final static StringSource GET_CURRENT_REV_SOURCE = new StringSource(GET_CURRENT_REV);
-
-    private final static String GET_CONFLICTING_REV =
-            "declare namespace v=\"http://exist-db.org/versioning\";\n" +
-            "declare variable $collection external;\n" +
-            "declare variable $document external;\n" +
-            "declare variable $base external;\n" +
-            "declare variable $key external;\n" +
-            "collection($collection)//v:properties[v:document = $document]" +
-            "   [v:revision > $base][v:key != $key]";
-
-    private final static StringSource GET_CONFLICTING_REV_SOURCE = new StringSource(GET_CONFLICTING_REV);
-
-    private final static String GET_BASE_REV_FOR_KEY =
-            "declare namespace v=\"http://exist-db.org/versioning\";\n" +
-            "declare variable $collection external;\n" +
-            "declare variable $document external;\n" +
-            "declare variable $base external;\n" +
-            "declare variable $key external;\n" +
-            "let $p := collection($collection)//v:properties[v:document = $document]\n" +
-            "let $withKey := for $r in $p[v:revision > $base][v:key = $key] " +
-            "                   order by $r/v:revision descending return $r\n" +
-            "return\n" +
-            "   if ($withKey) then\n" +
-            "       xs:long($withKey[1]/v:revision)\n" +
-            "   else\n" +
-            "       xs:long($p[v:revision = $base]/v:revision)";
-    
-    private final static StringSource GET_BASE_REV_FOR_KEY_SOURCE = new StringSource(GET_BASE_REV_FOR_KEY);
-    
+    /**
+     * @param broker the broker to use
+     * @param docPath the absolute path of the document
+     * @return the latest revision of the document or 0 if it has none
+     */
     public static long getCurrentRevision(final DBBroker broker, final XmldbURI docPath)
-            throws XPathException, IOException, PermissionDeniedException {
-        final String docName = docPath.lastSegment().toString();
-        final XmldbURI collectionPath = docPath.removeLastSegment();
-        final XmldbURI path = VersioningTrigger.VERSIONS_COLLECTION.append(collectionPath);
-
-        final BrokerPool brokerPool = broker.getBrokerPool();
-        final XQuery xquery = brokerPool.getXQueryService();
-        final XQueryPool xqueryPool = brokerPool.getXQueryPool();
-        CompiledXQuery compiled = xqueryPool.borrowCompiledXQuery(broker, GET_CURRENT_REV_SOURCE);
-        final XQueryContext context;
-        if(compiled == null) {
-            context = new XQueryContext(brokerPool);
-        } else {
-            context = compiled.getContext();
-        }
-        context.declareVariable("collection", path.toString());
-        context.declareVariable("document", docName);
-        if(compiled == null) {
-            compiled = xquery.compile(broker, context, GET_CURRENT_REV_SOURCE);
-        } else {
-            compiled.getContext().updateContext(context);
-            context.getWatchDog().reset();
-        }
+            throws PermissionDeniedException, LockException, IOException {
+        final RevisionIndex.Record head = RevisionIndex.getInstance(broker.getBrokerPool()).getHead(broker, docPath);
+        return head == null ? 0 : head.getRevision();
+    }
 
-        try {
-            final Sequence s = xquery.execute(broker, compiled, Sequence.EMPTY_SEQUENCE);
-            if (s.isEmpty()) {
-                return 0;
-            }
-            final IntegerValue iv = (IntegerValue) s.itemAt(0);
-            return iv.getLong();
-        } finally {
-            xqueryPool.returnCompiledXQuery(GET_CURRENT_REV_SOURCE, compiled);
-        }
+    /**
+     * Returns the content fingerprint recorded for the latest revision of a document.
+     *
+     * @param broker the broker to use
+     * @param docPath the absolute path of the document
+     * @return the fingerprint or null if the latest revision has none
+     */
+    public static String getHeadFingerprint(final DBBroker broker, final XmldbURI docPath)
+            throws PermissionDeniedException, LockException, IOException {
+        final RevisionIndex.Record head = RevisionIndex.getInstance(broker.getBrokerPool()).getHead(broker, docPath);
+        return head == null ? null : head.getFingerprint();
     }
 
     public static boolean newerRevisionExists(final DBBroker broker, final XmldbURI docPath, final long baseRev,
-            final String key) throws XPathException, IOException, PermissionDeniedException {
-        final String docName = docPath.lastSegment().toString();
-        final XmldbURI collectionPath = docPath.removeLastSegment();
-        final XmldbURI path = VersioningTrigger.VERSIONS_COLLECTION.append(collectionPath);
-
-        final BrokerPool brokerPool = broker.getBrokerPool();
-        final XQuery xquery = brokerPool.getXQueryService();
-        final XQueryPool xqueryPool = brokerPool.getXQueryPool();
-        final XQueryContext context;
-        CompiledXQuery compiled = xqueryPool.borrowCompiledXQuery(broker, GET_CONFLICTING_REV_SOURCE);
-        if(compiled == null) {
-            context = new XQueryContext(brokerPool);
-        } else {
-            context = compiled.getContext();
-        }
-        context.declareVariable("collection", path.toString());
-        context.declareVariable("document", docName);
-        context.declareVariable("base", new IntegerValue(baseRev));
-        context.declareVariable("key", key);
-        if(compiled == null) {
-            compiled = xquery.compile(broker, context, GET_CONFLICTING_REV_SOURCE);
-        } else {
-            compiled.getContext().updateContext(context);
-            context.getWatchDog().reset();
-        }
-
-        try {
-            final Sequence s = xquery.execute(broker, compiled, Sequence.EMPTY_SEQUENCE);
-            return !s.isEmpty();
-        } finally {
-            xqueryPool.returnCompiledXQuery(GET_CONFLICTING_REV_SOURCE, compiled);
-        }
+            final String key) throws PermissionDeniedException, LockException, IOException {
+        return RevisionIndex.getInstance(broker.getBrokerPool()).newerRevisionExists(broker, docPath, baseRev, key);
     }
 
+    /**
+     * @param broker the broker to use
+     * @param docPath the absolute path of the document
+     * @param baseRev the revision the client based its changes on
+     * @param sessionKey the key of the client
+     * @return the latest revision newer than baseRev stored with the given key, else baseRev
+     * if it exists, else 0
+     */
     public static long getBaseRevision(final DBBroker broker, final XmldbURI docPath, final long baseRev,
-        final String sessionKey) throws XPathException, IOException, PermissionDeniedException {
-        final String docName = docPath.lastSegment().toString();
-        final XmldbURI collectionPath = docPath.removeLastSegment();
-        final XmldbURI path = VersioningTrigger.VERSIONS_COLLECTION.append(collectionPath);
-
-        final BrokerPool brokerPool = broker.getBrokerPool();
-        final XQuery xquery = brokerPool.getXQueryService();
-        final XQueryPool xqueryPool = brokerPool.getXQueryPool();
-        final XQueryContext context;
-        CompiledXQuery compiled = xqueryPool.borrowCompiledXQuery(broker, GET_BASE_REV_FOR_KEY_SOURCE);
-        if (compiled == null) {
-            context = new XQueryContext(brokerPool);
-        } else {
-            context = compiled.getContext();
+            final String sessionKey) throws PermissionDeniedException, LockException, IOException {
+        final NavigableMap<Long, RevisionIndex.Record> revisions =
+                RevisionIndex.getInstance(broker.getBrokerPool()).getRevisions(broker, docPath);
+        for (final RevisionIndex.Record record : revisions.tailMap(baseRev, false).descendingMap().values()) {
+            if (sessionKey != null && sessionKey.equals(record.getKey())) {
+                return record.getRevision();
+            }
         }
-        context.declareVariable("collection", path.toString());
-        context.declareVariable("document", docName);
-        context.declareVariable("base", new IntegerValue(baseRev));
-        context.declareVariable("key", sessionKey);
+        return revisions.containsKey(baseRev) ? baseRev : 0;
+    }
 
-        if (compiled == null) {
-            compiled = xquery.compile(broker, context, GET_BASE_REV_FOR_KEY_SOURCE);
-        } else {
-            compiled.getContext().updateContext(context);
-            context.getWatchDog().reset();
+    /**
+     * Write the content of a binary document as of a revision to a stream: the content stored
+     * by the latest revision up to the given one, or else the base revision.
+     *
+     * @param broker the broker to use
+     * @param transaction the current transaction
+     * @param docPath the absolute path of the document
+     * @param rev the revision to restore
+     * @param os the stream to write to
+     * @return false if the document was not a binary document in this revision
+     */
+    public static boolean writeBinaryRevision(final DBBroker broker, final Txn transaction, final XmldbURI docPath,
+            final long rev, final OutputStream os) throws IOException, PermissionDeniedException, LockException {
+        final XmldbURI versionsCollection = VersioningTrigger.VERSIONS_COLLECTION.append(docPath.removeLastSegment());
+        for (final RevisionIndex.Record record : RevisionIndex.getInstance(broker.getBrokerPool())
+                .getRevisions(broker, docPath).headMap(rev, true).descendingMap().values()) {
+            if (record.isSquashed()) {
+                // squashed into the base
+                break;
+            }
+            if (!VersioningTrigger.ELEMENT_REPLACED_BINARY.getLocalPart().equals(record.getType())) {
+                return false;
+            }
+            VersionHistory.Revision revision = null;
+            try (final LockedDocument versionDoc = broker.getXMLResource(
+                    versionsCollection.append(record.getResource()), Lock.LockMode.READ_LOCK)) {
+                if (versionDoc != null) {
+                    revision = VersionHistory.Revision.read(versionDoc.getDocument());
+                }
+            }
+            if (revision == null) {
+                throw new IOException("Version document not found: " + record.getResource());
+            }
+            writeBinaryRevision(broker, transaction, versionsCollection, revision.getReplacedBinary(),
+                    revision.getReplacedBinaryBase(), os);
+            return true;
+        }
+        final String base = docPath.lastSegment().toString() + VersioningTrigger.BASE_SUFFIX;
+        try (final LockedDocument baseDoc = broker.getXMLResource(versionsCollection.append(base),
+                Lock.LockMode.READ_LOCK)) {
+            if (baseDoc == null || !(baseDoc.getDocument() instanceof BinaryDocument)) {
+                return false;
+            }
         }
+        writeBinaryRevision(broker, transaction, versionsCollection, base, null, os);
+        return true;
+    }
+
+    /**
+     * Write the content of a binary revision, as referenced by a <code>v:replaced-binary</code>
+     * element, to a stream. Revisions stored as delta are decoded while they are written.
+     *
+     * @param broker the broker to use
+     * @param transaction the current transaction
+     * @param versionsCollection the versions collection containing the version document
+     * @param ref the <code>ref</code> attribute of the <code>v:replaced-binary</code> element
+     * @param base the <code>base</code> attribute of the <code>v:replaced-binary</code> element, or null
+     * @param os the stream to write to
+     */
+    public static void writeBinaryRevision(final DBBroker broker, final Txn transaction,
+            final XmldbURI versionsCollection, final String ref, final String base, final OutputStream os)
+            throws IOException, PermissionDeniedException {
+        final XmldbURI path = ContentStore.isContentRef(ref) ? ContentStore.resolve(ref) : versionsCollection.append(ref);
+        try (final LockedDocument revision = broker.getXMLResource(path, Lock.LockMode.READ_LOCK)) {
+            if (revision == null || !(revision.getDocument() instanceof BinaryDocument)) {
+                throw new IOException("Binary revision not found: " + path);
+            }
+            final BinaryDocument revisionDoc = (BinaryDocument) revision.getDocument();
+            if (base == null) {
+                try (final InputStream is = broker.getBinaryResource(transaction, revisionDoc)) {
+                    final byte[] buf = new byte[8192];
+                    int count;
+                    while ((count = is.read(buf)) > -1) {
+                        os.write(buf, 0, count);
+                    }
+                }
+                return;
+            }
 
-        try {
-            final Sequence s = xquery.execute(broker, compiled, Sequence.EMPTY_SEQUENCE);
-            if (s.isEmpty()) {
-                return 0;
-            } else {
-                final IntegerValue iv = (IntegerValue) s.itemAt(0);
-                return iv.getLong();
+            final XmldbURI sourcePath = ContentStore.resolve(base);
+            try (final LockedDocument source = broker.getXMLResource(sourcePath, Lock.LockMode.READ_LOCK)) {
+                if (source == null || !(source.getDocument() instanceof BinaryDocument)) {
+                    throw new IOException("Source of binary delta not found: " + sourcePath);
+                }
+                try {
+                    broker.withBinaryFile(transaction, (BinaryDocument) source.getDocument(), sourceFile -> {
+                        try (final SeekableByteChannel channel = Files.newByteChannel(sourceFile)) {
+                            BinaryDelta.decode(channel, broker.getBinaryResource(transaction, revisionDoc), os);
+                            return null;
+                        } catch (final IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    });
+                } catch (final UncheckedIOException e) {
+                    throw e.getCause();
+                }
             }
-        } finally {
-            xqueryPool.returnCompiledXQuery(GET_BASE_REV_FOR_KEY_SOURCE, compiled);
         }
     }
 }
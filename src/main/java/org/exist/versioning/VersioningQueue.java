@@ -0,0 +1,456 @@
+/**
+ * Versioning Module for eXist-db XQuery
+ * Copyright (C) 2008 eXist-db <exit-open@lists.sourceforge.net>
+ * http://exist-db.org
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 1, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.exist.versioning;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.exist.EXistException;
+import org.exist.collections.Collection;
+import org.exist.collections.triggers.TriggerException;
+import org.exist.security.PermissionDeniedException;
+import org.exist.storage.BrokerPool;
+import org.exist.storage.DBBroker;
+import org.exist.storage.lock.Lock;
+import org.exist.storage.txn.TransactionManager;
+import org.exist.storage.txn.Txn;
+import org.exist.storage.txn.TxnListener;
+import org.exist.util.LockException;
+import org.exist.xmldb.XmldbURI;
+import org.exist.xquery.XPathException;
+import org.exist.xquery.XQuery;
+import org.exist.xquery.value.Sequence;
+import org.exist.xquery.value.SequenceIterator;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Background worker pool used by the {@link VersioningTrigger} in asynchronous mode.
+ *
+ * On commit, the trigger only stores a snapshot of the new document as
+ * <code>&lt;name&gt;.&lt;rev&gt;.pending</code> and a <code>v:version</code> stub containing
+ * the version properties and a <code>v:pending</code> reference to the snapshot. A {@link Job}
+ * later computes the diff, replaces the stub with the complete version document and removes
+ * the snapshot. As stubs and snapshots are stored within the user's transaction, the queue is
+ * durable: stubs left over from a previous run are picked up again on startup.
+ *
+ * The jobs of a document run in revision order, on the same worker thread. A job is registered
+ * within the transaction which stores its stub and becomes ready once that transaction
+ * commits; it only runs after the jobs of all lower revisions of the document were committed
+ * and processed, so in chain mode each job diffs against the revision preceding it. A failed
+ * job is retried with increasing delays before later jobs of the document run.
+ *
+ * The trigger takes a place in the queue with {@link #acquirePermit(long)} before it stores a
+ * stub, not when its transaction commits: a committing transaction still holds the lock on
+ * the versions collection which the jobs need to drain the queue. If the queue stays full, the
+ * trigger generates the version synchronously instead.
+ */
+public class VersioningQueue {
+
+    private final static Logger LOG = LogManager.getLogger(VersioningQueue.class);
+
+    public final static int DEFAULT_WORKERS = Runtime.getRuntime().availableProcessors();
+    public final static int DEFAULT_CAPACITY = 1000;
+    public final static long DEFAULT_TIMEOUT = 1000;
+
+    /** number of attempts before a job is left for the next restart */
+    final static int MAX_ATTEMPTS = 8;
+    /** delay before the first retry of a failed job, doubled for every further retry */
+    final static long RETRY_DELAY = 1000;
+
+    private final static String FIND_PENDING =
+            "declare namespace v=\"http://exist-db.org/versioning\";\n" +
+            "for $p in collection('" + VersioningTrigger.VERSIONS_COLLECTION + "')//v:pending\n" +
+            "return document-uri(root($p))";
+
+    private final static Map<BrokerPool, VersioningQueue> instances = new ConcurrentHashMap<>();
+
+    private final BrokerPool pool;
+    private final ScheduledExecutorService[] workers;
+    private final Semaphore capacity;
+    private final Map<String, Revisions> documents = new HashMap<>();
+    private boolean recovered = false;
+    long retryDelay = RETRY_DELAY;
+
+    private VersioningQueue(final BrokerPool pool, final int workerCount, final int queueSize) {
+        this.pool = pool;
+        this.workers = new ScheduledExecutorService[Math.max(1, workerCount)];
+        for (int i = 0; i < workers.length; i++) {
+            final String name = "versioning-worker-" + i;
+            workers[i] = Executors.newSingleThreadScheduledExecutor(r -> {
+                final Thread thread = new Thread(r, name);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        this.capacity = new Semaphore(Math.max(1, queueSize));
+    }
+
+    /**
+     * Returns the queue for the given database instance, creating it if necessary. A newly
+     * created queue re-submits all jobs which were still pending when the database was
+     * shut down, before it runs any new job. The worker count and queue size only apply to
+     * the first call.
+     *
+     * @param pool the database instance
+     * @param workerCount the number of worker threads
+     * @param queueSize the maximum number of jobs waiting to be processed
+     * @return the shared queue
+     */
+    public static VersioningQueue getInstance(final BrokerPool pool, final int workerCount, final int queueSize) {
+        return instances.computeIfAbsent(pool, p -> {
+            final VersioningQueue queue = new VersioningQueue(p, workerCount, queueSize);
+            final Thread recovery = new Thread(queue::recover, "versioning-recovery");
+            recovery.setDaemon(true);
+            recovery.start();
+            return queue;
+        });
+    }
+
+    /**
+     * Take a place in the queue for a job to be submitted. Must be called before taking any
+     * lock the jobs need.
+     *
+     * @param timeout the maximum time to wait while the queue is full, in milliseconds
+     * @return false if the queue stayed full
+     */
+    public boolean acquirePermit(final long timeout) {
+        try {
+            return capacity.tryAcquire(timeout, TimeUnit.MILLISECONDS);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Give back a place taken by {@link #acquirePermit(long)} which was not used for a job.
+     */
+    public void releasePermit() {
+        capacity.release();
+    }
+
+    /**
+     * @param collectionUri the versions collection containing the documents
+     * @param documentName the name of the versioned document
+     * @return true if jobs of the document are registered and not yet processed
+     */
+    public boolean hasPending(final XmldbURI collectionUri, final String documentName) {
+        synchronized (documents) {
+            return documents.containsKey(collectionUri.append(documentName).toString());
+        }
+    }
+
+    /**
+     * Register a job within the transaction storing its stub. The job is queued once the
+     * transaction commits and dropped if it aborts. Later revisions of the document wait until
+     * the transaction ended.
+     *
+     * @param transaction the transaction storing the stub
+     * @param job the job to run
+     * @param permit true if the job holds a place taken by {@link #acquirePermit(long)}, which
+     *               is given back once the job was processed or dropped
+     */
+    public void submit(final Txn transaction, final Job job, final boolean permit) {
+        job.permit = permit;
+        synchronized (documents) {
+            documents.computeIfAbsent(job.documentKey(), k -> new Revisions()).revision(job.revision).reserved++;
+        }
+        transaction.registerListener(new TxnListener() {
+            @Override
+            public void commit() {
+                release(job, job);
+            }
+
+            @Override
+            public void abort() {
+                release(job, null);
+            }
+        });
+    }
+
+    /**
+     * End the reservation of a revision, adding the committed job.
+     */
+    private void release(final Job reserved, final Job committed) {
+        synchronized (documents) {
+            final Revisions revisions = documents.get(reserved.documentKey());
+            final Revision revision = revisions.jobs.get(reserved.revision);
+            revision.reserved--;
+            if (committed != null) {
+                if (revision.job != null) {
+                    // a coalesced save replaced the stub before its job ran
+                    revision.job.releasePermit(capacity);
+                }
+                revision.job = committed;
+            } else {
+                reserved.releasePermit(capacity);
+                if (revision.job == null && revision.reserved == 0) {
+                    revisions.jobs.remove(reserved.revision);
+                }
+            }
+            schedule(reserved.documentKey(), revisions, 0);
+        }
+    }
+
+    /**
+     * Run the ready jobs of a document unless they are already running. Called while
+     * holding the lock on the documents.
+     */
+    private void schedule(final String documentKey, final Revisions revisions, final long delay) {
+        if (revisions.running || !recovered) {
+            return;
+        }
+        if (revisions.jobs.isEmpty()) {
+            documents.remove(documentKey);
+            return;
+        }
+        revisions.running = true;
+        final int stripe = (documentKey.hashCode() & Integer.MAX_VALUE) % workers.length;
+        workers[stripe].schedule(() -> drain(documentKey, revisions), delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Run the jobs of a document in revision order, until a job is not committed yet or fails.
+     */
+    private void drain(final String documentKey, final Revisions revisions) {
+        while (true) {
+            final Job job;
+            synchronized (documents) {
+                final Map.Entry<Long, Revision> first = revisions.jobs.firstEntry();
+                if (first == null || first.getValue().job == null) {
+                    // wait for the transaction of the lowest revision to end
+                    revisions.running = false;
+                    if (first == null) {
+                        documents.remove(documentKey);
+                    }
+                    return;
+                }
+                job = first.getValue().job;
+                first.getValue().job = null;
+                revisions.active = job;
+            }
+
+            final boolean done = run(job);
+
+            synchronized (documents) {
+                revisions.active = null;
+                final Revision revision = revisions.jobs.get(job.revision);
+                if (!done && revision != null && revision.job == null) {
+                    // retry before any later revision
+                    revision.job = job;
+                    revisions.running = false;
+                    schedule(documentKey, revisions, retryDelay << (job.attempts - 1));
+                    return;
+                }
+                // done, or superseded by a coalesced save committed meanwhile
+                job.releasePermit(capacity);
+                if (revision != null && revision.job == null && revision.reserved == 0) {
+                    revisions.jobs.remove(job.revision);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return false if the job failed and should be retried
+     */
+    private boolean run(final Job job) {
+        final TransactionManager transact = pool.getTransactionManager();
+        job.attempts++;
+        try (final DBBroker broker = pool.get(Optional.of(pool.getSecurityManager().getSystemSubject()));
+                final Txn transaction = transact.beginTransaction()) {
+            job.process(broker, transaction);
+            transact.commit(transaction);
+            return true;
+        } catch (final Exception e) {
+            if (job.attempts < MAX_ATTEMPTS) {
+                LOG.warn("Failed to generate version " + job.versionUri + " in " + job.collectionUri +
+                        ". Retrying (" + job.attempts + "/" + MAX_ATTEMPTS + "): " + e.getMessage(), e);
+                return false;
+            }
+            LOG.error("Failed to generate version " + job.versionUri + " in " + job.collectionUri +
+                    ". It will be retried after the next restart: " + e.getMessage(), e);
+            return true;
+        }
+    }
+
+    /**
+     * Queue the jobs of all stubs left from a previous run, then start running jobs.
+     */
+    private void recover() {
+        final List<Job> jobs = new ArrayList<>();
+        final TransactionManager transact = pool.getTransactionManager();
+        try (final DBBroker broker = pool.get(Optional.of(pool.getSecurityManager().getSystemSubject()));
+                final Txn transaction = transact.beginTransaction()) {
+            final XQuery xquery = pool.getXQueryService();
+            final Sequence result = xquery.execute(broker, FIND_PENDING, Sequence.EMPTY_SEQUENCE);
+            final Map<XmldbURI, VersioningTrigger> triggers = new HashMap<>();
+            for (final SequenceIterator i = result.iterate(); i.hasNext(); ) {
+                final XmldbURI stubUri = XmldbURI.create(i.nextItem().getStringValue());
+                final String stubName = stubUri.lastSegment().toString();
+                final int dot = stubName.lastIndexOf('.');
+                final XmldbURI collectionUri = stubUri.removeLastSegment();
+                VersioningTrigger trigger = triggers.get(collectionUri);
+                if (trigger == null) {
+                    trigger = VersioningTrigger.forCollection(broker, transaction, XmldbURI.create(
+                            collectionUri.toString().substring(VersioningTrigger.VERSIONS_COLLECTION.toString().length())));
+                    triggers.put(collectionUri, trigger);
+                }
+                try {
+                    jobs.add(new Job(trigger, collectionUri, stubUri.lastSegment(), stubName.substring(0, dot),
+                            Long.parseLong(stubName.substring(dot + 1))));
+                } catch (final NumberFormatException e) {
+                    LOG.warn("Ignoring pending version with unexpected name " + stubUri);
+                }
+            }
+            transact.commit(transaction);
+        } catch (final EXistException | XPathException | PermissionDeniedException | LockException |
+                TriggerException e) {
+            LOG.error("Failed to look up pending versions: " + e.getMessage(), e);
+        }
+        synchronized (documents) {
+            for (final Job job : jobs) {
+                // recovered jobs do not count against the capacity, so recovery never blocks
+                final Revision revision = documents.computeIfAbsent(job.documentKey(), k -> new Revisions())
+                        .revision(job.revision);
+                if (revision.job == null) {
+                    revision.job = job;
+                }
+            }
+            recovered = true;
+            for (final Map.Entry<String, Revisions> entry : new ArrayList<>(documents.entrySet())) {
+                schedule(entry.getKey(), entry.getValue(), 0);
+            }
+        }
+        if (!jobs.isEmpty()) {
+            LOG.info("Resubmitted " + jobs.size() + " pending versions");
+        }
+    }
+
+    /**
+     * @return the number of jobs which were registered but not yet processed
+     */
+    int size() {
+        int size = 0;
+        synchronized (documents) {
+            for (final Revisions revisions : documents.values()) {
+                if (revisions.active != null) {
+                    size++;
+                }
+                for (final Revision revision : revisions.jobs.values()) {
+                    size += revision.reserved + (revision.job == null ? 0 : 1);
+                }
+            }
+        }
+        return size;
+    }
+
+    /**
+     * The pending revisions of a document, in revision order.
+     */
+    private final static class Revisions {
+        private final NavigableMap<Long, Revision> jobs = new TreeMap<>();
+        private boolean running = false;
+        private Job active = null;
+
+        private Revision revision(final long revision) {
+            return jobs.computeIfAbsent(revision, r -> new Revision());
+        }
+    }
+
+    /**
+     * A pending revision: the committed job, if any, and the number of running transactions
+     * which will submit a job for it, e.g. coalesced saves.
+     */
+    private final static class Revision {
+        private Job job = null;
+        private int reserved = 0;
+    }
+
+    /**
+     * Generates a single version document from a pending snapshot.
+     */
+    public static class Job {
+
+        private final VersioningTrigger trigger;
+        private final XmldbURI collectionUri;
+        private final XmldbURI versionUri;
+        private final String documentName;
+        private final long revision;
+        private int attempts = 0;
+        private boolean permit = false;
+
+        /**
+         * @param trigger the trigger whose configuration to generate the version with
+         * @param collectionUri the versions collection containing the documents
+         * @param versionUri the name of the version stub to be replaced
+         * @param documentName the name of the versioned document
+         * @param revision the revision of the stub
+         */
+        public Job(final VersioningTrigger trigger, final XmldbURI collectionUri, final XmldbURI versionUri,
+                final String documentName, final long revision) {
+            this.trigger = trigger;
+            this.collectionUri = collectionUri;
+            this.versionUri = versionUri;
+            this.documentName = documentName;
+            this.revision = revision;
+        }
+
+        String documentKey() {
+            return collectionUri.append(documentName).toString();
+        }
+
+        private void releasePermit(final Semaphore capacity) {
+            if (permit) {
+                permit = false;
+                capacity.release();
+            }
+        }
+
+        void process(final DBBroker broker, final Txn transaction) throws Exception {
+            try (final Collection vCollection = broker.openCollection(collectionUri, Lock.LockMode.WRITE_LOCK)) {
+                if (vCollection == null) {
+                    LOG.warn("Versions collection " + collectionUri + " no longer exists");
+                    return;
+                }
+                broker.setTriggersEnabled(false);
+                try {
+                    if (!trigger.storePendingVersion(broker, transaction, vCollection, versionUri) &&
+                            LOG.isDebugEnabled()) {
+                        LOG.debug("Version " + versionUri + " in " + collectionUri + " was already generated");
+                    }
+                } finally {
+                    broker.setTriggersEnabled(true);
+                }
+            }
+        }
+    }
+}
@@ -19,28 +19,43 @@
  */
 package org.exist.versioning;
 
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.StringWriter;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.SeekableByteChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.*;
 import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
 
 import javax.xml.XMLConstants;
-import javax.xml.transform.OutputKeys;
+import javax.xml.stream.XMLStreamException;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.exist.EXistException;
 import org.exist.collections.Collection;
+import org.exist.collections.CollectionConfiguration;
 import org.exist.collections.IndexInfo;
+import org.exist.collections.triggers.DocumentTrigger;
 import org.exist.collections.triggers.SAXTrigger;
 import org.exist.collections.triggers.TriggerException;
+import org.exist.collections.triggers.TriggerProxy;
 import org.exist.dom.persistent.BinaryDocument;
 import org.exist.dom.persistent.DocumentImpl;
+import org.exist.dom.persistent.LockedDocument;
+import org.exist.dom.persistent.NodeProxy;
 import org.exist.dom.QName;
+import org.exist.dom.memtree.DocumentBuilderReceiver;
+import org.exist.dom.memtree.MemTreeBuilder;
+import org.exist.numbering.NodeId;
 import org.exist.security.Account;
 import org.exist.security.PermissionDeniedException;
 import org.exist.security.Subject;
@@ -49,14 +64,16 @@ import org.exist.storage.DBBroker;
 import org.exist.storage.lock.Lock;
 import org.exist.storage.lock.LockManager;
 import org.exist.storage.lock.ManagedDocumentLock;
+import org.exist.storage.serializers.Serializer;
 import org.exist.storage.txn.Txn;
+import org.exist.storage.txn.TxnListener;
 import org.exist.util.LockException;
 import org.exist.util.serializer.Receiver;
-import org.exist.util.serializer.SAXSerializer;
-import org.exist.util.serializer.SerializerPool;
 import org.exist.xmldb.XmldbURI;
 import org.exist.xquery.XPathException;
 import org.exist.xquery.value.DateTimeValue;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
 import org.xml.sax.Attributes;
 import org.xml.sax.SAXException;
 import org.xml.sax.helpers.AttributesImpl;
@@ -65,24 +82,93 @@ public class VersioningTrigger extends SAXTrigger {
 
     public final static Logger LOG = LogManager.getLogger(VersioningTrigger.class);
 
-    public final static XmldbURI VERSIONS_COLLECTION = XmldbURI.SYSTEM_COLLECTION_URI.append("versions");
+    public final static XmldbURI VERSIONS_COLLECTION = XmldbURI.SYSTEM.append("versions");
 
     public final static String BASE_SUFFIX = ".base";
     public final static String TEMP_SUFFIX = ".tmp";
     public final static String DELETED_SUFFIX = ".deleted";
     public final static String BINARY_SUFFIX = ".binary";
     public final static String XML_SUFFIX = ".xml";
+    public final static String PENDING_SUFFIX = ".pending";
+    public final static String HEAD_SUFFIX = ".head";
+    public final static String WINDOW_SUFFIX = ".window";
+    public final static String KEYFRAME_SUFFIX = ".keyframe";
+    public final static String BINARY_DELTA_SUFFIX = ".bdelta";
+    public final static String BINARY_DIFF_SUFFIX = ".vdiff";
+    public final static String SQUASHED_SUFFIX = ".squashed";
+    public final static String COMPACTING_SUFFIX = ".compacting";
+    public final static String BINARY_DELTA_MIME_TYPE = "application/octet-stream";
+
+    public final static String STORAGE_BASE = "base";
+    public final static String STORAGE_CHAIN = "chain";
+
+    public final static String DIFF_STANDARD = "standard";
+    public final static String DIFF_TREE = "tree";
+    public final static String DIFF_STREAMING = "streaming";
+    public final static String DIFF_PARALLEL = "parallel";
+
+    public final static String FORMAT_XML = "xml";
+    public final static String FORMAT_BINARY = "binary";
+    public final static String COMPRESSION_DEFLATE = "deflate";
+    public final static String COMPRESSION_NONE = "none";
 
     public final static String PARAM_OVERWRITE = "overwrite";
+    public final static String PARAM_ASYNC = "async";
+    public final static String PARAM_ASYNC_WORKERS = "async-workers";
+    public final static String PARAM_ASYNC_QUEUE_SIZE = "async-queue-size";
+    public final static String PARAM_ASYNC_QUEUE_TIMEOUT = "async-queue-timeout";
+    public final static String PARAM_COALESCE_WINDOW = "coalesce-window";
+    public final static String PARAM_COALESCE_MAX_SAVES = "coalesce-max-saves";
+    public final static String PARAM_STORAGE = "storage";
+    public final static String PARAM_KEYFRAME_INTERVAL = "keyframe-interval";
+    public final static String PARAM_KEYFRAME_THRESHOLD = "keyframe-threshold";
+    public final static String PARAM_BINARY_DELTA = "binary-delta";
+    public final static String PARAM_BINARY_KEYFRAME_INTERVAL = "binary-keyframe-interval";
+    public final static String PARAM_DIFF_FORMAT = "diff-format";
+    public final static String PARAM_DIFF_COMPRESSION = "diff-compression";
+    public final static String PARAM_RETAIN_REVISIONS = "retain-revisions";
+    public final static String PARAM_RETAIN_DAYS = "retain-days";
+    public final static String PARAM_RETAIN_DAILY = "retain-daily";
+    public final static String PARAM_PRUNE_INTERVAL = "prune-interval";
+    public final static String PARAM_RESTORE_CACHE_SIZE = "restore-cache-size";
+    public final static String PARAM_DIFF = "diff";
+    public final static String PARAM_DIFF_WINDOW = "diff-window";
+    public final static String PARAM_DIFF_SPILL_THRESHOLD = "diff-spill-threshold";
+    public final static String PARAM_DIFF_PARTITION_DEPTH = "diff-partition-depth";
+    public final static String PARAM_DIFF_KEY = "diff-key";
+    public final static String PARAM_TEXT_DIFF_THRESHOLD = "text-diff-threshold";
+    public final static String PARAM_DIFF_VERIFY = "diff-verify";
+
+    public final static int DEFAULT_KEYFRAME_INTERVAL = 50;
+    public final static double DEFAULT_KEYFRAME_THRESHOLD = 0.5;
+    public final static int DEFAULT_BINARY_KEYFRAME_INTERVAL = 20;
+    public final static int DEFAULT_DIFF_SPILL_THRESHOLD = 2000000;
+    public final static int DEFAULT_TEXT_DIFF_THRESHOLD = 4096;
+
+    /** binaries smaller than this are always stored in full */
+    private final static long BINARY_DELTA_MIN_SIZE = 64 * 1024;
+    /** a delta is only kept if it is at most this fraction of the binary's size */
+    private final static double BINARY_DELTA_MAX_RATIO = 0.5;
+    /** number of documents per database whose head fingerprint and keyframe state are kept */
+    private final static int MAX_TRACKED_DOCUMENTS = 10000;
 
     public final static QName ELEMENT_VERSION = new QName("version", StandardDiff.NAMESPACE, StandardDiff.PREFIX);
     public final static QName ELEMENT_REMOVED = new QName("removed", StandardDiff.NAMESPACE, StandardDiff.PREFIX);
     public final static QName PROPERTIES_ELEMENT = new QName("properties", StandardDiff.NAMESPACE, StandardDiff.PREFIX);
     public final static QName ELEMENT_REPLACED_BINARY = new QName("replaced-binary", StandardDiff.NAMESPACE, StandardDiff.PREFIX);
     public final static QName ATTRIBUTE_REF = new QName("ref", XMLConstants.NULL_NS_URI);
+    public final static QName ATTRIBUTE_BASE = new QName("base", XMLConstants.NULL_NS_URI);
+    public final static QName ATTRIBUTE_COALESCED = new QName("coalesced", XMLConstants.NULL_NS_URI);
     public final static QName ELEMENT_REPLACED_XML = new QName("replaced-xml", StandardDiff.NAMESPACE, StandardDiff.PREFIX);
+    public final static QName ELEMENT_PENDING = new QName("pending", StandardDiff.NAMESPACE, StandardDiff.PREFIX);
+    public final static QName ELEMENT_KEYFRAME = new QName("keyframe", StandardDiff.NAMESPACE, StandardDiff.PREFIX);
+    public final static QName ELEMENT_BINARY_DIFF = new QName("binary-diff", StandardDiff.NAMESPACE, StandardDiff.PREFIX);
+    public final static QName ELEMENT_SQUASHED = new QName("squashed", StandardDiff.NAMESPACE, StandardDiff.PREFIX);
 
-    private final static Object latch = new Object();
+    private final static Map<BrokerPool, Map<XmldbURI, String>> headFingerprints = new ConcurrentHashMap<>();
+    private final static Map<BrokerPool, Map<XmldbURI, Integer>> keyframeCounters = new ConcurrentHashMap<>();
+
+    private final static Map<BrokerPool, Map<XmldbURI, BinaryKeyframe>> binaryKeyframes = new ConcurrentHashMap<>();
 
     private DBBroker broker;
     private XmldbURI documentPath;
@@ -96,6 +182,26 @@ public class VersioningTrigger extends SAXTrigger {
     private String documentKey = null;
     private String documentRev = null;
     private boolean checkForConflicts = false;
+    private VersioningQueue queue = null;
+    private long queueTimeout = VersioningQueue.DEFAULT_TIMEOUT;
+    private boolean queuePermitRequested = false;
+    private boolean queuePermit = false;
+    private long coalescePeriod = 0;
+    private int coalesceMaxSaves = Integer.MAX_VALUE;
+    private boolean chainDeltas = false;
+    private int keyframeInterval = DEFAULT_KEYFRAME_INTERVAL;
+    private double keyframeThreshold = DEFAULT_KEYFRAME_THRESHOLD;
+    private boolean binaryDelta = false;
+    private int binaryKeyframeInterval = DEFAULT_BINARY_KEYFRAME_INTERVAL;
+    private boolean binaryFormat = false;
+    private boolean compressDiff = true;
+    private String diffAlgorithm = DIFF_STANDARD;
+    private int diffWindow = StreamingDiff.DEFAULT_WINDOW;
+    private int diffSpillThreshold = DEFAULT_DIFF_SPILL_THRESHOLD;
+    private int diffPartitionDepth = TreeDiff.DEFAULT_PARTITION_DEPTH;
+    private Set<String> diffKey = Collections.emptySet();
+    private int textDiffThreshold = DEFAULT_TEXT_DIFF_THRESHOLD;
+    private boolean diffVerify = false;
 
     @Override
     public void configure(final DBBroker broker, final Txn transaction, final Collection parent, final Map<String, List<?>> parameters)
@@ -108,11 +214,153 @@ public class VersioningTrigger extends SAXTrigger {
 					.map(value -> value.equals("false") || value.equals("no"))
 			).orElse(false);
 
+        if (getBooleanParameter(parameters, PARAM_ASYNC, false)) {
+            queue = VersioningQueue.getInstance(broker.getBrokerPool(),
+                    getIntParameter(parameters, PARAM_ASYNC_WORKERS, VersioningQueue.DEFAULT_WORKERS),
+                    getIntParameter(parameters, PARAM_ASYNC_QUEUE_SIZE, VersioningQueue.DEFAULT_CAPACITY));
+            queueTimeout = getIntParameter(parameters, PARAM_ASYNC_QUEUE_TIMEOUT, (int) VersioningQueue.DEFAULT_TIMEOUT);
+        }
+
+        coalescePeriod = getIntParameter(parameters, PARAM_COALESCE_WINDOW, 0) * 1000L;
+        coalesceMaxSaves = getIntParameter(parameters, PARAM_COALESCE_MAX_SAVES, Integer.MAX_VALUE);
+
+        final String storage = getParameter(parameters, PARAM_STORAGE).orElse(STORAGE_BASE);
+        if (!storage.equals(STORAGE_BASE) && !storage.equals(STORAGE_CHAIN)) {
+            throw new TriggerException("Illegal value for parameter " + PARAM_STORAGE + ": " + storage);
+        }
+        chainDeltas = storage.equals(STORAGE_CHAIN);
+        keyframeInterval = getIntParameter(parameters, PARAM_KEYFRAME_INTERVAL, DEFAULT_KEYFRAME_INTERVAL);
+        keyframeThreshold = getDoubleParameter(parameters, PARAM_KEYFRAME_THRESHOLD, DEFAULT_KEYFRAME_THRESHOLD);
+        binaryDelta = getBooleanParameter(parameters, PARAM_BINARY_DELTA, false);
+        binaryKeyframeInterval = getIntParameter(parameters, PARAM_BINARY_KEYFRAME_INTERVAL,
+                DEFAULT_BINARY_KEYFRAME_INTERVAL);
+
+        final String format = getParameter(parameters, PARAM_DIFF_FORMAT).orElse(FORMAT_XML);
+        if (!format.equals(FORMAT_XML) && !format.equals(FORMAT_BINARY)) {
+            throw new TriggerException("Illegal value for parameter " + PARAM_DIFF_FORMAT + ": " + format);
+        }
+        binaryFormat = format.equals(FORMAT_BINARY);
+        final String compression = getParameter(parameters, PARAM_DIFF_COMPRESSION).orElse(COMPRESSION_DEFLATE);
+        if (!compression.equals(COMPRESSION_DEFLATE) && !compression.equals(COMPRESSION_NONE)) {
+            throw new TriggerException("Illegal value for parameter " + PARAM_DIFF_COMPRESSION + ": " + compression);
+        }
+        compressDiff = compression.equals(COMPRESSION_DEFLATE);
+        diffAlgorithm = getParameter(parameters, PARAM_DIFF).orElse(DIFF_STANDARD);
+        if (!diffAlgorithm.equals(DIFF_STANDARD) && !diffAlgorithm.equals(DIFF_TREE) &&
+                !diffAlgorithm.equals(DIFF_STREAMING) && !diffAlgorithm.equals(DIFF_PARALLEL)) {
+            throw new TriggerException("Illegal value for parameter " + PARAM_DIFF + ": " + diffAlgorithm);
+        }
+        diffWindow = getIntParameter(parameters, PARAM_DIFF_WINDOW, StreamingDiff.DEFAULT_WINDOW);
+        diffSpillThreshold = getIntParameter(parameters, PARAM_DIFF_SPILL_THRESHOLD, DEFAULT_DIFF_SPILL_THRESHOLD);
+        diffPartitionDepth = getIntParameter(parameters, PARAM_DIFF_PARTITION_DEPTH, TreeDiff.DEFAULT_PARTITION_DEPTH);
+        textDiffThreshold = getIntParameter(parameters, PARAM_TEXT_DIFF_THRESHOLD, DEFAULT_TEXT_DIFF_THRESHOLD);
+        diffVerify = getBooleanParameter(parameters, PARAM_DIFF_VERIFY, false);
+        diffKey = getParameter(parameters, PARAM_DIFF_KEY)
+                .map(value -> value.trim().split("\\s+"))
+                .filter(names -> names.length > 0 && !names[0].isEmpty())
+                .<Set<String>>map(names -> new HashSet<>(Arrays.asList(names)))
+                .orElse(Collections.emptySet());
+
+        if (getRetentionPolicy(parameters) != null) {
+            // the pruner reads the policies of all collections from their configuration
+            VersionPruner.getInstance(broker.getBrokerPool());
+        }
+
+        if (getParameter(parameters, PARAM_RESTORE_CACHE_SIZE).isPresent()) {
+            RevisionCache.getInstance(broker.getBrokerPool()).setMaxNodes(
+                    getIntParameter(parameters, PARAM_RESTORE_CACHE_SIZE, (int) RevisionCache.DEFAULT_MAX_NODES));
+        }
+
         if (LOG.isDebugEnabled()) {
-			LOG.debug("checkForConflicts: " + checkForConflicts);
+			LOG.debug("checkForConflicts: " + checkForConflicts + "; async: " + (queue != null) +
+					"; coalesce-window: " + coalescePeriod + "ms; storage: " + storage);
 		}
     }
 
+    /**
+     * @return a new diff of the configured algorithm, which has to be closed
+     */
+    private StandardDiff newDiff(final DBBroker broker) {
+        final StandardDiff diff;
+        switch (diffAlgorithm) {
+            case DIFF_TREE:
+                diff = new TreeDiff(broker);
+                break;
+            case DIFF_STREAMING:
+                diff = new StreamingDiff(broker, diffWindow);
+                break;
+            case DIFF_PARALLEL:
+                final TreeDiff treeDiff = new TreeDiff(broker);
+                treeDiff.setParallel(ForkJoinPool.commonPool(), diffPartitionDepth);
+                diff = treeDiff;
+                break;
+            default:
+                diff = new StandardDiff(broker);
+                break;
+        }
+        diff.setSpillThreshold(diffSpillThreshold);
+        diff.setIdentityAttributes(diffKey);
+        diff.setTextEditThreshold(textDiffThreshold);
+        diff.setVerifyMatches(diffVerify);
+        return diff;
+    }
+
+    private static Optional<String> getParameter(final Map<String, List<?>> parameters, final String name) {
+        return Optional.ofNullable(parameters).flatMap(params ->
+                Optional.ofNullable(params.get(name))
+                        .filter(list -> !list.isEmpty())
+                        .map(list -> ((String) list.get(0)).trim()));
+    }
+
+    /**
+     * @param parameters the parameters of the trigger
+     * @return the retention policy configured by the parameters, or null if all revisions are kept
+     */
+    static VersionPruner.Policy getRetentionPolicy(final Map<String, List<?>> parameters) throws TriggerException {
+        final int retainRevisions = getIntParameter(parameters, PARAM_RETAIN_REVISIONS, 0);
+        final int retainDays = getIntParameter(parameters, PARAM_RETAIN_DAYS, 0);
+        final boolean retainDaily = getBooleanParameter(parameters, PARAM_RETAIN_DAILY, false);
+        if (retainRevisions <= 0 && retainDays <= 0 && !retainDaily) {
+            return null;
+        }
+        final long interval = getIntParameter(parameters, PARAM_PRUNE_INTERVAL,
+                (int) (VersionPruner.DEFAULT_INTERVAL / 60000)) * 60000L;
+        return new VersionPruner.Policy(retainRevisions, retainDays, retainDaily, interval);
+    }
+
+    private static boolean getBooleanParameter(final Map<String, List<?>> parameters, final String name,
+            final boolean defaultValue) {
+        return getParameter(parameters, name)
+                .map(value -> value.equals("true") || value.equals("yes"))
+                .orElse(defaultValue);
+    }
+
+    private static double getDoubleParameter(final Map<String, List<?>> parameters, final String name,
+            final double defaultValue) throws TriggerException {
+        final Optional<String> value = getParameter(parameters, name);
+        if (!value.isPresent()) {
+            return defaultValue;
+        }
+        try {
+            return Double.parseDouble(value.get());
+        } catch (final NumberFormatException e) {
+            throw new TriggerException("Illegal value for parameter " + name + ": " + value.get());
+        }
+    }
+
+    private static int getIntParameter(final Map<String, List<?>> parameters, final String name,
+            final int defaultValue) throws TriggerException {
+        final Optional<String> value = getParameter(parameters, name);
+        if (!value.isPresent()) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.get());
+        } catch (final NumberFormatException e) {
+            throw new TriggerException("Illegal value for parameter " + name + ": " + value.get());
+        }
+    }
+
     //XXX: is it safe to delete?
     @Deprecated
     public void finish(final int event, final DBBroker brk, final Txn transaction, XmldbURI documentPath,
@@ -160,8 +408,9 @@ public class VersioningTrigger extends SAXTrigger {
 			}
 
     		if (lastRev != null || event == REMOVE_DOCUMENT_EVENT) {
+    			StandardDiff diff = null;
     			try {
-    				final long revision = newRevision(broker.getBrokerPool());
+    				final long revision = RevisionAllocator.getInstance(broker).next();
     				if (documentPath.isCollectionPathAbsolute()) {
 						documentPath = documentPath.lastSegment();
 					}
@@ -169,69 +418,56 @@ public class VersioningTrigger extends SAXTrigger {
 
     				broker.setTriggersEnabled(false);
 
-    				try(StringWriter writer = new StringWriter()) {
-						final SAXSerializer sax = (SAXSerializer) SerializerPool.getInstance().borrowObject(
-								SAXSerializer.class);
-						final Properties outputProperties = new Properties();
-						outputProperties.setProperty(OutputKeys.OMIT_XML_DECLARATION, "no");
-						outputProperties.setProperty(OutputKeys.INDENT, "no");
-						sax.setOutput(writer, outputProperties);
-
-						sax.startDocument();
-						sax.startElement(ELEMENT_VERSION, null);
-						writeProperties(sax, getVersionProperties(revision, documentPath, activeSubject));
-
-						if (event == REMOVE_DOCUMENT_EVENT) {
-							sax.startElement(ELEMENT_REMOVED, null);
-							sax.endElement(ELEMENT_REMOVED);
-						} else {
-
-							//Diff
-							if (document instanceof BinaryDocument) {
-								//create a copy of the last Binary revision
-								final XmldbURI binUri = XmldbURI.create(diffUri.toString() + BINARY_SUFFIX);
-								broker.copyResource(transaction, document, vCollection, binUri);
-
-								//Create metadata about the last Binary Version
-								sax.startElement(ELEMENT_REPLACED_BINARY, null);
-								sax.attribute(ATTRIBUTE_REF, binUri.toString());
-								sax.endElement(ELEMENT_REPLACED_BINARY);
-							} else if (lastRev instanceof BinaryDocument) {
-								//create a copy of the last XML revision
-								final XmldbURI xmlUri = XmldbURI.create(diffUri.toString() + XML_SUFFIX);
-								broker.copyResource(transaction, document, vCollection, xmlUri);
-
-								//Create metadata about the last Binary Version
-								sax.startElement(ELEMENT_REPLACED_XML, null);
-								sax.attribute(ATTRIBUTE_REF, xmlUri.toString());
-								sax.endElement(ELEMENT_REPLACED_BINARY);
-							} else {
-								//Diff the XML versions
-								final Diff diff = new StandardDiff(broker);
-								diff.diff(lastRev, document);
-								diff.diff2XML(sax);
-							}
-
-							sax.endElement(ELEMENT_VERSION);
-
-							sax.endDocument();
-							final String editscript = writer.toString();
-
-							if (removeLast) {
-								if (lastRev instanceof BinaryDocument) {
-									vCollection.removeBinaryResource(transaction, broker, lastRev.getFileURI());
-								} else {
-									vCollection.removeXMLResource(transaction, broker, lastRev.getFileURI());
-								}
-							}
-
-							final IndexInfo info = vCollection.validateXMLResource(transaction, broker, diffUri, editscript);
-							vCollection.store(transaction, broker, info, editscript);
-						}
-					}
+    				final VersionDocument receiver = new VersionDocument(
+    						getVersionProperties(revision, documentPath, activeSubject));
+
+    				if (event == REMOVE_DOCUMENT_EVENT) {
+    					receiver.startElement(ELEMENT_REMOVED, null);
+    					receiver.endElement(ELEMENT_REMOVED);
+    				} else {
+
+    					//Diff
+    					if (document instanceof BinaryDocument) {
+    						//create a copy of the last Binary revision
+    						final XmldbURI binUri = XmldbURI.create(diffUri.toString() + BINARY_SUFFIX);
+    						broker.copyResource(transaction, document, vCollection, binUri, DBBroker.PreserveType.DEFAULT);
+
+    						//Create metadata about the last Binary Version
+    						receiver.startElement(ELEMENT_REPLACED_BINARY, null);
+    						receiver.attribute(ATTRIBUTE_REF, binUri.toString());
+    						receiver.endElement(ELEMENT_REPLACED_BINARY);
+    					} else if (lastRev instanceof BinaryDocument) {
+    						//create a copy of the last XML revision
+    						final XmldbURI xmlUri = XmldbURI.create(diffUri.toString() + XML_SUFFIX);
+    						broker.copyResource(transaction, document, vCollection, xmlUri, DBBroker.PreserveType.DEFAULT);
+
+    						//Create metadata about the last Binary Version
+    						receiver.startElement(ELEMENT_REPLACED_XML, null);
+    						receiver.attribute(ATTRIBUTE_REF, xmlUri.toString());
+    						receiver.endElement(ELEMENT_REPLACED_XML);
+    					} else {
+    						//Diff the XML versions
+    						diff = newDiff(broker);
+    						diff.diff(lastRev, document);
+    						receiver.diff(diff);
+    					}
+
+    					if (removeLast) {
+    						if (lastRev instanceof BinaryDocument) {
+    							vCollection.removeBinaryResource(transaction, broker, lastRev.getFileURI());
+    						} else {
+    							vCollection.removeXMLResource(transaction, broker, lastRev.getFileURI());
+    						}
+    					}
+
+    					receiver.store(broker, transaction, vCollection, diffUri);
+    				}
     			} catch (final Exception e) {
     				LOG.error("Caught exception in VersioningTrigger: " + e.getMessage(), e);
     			} finally {
+    				if (diff != null) {
+    					diff.close();
+    				}
     				broker.setTriggersEnabled(true);
     			}
     		}
@@ -257,6 +493,9 @@ public class VersioningTrigger extends SAXTrigger {
             if (collection.getURI().startsWith(VERSIONS_COLLECTION)) {
 				return;
 			}
+            if (!remove) {
+                acquireQueuePermit(transaction, document);
+            }
             vCollection = getVersionsCollection(broker, transaction, documentPath.removeLastSegment());
 
             final String existingURI = document.getFileURI().toString();
@@ -268,7 +507,7 @@ public class VersioningTrigger extends SAXTrigger {
                 vFileName = baseURI.toString();
                 removeLast = false;
                 // copy existing document to base revision here!
-                broker.copyResource(transaction, document, vCollection, baseURI);
+                broker.copyResource(transaction, document, vCollection, baseURI, DBBroker.PreserveType.DEFAULT);
             } else if (remove) {
                 vFileName = existingURI + DELETED_SUFFIX;
                 removeLast = false;
@@ -280,12 +519,12 @@ public class VersioningTrigger extends SAXTrigger {
             // setReferenced(true) will tell the broker that the document
             // data is referenced from another document and should not be
             // deleted when the original document is removed.
-            document.getMetadata().setReferenced(true);
+            document.setReferenced(true);
 
 
             if(document instanceof BinaryDocument) {
                 final XmldbURI binUri = XmldbURI.createInternal(vFileName);
-                broker.copyResource(transaction, document, vCollection, binUri);
+                broker.copyResource(transaction, document, vCollection, binUri, DBBroker.PreserveType.DEFAULT);
                 vDoc = vCollection.getDocument(broker, binUri);
             } else {
 
@@ -314,10 +553,15 @@ public class VersioningTrigger extends SAXTrigger {
 
 		final Subject activeSubject = brk.getCurrentSubject();
 		final BrokerPool brokerPool = brk.getBrokerPool();
+		if (remove) {
+			RevisionCache.getInstance(brokerPool).invalidate(transaction, documentPath);
+			forgetDocument(brokerPool, documentPath);
+		}
 		try(final DBBroker broker = brokerPool.get(Optional.of(brokerPool.getSecurityManager().getSystemSubject()))) {
 
     		if (!remove) {
     			try {
+    				acquireQueuePermit(transaction, document);
     				vCollection = getVersionsCollection(broker, transaction, documentPath.removeLastSegment());
 
     				final String existingURI = document.getFileURI().toString();
@@ -337,79 +581,240 @@ public class VersioningTrigger extends SAXTrigger {
 			}
 
     		if (lastRev != null || remove) {
+    			StandardDiff diff = null;
     			try {
+    				final XmldbURI fullPath = documentPath;
+    				final boolean xmlUpdate = !remove && !(document instanceof BinaryDocument)
+    						&& !(lastRev instanceof BinaryDocument);
+    				// without a place in the queue, diff synchronously, unless earlier revisions of a document
+    				// are still queued: they have to be processed first
+    				final boolean sync = xmlUpdate && (queue == null ||
+    						!queuePermit && !queue.hasPending(vCollection.getURI(), document.getFileURI().toString()));
+    				if (sync && queue != null && LOG.isDebugEnabled()) {
+    					LOG.debug("Versioning queue is full. Generating version of " + documentPath + " synchronously.");
+    				}
+    				final boolean chain = sync && chainDeltas;
+
+    				long revision = -1;
+    				if (coalescePeriod > 0) {
+    					if (!xmlUpdate || removeLast) {
+    						CoalescingWindow.getInstance(brokerPool).close(transaction, fullPath);
+    					} else {
+    						revision = CoalescingWindow.getInstance(brokerPool).find(fullPath, activeSubject.getName(),
+    								coalescePeriod, coalesceMaxSaves);
+    					}
+    				}
+    				final boolean coalesced = revision > -1;
+
+    				// in chain mode, diff against the previous revision instead of the base
+    				final String existingURI = document == null ? null : document.getFileURI().toString();
+    				DocumentImpl diffBase = lastRev;
+    				boolean chained = false;
+    				if (chain && !removeLast) {
+    					final XmldbURI previousUri = XmldbURI.create(existingURI + (coalesced ? WINDOW_SUFFIX : HEAD_SUFFIX));
+    					final DocumentImpl previous = vCollection.getDocument(broker, previousUri);
+    					if (previous != null) {
+    						diffBase = previous;
+    						chained = true;
+    					}
+    				}
+
+    				// diff first: if the content did not change since the last revision, there is nothing to store
+    				if (sync) {
+    					diff = newDiff(broker);
+    					final String headFingerprint = removeLast ? null : getHeadFingerprint(broker, fullPath);
+    					if (!diff.diffIfChanged(DiffSkeleton.source(transaction, diffBase), DiffSource.of(document),
+    							headFingerprint)) {
+    						if (LOG.isDebugEnabled()) {
+    							LOG.debug("Content of " + fullPath + " did not change. No revision created.");
+    						}
+    						return;
+    					}
+    				}
 
-    				final long revision = newRevision(broker.getBrokerPool());
+    				if (coalesced) {
+    					CoalescingWindow.getInstance(brokerPool).join(transaction, fullPath, revision);
+    				} else {
+    					revision = RevisionAllocator.getInstance(broker).next();
+    				}
     				if (documentPath.isCollectionPathAbsolute()) {
     					documentPath = documentPath.lastSegment();
     				}
     				final XmldbURI diffUri = XmldbURI.createInternal(documentPath.toString() + '.' + revision);
+    				VersioningQueue.Job job = null;
 
     				broker.setTriggersEnabled(false);
 
-    				try(final StringWriter writer = new StringWriter()) {
-						final SAXSerializer sax = (SAXSerializer) SerializerPool.getInstance().borrowObject(
-								SAXSerializer.class);
-						final Properties outputProperties = new Properties();
-						outputProperties.setProperty(OutputKeys.OMIT_XML_DECLARATION, "no");
-						outputProperties.setProperty(OutputKeys.INDENT, "no");
-						sax.setOutput(writer, outputProperties);
-
-						sax.startDocument();
-						sax.startElement(ELEMENT_VERSION, null);
-						writeProperties(sax, getVersionProperties(revision, documentPath, activeSubject));
-
-						if (remove) {
-							sax.startElement(ELEMENT_REMOVED, null);
-							sax.endElement(ELEMENT_REMOVED);
-						} else {
-
-							//Diff
-							if (document instanceof BinaryDocument) {
-								//create a copy of the last Binary revision
-								final XmldbURI binUri = XmldbURI.create(diffUri.toString() + BINARY_SUFFIX);
-								broker.copyResource(transaction, document, vCollection, binUri);
-
-								//Create metadata about the last Binary Version
-								sax.startElement(ELEMENT_REPLACED_BINARY, null);
-								sax.attribute(ATTRIBUTE_REF, binUri.toString());
-								sax.endElement(ELEMENT_REPLACED_BINARY);
-							} else if (lastRev instanceof BinaryDocument) {
-								//create a copy of the last XML revision
-								final XmldbURI xmlUri = XmldbURI.create(diffUri.toString() + XML_SUFFIX);
-								broker.copyResource(transaction, document, vCollection, xmlUri);
-
-								//Create metadata about the last Binary Version
-								sax.startElement(ELEMENT_REPLACED_XML, null);
-								sax.attribute(ATTRIBUTE_REF, xmlUri.toString());
-								sax.endElement(ELEMENT_REPLACED_XML);
-							} else {
-								//Diff the XML versions
-								final Diff diff = new StandardDiff(broker);
-								diff.diff(lastRev, document);
-								diff.diff2XML(sax);
-							}
-
-							sax.endElement(ELEMENT_VERSION);
-
-							sax.endDocument();
-							final String editscript = writer.toString();
-
-							if (removeLast) {
-								if (lastRev instanceof BinaryDocument) {
-									vCollection.removeBinaryResource(transaction, broker, lastRev.getFileURI());
-								} else {
-									vCollection.removeXMLResource(transaction, broker, lastRev.getFileURI());
-								}
-							}
-
-							final IndexInfo info = vCollection.validateXMLResource(transaction, broker, diffUri, editscript);
-							vCollection.store(transaction, broker, info, editscript);
-						}
-					}
+    				final Properties properties = getVersionProperties(revision, documentPath, activeSubject);
+    				if (diff != null) {
+    					properties.setProperty("fingerprint", diff.getFingerprint());
+    				}
+    				if (chained) {
+    					properties.setProperty("storage", STORAGE_CHAIN);
+    				}
+    				final VersionDocument receiver = new VersionDocument(properties);
+
+    				if (remove) {
+    					receiver.startElement(ELEMENT_REMOVED, null);
+    					receiver.endElement(ELEMENT_REMOVED);
+    				} else {
+
+    					//Diff
+    					if (document instanceof BinaryDocument) {
+    						final ContentStore contentStore = ContentStore.getInstance(brokerPool);
+    						final String deltaBase = binaryDelta ?
+    								getBinaryDeltaBase(brokerPool, fullPath, (BinaryDocument) document) : null;
+    						final XmldbURI deltaUri = XmldbURI.create(diffUri.toString() + BINARY_DELTA_SUFFIX);
+    						boolean delta = false;
+    						if (deltaBase != null && contentStore.retain(broker, transaction, deltaBase)) {
+    							delta = storeBinaryDelta(broker, transaction, vCollection, deltaUri, deltaBase,
+    									(BinaryDocument) document);
+    							if (!delta) {
+    								contentStore.release(broker, transaction, deltaBase);
+    							}
+    						}
+    						if (delta) {
+    							//store the last Binary revision as delta against the last keyframe
+    							receiver.startElement(ELEMENT_REPLACED_BINARY, null);
+    							receiver.attribute(ATTRIBUTE_REF, deltaUri.toString());
+    							receiver.attribute(ATTRIBUTE_BASE, deltaBase);
+    							receiver.endElement(ELEMENT_REPLACED_BINARY);
+    							updateBinaryKeyframe(brokerPool, transaction, fullPath, deltaBase);
+    						} else {
+    							//store the last Binary revision once per content
+    							final String binRef = contentStore.store(broker, transaction, (BinaryDocument) document);
+
+    							//Create metadata about the last Binary Version
+    							receiver.startElement(ELEMENT_REPLACED_BINARY, null);
+    							receiver.attribute(ATTRIBUTE_REF, binRef);
+    							receiver.endElement(ELEMENT_REPLACED_BINARY);
+    							if (binaryDelta) {
+    								updateBinaryKeyframe(brokerPool, transaction, fullPath, binRef);
+    							}
+    						}
+    					} else if (lastRev instanceof BinaryDocument) {
+    						//create a copy of the last XML revision
+    						final XmldbURI xmlUri = XmldbURI.create(diffUri.toString() + XML_SUFFIX);
+    						broker.copyResource(transaction, document, vCollection, xmlUri, DBBroker.PreserveType.DEFAULT);
+
+    						//Create metadata about the last Binary Version
+    						receiver.startElement(ELEMENT_REPLACED_XML, null);
+    						receiver.attribute(ATTRIBUTE_REF, xmlUri.toString());
+    						receiver.endElement(ELEMENT_REPLACED_XML);
+    					} else if (!sync) {
+    						// a coalesced save only replaces the snapshot while the revision is pending: its job
+    						// is already queued and will read the new snapshot
+    						final boolean generated = coalesced &&
+    								getPendingElement(vCollection.getDocument(broker, diffUri)) == null;
+    						if (generated && chainDeltas) {
+    							rewindHead(broker, transaction, vCollection, existingURI);
+    						}
+
+    						//snapshot the new revision and leave the diff to the queue
+    						final XmldbURI pendingUri = XmldbURI.create(diffUri.toString() + PENDING_SUFFIX);
+    						broker.copyResource(transaction, document, vCollection, pendingUri, DBBroker.PreserveType.DEFAULT);
+
+    						receiver.startElement(ELEMENT_PENDING, null);
+    						receiver.attribute(ATTRIBUTE_REF, pendingUri.toString());
+    						if (coalesced) {
+    							receiver.attribute(ATTRIBUTE_COALESCED, "yes");
+    						}
+    						if (removeLast) {
+    							// the deleted revision is removed below: keep a copy for the queue to diff against
+    							final XmldbURI baseUri = XmldbURI.create(diffUri.toString() + DELETED_SUFFIX);
+    							broker.copyResource(transaction, lastRev, vCollection, baseUri, DBBroker.PreserveType.DEFAULT);
+    							receiver.attribute(ATTRIBUTE_BASE, baseUri.toString());
+    						}
+    						receiver.endElement(ELEMENT_PENDING);
+
+    						if (!coalesced || generated) {
+    							job = new VersioningQueue.Job(this, vCollection.getURI(), diffUri, documentPath.toString(),
+    									revision);
+    						}
+    					} else {
+    						writeDiff(broker, transaction, vCollection, diffUri, diff, receiver);
+    					}
+
+    					org.exist.dom.memtree.DocumentImpl content = null;
+    					if (chain) {
+    						// store a copy of the new content to diff the next revision against
+    						content = copyToMemory(broker, document);
+    						final XmldbURI keyframeUri = XmldbURI.create(diffUri.toString() + KEYFRAME_SUFFIX);
+    						// a recreated document is diffed against its deleted revision, which cannot be restored
+    						// later, so always keep a keyframe. A coalesced save keeps the decision taken for the first
+    						// save of its revision.
+    						final boolean keyframe;
+    						if (removeLast) {
+    							keyframe = true;
+    						} else if (coalesced) {
+    							keyframe = chained && vCollection.getDocument(broker, keyframeUri) != null;
+    						} else {
+    							keyframe = isKeyframeDue(brokerPool, fullPath, chained, diff);
+    						}
+    						if (keyframe) {
+    							receiver.startElement(ELEMENT_KEYFRAME, null);
+    							receiver.attribute(ATTRIBUTE_REF, keyframeUri.toString());
+    							receiver.endElement(ELEMENT_KEYFRAME);
+    							storeNode(broker, transaction, vCollection, keyframeUri, content);
+    						}
+    					}
+
+    					if (removeLast) {
+    						if (lastRev instanceof BinaryDocument) {
+    							vCollection.removeBinaryResource(transaction, broker, lastRev.getFileURI());
+    						} else {
+    							vCollection.removeXMLResource(transaction, broker, lastRev.getFileURI());
+    						}
+    					}
+
+    					if (diff != null && !chained && !removeLast && !diff.isSourceCached() &&
+    							diff.getSourceNodes() != null) {
+    						// keep the nodes of the diff base, so the next diff only reads the new revision
+    						DiffSkeleton.store(broker, transaction, vCollection, diffBase, diff.getSourceNodes());
+    					}
+
+    					receiver.store(broker, transaction, vCollection, diffUri);
+    					RevisionIndex.getInstance(brokerPool).put(transaction, broker, vCollection,
+    							VersionHistory.Revision.read(vCollection.getDocument(broker, diffUri)));
+
+    					if (chain) {
+    						final XmldbURI headUri = XmldbURI.create(existingURI + HEAD_SUFFIX);
+    						final XmldbURI windowUri = XmldbURI.create(existingURI + WINDOW_SUFFIX);
+    						if (coalescePeriod > 0 && !coalesced) {
+    							// keep the revision preceding the new window to diff coalesced saves against
+    							final DocumentImpl head = vCollection.getDocument(broker, headUri);
+    							if (head != null) {
+    								broker.copyResource(transaction, head, vCollection, windowUri, DBBroker.PreserveType.DEFAULT);
+    							} else if (vCollection.getDocument(broker, windowUri) != null) {
+    								vCollection.removeXMLResource(transaction, broker, windowUri);
+    							}
+    						}
+    						storeNode(broker, transaction, vCollection, headUri, content);
+    						DiffSkeleton.store(broker, transaction, vCollection, vCollection.getDocument(broker, headUri), diff);
+    					}
+    				}
+
+    				if (diff != null) {
+    					headFingerprints(brokerPool).put(fullPath, diff.getFingerprint());
+    				} else {
+    					headFingerprints(brokerPool).remove(fullPath);
+    				}
+
+    				if (coalescePeriod > 0 && !coalesced && xmlUpdate && !removeLast) {
+    					CoalescingWindow.getInstance(brokerPool).open(transaction, fullPath, activeSubject.getName(),
+    							revision, coalescePeriod);
+    				}
+
+    				if (job != null) {
+    					queue.submit(transaction, job, queuePermit);
+    					queuePermit = false;
+    				}
     			} catch (final Exception e) {
     				LOG.error("Caught exception in VersioningTrigger: " + e.getMessage(), e);
     			} finally {
+    				if (diff != null) {
+    					diff.close();
+    				}
     				broker.setTriggersEnabled(true);
     			}
     		}
@@ -418,6 +823,404 @@ public class VersioningTrigger extends SAXTrigger {
 		}
     }
 
+    /**
+     * Write the diff of two XML revisions into a version document: as XML, or as binary edit
+     * script stored next to it.
+     */
+    private void writeDiff(final DBBroker broker, final Txn transaction, final Collection vCollection,
+            final XmldbURI diffUri, final StandardDiff diff, final VersionDocument receiver) throws DiffException,
+            IOException, SAXException, EXistException, PermissionDeniedException, LockException, TriggerException {
+        if (binaryFormat) {
+            //Write the diff of the XML versions as binary edit script
+            final XmldbURI scriptUri = XmldbURI.create(diffUri.toString() + BINARY_DIFF_SUFFIX);
+            final ByteArrayOutputStream os = new ByteArrayOutputStream();
+            diff.diff2Binary(os, compressDiff);
+            try (final InputStream is = new ByteArrayInputStream(os.toByteArray())) {
+                vCollection.addBinaryResource(transaction, broker, scriptUri, is, BINARY_DELTA_MIME_TYPE, os.size());
+            }
+
+            receiver.startElement(ELEMENT_BINARY_DIFF, null);
+            receiver.attribute(ATTRIBUTE_REF, scriptUri.toString());
+            receiver.endElement(ELEMENT_BINARY_DIFF);
+        } else {
+            //Write the diff of the XML versions
+            receiver.diff(diff);
+        }
+    }
+
+    /**
+     * Replace a pending version stub with the complete version, as this trigger does in
+     * synchronous mode: diff the snapshot of the new revision against the previous revision in
+     * chain mode, else against the base, and update the head, keyframe and skeleton documents.
+     * The {@link VersioningQueue} calls this for the pending revisions of a document in revision
+     * order, so the head always holds the revision preceding the snapshot.
+     *
+     * @param broker the broker to use
+     * @param transaction the current transaction
+     * @param vCollection the versions collection, locked for writing
+     * @param versionUri the name of the version stub
+     * @return false if the stub is gone or was already replaced
+     */
+    boolean storePendingVersion(final DBBroker broker, final Txn transaction, final Collection vCollection,
+            final XmldbURI versionUri) throws IOException, SAXException, DiffException, EXistException,
+            PermissionDeniedException, LockException, TriggerException, XMLStreamException {
+        final DocumentImpl stub = vCollection.getDocument(broker, versionUri);
+        final Element pendingElement = getPendingElement(stub);
+        if (pendingElement == null) {
+            return false;
+        }
+        final Properties properties = readProperties(stub.getDocumentElement());
+        final String name = properties.getProperty("document");
+        final XmldbURI pendingUri = XmldbURI.create(pendingElement.getAttribute(ATTRIBUTE_REF.getLocalPart()));
+        final String baseRef = pendingElement.getAttribute(ATTRIBUTE_BASE.getLocalPart());
+        final boolean coalesced = "yes".equals(pendingElement.getAttribute(ATTRIBUTE_COALESCED.getLocalPart()));
+        final DocumentImpl pending = vCollection.getDocument(broker, pendingUri);
+
+        // a recreated document is diffed against a copy of its deleted revision
+        final XmldbURI deletedUri = baseRef == null || baseRef.isEmpty() ? null : XmldbURI.create(baseRef);
+        DocumentImpl diffBase = null;
+        boolean chained = false;
+        if (deletedUri != null) {
+            diffBase = vCollection.getDocument(broker, deletedUri);
+        } else {
+            if (chainDeltas) {
+                diffBase = vCollection.getDocument(broker, XmldbURI.create(name + HEAD_SUFFIX));
+                chained = diffBase != null;
+            }
+            if (diffBase == null) {
+                diffBase = vCollection.getDocument(broker, XmldbURI.create(name + BASE_SUFFIX));
+            }
+        }
+        if (pending == null || diffBase == null) {
+            LOG.warn("Dropping pending version " + versionUri + " in " + vCollection.getURI() +
+                    ": snapshot or revision to diff against is missing");
+            return false;
+        }
+
+        final BrokerPool brokerPool = broker.getBrokerPool();
+        final XmldbURI docPath = RevisionIndex.sourcePath(vCollection.getURI(), name);
+        try (final StandardDiff diff = newDiff(broker)) {
+            diff.diff(DiffSkeleton.source(transaction, diffBase), DiffSource.of(pending));
+            properties.setProperty("fingerprint", diff.getFingerprint());
+            if (chained) {
+                properties.setProperty("storage", STORAGE_CHAIN);
+            }
+
+            final VersionDocument receiver = new VersionDocument(properties);
+            writeDiff(broker, transaction, vCollection, versionUri, diff, receiver);
+
+            org.exist.dom.memtree.DocumentImpl content = null;
+            if (chainDeltas) {
+                content = copyToMemory(broker, pending);
+                // a coalesced save keeps the decision taken for the first save of its revision
+                final XmldbURI keyframeUri = XmldbURI.create(versionUri.toString() + KEYFRAME_SUFFIX);
+                final boolean keyframe;
+                if (deletedUri != null) {
+                    keyframe = true;
+                } else if (coalesced) {
+                    keyframe = vCollection.getDocument(broker, keyframeUri) != null;
+                } else {
+                    keyframe = isKeyframeDue(brokerPool, docPath, chained, diff);
+                }
+                if (keyframe) {
+                    receiver.startElement(ELEMENT_KEYFRAME, null);
+                    receiver.attribute(ATTRIBUTE_REF, keyframeUri.toString());
+                    receiver.endElement(ELEMENT_KEYFRAME);
+                    storeNode(broker, transaction, vCollection, keyframeUri, content);
+                }
+            }
+
+            if (!chained && deletedUri == null && !diff.isSourceCached() && diff.getSourceNodes() != null) {
+                DiffSkeleton.store(broker, transaction, vCollection, diffBase, diff.getSourceNodes());
+            }
+
+            receiver.store(broker, transaction, vCollection, versionUri);
+            RevisionIndex.getInstance(brokerPool).put(transaction, broker, vCollection,
+                    VersionHistory.Revision.read(vCollection.getDocument(broker, versionUri)));
+
+            if (chainDeltas) {
+                final XmldbURI headUri = XmldbURI.create(name + HEAD_SUFFIX);
+                if (coalescePeriod > 0) {
+                    // keep the revision preceding a coalescing window, see rewindHead
+                    final XmldbURI windowUri = XmldbURI.create(name + WINDOW_SUFFIX);
+                    if (chained) {
+                        broker.copyResource(transaction, diffBase, vCollection, windowUri, DBBroker.PreserveType.DEFAULT);
+                    } else if (vCollection.getDocument(broker, windowUri) != null) {
+                        vCollection.removeXMLResource(transaction, broker, windowUri);
+                    }
+                }
+                storeNode(broker, transaction, vCollection, headUri, content);
+                DiffSkeleton.store(broker, transaction, vCollection, vCollection.getDocument(broker, headUri), diff);
+            }
+        }
+
+        vCollection.removeXMLResource(transaction, broker, pendingUri);
+        if (deletedUri != null) {
+            if (diffBase instanceof BinaryDocument) {
+                vCollection.removeBinaryResource(transaction, broker, deletedUri);
+            } else {
+                vCollection.removeXMLResource(transaction, broker, deletedUri);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Reset the head of a document to the revision preceding the current coalescing window,
+     * before a coalesced save replaces the snapshot of a revision the queue already generated.
+     * The job of the save then diffs against the preceding revision again, as a coalesced
+     * save in synchronous mode does against the window document.
+     */
+    private static void rewindHead(final DBBroker broker, final Txn transaction, final Collection vCollection,
+            final String name) throws PermissionDeniedException, LockException, IOException, TriggerException,
+            EXistException {
+        final XmldbURI headUri = XmldbURI.create(name + HEAD_SUFFIX);
+        final XmldbURI skeletonUri = XmldbURI.create(headUri.toString() + DiffSkeleton.SKELETON_SUFFIX);
+        if (vCollection.getDocument(broker, skeletonUri) != null) {
+            vCollection.removeBinaryResource(transaction, broker, skeletonUri);
+        }
+        final DocumentImpl window = vCollection.getDocument(broker, XmldbURI.create(name + WINDOW_SUFFIX));
+        if (window != null) {
+            broker.copyResource(transaction, window, vCollection, headUri, DBBroker.PreserveType.DEFAULT);
+        } else if (vCollection.getDocument(broker, headUri) != null) {
+            // the revision was the first one diffed against the head: diff against the base again
+            vCollection.removeXMLResource(transaction, broker, headUri);
+        }
+    }
+
+    /**
+     * @return the <code>v:pending</code> element of a version document, or null if the
+     * version was generated
+     */
+    private static Element getPendingElement(final DocumentImpl version) {
+        return version == null || version instanceof BinaryDocument ? null :
+                getChildElement(version.getDocumentElement(), ELEMENT_PENDING);
+    }
+
+    private static Element getChildElement(final Element parent, final QName qname) {
+        for (Node node = parent.getFirstChild(); node != null; node = node.getNextSibling()) {
+            if (node.getNodeType() == Node.ELEMENT_NODE && qname.getNamespaceURI().equals(node.getNamespaceURI()) &&
+                    qname.getLocalPart().equals(node.getLocalName())) {
+                return (Element) node;
+            }
+        }
+        return null;
+    }
+
+    private static Properties readProperties(final Element version) {
+        final Properties properties = new Properties();
+        final Element element = getChildElement(version, PROPERTIES_ELEMENT);
+        if (element != null) {
+            for (Node prop = element.getFirstChild(); prop != null; prop = prop.getNextSibling()) {
+                if (prop.getNodeType() == Node.ELEMENT_NODE) {
+                    final Node text = prop.getFirstChild();
+                    properties.setProperty(prop.getLocalName(), text == null ? "" : text.getNodeValue());
+                }
+            }
+        }
+        return properties;
+    }
+
+    /**
+     * Create the trigger configured for a collection, to generate its pending versions after a
+     * restart. Falls back to the default configuration if the collection is gone or no longer
+     * versioned.
+     *
+     * @param broker the broker to use
+     * @param transaction the current transaction
+     * @param collectionPath the path of the versioned collection
+     * @return the configured trigger
+     */
+    static VersioningTrigger forCollection(final DBBroker broker, final Txn transaction,
+            final XmldbURI collectionPath) throws PermissionDeniedException, LockException, TriggerException {
+        try (final Collection collection = broker.openCollection(collectionPath, Lock.LockMode.READ_LOCK)) {
+            final CollectionConfiguration config = collection == null ? null : collection.getConfiguration(broker);
+            if (config != null) {
+                for (final TriggerProxy<? extends DocumentTrigger> proxy : config.documentTriggers()) {
+                    if (VersioningTrigger.class.isAssignableFrom(proxy.getClazz())) {
+                        return (VersioningTrigger) proxy.newInstance(broker, transaction, collection);
+                    }
+                }
+            }
+        }
+        LOG.warn("Versioning is not configured for " + collectionPath + ". Using the default configuration.");
+        return new VersioningTrigger();
+    }
+
+    private static Map<XmldbURI, String> headFingerprints(final BrokerPool pool) {
+        return headFingerprints.computeIfAbsent(pool, p -> newDocumentMap());
+    }
+
+    /**
+     * The state kept per document is only a shortcut, which is recomputed or replaced by a
+     * keyframe if missing, so the maps only keep the most recently versioned documents.
+     */
+    private static <V> Map<XmldbURI, V> newDocumentMap() {
+        return Collections.synchronizedMap(new LinkedHashMap<XmldbURI, V>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<XmldbURI, V> eldest) {
+                return size() > MAX_TRACKED_DOCUMENTS;
+            }
+        });
+    }
+
+    /**
+     * Drop the state kept for a deleted or moved document.
+     */
+    private static void forgetDocument(final BrokerPool pool, final XmldbURI docPath) {
+        headFingerprints(pool).remove(docPath);
+        keyframeCounters.computeIfAbsent(pool, p -> newDocumentMap()).remove(docPath);
+        binaryKeyframes.computeIfAbsent(pool, p -> newDocumentMap()).remove(docPath);
+    }
+
+    /**
+     * Returns the content fingerprint of the latest revision of a document, if known.
+     */
+    private static String getHeadFingerprint(final DBBroker broker, final XmldbURI docPath) {
+        final String fingerprint = headFingerprints(broker.getBrokerPool()).get(docPath);
+        if (fingerprint != null) {
+            return fingerprint;
+        }
+        try {
+            return VersioningHelper.getHeadFingerprint(broker, docPath);
+        } catch (final LockException | IOException | PermissionDeniedException e) {
+            LOG.warn("Could not determine fingerprint of latest revision of " + docPath + ": " + e.getMessage(), e);
+            return null;
+        }
+    }
+
+    /**
+     * Returns the content to diff a binary revision against, or null if the revision should
+     * be stored in full: because it is small, because there is no known keyframe or because
+     * the configured number of deltas has been stored since the last keyframe.
+     */
+    private String getBinaryDeltaBase(final BrokerPool pool, final XmldbURI docPath, final BinaryDocument document) {
+        if (document.getContentLength() < BINARY_DELTA_MIN_SIZE) {
+            return null;
+        }
+        final BinaryKeyframe keyframe = binaryKeyframes.computeIfAbsent(pool, p -> newDocumentMap())
+                .get(docPath);
+        if (keyframe == null || keyframe.deltas + 1 >= binaryKeyframeInterval) {
+            return null;
+        }
+        return keyframe.ref;
+    }
+
+    /**
+     * Record the new binary revision once the transaction commits: as new keyframe, if ref
+     * differs from the current keyframe, otherwise as another delta against it.
+     */
+    private static void updateBinaryKeyframe(final BrokerPool pool, final Txn transaction, final XmldbURI docPath,
+            final String ref) {
+        transaction.registerListener(new TxnListener() {
+            @Override
+            public void commit() {
+                binaryKeyframes.computeIfAbsent(pool, p -> newDocumentMap())
+                        .merge(docPath, new BinaryKeyframe(ref, 0), (current, keyframe) ->
+                                current.ref.equals(ref) ? new BinaryKeyframe(ref, current.deltas + 1) : keyframe);
+            }
+
+            @Override
+            public void abort() {
+            }
+        });
+    }
+
+    /**
+     * Store a delta of a binary document against stored content. Returns false without
+     * storing anything if the source is missing or the delta is not considerably smaller than
+     * the document itself.
+     */
+    private static boolean storeBinaryDelta(final DBBroker broker, final Txn transaction, final Collection vCollection,
+            final XmldbURI deltaUri, final String base, final BinaryDocument document) throws IOException,
+            PermissionDeniedException, LockException, EXistException, TriggerException {
+        final Path tmp = Files.createTempFile("versioning", ".bdelta");
+        try {
+            try (final LockedDocument source = broker.getXMLResource(ContentStore.resolve(base), Lock.LockMode.READ_LOCK)) {
+                if (source == null || !(source.getDocument() instanceof BinaryDocument)) {
+                    return false;
+                }
+                try {
+                    broker.withBinaryFile(transaction, (BinaryDocument) source.getDocument(), sourceFile -> {
+                        try (final SeekableByteChannel channel = Files.newByteChannel(sourceFile);
+                                final InputStream target = new BufferedInputStream(broker.getBinaryResource(transaction, document));
+                                final OutputStream out = new BufferedOutputStream(Files.newOutputStream(tmp))) {
+                            return BinaryDelta.encode(channel, target, out);
+                        } catch (final IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    });
+                } catch (final UncheckedIOException e) {
+                    throw e.getCause();
+                }
+            }
+
+            final long size = Files.size(tmp);
+            if (size > document.getContentLength() * BINARY_DELTA_MAX_RATIO) {
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug("Delta of " + document.getURI() + " is too large: " + size + " bytes");
+                }
+                return false;
+            }
+            try (final InputStream is = Files.newInputStream(tmp)) {
+                vCollection.addBinaryResource(transaction, broker, deltaUri, is, BINARY_DELTA_MIME_TYPE, size);
+            }
+            return true;
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    /**
+     * Decide if a chained revision should be stored as a keyframe: either because the
+     * configured number of chained revisions has been reached since the last keyframe, or
+     * because the delta is large compared to the document.
+     */
+    private boolean isKeyframeDue(final BrokerPool pool, final XmldbURI docPath, final boolean chained,
+            final StandardDiff diff) {
+        final Map<XmldbURI, Integer> counters = keyframeCounters.computeIfAbsent(pool, p -> newDocumentMap());
+        if (!chained) {
+            // diffed against the base, so the revision can already be restored without a chain
+            counters.put(docPath, 0);
+            return false;
+        }
+        final Integer count = counters.get(docPath);
+        final boolean due = count == null || count + 1 >= keyframeInterval ||
+                diff.getChangedNodeCount() > keyframeThreshold * diff.getNodeCount();
+        counters.put(docPath, due ? 0 : count + 1);
+        return due;
+    }
+
+    /**
+     * Create an in-memory copy of a stored document. When stored, the copy gets the node ids of
+     * a freshly parsed document, as do the documents reconstructed by applying patches.
+     */
+    static org.exist.dom.memtree.DocumentImpl copyToMemory(final DBBroker broker,
+            final DocumentImpl document) throws SAXException {
+        final MemTreeBuilder builder = new MemTreeBuilder();
+        builder.startDocument();
+        final Serializer serializer = broker.getSerializer();
+        serializer.reset();
+        serializer.setProperty(Serializer.GENERATE_DOC_EVENTS, "false");
+        serializer.setReceiver(new DocumentBuilderReceiver(builder));
+        serializer.toReceiver(new NodeProxy(document, NodeId.DOCUMENT_NODE), false);
+        builder.endDocument();
+        return builder.getDocument();
+    }
+
+    static void startVersion(final Receiver<?> receiver, final Properties properties) throws SAXException {
+        receiver.startPrefixMapping(StandardDiff.PREFIX, StandardDiff.NAMESPACE);
+        receiver.startElement(ELEMENT_VERSION, null);
+        writeProperties(receiver, properties);
+    }
+
+    private static void storeNode(final DBBroker broker, final Txn transaction, final Collection vCollection,
+            final XmldbURI uri, final Node node) throws IOException, SAXException, EXistException,
+            PermissionDeniedException, LockException, TriggerException {
+        final IndexInfo info = vCollection.validateXMLResource(transaction, broker, uri, node);
+        vCollection.store(transaction, broker, info, node);
+    }
+
     private Properties getVersionProperties(final long revision, final XmldbURI documentPath,
             final Account commitAccount) throws XPathException {
         final Properties properties = new Properties();
@@ -431,7 +1234,7 @@ public class VersioningTrigger extends SAXTrigger {
         return properties;
     }
 
-    public static void writeProperties(final Receiver receiver, final Properties properties) throws SAXException {
+    public static void writeProperties(final Receiver<?> receiver, final Properties properties) throws SAXException {
         receiver.startElement(PROPERTIES_ELEMENT, null);
         for (final Entry<Object, Object> entry : properties.entrySet()) {
             final QName qn = new QName((String)entry.getKey(), StandardDiff.NAMESPACE, StandardDiff.PREFIX);
@@ -442,6 +1245,40 @@ public class VersioningTrigger extends SAXTrigger {
         receiver.endElement(PROPERTIES_ELEMENT);
     }
 
+    /**
+     * Take a place in the queue for the job of an XML update in asynchronous mode. Must be
+     * called before locking the versions collection: the transaction holds the lock until it
+     * ended, and the queue needs it to make room. A place not handed to a job is given back
+     * when the transaction ends.
+     */
+    private void acquireQueuePermit(final Txn transaction, final DocumentImpl document) {
+        if (queue == null || queuePermitRequested || document instanceof BinaryDocument) {
+            return;
+        }
+        queuePermitRequested = true;
+        queuePermit = queue.acquirePermit(queueTimeout);
+        if (queuePermit) {
+            transaction.registerListener(new TxnListener() {
+                @Override
+                public void commit() {
+                    releaseQueuePermit();
+                }
+
+                @Override
+                public void abort() {
+                    releaseQueuePermit();
+                }
+            });
+        }
+    }
+
+    private void releaseQueuePermit() {
+        if (queuePermit) {
+            queuePermit = false;
+            queue.releasePermit();
+        }
+    }
+
     private Collection getVersionsCollection(final DBBroker broker, final Txn transaction,
             final XmldbURI collectionPath) throws IOException, PermissionDeniedException, TriggerException {
         final XmldbURI path = VERSIONS_COLLECTION.append(collectionPath);
@@ -473,32 +1310,6 @@ public class VersioningTrigger extends SAXTrigger {
 		}
     }
 
-    private long newRevision(final BrokerPool pool) {
-        final Path dataDir = (Path) pool.getConfiguration().getProperty(BrokerPool.PROPERTY_DATA_DIR);
-        synchronized (latch) {
-            final Path f = dataDir.resolve("versions.dbx");
-            long rev = 0;
-            
-            if (Files.isReadable(f)) {
-                try(final DataInputStream is = new DataInputStream(Files.newInputStream(f))) {
-                    rev = is.readLong();
-                } catch (final IOException e) {
-                    LOG.error("Failed to read versions.dbx: " + e.getMessage(), e);
-                }
-            }
-            
-            ++rev;
-            
-            try(final DataOutputStream os = new DataOutputStream(Files.newOutputStream(f))) {
-                os.writeLong(rev);
-            } catch (final IOException e) {
-                LOG.error("Failed to write versions.dbx: " + e.getMessage(), e);
-            }
-
-            return rev;
-        }
-    }
-
     @Override
     public void startElement(final String namespaceURI, final String localName, final String qname,
             Attributes attributes) throws SAXException {
@@ -522,13 +1333,13 @@ public class VersioningTrigger extends SAXTrigger {
                 try {
                     final long rev = Long.parseLong(documentRev);
                     if (VersioningHelper.newerRevisionExists(broker, documentPath, rev, documentKey)) {
-                        final long baseRev = VersioningHelper.getBaseRevision(broker, documentPath, rev, documentKey);
                         if(LOG.isDebugEnabled()) {
-							LOG.debug("base revision: " + baseRev);
+							LOG.debug("base revision: " +
+									VersioningHelper.getBaseRevision(broker, documentPath, rev, documentKey));
 						}
                         throw new TriggerException("Possible version conflict detected for document: " + documentPath);
                     }
-                } catch (final XPathException | IOException | PermissionDeniedException e) {
+                } catch (final LockException | IOException | PermissionDeniedException e) {
                     LOG.error("Internal error in VersioningTrigger: " + e.getMessage(), e);
                 } catch (final NumberFormatException e) {
                     LOG.error("Illegal revision number in VersioningTrigger: " + documentRev);
@@ -635,4 +1446,15 @@ public class VersioningTrigger extends SAXTrigger {
 	public void afterUpdateDocumentMetadata(final DBBroker broker, final Txn txn, final DocumentImpl document)
             throws TriggerException {
 	}
-}
\ No newline at end of file
+
+    private final static class BinaryKeyframe {
+
+        private final String ref;
+        private final int deltas;
+
+        private BinaryKeyframe(final String ref, final int deltas) {
+            this.ref = ref;
+            this.deltas = deltas;
+        }
+    }
+}
@@ -0,0 +1,85 @@
+/**
+ * Versioning Module for eXist-db XQuery
+ * Copyright (C) 2008 eXist-db <exit-open@lists.sourceforge.net>
+ * http://exist-db.org
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 1, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.exist.versioning.xquery;
+
+import org.exist.dom.QName;
+import org.exist.versioning.Compactor;
+import org.exist.xmldb.XmldbURI;
+import org.exist.xquery.BasicFunction;
+import org.exist.xquery.Cardinality;
+import org.exist.xquery.ErrorCodes;
+import org.exist.xquery.FunctionSignature;
+import org.exist.xquery.XPathException;
+import org.exist.xquery.XQueryContext;
+import org.exist.xquery.value.BooleanValue;
+import org.exist.xquery.value.IntegerValue;
+import org.exist.xquery.value.Sequence;
+import org.exist.xquery.value.SequenceType;
+import org.exist.xquery.value.Type;
+
+public class CompactFunction extends BasicFunction {
+
+    public final static FunctionSignature signatures[] = {
+            new FunctionSignature(
+                    new QName( "compact", VersioningModule.NAMESPACE_URI, VersioningModule.PREFIX ),
+                    "Squash the old revisions of all versioned documents in the collection passed in the first " +
+                    "parameter and its descendants into a new base revision. The number of latest revisions given " +
+                    "in the second parameter is left unchanged. The run stops after the number of seconds in the " +
+                    "third parameter, 0 for no limit, and resumes from its checkpoint when called again. Returns " +
+                    "true if all documents were compacted. Only available to DBA users.",
+                    new SequenceType[] {
+                            new SequenceType(Type.STRING, Cardinality.EXACTLY_ONE),
+                            new SequenceType(Type.INTEGER, Cardinality.EXACTLY_ONE),
+                            new SequenceType(Type.INTEGER, Cardinality.EXACTLY_ONE)
+                    },
+                    new SequenceType( Type.BOOLEAN, Cardinality.EXACTLY_ONE )
+            ),
+            new FunctionSignature(
+                    new QName( "stop-compaction", VersioningModule.NAMESPACE_URI, VersioningModule.PREFIX ),
+                    "Stop a running compaction after the current document. Only available to DBA users.",
+                    null,
+                    new SequenceType( Type.ITEM, Cardinality.ZERO_OR_ONE )
+            )
+    };
+
+    public CompactFunction(final XQueryContext context, final FunctionSignature signature) {
+        super(context, signature);
+    }
+
+    @Override
+    public Sequence eval(final Sequence[] args, final Sequence contextSequence) throws XPathException {
+        if (!context.getSubject().hasDbaRole()) {
+            throw new XPathException(this, ErrorCodes.ERROR, "Permission denied: only DBA users can compact versions");
+        }
+        final Compactor compactor = Compactor.getInstance(context.getBroker().getBrokerPool());
+        if (isCalledAs("stop-compaction")) {
+            compactor.stop();
+            return Sequence.EMPTY_SEQUENCE;
+        }
+        final XmldbURI collection = XmldbURI.create(args[0].getStringValue());
+        final int keep = ((IntegerValue) args[1].itemAt(0)).getInt();
+        final long maxDuration = ((IntegerValue) args[2].itemAt(0)).getLong() * 1000;
+        try {
+            return BooleanValue.valueOf(compactor.compact(collection, keep, maxDuration));
+        } catch (final Exception e) {
+            throw new XPathException(this, ErrorCodes.ERROR, "Caught error while compacting versions: " + e.getMessage(), null, e);
+        }
+    }
+}
@@ -20,6 +20,7 @@
 package org.exist.versioning.xquery;
 
 import org.exist.xquery.BasicFunction;
+import org.exist.xquery.ErrorCodes;
 import org.exist.xquery.FunctionSignature;
 import org.exist.xquery.Cardinality;
 import org.exist.xquery.XQueryContext;
@@ -30,12 +31,12 @@ import org.exist.xquery.value.Sequence;
 import org.exist.xquery.value.NodeValue;
 import org.exist.xquery.value.DateTimeValue;
 import org.exist.dom.QName;
-import org.exist.dom.persistent.DocumentImpl;
 import org.exist.dom.persistent.NodeProxy;
 import org.exist.dom.memtree.MemTreeBuilder;
 import org.exist.dom.memtree.DocumentBuilderReceiver;
+import org.exist.dom.memtree.NodeImpl;
 import org.exist.versioning.VersioningTrigger;
-import org.exist.versioning.Diff;
+import org.exist.versioning.DiffSource;
 import org.exist.versioning.StandardDiff;
 import org.exist.versioning.DiffException;
 import org.xml.sax.SAXException;
@@ -49,8 +50,8 @@ public class DiffFunction extends BasicFunction {
             new FunctionSignature(
                     new QName( "diff", VersioningModule.NAMESPACE_URI, VersioningModule.PREFIX ),
                     "Returns a diff between two documents (which normally means two " +
-                    "versions of the same document). Both documents should be stored in the " +
-                    "database. The function will not work with in-memory documents. The returned " +
+                    "versions of the same document). Either document may be stored in the database " +
+                    "or in memory, e.g. a revision restored by version:doc. The returned " +
                     "diff uses the same format as generated by the VersioningTrigger.",
                     new SequenceType[] {
                             new SequenceType(Type.NODE, Cardinality.EXACTLY_ONE),
@@ -67,19 +68,13 @@ public class DiffFunction extends BasicFunction {
     public Sequence eval(final Sequence[] args, final Sequence contextSequence) throws XPathException {
         final NodeValue nv1 = (NodeValue) args[0].itemAt(0);
         final NodeValue nv2 = (NodeValue) args[1].itemAt(0);
-        if (nv1.getImplementationType() != NodeValue.PERSISTENT_NODE ||
-                nv2.getImplementationType() != NodeValue.PERSISTENT_NODE) {
-            throw new XPathException(this, "diff function only works on persistent documents stored in the db");
-        }
-        final DocumentImpl doc1 = ((NodeProxy)nv1).getOwnerDocument();
-        final DocumentImpl doc2 = ((NodeProxy)nv2).getOwnerDocument();
 
         context.pushDocumentContext();
         try {
             final MemTreeBuilder builder = context.getDocumentBuilder();
             final DocumentBuilderReceiver receiver = new DocumentBuilderReceiver(builder);
             final Properties properties = new Properties();
-            properties.setProperty("document", doc1.getURI().toString());
+            properties.setProperty("document", getDocumentURI(nv1));
             properties.setProperty("revision", "");
             properties.setProperty("date", new DateTimeValue(new Date()).getStringValue());
             properties.setProperty("user", context.getSubject().getName());
@@ -87,16 +82,32 @@ public class DiffFunction extends BasicFunction {
             final int nodeNr = builder.startElement(VersioningTrigger.ELEMENT_VERSION, null);
             VersioningTrigger.writeProperties(receiver, properties);
 
-            final Diff diff = new StandardDiff(context.getBroker());
-            diff.diff(doc1, doc2);
-            diff.diff2XML(receiver);
+            try (final StandardDiff diff = new StandardDiff(context.getBroker())) {
+                diff.diff(getSource(nv1), getSource(nv2));
+                diff.diff2XML(receiver);
+            }
 
             builder.endElement();
             return builder.getDocument().getNode(nodeNr);
         } catch (final SAXException | DiffException e) {
-            throw new XPathException(this, "Caugt error while generating diff: " + e.getMessage(), e);
+            throw new XPathException(this, ErrorCodes.ERROR, "Caugt error while generating diff: " + e.getMessage(), null, e);
         } finally {
             context.popDocumentContext();
         }
     }
+
+    private static DiffSource getSource(final NodeValue nv) {
+        if (nv.getImplementationType() == NodeValue.IN_MEMORY_NODE) {
+            return DiffSource.of(((NodeImpl) nv).getOwnerDocument());
+        }
+        return DiffSource.of(((NodeProxy) nv).getOwnerDocument());
+    }
+
+    private static String getDocumentURI(final NodeValue nv) {
+        if (nv.getImplementationType() == NodeValue.IN_MEMORY_NODE) {
+            final String uri = ((NodeImpl) nv).getOwnerDocument().getDocumentURI();
+            return uri == null ? "" : uri;
+        }
+        return ((NodeProxy) nv).getOwnerDocument().getURI().toString();
+    }
 }
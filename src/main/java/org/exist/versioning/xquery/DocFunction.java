@@ -0,0 +1,191 @@
+/**
+ * Versioning Module for eXist-db XQuery
+ * Copyright (C) 2008 eXist-db <exit-open@lists.sourceforge.net>
+ * http://exist-db.org
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 1, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.exist.versioning.xquery;
+
+import org.exist.dom.QName;
+import org.exist.dom.memtree.MemTreeBuilder;
+import org.exist.dom.persistent.DocumentImpl;
+import org.exist.dom.persistent.NodeProxy;
+import org.exist.numbering.NodeId;
+import org.exist.security.PermissionDeniedException;
+import org.exist.storage.DBBroker;
+import org.exist.storage.txn.TransactionException;
+import org.exist.storage.txn.TransactionManager;
+import org.exist.storage.txn.Txn;
+import org.exist.util.FileUtils;
+import org.exist.util.LockException;
+import org.exist.versioning.DiffException;
+import org.exist.versioning.RevisionCache;
+import org.exist.versioning.StandardDiff;
+import org.exist.versioning.VersioningHelper;
+import org.exist.xmldb.XmldbURI;
+import org.exist.xquery.BasicFunction;
+import org.exist.xquery.Cardinality;
+import org.exist.xquery.ErrorCodes;
+import org.exist.xquery.FunctionSignature;
+import org.exist.xquery.XPathException;
+import org.exist.xquery.XQueryContext;
+import org.exist.xquery.value.Base64BinaryValueType;
+import org.exist.xquery.value.BinaryValueFromFile;
+import org.exist.xquery.value.IntegerValue;
+import org.exist.xquery.value.NodeValue;
+import org.exist.xquery.value.Sequence;
+import org.exist.xquery.value.SequenceType;
+import org.exist.xquery.value.Type;
+import org.xml.sax.helpers.AttributesImpl;
+
+import javax.xml.stream.XMLStreamException;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Restores revisions through the {@link RevisionCache}. Revisions of binary documents are
+ * written to a temporary file, decoding binary deltas on the way.
+ */
+public class DocFunction extends BasicFunction {
+
+    private final static QName ELEMENT_RESTORE_CACHE =
+            new QName("restore-cache", StandardDiff.NAMESPACE, StandardDiff.PREFIX);
+
+    public final static FunctionSignature signatures[] = {
+            new FunctionSignature(
+                    new QName( "doc", VersioningModule.NAMESPACE_URI, VersioningModule.PREFIX ),
+                    "Restore a revision of the document to which the node passed in the first parameter belongs. " +
+                    "If no revision is given, the base revision is returned. Restored revisions are cached, so " +
+                    "requesting the same revision again does not apply the diffs again.",
+                    new SequenceType[] {
+                            new SequenceType(Type.NODE, Cardinality.EXACTLY_ONE),
+                            new SequenceType(Type.INTEGER, Cardinality.ZERO_OR_ONE)
+                    },
+                    new SequenceType( Type.NODE, Cardinality.ZERO_OR_ONE )
+            ),
+            new FunctionSignature(
+                    new QName( "binary-doc", VersioningModule.NAMESPACE_URI, VersioningModule.PREFIX ),
+                    "Restore a revision of the binary document whose path is passed in the first parameter. " +
+                    "If no revision is given, the base revision is returned. Returns the empty sequence if the " +
+                    "document was not a binary document in this revision.",
+                    new SequenceType[] {
+                            new SequenceType(Type.STRING, Cardinality.EXACTLY_ONE),
+                            new SequenceType(Type.INTEGER, Cardinality.ZERO_OR_ONE)
+                    },
+                    new SequenceType( Type.BASE64_BINARY, Cardinality.ZERO_OR_ONE )
+            ),
+            new FunctionSignature(
+                    new QName( "restore-cache-statistics", VersioningModule.NAMESPACE_URI, VersioningModule.PREFIX ),
+                    "Returns the number of entries, nodes, hits, misses and evictions of the cache of restored " +
+                    "revisions as attributes of a v:restore-cache element.",
+                    null,
+                    new SequenceType( Type.ELEMENT, Cardinality.EXACTLY_ONE )
+            )
+    };
+
+    public DocFunction(final XQueryContext context, final FunctionSignature signature) {
+        super(context, signature);
+    }
+
+    @Override
+    public Sequence eval(final Sequence[] args, final Sequence contextSequence) throws XPathException {
+        final RevisionCache cache = RevisionCache.getInstance(context.getBroker().getBrokerPool());
+        if (isCalledAs("restore-cache-statistics")) {
+            return statistics(cache);
+        }
+        if (isCalledAs("binary-doc")) {
+            return binaryDoc(args);
+        }
+
+        final NodeValue nv = (NodeValue) args[0].itemAt(0);
+        if (nv.getImplementationType() != NodeValue.PERSISTENT_NODE) {
+            throw new XPathException(this, ErrorCodes.ERROR, "doc function only works on persistent documents stored in the db");
+        }
+        final XmldbURI docPath = ((NodeProxy) nv).getOwnerDocument().getURI();
+        try {
+            final long rev = args[1].isEmpty() ? 0 : ((IntegerValue) args[1].itemAt(0)).getLong();
+            if (rev > 0) {
+                final org.exist.dom.memtree.DocumentImpl restored = cache.restore(context.getBroker(), docPath, rev);
+                if (restored != null) {
+                    final NodeValue root = (NodeValue) restored.getDocumentElement();
+                    return root == null ? Sequence.EMPTY_SEQUENCE : root;
+                }
+            }
+            final DocumentImpl source = cache.getSource(context.getBroker(), docPath, rev);
+            return source == null ? Sequence.EMPTY_SEQUENCE : new NodeProxy(source, NodeId.DOCUMENT_NODE);
+        } catch (final PermissionDeniedException | LockException | IOException | XMLStreamException |
+                DiffException e) {
+            throw new XPathException(this, ErrorCodes.ERROR, "Failed to restore revision of " + docPath + ": " + e.getMessage(), null, e);
+        }
+    }
+
+    private Sequence binaryDoc(final Sequence[] args) throws XPathException {
+        final XmldbURI docPath = XmldbURI.create(args[0].getStringValue());
+        final long rev = args[1].isEmpty() ? 0 : ((IntegerValue) args[1].itemAt(0)).getLong();
+        final DBBroker broker = context.getBroker();
+        final TransactionManager transact = broker.getBrokerPool().getTransactionManager();
+        Path tmp = null;
+        try (final Txn transaction = transact.beginTransaction()) {
+            tmp = Files.createTempFile("versioning", ".bin");
+            final boolean found;
+            try (final OutputStream os = new BufferedOutputStream(Files.newOutputStream(tmp))) {
+                found = VersioningHelper.writeBinaryRevision(broker, transaction, docPath, rev, os);
+            }
+            transact.commit(transaction);
+            if (!found) {
+                return Sequence.EMPTY_SEQUENCE;
+            }
+            final Path file = tmp;
+            tmp = null;
+            return BinaryValueFromFile.getInstance(context, new Base64BinaryValueType(), file,
+                    (closed, f) -> FileUtils.deleteQuietly(f));
+        } catch (final PermissionDeniedException | LockException | IOException | TransactionException e) {
+            throw new XPathException(this, ErrorCodes.ERROR, "Failed to restore revision of " + docPath + ": " + e.getMessage(), null, e);
+        } finally {
+            if (tmp != null) {
+                FileUtils.deleteQuietly(tmp);
+            }
+        }
+    }
+
+    private Sequence statistics(final RevisionCache cache) {
+        context.pushDocumentContext();
+        try {
+            final MemTreeBuilder builder = context.getDocumentBuilder();
+            final AttributesImpl attribs = new AttributesImpl();
+            synchronized (cache) {
+                addAttribute(attribs, "entries", cache.getSize());
+                addAttribute(attribs, "nodes", cache.getNodes());
+                addAttribute(attribs, "max-nodes", cache.getMaxNodes());
+                addAttribute(attribs, "hits", cache.getHits());
+                addAttribute(attribs, "misses", cache.getMisses());
+                addAttribute(attribs, "evictions", cache.getEvictions());
+            }
+            final int nodeNr = builder.startElement(ELEMENT_RESTORE_CACHE, attribs);
+            builder.endElement();
+            return builder.getDocument().getNode(nodeNr);
+        } finally {
+            context.popDocumentContext();
+        }
+    }
+
+    private static void addAttribute(final AttributesImpl attribs, final String name, final long value) {
+        attribs.addAttribute("", name, name, "CDATA", Long.toString(value));
+    }
+}
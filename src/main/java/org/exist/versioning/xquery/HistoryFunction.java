@@ -0,0 +1,112 @@
+/**
+ * Versioning Module for eXist-db XQuery
+ * Copyright (C) 2008 eXist-db <exit-open@lists.sourceforge.net>
+ * http://exist-db.org
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 1, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.exist.versioning.xquery;
+
+import org.exist.dom.QName;
+import org.exist.dom.memtree.MemTreeBuilder;
+import org.exist.dom.persistent.NodeProxy;
+import org.exist.security.PermissionDeniedException;
+import org.exist.util.LockException;
+import org.exist.versioning.RevisionIndex;
+import org.exist.versioning.StandardDiff;
+import org.exist.xmldb.XmldbURI;
+import org.exist.xquery.BasicFunction;
+import org.exist.xquery.Cardinality;
+import org.exist.xquery.ErrorCodes;
+import org.exist.xquery.FunctionSignature;
+import org.exist.xquery.XPathException;
+import org.exist.xquery.XQueryContext;
+import org.exist.xquery.value.NodeValue;
+import org.exist.xquery.value.Sequence;
+import org.exist.xquery.value.SequenceType;
+import org.exist.xquery.value.Type;
+import org.xml.sax.helpers.AttributesImpl;
+
+import java.io.IOException;
+
+public class HistoryFunction extends BasicFunction {
+
+    private final static QName ELEMENT_HISTORY = new QName("history", StandardDiff.NAMESPACE, StandardDiff.PREFIX);
+    private final static QName ELEMENT_DOCUMENT = new QName("document", StandardDiff.NAMESPACE, StandardDiff.PREFIX);
+    private final static QName ELEMENT_REVISIONS = new QName("revisions", StandardDiff.NAMESPACE, StandardDiff.PREFIX);
+    private final static QName ELEMENT_REVISION = new QName("revision", StandardDiff.NAMESPACE, StandardDiff.PREFIX);
+    private final static QName ELEMENT_DATE = new QName("date", StandardDiff.NAMESPACE, StandardDiff.PREFIX);
+    private final static QName ELEMENT_USER = new QName("user", StandardDiff.NAMESPACE, StandardDiff.PREFIX);
+
+    public final static FunctionSignature signature =
+            new FunctionSignature(
+                    new QName( "history", VersioningModule.NAMESPACE_URI, VersioningModule.PREFIX ),
+                    "Returns the version history of the document to which the node passed in the first parameter " +
+                    "belongs. All revisions are listed in ascending order with date and user, but without the " +
+                    "detailed diff. The history is read from the revision index, no version document is accessed.",
+                    new SequenceType[] {
+                            new SequenceType(Type.NODE, Cardinality.EXACTLY_ONE)
+                    },
+                    new SequenceType( Type.ELEMENT, Cardinality.EXACTLY_ONE )
+            );
+
+    public HistoryFunction(final XQueryContext context) {
+        super(context, signature);
+    }
+
+    @Override
+    public Sequence eval(final Sequence[] args, final Sequence contextSequence) throws XPathException {
+        final NodeValue nv = (NodeValue) args[0].itemAt(0);
+        if (nv.getImplementationType() != NodeValue.PERSISTENT_NODE) {
+            throw new XPathException(this, ErrorCodes.ERROR, "history function only works on persistent documents stored in the db");
+        }
+        final XmldbURI docPath = ((NodeProxy) nv).getOwnerDocument().getURI();
+
+        context.pushDocumentContext();
+        try {
+            final RevisionIndex index = RevisionIndex.getInstance(context.getBroker().getBrokerPool());
+            final MemTreeBuilder builder = context.getDocumentBuilder();
+            builder.namespaceNode(StandardDiff.PREFIX, StandardDiff.NAMESPACE);
+            final int nodeNr = builder.startElement(ELEMENT_HISTORY, null);
+            builder.startElement(ELEMENT_DOCUMENT, null);
+            builder.characters(docPath.toString());
+            builder.endElement();
+            builder.startElement(ELEMENT_REVISIONS, null);
+            for (final RevisionIndex.Record record : index.getRevisions(context.getBroker(), docPath).values()) {
+                final AttributesImpl attribs = new AttributesImpl();
+                attribs.addAttribute("", "rev", "rev", "CDATA", Long.toString(record.getRevision()));
+                builder.startElement(ELEMENT_REVISION, attribs);
+                if (record.getDate() != null) {
+                    builder.startElement(ELEMENT_DATE, null);
+                    builder.characters(record.getDate());
+                    builder.endElement();
+                }
+                if (record.getUser() != null) {
+                    builder.startElement(ELEMENT_USER, null);
+                    builder.characters(record.getUser());
+                    builder.endElement();
+                }
+                builder.endElement();
+            }
+            builder.endElement();
+            builder.endElement();
+            return builder.getDocument().getNode(nodeNr);
+        } catch (final PermissionDeniedException | LockException | IOException e) {
+            throw new XPathException(this, ErrorCodes.ERROR, "Caught error while reading revision index: " + e.getMessage(), null, e);
+        } finally {
+            context.popDocumentContext();
+        }
+    }
+}
@@ -23,15 +23,15 @@ import org.exist.dom.persistent.DocumentImpl;
 import org.exist.dom.persistent.NodeProxy;
 import org.exist.dom.QName;
 import org.exist.dom.memtree.DocumentBuilderReceiver;
-import org.exist.dom.memtree.InMemoryXMLStreamReader;
 import org.exist.dom.memtree.MemTreeBuilder;
 import org.exist.dom.memtree.NodeImpl;
-import org.exist.numbering.NodeId;
-import org.exist.stax.ExtendedXMLStreamReader;
 import org.exist.versioning.DiffException;
+import org.exist.versioning.DiffSource;
 import org.exist.versioning.Patch;
+import org.exist.versioning.StandardDiff;
 import org.exist.xquery.BasicFunction;
 import org.exist.xquery.Cardinality;
+import org.exist.xquery.ErrorCodes;
 import org.exist.xquery.FunctionSignature;
 import org.exist.xquery.XPathException;
 import org.exist.xquery.XQueryContext;
@@ -40,9 +40,6 @@ import org.exist.xquery.value.Sequence;
 import org.exist.xquery.value.SequenceType;
 import org.exist.xquery.value.Type;
 
-import javax.xml.stream.XMLStreamException;
-import java.io.IOException;
-
 public class PatchFunction extends BasicFunction {
 
     public final static FunctionSignature signatures[] = {
@@ -69,6 +66,17 @@ public class PatchFunction extends BasicFunction {
                             new SequenceType(Type.NODE, Cardinality.ZERO_OR_ONE)
                     },
                     new SequenceType( Type.ITEM, Cardinality.EXACTLY_ONE )
+            ),
+            new FunctionSignature(
+                    new QName( "annotate-changes", VersioningModule.NAMESPACE_URI, VersioningModule.PREFIX ),
+                    "Diff two documents and annotate the changes in the first one, as version:annotate does " +
+                            "for a stored version document. Either document may be stored in the database or in " +
+                            "memory, e.g. two revisions restored by version:doc.",
+                    new SequenceType[] {
+                            new SequenceType(Type.NODE, Cardinality.EXACTLY_ONE),
+                            new SequenceType(Type.NODE, Cardinality.EXACTLY_ONE)
+                    },
+                    new SequenceType( Type.ITEM, Cardinality.EXACTLY_ONE )
             )
     };
 
@@ -80,43 +88,47 @@ public class PatchFunction extends BasicFunction {
     public Sequence eval(final Sequence[] args, final Sequence contextSequence) throws XPathException {
         context.pushDocumentContext();
         try {
-            NodeValue nv = (NodeValue) args[0].itemAt(0);
-            ExtendedXMLStreamReader reader = null;
-            try {
-                if (nv.getImplementationType() == NodeValue.IN_MEMORY_NODE) {
-                    final NodeImpl node = (NodeImpl) nv;
-                    reader = new InMemoryXMLStreamReader(node.getOwnerDocument(), node.getOwnerDocument());
-                } else {
-                    final NodeProxy proxy = (NodeProxy) nv;
-                    reader = context.getBroker().newXMLStreamReader(new NodeProxy(proxy.getOwnerDocument(), NodeId.DOCUMENT_NODE, proxy.getOwnerDocument().getFirstChildAddress()), false);
+            final DiffSource source = getSource((NodeValue) args[0].itemAt(0));
+            final MemTreeBuilder builder = context.getDocumentBuilder();
+            final DocumentBuilderReceiver receiver = new DocumentBuilderReceiver(builder);
+            if (isCalledAs("annotate-changes")) {
+                try (final StandardDiff diff = new StandardDiff(context.getBroker())) {
+                    diff.diff(source, getSource((NodeValue) args[1].itemAt(0)));
+                    new Patch(context.getBroker(), diff).annotate(source, receiver);
                 }
+                return getResult(builder);
+            }
 
-                nv = (NodeValue) args[1].itemAt(0);
-                if (nv.getImplementationType() == NodeValue.IN_MEMORY_NODE) {
-                    throw new XPathException("patch cannot be applied to in-memory documents");
-                }
-                final NodeProxy diffProxy = (NodeProxy) nv;
-                final DocumentImpl diff = diffProxy.getOwnerDocument();
+            final NodeValue nv = (NodeValue) args[1].itemAt(0);
+            if (nv.getImplementationType() == NodeValue.IN_MEMORY_NODE) {
+                throw new XPathException(this, ErrorCodes.ERROR, "patch cannot be applied to in-memory documents");
+            }
+            final NodeProxy diffProxy = (NodeProxy) nv;
+            final DocumentImpl diff = diffProxy.getOwnerDocument();
 
-                final MemTreeBuilder builder = context.getDocumentBuilder();
-                final DocumentBuilderReceiver receiver = new DocumentBuilderReceiver(builder);
-                final Patch patch = new Patch(context.getBroker(), diff);
-                if (isCalledAs("annotate")) {
-                    patch.annotate(reader, receiver);
-                } else {
-                    patch.patch(reader, receiver);
-                }
-                final NodeValue result = (NodeValue) builder.getDocument().getDocumentElement();
-                return result == null ? Sequence.EMPTY_SEQUENCE : result;
-            } finally {
-                if(reader != null) {
-                    reader.close();
-                }
+            final Patch patch = new Patch(context.getBroker(), diff);
+            if (isCalledAs("annotate")) {
+                patch.annotate(source, receiver);
+            } else {
+                patch.patch(source, receiver);
             }
-        } catch (IOException | XMLStreamException | DiffException e) {
-            throw new XPathException(this, e.getMessage(), e);
+            return getResult(builder);
+        } catch (DiffException e) {
+            throw new XPathException(this, ErrorCodes.ERROR, e.getMessage(), null, e);
         } finally {
             context.popDocumentContext();
         }
     }
+
+    private static DiffSource getSource(final NodeValue nv) {
+        if (nv.getImplementationType() == NodeValue.IN_MEMORY_NODE) {
+            return DiffSource.of(((NodeImpl<?>) nv).getOwnerDocument());
+        }
+        return DiffSource.of(((NodeProxy) nv).getOwnerDocument());
+    }
+
+    private static Sequence getResult(final MemTreeBuilder builder) {
+        final NodeValue result = (NodeValue) builder.getDocument().getDocumentElement();
+        return result == null ? Sequence.EMPTY_SEQUENCE : result;
+    }
 }
@@ -0,0 +1,208 @@
+/**
+ * Versioning Module for eXist-db XQuery
+ * Copyright (C) 2008 eXist-db <exit-open@lists.sourceforge.net>
+ * http://exist-db.org
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 1, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.exist.versioning.xquery;
+
+import org.exist.dom.QName;
+import org.exist.dom.persistent.DocumentImpl;
+import org.exist.dom.persistent.LockedDocument;
+import org.exist.dom.persistent.NodeProxy;
+import org.exist.dom.persistent.StoredNode;
+import org.exist.security.PermissionDeniedException;
+import org.exist.storage.lock.Lock;
+import org.exist.util.LockException;
+import org.exist.versioning.RevisionIndex;
+import org.exist.versioning.VersioningTrigger;
+import org.exist.xmldb.XmldbURI;
+import org.exist.xquery.BasicFunction;
+import org.exist.xquery.Cardinality;
+import org.exist.xquery.ErrorCodes;
+import org.exist.xquery.FunctionSignature;
+import org.exist.xquery.XPathException;
+import org.exist.xquery.XQueryContext;
+import org.exist.xquery.value.IntegerValue;
+import org.exist.xquery.value.NodeValue;
+import org.exist.xquery.value.Sequence;
+import org.exist.xquery.value.SequenceType;
+import org.exist.xquery.value.Type;
+import org.exist.xquery.value.ValueSequence;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+import java.io.IOException;
+import java.util.NavigableMap;
+
+/**
+ * Revision lookups answered from the {@link RevisionIndex} instead of scanning the versions
+ * collection.
+ */
+public class RevisionsFunction extends BasicFunction {
+
+    public final static FunctionSignature signatures[] = {
+            new FunctionSignature(
+                    new QName( "revisions", VersioningModule.NAMESPACE_URI, VersioningModule.PREFIX ),
+                    "Returns the revision numbers of the document to which the node passed in the first parameter " +
+                    "belongs, in ascending order.",
+                    new SequenceType[] {
+                            new SequenceType(Type.NODE, Cardinality.EXACTLY_ONE)
+                    },
+                    new SequenceType( Type.INTEGER, Cardinality.ZERO_OR_MORE )
+            ),
+            new FunctionSignature(
+                    new QName( "version", VersioningModule.NAMESPACE_URI, VersioningModule.PREFIX ),
+                    "Returns the stored version document of a revision of the document to which the node passed in " +
+                    "the first parameter belongs, or the empty sequence if the revision does not exist or was squashed.",
+                    new SequenceType[] {
+                            new SequenceType(Type.NODE, Cardinality.EXACTLY_ONE),
+                            new SequenceType(Type.INTEGER, Cardinality.EXACTLY_ONE)
+                    },
+                    new SequenceType( Type.ELEMENT, Cardinality.ZERO_OR_ONE )
+            ),
+            new FunctionSignature(
+                    new QName( "versions", VersioningModule.NAMESPACE_URI, VersioningModule.PREFIX ),
+                    "Returns the stored version documents of all revisions of the document to which the node passed " +
+                    "in the first parameter belongs, in ascending order of revision. Squashed revisions have no " +
+                    "version document and are skipped.",
+                    new SequenceType[] {
+                            new SequenceType(Type.NODE, Cardinality.EXACTLY_ONE)
+                    },
+                    new SequenceType( Type.ELEMENT, Cardinality.ZERO_OR_MORE )
+            ),
+            new FunctionSignature(
+                    new QName( "properties", VersioningModule.NAMESPACE_URI, VersioningModule.PREFIX ),
+                    "Returns the stored v:properties element of a revision of the document to which the node passed " +
+                    "in the first parameter belongs, including squashed revisions, or the empty sequence if the " +
+                    "revision does not exist.",
+                    new SequenceType[] {
+                            new SequenceType(Type.NODE, Cardinality.EXACTLY_ONE),
+                            new SequenceType(Type.INTEGER, Cardinality.EXACTLY_ONE)
+                    },
+                    new SequenceType( Type.ELEMENT, Cardinality.ZERO_OR_ONE )
+            ),
+            new FunctionSignature(
+                    new QName( "rebuild-index", VersioningModule.NAMESPACE_URI, VersioningModule.PREFIX ),
+                    "Rebuilds the revision index from the version documents and returns the number of revisions " +
+                    "indexed. Only available to DBA users.",
+                    null,
+                    new SequenceType( Type.INTEGER, Cardinality.EXACTLY_ONE )
+            )
+    };
+
+    public RevisionsFunction(final XQueryContext context, final FunctionSignature signature) {
+        super(context, signature);
+    }
+
+    @Override
+    public Sequence eval(final Sequence[] args, final Sequence contextSequence) throws XPathException {
+        final RevisionIndex index = RevisionIndex.getInstance(context.getBroker().getBrokerPool());
+        try {
+            if (isCalledAs("rebuild-index")) {
+                if (!context.getSubject().hasDbaRole()) {
+                    throw new XPathException(this, ErrorCodes.ERROR, "Permission denied: only DBA users can rebuild the revision index");
+                }
+                return new IntegerValue(index.rebuild(context.getBroker()));
+            }
+
+            final NodeValue nv = (NodeValue) args[0].itemAt(0);
+            if (nv.getImplementationType() != NodeValue.PERSISTENT_NODE) {
+                throw new XPathException(this, ErrorCodes.ERROR, "revision lookups only work on persistent documents stored in the db");
+            }
+            final XmldbURI docPath = ((NodeProxy) nv).getOwnerDocument().getURI();
+            final NavigableMap<Long, RevisionIndex.Record> revisions = index.getRevisions(context.getBroker(), docPath);
+
+            if (isCalledAs("revisions")) {
+                final ValueSequence result = new ValueSequence(revisions.size());
+                for (final Long revision : revisions.keySet()) {
+                    result.add(new IntegerValue(revision));
+                }
+                return result;
+            }
+
+            if (isCalledAs("versions")) {
+                final ValueSequence result = new ValueSequence(revisions.size());
+                for (final RevisionIndex.Record record : revisions.values()) {
+                    if (!record.isSquashed()) {
+                        final NodeProxy version = getElement(docPath, record);
+                        if (version != null) {
+                            result.add(version);
+                        }
+                    }
+                }
+                return result;
+            }
+
+            final RevisionIndex.Record record = revisions.get(((IntegerValue) args[1].itemAt(0)).getLong());
+            if (record == null || (record.isSquashed() && isCalledAs("version"))) {
+                return Sequence.EMPTY_SEQUENCE;
+            }
+            final NodeProxy node = getElement(docPath, record);
+            return node == null ? Sequence.EMPTY_SEQUENCE : node;
+        } catch (final PermissionDeniedException | LockException | IOException e) {
+            throw new XPathException(this, ErrorCodes.ERROR, "Caught error while reading revision index: " + e.getMessage(), null, e);
+        }
+    }
+
+    /**
+     * Returns the root element of the version document of a revision or, if called as
+     * <code>properties</code>, its <code>v:properties</code> element.
+     */
+    private NodeProxy getElement(final XmldbURI docPath, final RevisionIndex.Record record)
+            throws PermissionDeniedException, LockException {
+        final XmldbURI path = VersioningTrigger.VERSIONS_COLLECTION.append(docPath.removeLastSegment())
+                .append(record.getResource());
+        try (final LockedDocument locked = context.getBroker().getXMLResource(path, Lock.LockMode.READ_LOCK)) {
+            if (locked == null) {
+                return null;
+            }
+            final DocumentImpl doc = locked.getDocument();
+            final Element root = doc.getDocumentElement();
+            if (root == null) {
+                return null;
+            }
+            if (!isCalledAs("properties")) {
+                return new NodeProxy((StoredNode) root);
+            }
+            final Element properties = findProperties(root, record);
+            return properties == null ? null : new NodeProxy((StoredNode) properties);
+        }
+    }
+
+    /**
+     * Find the properties of a revision in a version document or in the squashed document,
+     * which holds the properties of many revisions.
+     */
+    private static Element findProperties(final Element root, final RevisionIndex.Record record) {
+        final String propertiesName = VersioningTrigger.PROPERTIES_ELEMENT.getLocalPart();
+        for (Node node = root.getFirstChild(); node != null; node = node.getNextSibling()) {
+            if (node.getNodeType() != Node.ELEMENT_NODE || !propertiesName.equals(node.getLocalName())) {
+                continue;
+            }
+            if (!record.isSquashed()) {
+                return (Element) node;
+            }
+            for (Node prop = node.getFirstChild(); prop != null; prop = prop.getNextSibling()) {
+                if (prop.getNodeType() == Node.ELEMENT_NODE && "revision".equals(prop.getLocalName()) &&
+                        Long.toString(record.getRevision()).equals(prop.getTextContent().trim())) {
+                    return (Element) node;
+                }
+            }
+        }
+        return null;
+    }
+}
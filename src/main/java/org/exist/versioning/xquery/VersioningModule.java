@@ -44,7 +44,19 @@ public class VersioningModule extends AbstractInternalModule {
     public static final FunctionDef[] functions = {
         new FunctionDef(PatchFunction.signatures[0], PatchFunction.class),
         new FunctionDef(PatchFunction.signatures[1], PatchFunction.class),
-        new FunctionDef(DiffFunction.signature, DiffFunction.class)
+        new FunctionDef(PatchFunction.signatures[2], PatchFunction.class),
+        new FunctionDef(DiffFunction.signature, DiffFunction.class),
+        new FunctionDef(CompactFunction.signatures[0], CompactFunction.class),
+        new FunctionDef(CompactFunction.signatures[1], CompactFunction.class),
+        new FunctionDef(RevisionsFunction.signatures[0], RevisionsFunction.class),
+        new FunctionDef(RevisionsFunction.signatures[1], RevisionsFunction.class),
+        new FunctionDef(RevisionsFunction.signatures[2], RevisionsFunction.class),
+        new FunctionDef(RevisionsFunction.signatures[3], RevisionsFunction.class),
+        new FunctionDef(RevisionsFunction.signatures[4], RevisionsFunction.class),
+        new FunctionDef(HistoryFunction.signature, HistoryFunction.class),
+        new FunctionDef(DocFunction.signatures[0], DocFunction.class),
+        new FunctionDef(DocFunction.signatures[1], DocFunction.class),
+        new FunctionDef(DocFunction.signatures[2], DocFunction.class)
     };
 
     public VersioningModule(final Map<String, List<? extends Object>> parameters) {
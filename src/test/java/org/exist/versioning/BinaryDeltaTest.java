@@ -0,0 +1,135 @@
+/**
+ * Versioning Module for eXist-db XQuery
+ * Copyright (C) 2008 eXist-db <exit-open@lists.sourceforge.net>
+ * http://exist-db.org
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 1, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.exist.versioning;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class BinaryDeltaTest {
+
+    private final static int BLOCK = BinaryDelta.DEFAULT_BLOCK_SIZE;
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void unchanged() throws IOException {
+        final byte[] source = random(1, 100 * BLOCK);
+        assertTrue(roundTrip(source, source) < BLOCK);
+    }
+
+    @Test
+    public void inserts() throws IOException {
+        final byte[] source = random(2, 100 * BLOCK);
+        byte[] target = insert(source, 10, random(3, 7));
+        target = insert(target, 50 * BLOCK + 1000, random(4, 3 * BLOCK + 5));
+        target = insert(target, target.length, random(5, 100));
+        assertTrue(roundTrip(source, target) < 6 * BLOCK);
+    }
+
+    @Test
+    public void deletes() throws IOException {
+        final byte[] source = random(6, 100 * BLOCK);
+        byte[] target = delete(source, 0, 1);
+        target = delete(target, 20 * BLOCK + 17, 2 * BLOCK);
+        target = delete(target, target.length - 300, 300);
+        assertTrue(roundTrip(source, target) < 6 * BLOCK);
+    }
+
+    /**
+     * Content moved by one byte less or more than a block, and changes right at block
+     * boundaries, are still found as copies.
+     */
+    @Test
+    public void blockBoundaryShifts() throws IOException {
+        final byte[] source = random(7, 100 * BLOCK);
+        for (final int shift : new int[] { 1, BLOCK - 1, BLOCK, BLOCK + 1 }) {
+            assertTrue("insert of " + shift, roundTrip(source, insert(source, 0, random(shift, shift))) < 3 * BLOCK);
+            assertTrue("delete of " + shift, roundTrip(source, delete(source, 0, shift)) < 3 * BLOCK);
+        }
+        final byte[] target = source.clone();
+        for (int i = 1; i < 100; i += 10) {
+            target[i * BLOCK - 1] ^= 1;
+            target[i * BLOCK] ^= 1;
+        }
+        assertTrue(roundTrip(source, target) < 40 * BLOCK);
+    }
+
+    @Test
+    public void small() throws IOException {
+        roundTrip(new byte[0], new byte[0]);
+        roundTrip(new byte[0], random(8, 100));
+        roundTrip(random(9, 100), new byte[0]);
+        roundTrip(random(10, BLOCK - 1), random(11, BLOCK + 1));
+        final byte[] source = random(12, BLOCK);
+        roundTrip(source, Arrays.copyOf(source, BLOCK - 1));
+    }
+
+    /**
+     * @return the size of the delta
+     */
+    private int roundTrip(final byte[] source, final byte[] target) throws IOException {
+        final Path sourceFile = folder.newFile().toPath();
+        Files.write(sourceFile, source);
+        final ByteArrayOutputStream delta = new ByteArrayOutputStream();
+        final ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+        try (final SeekableByteChannel channel = Files.newByteChannel(sourceFile)) {
+            assertEquals(target.length, BinaryDelta.encode(channel, new ByteArrayInputStream(target), delta));
+            BinaryDelta.decode(channel, new ByteArrayInputStream(delta.toByteArray()), decoded);
+        }
+        assertArrayEquals(target, decoded.toByteArray());
+        return delta.size();
+    }
+
+    private static byte[] random(final long seed, final int length) {
+        final byte[] data = new byte[length];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    private static byte[] insert(final byte[] data, final int offset, final byte[] inserted) {
+        final byte[] result = new byte[data.length + inserted.length];
+        System.arraycopy(data, 0, result, 0, offset);
+        System.arraycopy(inserted, 0, result, offset, inserted.length);
+        System.arraycopy(data, offset, result, offset + inserted.length, data.length - offset);
+        return result;
+    }
+
+    private static byte[] delete(final byte[] data, final int offset, final int length) {
+        final byte[] result = new byte[data.length - length];
+        System.arraycopy(data, 0, result, 0, offset);
+        System.arraycopy(data, offset + length, result, offset, data.length - offset - length);
+        return result;
+    }
+}
@@ -0,0 +1,138 @@
+/**
+ * Versioning Module for eXist-db XQuery
+ * Copyright (C) 2008 eXist-db <exit-open@lists.sourceforge.net>
+ * http://exist-db.org
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 1, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.exist.versioning;
+
+import org.exist.storage.txn.TransactionManager;
+import org.exist.storage.txn.Txn;
+import org.exist.xmldb.XmldbURI;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class CoalescingWindowTest {
+
+    private final static String COLLECTION = "/db/test";
+    private final static String DOC_PATH = COLLECTION + "/doc.xml";
+    private final static String[] CONTENTS = {
+            "<doc><a>1</a><b>x</b></doc>",
+            "<doc><a>2</a><b>x</b></doc>",
+            "<doc><a>2</a><b>y</b><c/></doc>",
+            "<doc><b>y</b><c>z</c></doc>",
+            "<doc><a>5</a><b>y</b><c>z</c></doc>",
+            "<doc><a>6</a><c>z</c></doc>"
+    };
+
+    @Rule
+    public final EmbeddedExist exist = new EmbeddedExist();
+
+    /**
+     * A save which does not change the document does not count against the window.
+     */
+    @Test
+    public void unchangedSave() throws Exception {
+        exist.enableVersioning(COLLECTION, "coalesce-window", "60", "coalesce-max-saves", "2");
+        exist.store(COLLECTION, "doc.xml", CONTENTS[0]);
+        exist.store(COLLECTION, "doc.xml", CONTENTS[1]);
+        exist.store(COLLECTION, "doc.xml", CONTENTS[1]);
+        exist.store(COLLECTION, "doc.xml", CONTENTS[2]);
+        exist.store(COLLECTION, "doc.xml", CONTENTS[3]);
+
+        assertEquals(Arrays.asList(CONTENTS[2], CONTENTS[3]), restoreAll());
+    }
+
+    /**
+     * Windows only change once the transaction commits.
+     */
+    @Test
+    public void abortedTransaction() throws Exception {
+        final TransactionManager transact = exist.getBrokerPool().getTransactionManager();
+        final CoalescingWindow windows = CoalescingWindow.getInstance(exist.getBrokerPool());
+        final XmldbURI docPath = XmldbURI.create(DOC_PATH);
+
+        try (final Txn transaction = transact.beginTransaction()) {
+            windows.open(transaction, docPath, "admin", 1, 60000);
+            transact.abort(transaction);
+        }
+        assertEquals(-1, windows.find(docPath, "admin", 60000, 2));
+
+        try (final Txn transaction = transact.beginTransaction()) {
+            windows.open(transaction, docPath, "admin", 1, 60000);
+            transact.commit(transaction);
+        }
+        assertEquals(1, windows.find(docPath, "admin", 60000, 2));
+        assertEquals(-1, windows.find(docPath, "guest", 60000, 2));
+
+        try (final Txn transaction = transact.beginTransaction()) {
+            windows.join(transaction, docPath, 1);
+            transact.abort(transaction);
+        }
+        assertEquals(1, windows.find(docPath, "admin", 60000, 2));
+
+        try (final Txn transaction = transact.beginTransaction()) {
+            windows.join(transaction, docPath, 1);
+            transact.commit(transaction);
+        }
+        assertEquals(-1, windows.find(docPath, "admin", 60000, 2));
+
+        try (final Txn transaction = transact.beginTransaction()) {
+            windows.close(transaction, docPath);
+            transact.commit(transaction);
+        }
+        assertEquals(-1, windows.find(docPath, "admin", 60000, 3));
+    }
+
+    /**
+     * In asynchronous chain mode, a coalesced save replaces the snapshot of a pending revision,
+     * or regenerates a revision the queue already processed against the preceding revision.
+     */
+    @Test
+    public void asyncChain() throws Exception {
+        exist.enableVersioning(COLLECTION, "async", "yes", "storage", "chain", "coalesce-window", "60",
+                "coalesce-max-saves", "2", "keyframe-interval", "100", "keyframe-threshold", "10");
+        exist.store(COLLECTION, "doc.xml", CONTENTS[0]);
+        exist.store(COLLECTION, "doc.xml", CONTENTS[1]);
+        exist.store(COLLECTION, "doc.xml", CONTENTS[2]);
+        exist.awaitQueue();
+        exist.store(COLLECTION, "doc.xml", CONTENTS[3]);
+        exist.awaitQueue();
+        exist.store(COLLECTION, "doc.xml", CONTENTS[4]);
+        exist.awaitQueue();
+        exist.store(COLLECTION, "doc.xml", CONTENTS[5]);
+        exist.awaitQueue();
+
+        assertEquals(Arrays.asList(CONTENTS[2], CONTENTS[4], CONTENTS[5]), restoreAll());
+        assertEquals("", exist.query("collection('/db/system/versions')//*:pending"));
+    }
+
+    private List<String> restoreAll() throws Exception {
+        final List<String> restored = new ArrayList<>();
+        for (final RevisionIndex.Record record : exist.revisions(DOC_PATH).values()) {
+            if (record.hasDiff()) {
+                restored.add(exist.restore(DOC_PATH, record.getRevision()));
+            }
+        }
+        return restored;
+    }
+}
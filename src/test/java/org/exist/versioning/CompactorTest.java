@@ -0,0 +1,82 @@
+/**
+ * Versioning Module for eXist-db XQuery
+ * Copyright (C) 2008 eXist-db <exit-open@lists.sourceforge.net>
+ * http://exist-db.org
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 1, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.exist.versioning;
+
+import org.exist.xmldb.XmldbURI;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CompactorTest {
+
+    private final static String COLLECTION = "/db/test";
+    private final static int KEEP = 3;
+
+    @Rule
+    public final EmbeddedExist exist = new EmbeddedExist();
+
+    /**
+     * The kept revisions are restored unchanged after compaction, and so are revisions stored
+     * afterwards. A squashed revision restores the new base.
+     */
+    @Test
+    public void restoreAfterCompaction() throws Exception {
+        for (final String storage : new String[] { VersioningTrigger.STORAGE_BASE, VersioningTrigger.STORAGE_CHAIN }) {
+            for (final String format : new String[] { VersioningTrigger.FORMAT_XML, VersioningTrigger.FORMAT_BINARY }) {
+                final String collection = COLLECTION + "-" + storage + "-" + format;
+                exist.enableVersioning(collection, VersioningTrigger.PARAM_STORAGE, storage,
+                        VersioningTrigger.PARAM_KEYFRAME_INTERVAL, "4", VersioningTrigger.PARAM_DIFF_FORMAT, format);
+                final String docPath = collection + "/doc.xml";
+                final Random random = new Random(11);
+                final List<String> stored = new ArrayList<>();
+                List<String> records = VersioningTriggerTest.records(50);
+                for (int i = 0; i < 12; i++) {
+                    records = VersioningTriggerTest.edit(random, records, i);
+                    stored.add(VersioningTriggerTest.serialize(records));
+                    exist.store(collection, "doc.xml", stored.get(i));
+                }
+
+                assertTrue(Compactor.getInstance(exist.getBrokerPool()).compact(XmldbURI.create(collection), KEEP, 0));
+                // the newest squashed revision, which became the base
+                final int point = exist.revisions(docPath).size() - 1 - KEEP;
+
+                for (int i = 12; i < 14; i++) {
+                    records = VersioningTriggerTest.edit(random, records, i);
+                    stored.add(VersioningTriggerTest.serialize(records));
+                    exist.store(collection, "doc.xml", stored.get(i));
+                }
+                final long[] numbers = exist.revisions(docPath).keySet().stream().mapToLong(Long::longValue)
+                        .toArray();
+                // the first store creates the base, each further store a revision
+                assertEquals(stored.size() - 1, numbers.length);
+                for (int i = numbers.length - 1; i > -1; i--) {
+                    final String expected = stored.get(Math.max(i, point) + 1);
+                    assertEquals(collection + ", revision " + numbers[i], expected, exist.restore(docPath, numbers[i]));
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,160 @@
+/**
+ * Versioning Module for eXist-db XQuery
+ * Copyright (C) 2008 eXist-db <exit-open@lists.sourceforge.net>
+ * http://exist-db.org
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 1, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.exist.versioning;
+
+import org.exist.dom.persistent.BinaryDocument;
+import org.exist.dom.persistent.LockedDocument;
+import org.exist.storage.DBBroker;
+import org.exist.storage.lock.Lock;
+import org.exist.storage.txn.TransactionManager;
+import org.exist.storage.txn.Txn;
+import org.exist.xmldb.XmldbURI;
+import org.junit.Rule;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ContentStoreTest {
+
+    private final static String COLLECTION = "/db/test";
+
+    @Rule
+    public final EmbeddedExist exist = new EmbeddedExist();
+
+    /**
+     * Identical binaries are stored once and their content is removed with its last reference.
+     */
+    @Test
+    public void dedupeAndRelease() throws Exception {
+        exist.query("xmldb:create-collection('/db', 'test')");
+        storeBinary("a.bin", "same content");
+        storeBinary("b.bin", "same content");
+        storeBinary("c.bin", "other content");
+        final ContentStore store = ContentStore.getInstance(exist.getBrokerPool());
+
+        final String ref = store("a.bin");
+        assertEquals(ref, store("b.bin"));
+        final String other = store("c.bin");
+        assertFalse(ref.equals(other));
+        assertEquals(2, references(ref));
+        assertEquals("2", exist.query("sum(for $dir in xmldb:get-child-collections('" +
+                ContentStore.CONTENT_COLLECTION + "') return count(xmldb:get-child-resources('" +
+                ContentStore.CONTENT_COLLECTION + "/' || $dir)))"));
+
+        release(ref);
+        assertEquals(1, references(ref));
+        assertTrue(isStored(ref));
+
+        release(ref);
+        assertEquals(0, references(ref));
+        assertFalse(isStored(ref));
+        assertTrue(isStored(other));
+    }
+
+    /**
+     * Content whose last reference is released stays if another transaction stored the same
+     * content and has not committed yet.
+     */
+    @Test
+    public void storeDuringRelease() throws Exception {
+        exist.query("xmldb:create-collection('/db', 'test')");
+        storeBinary("a.bin", "same content");
+        storeBinary("b.bin", "same content");
+        final ContentStore store = ContentStore.getInstance(exist.getBrokerPool());
+        final String ref = store("a.bin");
+
+        final TransactionManager transact = exist.getBrokerPool().getTransactionManager();
+        try (final DBBroker broker = exist.getBroker();
+                final Txn storing = transact.beginTransaction()) {
+            // finds the content already stored
+            assertEquals(ref, store.store(broker, storing, binary(broker, "b.bin")));
+            try (final Txn releasing = transact.beginTransaction()) {
+                store.release(broker, releasing, ref);
+                transact.commit(releasing);
+            }
+            assertTrue(isStored(ref));
+            transact.commit(storing);
+        }
+        assertEquals(1, references(ref));
+        assertTrue(isStored(ref));
+    }
+
+    /**
+     * The reference counts are taken from the revision index after a restart.
+     */
+    @Test
+    public void countsAfterRestart() throws Exception {
+        exist.enableVersioning(COLLECTION);
+        storeBinary("a.bin", "first");
+        storeBinary("a.bin", "same content");
+        storeBinary("b.bin", "second");
+        storeBinary("b.bin", "same content");
+        exist.restart();
+
+        final String ref = exist.query("declare namespace v='http://exist-db.org/versioning'; " +
+                "distinct-values(collection('" + VersioningTrigger.VERSIONS_COLLECTION +
+                "')//v:replaced-binary/@ref)");
+        assertTrue(ContentStore.isContentRef(ref));
+        assertEquals(2, references(ref));
+    }
+
+    private void storeBinary(final String name, final String content) throws Exception {
+        exist.query("xmldb:store('" + COLLECTION + "', '" + name + "', '" + content + "', 'application/octet-stream')");
+    }
+
+    private String store(final String name) throws Exception {
+        final TransactionManager transact = exist.getBrokerPool().getTransactionManager();
+        try (final DBBroker broker = exist.getBroker();
+                final Txn transaction = transact.beginTransaction()) {
+            final String ref = ContentStore.getInstance(exist.getBrokerPool()).store(broker, transaction,
+                    binary(broker, name));
+            transact.commit(transaction);
+            return ref;
+        }
+    }
+
+    private void release(final String ref) throws Exception {
+        final TransactionManager transact = exist.getBrokerPool().getTransactionManager();
+        try (final DBBroker broker = exist.getBroker();
+                final Txn transaction = transact.beginTransaction()) {
+            ContentStore.getInstance(exist.getBrokerPool()).release(broker, transaction, ref);
+            transact.commit(transaction);
+        }
+    }
+
+    private int references(final String ref) throws Exception {
+        try (final DBBroker broker = exist.getBroker()) {
+            return ContentStore.getInstance(exist.getBrokerPool()).getReferences(broker, ref);
+        }
+    }
+
+    private BinaryDocument binary(final DBBroker broker, final String name) throws Exception {
+        try (final LockedDocument doc = broker.getXMLResource(XmldbURI.create(COLLECTION).append(name),
+                Lock.LockMode.READ_LOCK)) {
+            return (BinaryDocument) doc.getDocument();
+        }
+    }
+
+    private boolean isStored(final String ref) throws Exception {
+        return "true".equals(exist.query("util:binary-doc-available('" + ContentStore.resolve(ref) + "')"));
+    }
+}
@@ -0,0 +1,160 @@
+/**
+ * Versioning Module for eXist-db XQuery
+ * Copyright (C) 2008 eXist-db <exit-open@lists.sourceforge.net>
+ * http://exist-db.org
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 1, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.exist.versioning;
+
+import org.exist.collections.Collection;
+import org.exist.dom.persistent.DocumentImpl;
+import org.exist.storage.DBBroker;
+import org.exist.storage.lock.Lock.LockMode;
+import org.exist.storage.txn.Txn;
+import org.exist.xmldb.XmldbURI;
+import org.junit.Rule;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class DiffSkeletonTest {
+
+    private final static String COLLECTION = "/db/test";
+
+    @Rule
+    public final EmbeddedExist exist = new EmbeddedExist();
+
+    @Test
+    public void storedIds() throws Exception {
+        exist.query("xmldb:create-collection('/db', 'test'), " +
+                "xmldb:store('" + COLLECTION + "', 'doc.xml', <doc a='1'><!-- c --><e>text<f g='h'/></e>tail</doc>)");
+        try (final DBBroker broker = exist.getBroker();
+                final Txn transaction = exist.getBrokerPool().getTransactionManager().beginTransaction();
+                final Collection collection = broker.openCollection(XmldbURI.create(COLLECTION), LockMode.WRITE_LOCK)) {
+            final DocumentImpl document = collection.getDocument(broker, XmldbURI.create("doc.xml"));
+            DiffSkeleton.store(broker, transaction, collection, document);
+
+            final DiffNodes.Names names = new DiffNodes.Names();
+            final DiffNodes skeleton = DiffSkeleton.source(transaction, document).getNodes(broker, names);
+            assertNotNull(skeleton);
+            try (final StandardDiff diff = new StandardDiff(broker)) {
+                final DiffNodes stored = diff.getNodes(broker, DiffSource.of(document), names);
+                assertEquals(stored.size(), skeleton.size());
+                for (int i = 0; i < stored.size(); i++) {
+                    assertEquals(stored.getType(i), skeleton.getType(i));
+                    assertEquals(stored.getNodeId(i), skeleton.getNodeId(i));
+                    assertEquals(stored.getHash(i), skeleton.getHash(i));
+                    assertEquals(stored.getCode(i), skeleton.getCode(i));
+                }
+            }
+            transaction.commit();
+        }
+    }
+
+    /**
+     * The skeleton of a new <code>.head</code> is taken from the nodes the diff read from the
+     * new revision, so storing a chained revision reads only that revision. The ids are those
+     * of the stored head, also if the revision was updated in place and has other ids.
+     */
+    @Test
+    public void headFromDiff() throws Exception {
+        exist.enableVersioning(COLLECTION, VersioningTrigger.PARAM_STORAGE, VersioningTrigger.STORAGE_CHAIN);
+        exist.store(COLLECTION, "doc.xml", "document { comment { 'top' }, <doc/>, <?end?> }");
+        exist.store(COLLECTION, "doc.xml", "document { comment { 'top' }, <doc a='0'/>, <?end?> }");
+        for (int i = 1; i < 4; i++) {
+            final long reads = DiffSource.getDocumentReads();
+            exist.store(COLLECTION, "doc.xml", "document { comment { 'top' }, <doc xmlns:n='urn:n' a='" + i +
+                    "'><!-- c --><?pi data?><e n:b='c'>text " + i + "<f g='h'/></e>tail</doc>, <?end?> }");
+            assertEquals(reads + 1, DiffSource.getDocumentReads());
+            assertEquals(i + 1, exist.revisions(COLLECTION + "/doc.xml").size());
+            assertHeadSkeleton();
+        }
+
+        exist.query("update insert <x y='z'>new</x> preceding doc('" + COLLECTION + "/doc.xml')/doc/e, " +
+                "update insert <w/> into doc('" + COLLECTION + "/doc.xml')/doc/e");
+        assertEquals(6, exist.revisions(COLLECTION + "/doc.xml").size());
+        assertHeadSkeleton();
+    }
+
+    private void assertHeadSkeleton() throws Exception {
+        try (final DBBroker broker = exist.getBroker();
+                final Txn transaction = exist.getBrokerPool().getTransactionManager().beginTransaction();
+                final Collection collection = broker.openCollection(
+                        VersioningTrigger.VERSIONS_COLLECTION.append(COLLECTION), LockMode.READ_LOCK)) {
+            final DocumentImpl head = collection.getDocument(broker,
+                    XmldbURI.create("doc.xml" + VersioningTrigger.HEAD_SUFFIX));
+            final DiffNodes.Names names = new DiffNodes.Names();
+            final DiffNodes skeleton = DiffSkeleton.source(transaction, head).getNodes(broker, names);
+            assertNotNull(skeleton);
+            try (final StandardDiff diff = new StandardDiff(broker)) {
+                final DiffNodes stored = diff.getNodes(broker, DiffSource.of(head), names);
+                assertEquals(stored.size(), skeleton.size());
+                for (int i = 0; i < stored.size(); i++) {
+                    assertEquals(stored.getType(i), skeleton.getType(i));
+                    assertEquals(stored.getNodeId(i), skeleton.getNodeId(i));
+                    assertEquals(stored.getHash(i), skeleton.getHash(i));
+                    assertEquals(stored.getCode(i), skeleton.getCode(i));
+                }
+            }
+            transaction.commit();
+        }
+    }
+
+    /**
+     * A skeleton is only used for the document it was read from: not once the document was
+     * updated, nor once it was removed and stored again, which gives it a new id.
+     */
+    @Test
+    public void invalidated() throws Exception {
+        exist.query("xmldb:create-collection('/db', 'test'), " +
+                "xmldb:store('" + COLLECTION + "', 'doc.xml', <doc>1</doc>)");
+        storeSkeleton();
+        assertNotNull(loadSkeleton());
+
+        Thread.sleep(10);
+        exist.query("xmldb:store('" + COLLECTION + "', 'doc.xml', <doc>2</doc>)");
+        assertNull(loadSkeleton());
+
+        storeSkeleton();
+        assertNotNull(loadSkeleton());
+        exist.query("xmldb:remove('" + COLLECTION + "', 'doc.xml'), " +
+                "xmldb:store('" + COLLECTION + "', 'other.xml', <other/>), " +
+                "xmldb:store('" + COLLECTION + "', 'doc.xml', <doc>2</doc>)");
+        assertNull(loadSkeleton());
+    }
+
+    private void storeSkeleton() throws Exception {
+        try (final DBBroker broker = exist.getBroker();
+                final Txn transaction = exist.getBrokerPool().getTransactionManager().beginTransaction();
+                final Collection collection = broker.openCollection(XmldbURI.create(COLLECTION), LockMode.WRITE_LOCK)) {
+            DiffSkeleton.store(broker, transaction, collection, collection.getDocument(broker, XmldbURI.create("doc.xml")));
+            transaction.commit();
+        }
+    }
+
+    private DiffNodes loadSkeleton() throws Exception {
+        try (final DBBroker broker = exist.getBroker();
+                final Txn transaction = exist.getBrokerPool().getTransactionManager().beginTransaction();
+                final Collection collection = broker.openCollection(XmldbURI.create(COLLECTION), LockMode.READ_LOCK)) {
+            final DocumentImpl document = collection.getDocument(broker, XmldbURI.create("doc.xml"));
+            final DiffNodes nodes = DiffSkeleton.source(transaction, document).getNodes(broker, new DiffNodes.Names());
+            transaction.commit();
+            return nodes;
+        }
+    }
+}
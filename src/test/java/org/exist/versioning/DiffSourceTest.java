@@ -0,0 +1,124 @@
+/**
+ * Versioning Module for eXist-db XQuery
+ * Copyright (C) 2008 eXist-db <exit-open@lists.sourceforge.net>
+ * http://exist-db.org
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 1, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.exist.versioning;
+
+import org.exist.collections.Collection;
+import org.exist.collections.IndexInfo;
+import org.exist.dom.persistent.DocumentImpl;
+import org.exist.dom.persistent.LockedDocument;
+import org.exist.storage.DBBroker;
+import org.exist.storage.lock.Lock.LockMode;
+import org.exist.storage.txn.Txn;
+import org.exist.util.serializer.AttrList;
+import org.exist.xmldb.XmldbURI;
+import org.junit.Rule;
+import org.junit.Test;
+
+import javax.xml.stream.XMLStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+
+public class DiffSourceTest {
+
+    private final static String COLLECTION = "/db/test";
+
+    @Rule
+    public final EmbeddedExist exist = new EmbeddedExist();
+
+    /**
+     * The trigger stores in-memory copies as <code>.head</code> and keyframes. A diff against the
+     * copy must reference the nodes by the ids of the stored document.
+     */
+    @Test
+    public void inMemoryIdsEqualStoredIds() throws Exception {
+        exist.enableVersioning(COLLECTION);
+        exist.store(COLLECTION, "doc.xml", "<doc xmlns:x='urn:x' a='1' x:b='2'><!-- c --><?pi data?>" +
+                "<x:e>text<f g='h'/>tail</x:e><e/>mixed <i>content</i> here</doc>");
+        try (final DBBroker broker = exist.getBroker();
+                final Txn transaction = exist.getBrokerPool().getTransactionManager().beginTransaction();
+                final Collection collection = broker.openCollection(XmldbURI.create(COLLECTION), LockMode.WRITE_LOCK)) {
+            final DocumentImpl document = collection.getDocument(broker, XmldbURI.create("doc.xml"));
+            final org.exist.dom.memtree.DocumentImpl content = VersioningTrigger.copyToMemory(broker, document);
+            final XmldbURI copyUri = XmldbURI.create("copy.xml");
+            final IndexInfo info = collection.validateXMLResource(transaction, broker, copyUri, content);
+            collection.store(transaction, broker, info, content);
+            final DocumentImpl copy = collection.getDocument(broker, copyUri);
+
+            final StandardDiff diff = new StandardDiff(broker);
+            final DiffNodes.Names names = new DiffNodes.Names();
+            final DiffNodes inMemory = diff.getNodes(broker, DiffSource.of(content), names);
+            final DiffNodes stored = diff.getNodes(broker, DiffSource.of(copy), names);
+            assertEquals(stored.size(), inMemory.size());
+            for (int i = 0; i < stored.size(); i++) {
+                assertEquals(stored.getType(i), inMemory.getType(i));
+                assertEquals(stored.getNodeId(i), inMemory.getNodeId(i));
+                assertEquals(stored.getHash(i), inMemory.getHash(i));
+            }
+            transaction.commit();
+        }
+    }
+
+    @Test
+    public void concurrentLookups() throws Exception {
+        final StringBuilder xml = new StringBuilder("<doc>");
+        for (int i = 0; i < 2000; i++) {
+            xml.append("<r id='").append(i).append("'>").append(i).append("</r>");
+        }
+        exist.query("xmldb:create-collection('/db', 'test'), " +
+                "xmldb:store('" + COLLECTION + "', 'doc.xml', " + xml.append("</doc>") + ")");
+
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        try (final DBBroker broker = exist.getBroker();
+                final LockedDocument document = broker.getXMLResource(XmldbURI.create(COLLECTION + "/doc.xml"),
+                        LockMode.READ_LOCK)) {
+            final org.exist.dom.memtree.DocumentImpl content =
+                    VersioningTrigger.copyToMemory(broker, document.getDocument());
+            final DiffNodes nodes = new StandardDiff(broker).getNodes(broker, DiffSource.of(content),
+                    new DiffNodes.Names());
+            for (int round = 0; round < 20; round++) {
+                final DiffSource source = DiffSource.of(content);
+                final List<Future<Integer>> results = new ArrayList<>();
+                for (int t = 0; t < 4; t++) {
+                    results.add(executor.submit(() -> {
+                        int found = 0;
+                        for (int i = 0; i < nodes.size(); i++) {
+                            if (nodes.getType(i) == XMLStreamReader.ATTRIBUTE) {
+                                final AttrList attribs = new AttrList();
+                                source.addAttribute(null, nodes.getNodeId(i), attribs);
+                                found += attribs.getLength();
+                            }
+                        }
+                        return found;
+                    }));
+                }
+                for (final Future<Integer> result : results) {
+                    assertEquals(2000, result.get().intValue());
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
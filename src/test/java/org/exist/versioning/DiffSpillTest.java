@@ -0,0 +1,175 @@
+/**
+ * Versioning Module for eXist-db XQuery
+ * Copyright (C) 2008 eXist-db <exit-open@lists.sourceforge.net>
+ * http://exist-db.org
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 1, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.exist.versioning;
+
+import bmsi.util.Diff;
+import org.exist.dom.persistent.LockedDocument;
+import org.exist.storage.DBBroker;
+import org.exist.storage.lock.Lock.LockMode;
+import org.exist.xmldb.XmldbURI;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class DiffSpillTest {
+
+    private final static String COLLECTION = "/db/test";
+
+    @Rule
+    public final EmbeddedExist exist = new EmbeddedExist();
+
+    @Test
+    public void deletedAfterDiff() throws Exception {
+        store();
+        try (final DBBroker broker = exist.getBroker();
+                final LockedDocument docA = broker.getXMLResource(XmldbURI.create(COLLECTION + "/a.xml"),
+                        LockMode.READ_LOCK);
+                final LockedDocument docB = broker.getXMLResource(XmldbURI.create(COLLECTION + "/b.xml"),
+                        LockMode.READ_LOCK)) {
+            final StandardDiff diff = new StandardDiff(broker);
+            diff.setSpillThreshold(100);
+            diff.diff(docA.getDocument(), docB.getDocument());
+            assertTrue(diff.getSourceNodes().isSpilled());
+            assertTrue(spillFiles() > 0);
+            assertEquals(expected(), StandardDiffTest.patch(broker, diff, DiffSource.of(docA.getDocument())));
+            diff.close();
+            assertEquals(0, spillFiles());
+        }
+    }
+
+    @Test
+    public void deletedAfterFailure() throws Exception {
+        store();
+        try (final DBBroker broker = exist.getBroker();
+                final LockedDocument docA = broker.getXMLResource(XmldbURI.create(COLLECTION + "/a.xml"),
+                        LockMode.READ_LOCK);
+                final LockedDocument docB = broker.getXMLResource(XmldbURI.create(COLLECTION + "/b.xml"),
+                        LockMode.READ_LOCK)) {
+            try (final StandardDiff diff = new StandardDiff(broker) {
+                @Override
+                protected Diff.change computeScript(final DiffSource docA, final DiffNodes nodesA,
+                        final DiffSource docB, final DiffNodes nodesB) {
+                    assertTrue(nodesA.isSpilled() && nodesB.isSpilled());
+                    throw new IllegalStateException("failed");
+                }
+            }) {
+                diff.setSpillThreshold(100);
+                diff.diff(docA.getDocument(), docB.getDocument());
+                fail();
+            } catch (final IllegalStateException e) {
+                assertEquals("failed", e.getMessage());
+            }
+            assertEquals(0, spillFiles());
+        }
+    }
+
+    /**
+     * Revisions diffed by the trigger with spilled nodes, also read back from a skeleton, are
+     * restored unchanged by every diff algorithm.
+     */
+    @Test
+    public void revisionsRestored() throws Exception {
+        for (final String algorithm : new String[] { VersioningTrigger.DIFF_STANDARD, VersioningTrigger.DIFF_TREE,
+                VersioningTrigger.DIFF_PARALLEL }) {
+            final String collection = COLLECTION + "-" + algorithm;
+            exist.enableVersioning(collection, VersioningTrigger.PARAM_STORAGE, VersioningTrigger.STORAGE_CHAIN,
+                    VersioningTrigger.PARAM_DIFF, algorithm, VersioningTrigger.PARAM_DIFF_SPILL_THRESHOLD, "100");
+            final Random random = new Random(3);
+            final List<String> stored = new ArrayList<>();
+            List<String> records = VersioningTriggerTest.records(300);
+            for (int i = 0; i < 6; i++) {
+                records = VersioningTriggerTest.edit(random, records, i);
+                stored.add(VersioningTriggerTest.serialize(records));
+                exist.store(collection, "doc.xml", stored.get(i));
+            }
+            assertEquals(0, spillFiles());
+            final long[] numbers = exist.revisions(collection + "/doc.xml").keySet().stream()
+                    .mapToLong(Long::longValue).toArray();
+            assertEquals(stored.size() - 1, numbers.length);
+            for (int i = 0; i < numbers.length; i++) {
+                assertEquals(algorithm + ", revision " + numbers[i], stored.get(i + 1),
+                        exist.restore(collection + "/doc.xml", numbers[i]));
+            }
+        }
+    }
+
+    /**
+     * Only files left behind by an earlier run are deleted, not those of diffs running.
+     */
+    @Test
+    @SuppressWarnings("try")
+    public void staleFilesDeleted() throws Exception {
+        final Path dir = exist.getDataDir().resolve("spill-test");
+        Files.createDirectories(dir);
+        final Path stale = Files.createFile(dir.resolve("nodes1.spill"));
+        Files.setLastModifiedTime(stale, FileTime.fromMillis(0));
+        final Path running = Files.createFile(dir.resolve("nodes2.spill"));
+        try (final DiffSpill spill = DiffSpill.create(dir, exist.getBrokerPool().getNodeFactory())) {
+            assertFalse(Files.exists(stale));
+            assertTrue(Files.exists(running));
+            // the running file and the two of the new spill
+            assertEquals(3, count(dir));
+        }
+        assertEquals(1, count(dir));
+    }
+
+    private void store() throws Exception {
+        final StringBuilder a = new StringBuilder("<doc>");
+        final StringBuilder b = new StringBuilder("<doc>");
+        for (int i = 0; i < 500; i++) {
+            a.append("<r id='").append(i).append("'>").append(i).append("</r>");
+            b.append("<r id='").append(i).append("'>").append(i % 50 == 0 ? -i : i).append("</r>");
+        }
+        exist.query("xmldb:create-collection('/db', 'test'), " +
+                "xmldb:store('" + COLLECTION + "', 'a.xml', " + a + "</doc>), " +
+                "xmldb:store('" + COLLECTION + "', 'b.xml', " + b + "</doc>)");
+    }
+
+    private static String expected() {
+        final StringBuilder b = new StringBuilder("<doc>");
+        for (int i = 0; i < 500; i++) {
+            b.append("<r id=\"").append(i).append("\">").append(i % 50 == 0 ? -i : i).append("</r>");
+        }
+        return b.append("</doc>").toString();
+    }
+
+    private long spillFiles() throws Exception {
+        final Path dir = exist.getDataDir().resolve(DiffSpill.SPILL_DIR);
+        return Files.exists(dir) ? count(dir) : 0;
+    }
+
+    private static long count(final Path dir) throws Exception {
+        try (final Stream<Path> files = Files.list(dir)) {
+            return files.count();
+        }
+    }
+}
@@ -0,0 +1,205 @@
+/**
+ * Versioning Module for eXist-db XQuery
+ * Copyright (C) 2008 eXist-db <exit-open@lists.sourceforge.net>
+ * http://exist-db.org
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 1, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.exist.versioning;
+
+import org.exist.EXistException;
+import org.exist.dom.persistent.DocumentImpl;
+import org.exist.security.PermissionDeniedException;
+import org.exist.storage.BrokerPool;
+import org.exist.storage.DBBroker;
+import org.exist.storage.journal.Journal;
+import org.exist.util.Configuration;
+import org.exist.util.DatabaseConfigurationException;
+import org.exist.storage.serializers.Serializer;
+import org.exist.util.FileUtils;
+import org.exist.xmldb.XmldbURI;
+import org.exist.xquery.XPathException;
+import org.exist.xquery.value.Sequence;
+import org.exist.xquery.value.SequenceIterator;
+import org.junit.rules.ExternalResource;
+
+import javax.xml.transform.OutputKeys;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.NavigableMap;
+import java.util.Optional;
+import java.util.TreeMap;
+
+/**
+ * Runs a database for a test class or method in a temporary directory, configured by the
+ * <code>conf.xml</code> of the test resources. The database can be restarted on the same
+ * directory to test recovery.
+ */
+public class EmbeddedExist extends ExternalResource {
+
+    private Path dataDir;
+    private BrokerPool pool;
+
+    @Override
+    protected void before() throws Throwable {
+        dataDir = Files.createTempDirectory("versioning-test");
+        start();
+    }
+
+    @Override
+    protected void after() {
+        stop();
+        FileUtils.deleteQuietly(dataDir);
+    }
+
+    public BrokerPool getBrokerPool() {
+        return pool;
+    }
+
+    public Path getDataDir() {
+        return dataDir;
+    }
+
+    /**
+     * @return a broker running as the system subject
+     */
+    public DBBroker getBroker() throws EXistException {
+        return pool.get(Optional.of(pool.getSecurityManager().getSystemSubject()));
+    }
+
+    /**
+     * Run a query as the system subject.
+     *
+     * @param query the query
+     * @return the string values of the result items, separated by newlines
+     */
+    public String query(final String query) throws EXistException, XPathException, PermissionDeniedException {
+        try (final DBBroker broker = getBroker()) {
+            final Sequence result = pool.getXQueryService().execute(broker, query, null);
+            final StringBuilder buf = new StringBuilder();
+            for (final SequenceIterator i = result.iterate(); i.hasNext(); ) {
+                if (buf.length() > 0) {
+                    buf.append('\n');
+                }
+                buf.append(i.nextItem().getStringValue());
+            }
+            return buf.toString();
+        }
+    }
+
+    /**
+     * Enable the {@link VersioningTrigger} on a collection and create it.
+     *
+     * @param collection the absolute path of the collection
+     * @param parameters pairs of parameter names and values of the trigger
+     */
+    public void enableVersioning(final String collection, final String... parameters)
+            throws EXistException, XPathException, PermissionDeniedException {
+        final StringBuilder xconf = new StringBuilder();
+        xconf.append("<collection xmlns='http://exist-db.org/collection-config/1.0'><triggers>");
+        xconf.append("<trigger event='create,update,delete' class='").append(VersioningTrigger.class.getName())
+                .append("'>");
+        for (int i = 0; i < parameters.length; i += 2) {
+            xconf.append("<parameter name='").append(parameters[i]).append("' value='").append(parameters[i + 1])
+                    .append("'/>");
+        }
+        xconf.append("</trigger></triggers></collection>");
+        query("xmldb:create-collection('/db', 'system/config" + collection + "'), " +
+                "xmldb:store('/db/system/config" + collection + "', 'collection.xconf', " + xconf + "), " +
+                "xmldb:create-collection('/db', '" + collection.substring("/db/".length()) + "')");
+    }
+
+    /**
+     * Store a document, firing the triggers of the collection.
+     *
+     * @param collection the absolute path of the collection
+     * @param name the name of the document
+     * @param xml the content of the document
+     */
+    public void store(final String collection, final String name, final String xml)
+            throws EXistException, XPathException, PermissionDeniedException {
+        query("xmldb:store('" + collection + "', '" + name + "', " + xml + ")");
+    }
+
+    /**
+     * @param docPath the absolute path of a versioned document
+     * @return the revisions of the document in the revision index
+     */
+    public NavigableMap<Long, RevisionIndex.Record> revisions(final String docPath) throws Exception {
+        try (final DBBroker broker = getBroker()) {
+            return new TreeMap<>(RevisionIndex.getInstance(pool).getRevisions(broker, XmldbURI.create(docPath)));
+        }
+    }
+
+    /**
+     * @param docPath the absolute path of a versioned document
+     * @param revision the revision to restore
+     * @return the serialized content of the revision
+     */
+    public String restore(final String docPath, final long revision) throws Exception {
+        try (final DBBroker broker = getBroker()) {
+            final RevisionCache cache = RevisionCache.getInstance(pool);
+            final Serializer serializer = broker.getSerializer();
+            serializer.reset();
+            serializer.setProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
+            final org.exist.dom.memtree.DocumentImpl doc = cache.restore(broker, XmldbURI.create(docPath), revision);
+            if (doc != null) {
+                return serializer.serialize(doc);
+            }
+            // the revision is stored in full as keyframe or base
+            final DocumentImpl source = cache.getSource(broker, XmldbURI.create(docPath), revision);
+            return source == null ? null : serializer.serialize(source);
+        }
+    }
+
+    /**
+     * Wait until the versioning queue processed all jobs.
+     */
+    public void awaitQueue() throws InterruptedException {
+        final VersioningQueue queue = VersioningQueue.getInstance(pool, 1, 1);
+        final long timeout = System.currentTimeMillis() + 30000;
+        while (queue.size() > 0) {
+            if (System.currentTimeMillis() > timeout) {
+                throw new AssertionError("Versioning queue did not finish");
+            }
+            Thread.sleep(20);
+        }
+    }
+
+    /**
+     * Shut the database down and start it again on the same data directory.
+     */
+    public void restart() throws EXistException, DatabaseConfigurationException, IOException {
+        stop();
+        start();
+    }
+
+    private void start() throws EXistException, DatabaseConfigurationException, IOException {
+        final Configuration config = new Configuration();
+        config.setProperty(BrokerPool.PROPERTY_DATA_DIR, dataDir);
+        config.setProperty(Journal.PROPERTY_RECOVERY_JOURNAL_DIR, dataDir);
+        BrokerPool.configure(1, 5, config);
+        pool = BrokerPool.getInstance();
+    }
+
+    private void stop() {
+        if (pool != null) {
+            pool.shutdown();
+            pool = null;
+        }
+        BrokerPool.stopAll(false);
+    }
+}
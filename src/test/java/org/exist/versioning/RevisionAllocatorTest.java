@@ -0,0 +1,125 @@
+/**
+ * Versioning Module for eXist-db XQuery
+ * Copyright (C) 2008 eXist-db <exit-open@lists.sourceforge.net>
+ * http://exist-db.org
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 1, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.exist.versioning;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class RevisionAllocatorTest {
+
+    private final static int THREADS = 8;
+    private final static int REVISIONS = 5000;
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void uniqueAndMonotonic() throws Exception {
+        final Path file = folder.getRoot().toPath().resolve(RevisionAllocator.FILE_NAME);
+        final RevisionAllocator allocator = new RevisionAllocator(file, 10, () -> 0);
+
+        final ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        final List<Future<long[]>> results = new ArrayList<>();
+        try {
+            for (int i = 0; i < THREADS; i++) {
+                results.add(executor.submit((Callable<long[]>) () -> {
+                    final long[] revisions = new long[REVISIONS];
+                    for (int j = 0; j < REVISIONS; j++) {
+                        revisions[j] = allocator.next();
+                    }
+                    return revisions;
+                }));
+            }
+            final Set<Long> all = new HashSet<>();
+            for (final Future<long[]> result : results) {
+                final long[] revisions = result.get();
+                for (int j = 0; j < revisions.length; j++) {
+                    assertTrue(revisions[j] > 0);
+                    if (j > 0) {
+                        assertTrue("revisions of a thread must increase", revisions[j] > revisions[j - 1]);
+                    }
+                    assertTrue("revision " + revisions[j] + " handed out twice", all.add(revisions[j]));
+                }
+            }
+            assertEquals(THREADS * REVISIONS, all.size());
+            assertEquals(THREADS * REVISIONS, allocator.current());
+        } finally {
+            executor.shutdownNow();
+        }
+
+        // a restart resumes behind every revision handed out before
+        final RevisionAllocator restarted = new RevisionAllocator(file, 10, () -> {
+            throw new IOException("recovery must not be needed");
+        });
+        assertTrue(restarted.next() > THREADS * REVISIONS);
+    }
+
+    @Test
+    public void recoverTruncated() throws Exception {
+        final Path file = folder.getRoot().toPath().resolve(RevisionAllocator.FILE_NAME);
+        final RevisionAllocator allocator = new RevisionAllocator(file, 10, () -> 0);
+        for (int i = 0; i < 25; i++) {
+            allocator.next();
+        }
+        Files.write(file, new byte[] { 0, 0, 0 });
+
+        final RevisionAllocator restarted = new RevisionAllocator(file, 10, () -> 25);
+        assertEquals(26, restarted.next());
+        assertEquals(8, Files.size(file));
+    }
+
+    @Test
+    public void recoverMissing() throws Exception {
+        final Path file = folder.getRoot().toPath().resolve(RevisionAllocator.FILE_NAME);
+        final RevisionAllocator allocator = new RevisionAllocator(file, 10, () -> 42);
+        assertEquals(43, allocator.next());
+    }
+
+    @Test
+    public void failWithoutRecovery() throws Exception {
+        final Path file = folder.getRoot().toPath().resolve(RevisionAllocator.FILE_NAME);
+        Files.write(file, new byte[] { 1 });
+        try {
+            new RevisionAllocator(file, 10, () -> {
+                throw new IOException("revision index unavailable");
+            });
+            fail("allocator must not start from 0 if the bound is lost");
+        } catch (final IOException e) {
+            assertEquals("revision index unavailable", e.getMessage());
+        }
+    }
+}
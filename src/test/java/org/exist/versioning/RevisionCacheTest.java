@@ -0,0 +1,180 @@
+/**
+ * Versioning Module for eXist-db XQuery
+ * Copyright (C) 2008 eXist-db <exit-open@lists.sourceforge.net>
+ * http://exist-db.org
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 1, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.exist.versioning;
+
+import org.exist.xmldb.XmldbURI;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RevisionCacheTest {
+
+    private final static String COLLECTION = "/db/test";
+    private final static String DOC_PATH = COLLECTION + "/doc.xml";
+
+    @Rule
+    public final EmbeddedExist exist = new EmbeddedExist();
+
+    /**
+     * The cached revisions never hold more nodes than configured; lowering the maximum evicts
+     * revisions and 0 disables the cache.
+     */
+    @Test
+    public void maxNodes() throws Exception {
+        exist.enableVersioning(COLLECTION, VersioningTrigger.PARAM_KEYFRAME_INTERVAL, "100");
+        final List<String> stored = storeSimple(6);
+        final long[] numbers = numbers();
+        final RevisionCache cache = RevisionCache.getInstance(exist.getBrokerPool());
+        for (final long number : numbers) {
+            exist.restore(DOC_PATH, number);
+        }
+        assertEquals(5, cache.getSize());
+        final long nodes = cache.getNodes() / 5;
+
+        final long evictions = cache.getEvictions();
+        cache.setMaxNodes(2 * nodes);
+        assertEquals(2, cache.getSize());
+        assertEquals(2 * nodes, cache.getNodes());
+        assertEquals(evictions + 3, cache.getEvictions());
+
+        for (int i = 0; i < numbers.length; i++) {
+            assertEquals(stored.get(i + 1), exist.restore(DOC_PATH, numbers[i]));
+            assertTrue(cache.getNodes() <= 2 * nodes);
+        }
+
+        cache.setMaxNodes(0);
+        assertEquals(0, cache.getSize());
+        assertEquals(0, cache.getNodes());
+        final long misses = cache.getMisses();
+        assertEquals(stored.get(1), exist.restore(DOC_PATH, numbers[0]));
+        assertEquals(stored.get(1), exist.restore(DOC_PATH, numbers[0]));
+        assertEquals(misses + 2, cache.getMisses());
+        assertEquals(0, cache.getSize());
+    }
+
+    /**
+     * The least recently used revision is evicted first.
+     */
+    @Test
+    public void evictLeastRecentlyUsed() throws Exception {
+        exist.enableVersioning(COLLECTION, VersioningTrigger.PARAM_KEYFRAME_INTERVAL, "100");
+        storeSimple(4);
+        final long[] numbers = numbers();
+        final RevisionCache cache = RevisionCache.getInstance(exist.getBrokerPool());
+        exist.restore(DOC_PATH, numbers[0]);
+        cache.setMaxNodes(2 * cache.getNodes());
+
+        exist.restore(DOC_PATH, numbers[1]);
+        exist.restore(DOC_PATH, numbers[0]);
+        exist.restore(DOC_PATH, numbers[2]);
+        assertEquals(2, cache.getSize());
+
+        final long hits = cache.getHits();
+        final long misses = cache.getMisses();
+        exist.restore(DOC_PATH, numbers[0]);
+        exist.restore(DOC_PATH, numbers[2]);
+        assertEquals(hits + 2, cache.getHits());
+        exist.restore(DOC_PATH, numbers[1]);
+        assertEquals(misses + 1, cache.getMisses());
+    }
+
+    /**
+     * Compaction rewrites the diffs of the revisions it keeps and squashes the others, so none
+     * of them may be answered from the cache afterwards.
+     */
+    @Test
+    public void invalidatedByCompactor() throws Exception {
+        exist.enableVersioning(COLLECTION, VersioningTrigger.PARAM_KEYFRAME_INTERVAL, "100");
+        final List<String> stored = storeRevisions(8);
+        final RevisionCache cache = RevisionCache.getInstance(exist.getBrokerPool());
+        for (final long number : numbers()) {
+            exist.restore(DOC_PATH, number);
+        }
+        assertEquals(7, cache.getSize());
+
+        assertTrue(Compactor.getInstance(exist.getBrokerPool()).compact(XmldbURI.create(COLLECTION), 3, 0));
+        assertEquals(0, cache.getSize());
+
+        final long[] numbers = numbers();
+        final long misses = cache.getMisses();
+        for (int i = 0; i < 3; i++) {
+            assertEquals(stored.get(stored.size() - 3 + i), exist.restore(DOC_PATH, numbers[numbers.length - 3 + i]));
+        }
+        assertEquals(misses + 3, cache.getMisses());
+    }
+
+    /**
+     * Pruning drops the removed revisions and the revision it stores as new keyframe; the
+     * later revisions chained onto it restore the same content and stay cached.
+     */
+    @Test
+    public void invalidatedByPruner() throws Exception {
+        exist.enableVersioning(COLLECTION, VersioningTrigger.PARAM_STORAGE, VersioningTrigger.STORAGE_CHAIN,
+                VersioningTrigger.PARAM_KEYFRAME_INTERVAL, "100", VersioningTrigger.PARAM_RETAIN_REVISIONS, "3");
+        final List<String> stored = storeRevisions(10);
+        final RevisionCache cache = RevisionCache.getInstance(exist.getBrokerPool());
+        for (final long number : numbers()) {
+            exist.restore(DOC_PATH, number);
+        }
+        assertEquals(9, cache.getSize());
+
+        VersionPruner.getInstance(exist.getBrokerPool()).pruneAll();
+        assertEquals(2, cache.getSize());
+
+        final long[] numbers = numbers();
+        assertEquals(3, numbers.length);
+        final long hits = cache.getHits();
+        for (int i = 0; i < 3; i++) {
+            assertEquals(stored.get(stored.size() - 3 + i), exist.restore(DOC_PATH, numbers[i]));
+        }
+        assertEquals(hits + 2, cache.getHits());
+    }
+
+    private List<String> storeSimple(final int count) throws Exception {
+        final List<String> stored = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            stored.add("<doc><a>" + i + "</a><b>" + (count - i) + "</b></doc>");
+            exist.store(COLLECTION, "doc.xml", stored.get(i));
+        }
+        return stored;
+    }
+
+    private List<String> storeRevisions(final int count) throws Exception {
+        final Random random = new Random(count);
+        final List<String> stored = new ArrayList<>();
+        List<String> records = VersioningTriggerTest.records(50);
+        for (int i = 0; i < count; i++) {
+            records = VersioningTriggerTest.edit(random, records, i);
+            stored.add(VersioningTriggerTest.serialize(records));
+            exist.store(COLLECTION, "doc.xml", stored.get(i));
+        }
+        return stored;
+    }
+
+    private long[] numbers() throws Exception {
+        return exist.revisions(DOC_PATH).keySet().stream().mapToLong(Long::longValue).toArray();
+    }
+}
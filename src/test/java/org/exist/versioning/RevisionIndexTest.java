@@ -0,0 +1,181 @@
+/**
+ * Versioning Module for eXist-db XQuery
+ * Copyright (C) 2008 eXist-db <exit-open@lists.sourceforge.net>
+ * http://exist-db.org
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 1, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.exist.versioning;
+
+import org.exist.storage.BrokerPool;
+import org.exist.storage.DBBroker;
+import org.exist.xmldb.XmldbURI;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.NavigableMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RevisionIndexTest {
+
+    private final static String COLLECTION = "/db/test";
+    private final static XmldbURI DOC_PATH = XmldbURI.create(COLLECTION + "/doc.xml");
+
+    @Rule
+    public final EmbeddedExist exist = new EmbeddedExist();
+
+    @Test
+    public void resolveCommitLostInCrash() throws Exception {
+        exist.enableVersioning(COLLECTION);
+        exist.store(COLLECTION, "doc.xml", "<doc><a>1</a></doc>");
+        exist.store(COLLECTION, "doc.xml", "<doc><a>2</a></doc>");
+        final Path journal = exist.getDataDir().resolve(RevisionIndex.FILE_NAME);
+        final long before = Files.size(journal);
+
+        exist.store(COLLECTION, "doc.xml", "<doc><a>3</a></doc>");
+        final NavigableMap<Long, RevisionIndex.Record> revisions = revisions();
+        assertEquals(2, revisions.size());
+
+        // cut the journal after the prepare record, as if the database crashed after its commit
+        final long prepare = 1 + 8 + 2 + DOC_PATH.toString().getBytes(StandardCharsets.UTF_8).length;
+        assertTrue(Files.size(journal) > before + prepare);
+        exist.restart();
+        try (final FileChannel channel = FileChannel.open(journal, StandardOpenOption.WRITE)) {
+            channel.truncate(before + prepare);
+        }
+
+        assertEquals(revisions.keySet(), revisions().keySet());
+        assertEquals(revisions.lastEntry().getValue().getResource(),
+                revisions().lastEntry().getValue().getResource());
+    }
+
+    @Test
+    public void resolveUncommittedChange() throws Exception {
+        exist.enableVersioning(COLLECTION);
+        exist.store(COLLECTION, "doc.xml", "<doc><a>1</a></doc>");
+        exist.store(COLLECTION, "doc.xml", "<doc><a>2</a></doc>");
+        final NavigableMap<Long, RevisionIndex.Record> revisions = revisions();
+        assertEquals(1, revisions.size());
+        final long revision = revisions.firstKey();
+        exist.restart();
+
+        // a transaction removed the revision from the index, but crashed before it committed
+        final Path journal = exist.getDataDir().resolve(RevisionIndex.FILE_NAME);
+        try (final DataOutputStream os = new DataOutputStream(Files.newOutputStream(journal,
+                StandardOpenOption.APPEND))) {
+            os.writeByte(3);
+            os.writeLong(Long.MAX_VALUE);
+            os.writeUTF(DOC_PATH.toString());
+            os.writeByte(2);
+            os.writeUTF(DOC_PATH.toString());
+            os.writeLong(revision);
+        }
+
+        assertEquals(revisions.keySet(), revisions().keySet());
+    }
+
+    @Test
+    public void replayCommitted() throws Exception {
+        exist.enableVersioning(COLLECTION);
+        exist.store(COLLECTION, "doc.xml", "<doc><a>1</a></doc>");
+        exist.store(COLLECTION, "doc.xml", "<doc><a>2</a></doc>");
+        exist.store(COLLECTION, "other.xml", "<doc><a>1</a></doc>");
+        exist.store(COLLECTION, "other.xml", "<doc><a>2</a></doc>");
+        final NavigableMap<Long, RevisionIndex.Record> revisions = revisions();
+        exist.restart();
+
+        final Path journal = exist.getDataDir().resolve(RevisionIndex.FILE_NAME);
+        final long size = Files.size(journal);
+        assertEquals(revisions.keySet(), revisions().keySet());
+        // nothing was in doubt, so the journal was not rewritten
+        assertEquals(size, Files.size(journal));
+        assertFalse(revisions.isEmpty());
+    }
+
+    @Test
+    public void snapshotWhileCommitting() throws Exception {
+        exist.enableVersioning(COLLECTION);
+        exist.store(COLLECTION, "doc.xml", "<doc><a>0</a></doc>");
+        exist.store(COLLECTION, "doc.xml", "<doc><a>1</a></doc>");
+        final RevisionIndex index = RevisionIndex.getInstance(exist.getBrokerPool());
+        final AtomicBoolean done = new AtomicBoolean(false);
+        final Thread snapshots = new Thread(() -> {
+            while (!done.get()) {
+                index.snapshot();
+            }
+        });
+        snapshots.start();
+        try {
+            for (int i = 2; i < 20; i++) {
+                exist.store(COLLECTION, "doc.xml", "<doc><a>" + i + "</a></doc>");
+            }
+        } finally {
+            done.set(true);
+            snapshots.join();
+        }
+        final NavigableMap<Long, RevisionIndex.Record> revisions = revisions();
+        assertEquals(19, revisions.size());
+        exist.restart();
+
+        final Path journal = exist.getDataDir().resolve(RevisionIndex.FILE_NAME);
+        final long size = Files.size(journal);
+        assertEquals(revisions.keySet(), revisions().keySet());
+        // no change was lost from the journal, so nothing was in doubt
+        assertEquals(size, Files.size(journal));
+    }
+
+    @Test
+    public void newerRevisionExists() throws Exception {
+        exist.enableVersioning(COLLECTION, "overwrite", "no");
+        exist.store(COLLECTION, "doc.xml", "<doc><a>0</a></doc>");
+        exist.store(COLLECTION, "doc.xml", keyed("a", 0, 1));
+        exist.store(COLLECTION, "doc.xml", keyed("a", 0, 2));
+        exist.store(COLLECTION, "doc.xml", keyed("b", revisions().lastKey(), 3));
+        final long[] numbers = revisions().keySet().stream().mapToLong(Long::longValue).toArray();
+        assertEquals(3, numbers.length);
+
+        try (final DBBroker broker = exist.getBroker()) {
+            final RevisionIndex index = RevisionIndex.getInstance(exist.getBrokerPool());
+            assertFalse(index.newerRevisionExists(broker, DOC_PATH, numbers[2], "a"));
+            assertFalse(index.newerRevisionExists(broker, DOC_PATH, numbers[1], "b"));
+            assertTrue(index.newerRevisionExists(broker, DOC_PATH, numbers[1], "a"));
+            assertTrue(index.newerRevisionExists(broker, DOC_PATH, numbers[0], "b"));
+            assertFalse(index.newerRevisionExists(broker, XmldbURI.create(COLLECTION + "/none.xml"), 0, "a"));
+        }
+    }
+
+    private static String keyed(final String key, final long revision, final int content) {
+        return "<doc xmlns:v='http://exist-db.org/versioning' v:key='" + key + "' v:revision='" + revision +
+                "'><a>" + content + "</a></doc>";
+    }
+
+    private NavigableMap<Long, RevisionIndex.Record> revisions() throws Exception {
+        final BrokerPool pool = exist.getBrokerPool();
+        try (final DBBroker broker = exist.getBroker()) {
+            return new java.util.TreeMap<>(RevisionIndex.getInstance(pool).getRevisions(broker, DOC_PATH));
+        }
+    }
+}
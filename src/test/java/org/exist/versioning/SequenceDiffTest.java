@@ -0,0 +1,153 @@
+/**
+ * Versioning Module for eXist-db XQuery
+ * Copyright (C) 2008 eXist-db <exit-open@lists.sourceforge.net>
+ * http://exist-db.org
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 1, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.exist.versioning;
+
+import bmsi.util.Diff;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SequenceDiffTest {
+
+    @Test
+    public void equal() {
+        assertEquals(null, SequenceDiff.diff(new int[] { 1, 2, 3 }, new int[] { 1, 2, 3 }));
+    }
+
+    @Test
+    public void insertAndDelete() {
+        final Diff.change script = SequenceDiff.diff(new int[] { 1, 2, 3, 4 }, new int[] { 1, 5, 3, 4, 6 });
+        assertEquals(1, script.line0);
+        assertEquals(1, script.line1);
+        assertEquals(1, script.deleted);
+        assertEquals(1, script.inserted);
+        assertEquals(4, script.link.line0);
+        assertEquals(4, script.link.line1);
+        assertEquals(0, script.link.deleted);
+        assertEquals(1, script.link.inserted);
+        assertEquals(null, script.link.link);
+    }
+
+    @Test
+    public void ranges() {
+        final int[] a = { 9, 1, 2, 3, 9 };
+        final int[] b = { 8, 8, 1, 3, 8 };
+        final Diff.change script = SequenceDiff.diff(i -> a[i], 1, 4, i -> b[i], 2, 4);
+        assertEquals(1, script.line0);
+        assertEquals(1, script.line1);
+        assertEquals(1, script.deleted);
+        assertEquals(0, script.inserted);
+        assertEquals(null, script.link);
+    }
+
+    /**
+     * The scripts of random edits have to turn one sequence into the other and be as short as
+     * those of gnudiff.
+     */
+    @Test
+    public void randomEdits() {
+        final Random random = new Random(42);
+        for (int round = 0; round < 500; round++) {
+            final int[] a = new int[random.nextInt(200)];
+            for (int i = 0; i < a.length; i++) {
+                a[i] = random.nextInt(8);
+            }
+            final int[] b = edit(a, random);
+            final Diff.change script = SequenceDiff.diff(a, b);
+            assertArrayEquals(b, apply(a, b, script));
+            assertEquals(cost(new Diff(box(a), box(b)).diff_2(false)), cost(script));
+        }
+    }
+
+    /**
+     * A large diff stops searching for the shortest script, but still has to return a valid one.
+     */
+    @Test
+    public void expensive() {
+        final Random random = new Random(7);
+        final int[] a = new int[20000];
+        final int[] b = new int[20000];
+        for (int i = 0; i < a.length; i++) {
+            a[i] = random.nextInt(1000);
+            b[i] = random.nextInt(1000);
+        }
+        assertArrayEquals(b, apply(a, b, SequenceDiff.diff(a, b)));
+    }
+
+    private static int[] edit(final int[] a, final Random random) {
+        final int[] b = new int[a.length * 2 + 10];
+        int length = 0;
+        for (int i = 0; i <= a.length; i++) {
+            final int op = random.nextInt(10);
+            if (op == 0) {
+                b[length++] = random.nextInt(8);
+            }
+            if (i < a.length && op != 1) {
+                b[length++] = a[i];
+            }
+        }
+        final int[] edited = new int[length];
+        System.arraycopy(b, 0, edited, 0, length);
+        return edited;
+    }
+
+    private static int[] apply(final int[] a, final int[] b, final Diff.change script) {
+        final int[] result = new int[b.length];
+        int i = 0;
+        int j = 0;
+        for (Diff.change next = script; next != null; next = next.link) {
+            assertTrue(next.line0 >= i && next.line1 - j == next.line0 - i);
+            while (i < next.line0) {
+                assertEquals(a[i], b[j]);
+                result[j++] = a[i++];
+            }
+            i += next.deleted;
+            for (int k = 0; k < next.inserted; k++) {
+                result[j] = b[j];
+                j++;
+            }
+        }
+        while (i < a.length) {
+            result[j++] = a[i++];
+        }
+        assertEquals(b.length, j);
+        return result;
+    }
+
+    private static int cost(final Diff.change script) {
+        int cost = 0;
+        for (Diff.change next = script; next != null; next = next.link) {
+            cost += next.deleted + next.inserted;
+        }
+        return cost;
+    }
+
+    private static Integer[] box(final int[] codes) {
+        final Integer[] boxed = new Integer[codes.length];
+        for (int i = 0; i < codes.length; i++) {
+            boxed[i] = codes[i];
+        }
+        return boxed;
+    }
+}
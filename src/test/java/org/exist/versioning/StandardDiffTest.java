@@ -0,0 +1,228 @@
+/**
+ * Versioning Module for eXist-db XQuery
+ * Copyright (C) 2008 eXist-db <exit-open@lists.sourceforge.net>
+ * http://exist-db.org
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 1, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.exist.versioning;
+
+import org.exist.dom.memtree.DocumentBuilderReceiver;
+import org.exist.dom.memtree.MemTreeBuilder;
+import org.exist.dom.persistent.LockedDocument;
+import org.exist.numbering.NodeId;
+import org.exist.stax.ExtendedXMLStreamReader;
+import org.exist.storage.DBBroker;
+import org.exist.storage.lock.Lock.LockMode;
+import org.exist.storage.serializers.Serializer;
+import org.exist.xmldb.XmldbURI;
+import org.junit.Rule;
+import org.junit.Test;
+
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.transform.OutputKeys;
+import java.io.IOException;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class StandardDiffTest {
+
+    private final static String COLLECTION = "/db/test";
+
+    private final static String MOVED_A = "<doc><x id=\"1\"><p>one</p></x><y id=\"2\">two</y>" +
+            "<z id=\"3\">three</z><w id=\"4\">four</w><v id=\"5\">five</v></doc>";
+    /** w is moved backward, x forward and changed */
+    private final static String MOVED_B = "<doc><w id=\"4\">four</w><y id=\"2\">two</y><z id=\"3\">three</z>" +
+            "<v id=\"5\">five</v><x id=\"1\"><p>one</p><q>new</q></x></doc>";
+
+    @Rule
+    public final EmbeddedExist exist = new EmbeddedExist();
+
+    /**
+     * Nodes are matched by the codes of their hashes. Unless the matches are verified, two
+     * different texts with the same hash are taken as unchanged.
+     */
+    @Test
+    public void hashCollision() throws Exception {
+        exist.query("xmldb:create-collection('/db', 'test'), " +
+                "xmldb:store('" + COLLECTION + "', 'a.xml', <doc><a>1</a><b>x</b></doc>), " +
+                "xmldb:store('" + COLLECTION + "', 'b.xml', <doc><a>2</a><b>x</b></doc>)");
+        try (final DBBroker broker = exist.getBroker();
+                final LockedDocument docA = broker.getXMLResource(XmldbURI.create(COLLECTION + "/a.xml"),
+                        LockMode.READ_LOCK);
+                final LockedDocument docB = broker.getXMLResource(XmldbURI.create(COLLECTION + "/b.xml"),
+                        LockMode.READ_LOCK);
+                final StandardDiff diff = new CollidingDiff(broker)) {
+            // by default the documents are read once and the colliding texts are matched
+            diff.diff(docA.getDocument(), docB.getDocument());
+            assertEquals(0, diff.getChangedNodeCount());
+
+            diff.setVerifyMatches(true);
+            diff.diff(docA.getDocument(), docB.getDocument());
+            assertTrue(diff.getChangedNodeCount() > 0);
+
+            assertEquals("<doc><a>2</a><b>x</b></doc>", patch(broker, diff, DiffSource.of(docA.getDocument())));
+        }
+    }
+
+    /**
+     * Elements identified by an attribute are moved forward and backward. The diff applies
+     * both with access to the source document and to a reader of it only.
+     */
+    @Test
+    public void moves() throws Exception {
+        exist.query("xmldb:create-collection('/db', 'test'), " +
+                "xmldb:store('" + COLLECTION + "', 'a.xml', " + MOVED_A + "), " +
+                "xmldb:store('" + COLLECTION + "', 'b.xml', " + MOVED_B + ")");
+        try (final DBBroker broker = exist.getBroker();
+                final LockedDocument docA = broker.getXMLResource(XmldbURI.create(COLLECTION + "/a.xml"),
+                        LockMode.READ_LOCK);
+                final LockedDocument docB = broker.getXMLResource(XmldbURI.create(COLLECTION + "/b.xml"),
+                        LockMode.READ_LOCK);
+                final StandardDiff diff = new StandardDiff(broker)) {
+            diff.setIdentityAttributes(Collections.singleton("id"));
+            diff.diff(docA.getDocument(), docB.getDocument());
+            assertTrue(diff.diff2XML().contains("v:move"));
+
+            final DiffSource source = DiffSource.of(docA.getDocument());
+            assertEquals(MOVED_B, patch(broker, diff, source));
+            final ExtendedXMLStreamReader reader = source.newReader(broker);
+            try {
+                assertEquals(MOVED_B, patch(broker, diff, reader));
+            } finally {
+                reader.close();
+            }
+        }
+    }
+
+    /**
+     * The moves are written to version documents in both formats and restored from them.
+     */
+    @Test
+    public void movesStored() throws Exception {
+        for (final String format : new String[] { VersioningTrigger.FORMAT_XML, VersioningTrigger.FORMAT_BINARY }) {
+            final String collection = COLLECTION + "-" + format;
+            exist.enableVersioning(collection, VersioningTrigger.PARAM_DIFF_KEY, "id",
+                    VersioningTrigger.PARAM_DIFF_FORMAT, format);
+            exist.store(collection, "doc.xml", MOVED_A);
+            exist.store(collection, "doc.xml", MOVED_B);
+            exist.store(collection, "doc.xml", MOVED_A);
+
+            final long[] revisions = exist.revisions(collection + "/doc.xml").keySet().stream()
+                    .mapToLong(Long::longValue).toArray();
+            assertEquals(2, revisions.length);
+            assertEquals(format, MOVED_B, exist.restore(collection + "/doc.xml", revisions[0]));
+            assertEquals(format, MOVED_A, exist.restore(collection + "/doc.xml", revisions[1]));
+        }
+    }
+
+    /**
+     * Long text nodes are stored as text edits in both formats. A whitespace-only
+     * replacement survives storing the version document.
+     */
+    @Test
+    public void textEditsStored() throws Exception {
+        final StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            text.append("word").append(i).append(' ');
+        }
+        final String doc1 = "<doc><p>" + text + "</p></doc>";
+        final String doc2 = "<doc><p>" + text.toString().replace("word10 ", "word10  ").replace("word50", "changed") +
+                "</p></doc>";
+        for (final String format : new String[] { VersioningTrigger.FORMAT_XML, VersioningTrigger.FORMAT_BINARY }) {
+            final String collection = COLLECTION + "-" + format;
+            exist.enableVersioning(collection, VersioningTrigger.PARAM_TEXT_DIFF_THRESHOLD, "100",
+                    VersioningTrigger.PARAM_DIFF_FORMAT, format);
+            exist.store(collection, "doc.xml", doc1);
+            exist.store(collection, "doc.xml", doc2);
+            exist.store(collection, "doc.xml", doc1);
+
+            if (format.equals(VersioningTrigger.FORMAT_XML)) {
+                assertEquals("2", exist.query("count(collection('/db/system/versions" + collection +
+                        "')//*:text-edit/*:range)"));
+            }
+            final long[] revisions = exist.revisions(collection + "/doc.xml").keySet().stream()
+                    .mapToLong(Long::longValue).toArray();
+            assertEquals(format, doc2, exist.restore(collection + "/doc.xml", revisions[0]));
+            assertEquals(format, doc1, exist.restore(collection + "/doc.xml", revisions[1]));
+        }
+    }
+
+    /**
+     * @return the serialized result of applying a diff to its source document
+     */
+    static String patch(final DBBroker broker, final StandardDiff diff, final DiffSource source) throws Exception {
+        final MemTreeBuilder builder = new MemTreeBuilder();
+        builder.startDocument();
+        new Patch(broker, diff).patch(source, new DocumentBuilderReceiver(builder));
+        builder.endDocument();
+        final Serializer serializer = broker.getSerializer();
+        serializer.reset();
+        serializer.setProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
+        return serializer.serialize(builder.getDocument());
+    }
+
+    /**
+     * @return the serialized result of applying a diff to the document read by a reader
+     */
+    static String patch(final DBBroker broker, final StandardDiff diff, final ExtendedXMLStreamReader reader)
+            throws Exception {
+        final MemTreeBuilder builder = new MemTreeBuilder();
+        builder.startDocument();
+        new Patch(broker, diff).patch(reader, new DocumentBuilderReceiver(builder));
+        builder.endDocument();
+        final Serializer serializer = broker.getSerializer();
+        serializer.reset();
+        serializer.setProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
+        return serializer.serialize(builder.getDocument());
+    }
+
+    /**
+     * Gives all text nodes the same hash.
+     */
+    private static class CollidingDiff extends StandardDiff {
+
+        CollidingDiff(final DBBroker broker) {
+            super(broker);
+        }
+
+        @Override
+        protected DiffNodes getNodes(final DBBroker broker, final DiffSource root, final DiffNodes.Names names)
+                throws XMLStreamException, IOException {
+            final DiffNodes read = super.getNodes(broker, root, names);
+            final DiffNodes nodes = new DiffNodes(names);
+            for (int i = 0; i < read.size(); i++) {
+                final NodeId nodeId = read.getNodeId(i);
+                final int type = read.getType(i);
+                switch (type) {
+                    case XMLStreamReader.START_ELEMENT:
+                    case XMLStreamReader.END_ELEMENT:
+                        nodes.add(nodeId, type, read.get(i).qname);
+                        break;
+                    case XMLStreamReader.CHARACTERS:
+                        nodes.add(nodeId, type, 42L, null);
+                        break;
+                    default:
+                        nodes.add(nodeId, type, read.getHash(i), read.get(i).value);
+                        break;
+                }
+            }
+            return nodes;
+        }
+    }
+}
@@ -0,0 +1,194 @@
+/**
+ * Versioning Module for eXist-db XQuery
+ * Copyright (C) 2008 eXist-db <exit-open@lists.sourceforge.net>
+ * http://exist-db.org
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 1, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.exist.versioning;
+
+import org.exist.dom.persistent.LockedDocument;
+import org.exist.storage.DBBroker;
+import org.exist.storage.lock.Lock.LockMode;
+import org.exist.xmldb.XmldbURI;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class StreamingDiffTest {
+
+    private final static String COLLECTION = "/db/test";
+    private final static int WINDOW = 200;
+
+    @Rule
+    public final EmbeddedExist exist = new EmbeddedExist();
+
+    @Test
+    public void unchanged() throws Exception {
+        final List<String> records = records(1000);
+        assertEquals(0, roundTrip(records, records));
+    }
+
+    @Test
+    public void changesSpreadOut() throws Exception {
+        final List<String> a = records(3000);
+        final List<String> b = new ArrayList<>(a);
+        b.set(0, "<r id='first'>changed</r>");
+        b.remove(700);
+        b.add(1500, "<r id='new'><s>inserted</s></r>");
+        b.set(2999, "<r id='last'/>");
+        assertTrue(roundTrip(a, b) > 0);
+    }
+
+    /**
+     * Ranges of changes larger than a window, which have to be diffed window by window.
+     */
+    @Test
+    public void largeChanges() throws Exception {
+        final List<String> a = records(3000);
+        final List<String> b = new ArrayList<>(a);
+        for (int i = 500; i < 900; i++) {
+            b.set(i, "<x n='" + i + "'>" + i + "</x>");
+        }
+        b.subList(1200, 1600).clear();
+        b.addAll(2000, records(300).subList(0, 300));
+        roundTrip(a, b);
+    }
+
+    @Test
+    public void modifiedLonger() throws Exception {
+        final List<String> a = records(100);
+        final List<String> b = new ArrayList<>(a);
+        b.addAll(records(2000));
+        roundTrip(a, b);
+        roundTrip(b, a);
+    }
+
+    @Test
+    public void nothingInCommon() throws Exception {
+        final List<String> a = records(1000);
+        final List<String> b = new ArrayList<>();
+        for (int i = 0; i < 700; i++) {
+            b.add("<y>" + i + "</y>");
+        }
+        roundTrip(a, b);
+    }
+
+    @Test
+    public void randomEdits() throws Exception {
+        final Random random = new Random(42);
+        for (int round = 0; round < 5; round++) {
+            final List<String> a = records(1500);
+            final List<String> b = new ArrayList<>(a);
+            for (int i = 0; i < 40; i++) {
+                final int pos = random.nextInt(b.size());
+                switch (random.nextInt(3)) {
+                    case 0:
+                        b.remove(pos);
+                        break;
+                    case 1:
+                        b.add(pos, "<n id='" + round + "-" + i + "'>new</n>");
+                        break;
+                    default:
+                        b.set(pos, "<r id='" + pos + "'>edited " + i + "</r>");
+                        break;
+                }
+            }
+            roundTrip(a, b);
+        }
+    }
+
+    /**
+     * Only a bounded number of nodes is held, however far apart the changes are.
+     */
+    @Test
+    public void boundedMemory() throws Exception {
+        final List<String> a = records(10000);
+        final List<String> b = new ArrayList<>(a);
+        b.set(10, "<r id='early'/>");
+        b.set(9990, "<r id='late'/>");
+        store(a, b);
+        try (final DBBroker broker = exist.getBroker();
+                final LockedDocument docA = broker.getXMLResource(XmldbURI.create(COLLECTION + "/a.xml"),
+                        LockMode.READ_LOCK);
+                final LockedDocument docB = broker.getXMLResource(XmldbURI.create(COLLECTION + "/b.xml"),
+                        LockMode.READ_LOCK)) {
+            final List<DiffNodes> read = new ArrayList<>();
+            final StandardDiff diff = new StreamingDiff(broker, WINDOW) {
+                @Override
+                protected DiffNodes newNodes(final DiffNodes.Names names) {
+                    final DiffNodes nodes = super.newNodes(names);
+                    read.add(nodes);
+                    return nodes;
+                }
+            };
+            assertTrue(diff.diffIfChanged(DiffSource.of(docA.getDocument()), DiffSource.of(docB.getDocument()),
+                    null));
+            for (final DiffNodes nodes : read) {
+                assertTrue(nodes.size() > 40000);
+                assertTrue(nodes.size() - nodes.getStart() < 4 * WINDOW + 512);
+            }
+            assertEquals(serialize(b), StandardDiffTest.patch(broker, diff, DiffSource.of(docA.getDocument())));
+        }
+    }
+
+    /**
+     * @return the number of changed nodes
+     */
+    private int roundTrip(final List<String> a, final List<String> b) throws Exception {
+        store(a, b);
+        try (final DBBroker broker = exist.getBroker();
+                final LockedDocument docA = broker.getXMLResource(XmldbURI.create(COLLECTION + "/a.xml"),
+                        LockMode.READ_LOCK);
+                final LockedDocument docB = broker.getXMLResource(XmldbURI.create(COLLECTION + "/b.xml"),
+                        LockMode.READ_LOCK)) {
+            final StandardDiff diff = new StreamingDiff(broker, WINDOW);
+            final boolean changed = diff.diffIfChanged(DiffSource.of(docA.getDocument()),
+                    DiffSource.of(docB.getDocument()), null);
+            assertEquals(serialize(b), StandardDiffTest.patch(broker, diff, DiffSource.of(docA.getDocument())));
+            assertFalse(!changed && diff.getChangedNodeCount() > 0);
+            return diff.getChangedNodeCount();
+        }
+    }
+
+    private void store(final List<String> a, final List<String> b) throws Exception {
+        exist.query("xmldb:create-collection('/db', 'test'), " +
+                "xmldb:store('" + COLLECTION + "', 'a.xml', " + serialize(a) + "), " +
+                "xmldb:store('" + COLLECTION + "', 'b.xml', " + serialize(b) + ")");
+    }
+
+    private static String serialize(final List<String> records) {
+        final StringBuilder xml = new StringBuilder("<doc>");
+        for (final String record : records) {
+            xml.append(record);
+        }
+        return xml.append("</doc>").toString().replace('\'', '"');
+    }
+
+    private static List<String> records(final int count) {
+        final List<String> records = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            records.add("<r id='" + i + "'><t>text " + i + "</t>" + (i % 3 == 0 ? "<u/>" : "") + "</r>");
+        }
+        return records;
+    }
+}
@@ -0,0 +1,117 @@
+/**
+ * Versioning Module for eXist-db XQuery
+ * Copyright (C) 2008 eXist-db <exit-open@lists.sourceforge.net>
+ * http://exist-db.org
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 1, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.exist.versioning;
+
+import org.exist.numbering.DLN;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TextDiffTest {
+
+    private final static String[] WORDS = { "alpha", "beta", "gamma", "delta", "epsilon", "zeta", "eta", "theta" };
+
+    @Test
+    public void typos() throws IOException {
+        final String oldText = words(new Random(1), 400);
+        final String newText = oldText.replaceFirst("beta", "betta").replaceFirst("theta", "tetha") + " omega";
+        final Difference.TextEdit edit = TextDiff.diff(new DLN("1.1"), oldText, newText);
+        assertNotNull(edit);
+        assertTrue(edit.getRangeCount() <= 3);
+        assertEquals(newText, edit.apply(oldText));
+    }
+
+    @Test
+    public void whitespace() throws IOException {
+        final String oldText = words(new Random(2), 100);
+        final String newText = oldText.replaceFirst(" ", "  \n");
+        final Difference.TextEdit edit = TextDiff.diff(new DLN("1.1"), oldText, newText);
+        assertEquals(1, edit.getRangeCount());
+        assertEquals(newText, edit.apply(oldText));
+    }
+
+    @Test
+    public void replaced() {
+        assertNull(TextDiff.diff(new DLN("1.1"), words(new Random(3), 100), words(new Random(4), 100)));
+    }
+
+    @Test
+    public void randomEdits() throws IOException {
+        final Random random = new Random(5);
+        for (int round = 0; round < 200; round++) {
+            final String[] tokens = words(random, 50 + random.nextInt(200)).split(" ");
+            final StringBuilder buf = new StringBuilder();
+            for (final String token : tokens) {
+                final int op = random.nextInt(20);
+                if (op == 0) {
+                    continue;
+                } else if (op == 1) {
+                    buf.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+                } else if (op == 2) {
+                    buf.append(token).append(random.nextInt(10)).append(' ');
+                    continue;
+                }
+                buf.append(token).append(' ');
+            }
+            final String oldText = String.join(" ", tokens);
+            final String newText = buf.toString();
+            final Difference.TextEdit edit = TextDiff.diff(new DLN("1.1"), oldText, newText);
+            if (edit != null) {
+                assertEquals(newText, edit.apply(oldText));
+            }
+        }
+    }
+
+    /**
+     * Two long texts without any common word would take quadratic time in a sequence diff.
+     */
+    @Test(timeout = 10000)
+    public void linear() throws IOException {
+        final StringBuilder oldText = new StringBuilder();
+        final StringBuilder newText = new StringBuilder();
+        for (int i = 0; i < 200000; i++) {
+            oldText.append('a').append(i).append(' ');
+            newText.append('b').append(i).append(' ');
+        }
+        assertNull(TextDiff.diff(new DLN("1.1"), oldText.toString(), newText.toString()));
+
+        final String changed = oldText.toString().replace("a1000 ", "c1000 ").replace("a90000 ", "");
+        final Difference.TextEdit edit = TextDiff.diff(new DLN("1.1"), oldText.toString(), changed);
+        assertEquals(2, edit.getRangeCount());
+        assertEquals(changed, edit.apply(oldText.toString()));
+    }
+
+    private static String words(final Random random, final int count) {
+        final StringBuilder buf = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                buf.append(' ');
+            }
+            buf.append(WORDS[random.nextInt(WORDS.length)]).append(random.nextInt(1000));
+        }
+        return buf.toString();
+    }
+}
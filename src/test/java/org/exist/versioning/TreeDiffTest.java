@@ -0,0 +1,127 @@
+/**
+ * Versioning Module for eXist-db XQuery
+ * Copyright (C) 2008 eXist-db <exit-open@lists.sourceforge.net>
+ * http://exist-db.org
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 1, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.exist.versioning;
+
+import org.exist.dom.persistent.LockedDocument;
+import org.exist.storage.DBBroker;
+import org.exist.storage.lock.Lock.LockMode;
+import org.exist.xmldb.XmldbURI;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TreeDiffTest {
+
+    private final static String COLLECTION = "/db/test";
+
+    private static ForkJoinPool forkJoinPool;
+
+    @Rule
+    public final EmbeddedExist exist = new EmbeddedExist();
+
+    @BeforeClass
+    public static void startPool() {
+        forkJoinPool = new ForkJoinPool(4);
+    }
+
+    @AfterClass
+    public static void stopPool() {
+        forkJoinPool.shutdown();
+    }
+
+    /**
+     * Sections large enough to be diffed concurrently are edited, inserted and deleted.
+     */
+    @Test
+    public void parallelRandomEdits() throws Exception {
+        final Random random = new Random(23);
+        for (int round = 0; round < 4; round++) {
+            final List<List<String>> a = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                a.add(VersioningTriggerTest.records(150));
+            }
+            final List<List<String>> b = new ArrayList<>();
+            for (int i = 0; i < a.size(); i++) {
+                b.add(random.nextInt(4) == 0 ? a.get(i) : VersioningTriggerTest.edit(random, a.get(i), i));
+            }
+            final List<String> idsB = ids(b.size());
+            // a new section and a deleted one, so sections have to be paired by key
+            b.add(round % b.size(), VersioningTriggerTest.records(120));
+            idsB.add(round % idsB.size(), "new" + round);
+            b.remove(b.size() - 1 - round);
+            idsB.remove(idsB.size() - 1 - round);
+
+            final String docA = serialize(a, ids(a.size()));
+            final String docB = serialize(b, idsB);
+            assertEquals(docB, roundTrip(docA, docB, true));
+            assertEquals(docB, roundTrip(docA, docB, false));
+        }
+    }
+
+    private String roundTrip(final String a, final String b, final boolean keyed) throws Exception {
+        exist.query("xmldb:create-collection('/db', 'test'), " +
+                "xmldb:store('" + COLLECTION + "', 'a.xml', " + a + "), " +
+                "xmldb:store('" + COLLECTION + "', 'b.xml', " + b + ")");
+        try (final DBBroker broker = exist.getBroker();
+                final LockedDocument docA = broker.getXMLResource(XmldbURI.create(COLLECTION + "/a.xml"),
+                        LockMode.READ_LOCK);
+                final LockedDocument docB = broker.getXMLResource(XmldbURI.create(COLLECTION + "/b.xml"),
+                        LockMode.READ_LOCK);
+                final TreeDiff diff = new TreeDiff(broker)) {
+            diff.setParallel(forkJoinPool, 1);
+            if (keyed) {
+                diff.setIdentityAttributes(Collections.singleton("key"));
+            }
+            diff.diff(docA.getDocument(), docB.getDocument());
+            assertTrue(diff.getChangedNodeCount() > 0);
+            return StandardDiffTest.patch(broker, diff, DiffSource.of(docA.getDocument()));
+        }
+    }
+
+    private static List<String> ids(final int count) {
+        final List<String> ids = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            ids.add(Integer.toString(i));
+        }
+        return ids;
+    }
+
+    private static String serialize(final List<List<String>> sections, final List<String> ids) {
+        final StringBuilder xml = new StringBuilder("<doc>");
+        for (int i = 0; i < sections.size(); i++) {
+            xml.append("<s key='").append(ids.get(i)).append("'>");
+            for (final String record : sections.get(i)) {
+                xml.append(record);
+            }
+            xml.append("</s>");
+        }
+        return xml.append("</doc>").toString().replace('\'', '"');
+    }
+}
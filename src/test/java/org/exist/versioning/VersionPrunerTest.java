@@ -0,0 +1,172 @@
+/**
+ * Versioning Module for eXist-db XQuery
+ * Copyright (C) 2008 eXist-db <exit-open@lists.sourceforge.net>
+ * http://exist-db.org
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 1, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.exist.versioning;
+
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class VersionPrunerTest {
+
+    private final static String COLLECTION = "/db/test";
+    private final static String DOC_PATH = COLLECTION + "/doc.xml";
+
+    private final static long HOUR = 60 * 60 * 1000L;
+    private final static long DAY = 24 * HOUR;
+
+    @Rule
+    public final EmbeddedExist exist = new EmbeddedExist();
+
+    @Test
+    public void retainRevisions() {
+        final long now = Instant.parse("2024-03-10T12:00:00Z").toEpochMilli();
+        final long[] times = { now - 4 * HOUR, now - 3 * HOUR, now - 2 * HOUR, now - HOUR, now };
+        assertArrayEquals(new boolean[] { false, false, false, true, true },
+                new VersionPruner.Policy(2, 0, false).select(times, now));
+        // the latest revision is always kept
+        assertArrayEquals(new boolean[] { false, false, false, false, true },
+                new VersionPruner.Policy(0, 0, false).select(times, now));
+    }
+
+    @Test
+    public void retainDays() {
+        final long now = Instant.parse("2024-03-10T12:00:00Z").toEpochMilli();
+        final long[] times = { now - 10 * DAY, now - 5 * DAY, now - 2 * DAY, now - HOUR, -1, now };
+        // revisions of unknown time are kept
+        assertArrayEquals(new boolean[] { false, false, true, true, true, true },
+                new VersionPruner.Policy(0, 3, false).select(times, now));
+        assertArrayEquals(new boolean[] { false, true, true, true, true, true },
+                new VersionPruner.Policy(0, 6, false).select(times, now));
+    }
+
+    @Test
+    public void retainDaily() {
+        final long day1 = Instant.parse("2024-03-08T00:00:00Z").toEpochMilli();
+        final long now = day1 + 2 * DAY + 12 * HOUR;
+        final long[] times = { day1 + 9 * HOUR, day1 + 17 * HOUR, day1 + DAY + 8 * HOUR, day1 + DAY + 12 * HOUR,
+                day1 + 2 * DAY + 9 * HOUR, day1 + 2 * DAY + 10 * HOUR };
+        // the last revision of each day
+        assertArrayEquals(new boolean[] { false, true, false, true, false, true },
+                new VersionPruner.Policy(0, 0, true).select(times, now));
+        // combined with the last revisions
+        assertArrayEquals(new boolean[] { false, true, false, true, true, true },
+                new VersionPruner.Policy(2, 0, true).select(times, now));
+        // combined with the revisions of the last day
+        assertArrayEquals(new boolean[] { false, true, true, true, true, true },
+                new VersionPruner.Policy(0, 2, true).select(times, now));
+    }
+
+    /**
+     * The kept revisions restore unchanged after older ones were removed.
+     */
+    @Test
+    public void prune() throws Exception {
+        exist.enableVersioning(COLLECTION, VersioningTrigger.PARAM_RETAIN_REVISIONS, "3");
+        final List<String> stored = storeRevisions(10);
+        assertEquals(9, exist.revisions(DOC_PATH).size());
+
+        VersionPruner.getInstance(exist.getBrokerPool()).pruneAll();
+        assertRevisions(stored, 3);
+    }
+
+    /**
+     * Chained revisions whose predecessor is removed are rebased onto a keyframe first.
+     */
+    @Test
+    public void pruneChained() throws Exception {
+        exist.enableVersioning(COLLECTION, VersioningTrigger.PARAM_STORAGE, VersioningTrigger.STORAGE_CHAIN,
+                VersioningTrigger.PARAM_KEYFRAME_INTERVAL, "100", VersioningTrigger.PARAM_RETAIN_REVISIONS, "3");
+        final List<String> stored = storeRevisions(10);
+        for (final RevisionIndex.Record record : exist.revisions(DOC_PATH).values()) {
+            assertNull(record.getKeyframe());
+        }
+
+        VersionPruner.getInstance(exist.getBrokerPool()).pruneAll();
+        assertRevisions(stored, 3);
+        assertNotNull(exist.revisions(DOC_PATH).firstEntry().getValue().getKeyframe());
+
+        // later revisions chain onto the rebased ones
+        stored.add(VersioningTriggerTest.serialize(VersioningTriggerTest.records(20)));
+        exist.store(COLLECTION, "doc.xml", stored.get(stored.size() - 1));
+        assertRevisions(stored, 4);
+    }
+
+    /**
+     * Policies are read from the collection configuration, also for collections which were not
+     * used since the database started, and apply once per interval until they are removed.
+     */
+    @Test
+    public void policiesFromConfiguration() throws Exception {
+        exist.enableVersioning(COLLECTION, VersioningTrigger.PARAM_RETAIN_REVISIONS, "2");
+        List<String> stored = storeRevisions(5);
+        exist.restart();
+
+        final VersionPruner pruner = VersionPruner.getInstance(exist.getBrokerPool());
+        pruner.pruneAll();
+        assertRevisions(stored, 2);
+
+        // not due again before the interval elapsed
+        stored = storeRevisions(5);
+        pruner.pruneAll();
+        assertEquals(7, exist.revisions(DOC_PATH).size());
+
+        // without retention parameters nothing is pruned
+        exist.enableVersioning(COLLECTION);
+        assertEquals(0, pruner.readPolicies().size());
+        pruner.pruneAll();
+        assertEquals(7, exist.revisions(DOC_PATH).size());
+    }
+
+    /**
+     * Store the given number of contents of the document.
+     */
+    private List<String> storeRevisions(final int count) throws Exception {
+        final Random random = new Random(count);
+        final List<String> stored = new ArrayList<>();
+        List<String> records = VersioningTriggerTest.records(50);
+        for (int i = 0; i < count; i++) {
+            records = VersioningTriggerTest.edit(random, records, i);
+            stored.add(VersioningTriggerTest.serialize(records));
+            exist.store(COLLECTION, "doc.xml", stored.get(i));
+        }
+        return stored;
+    }
+
+    /**
+     * Assert that the last revisions are left and restore the last contents stored.
+     */
+    private void assertRevisions(final List<String> stored, final int count) throws Exception {
+        final long[] numbers = exist.revisions(DOC_PATH).keySet().stream().mapToLong(Long::longValue).toArray();
+        assertEquals(count, numbers.length);
+        for (int i = 0; i < count; i++) {
+            assertEquals("revision " + numbers[i], stored.get(stored.size() - count + i),
+                    exist.restore(DOC_PATH, numbers[i]));
+        }
+    }
+}
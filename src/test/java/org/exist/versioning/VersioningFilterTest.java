@@ -0,0 +1,68 @@
+/**
+ * Versioning Module for eXist-db XQuery
+ * Copyright (C) 2008 eXist-db <exit-open@lists.sourceforge.net>
+ * http://exist-db.org
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 1, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.exist.versioning;
+
+import org.exist.collections.Collection;
+import org.exist.storage.DBBroker;
+import org.exist.storage.lock.Lock;
+import org.exist.xmldb.XmldbURI;
+import org.junit.Rule;
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class VersioningFilterTest {
+
+    private final static String COLLECTION = "/db/test";
+    private final static String CONFIG = "/db/system/config" + COLLECTION;
+
+    @Rule
+    public final EmbeddedExist exist = new EmbeddedExist();
+
+    /**
+     * The cached versioned flag follows changes to the collection.xconf immediately.
+     */
+    @Test
+    public void configurationChanges() throws Exception {
+        exist.enableVersioning(COLLECTION);
+        assertTrue(isVersioned());
+
+        exist.query("xmldb:store('" + CONFIG + "', 'collection.xconf', " +
+                "<collection xmlns='http://exist-db.org/collection-config/1.0'/>)");
+        assertFalse(isVersioned());
+
+        exist.enableVersioning(COLLECTION);
+        assertTrue(isVersioned());
+
+        exist.query("xmldb:remove('" + CONFIG + "', 'collection.xconf')");
+        assertFalse(isVersioned());
+
+        exist.enableVersioning(COLLECTION);
+        assertTrue(isVersioned());
+    }
+
+    private boolean isVersioned() throws Exception {
+        try (final DBBroker broker = exist.getBroker();
+             final Collection collection = broker.openCollection(XmldbURI.create(COLLECTION), Lock.LockMode.READ_LOCK)) {
+            return VersioningFilter.isVersioned(broker, collection);
+        }
+    }
+}
@@ -0,0 +1,202 @@
+/**
+ * Versioning Module for eXist-db XQuery
+ * Copyright (C) 2008 eXist-db <exit-open@lists.sourceforge.net>
+ * http://exist-db.org
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 1, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.exist.versioning;
+
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Tests the functions of versioning.xqm. The native history functions are compared with the
+ * queries they replace, which scan the versions collection.
+ */
+public class VersioningModuleTest {
+
+    private final static String COLLECTION = "/db/test";
+    private final static String DOC_PATH = COLLECTION + "/doc.xml";
+    private final static String DOC = "doc('" + DOC_PATH + "')";
+
+    private final static String PROLOG =
+            "import module namespace v=\"http://exist-db.org/versioning\" at \"" +
+            Paths.get("src/main/xquery/versioning.xqm").toAbsolutePath().toUri() + "\";\n";
+
+    /** The queries of versioning.xqm before the history was read from the revision index */
+    private final static String SCAN_PROLOG = PROLOG +
+            "declare function local:revisions($doc as node()) as xs:integer* {\n" +
+            "    for $version in collection($v:VERSIONS_COLLECTION || util:collection-name($doc))" +
+            "//v:properties[v:document = util:document-name($doc)]\n" +
+            "    let $rev := xs:long($version/v:revision)\n" +
+            "    order by $rev ascending\n" +
+            "    return $rev\n" +
+            "};\n" +
+            "declare function local:versions($doc as node()) as element(v:version)* {\n" +
+            "    for $version in collection($v:VERSIONS_COLLECTION || util:collection-name($doc))" +
+            "/v:version[v:properties/v:document = util:document-name($doc)]\n" +
+            "    order by xs:long($version/v:properties/v:revision) ascending\n" +
+            "    return $version\n" +
+            "};\n" +
+            "declare function local:history($doc as node()) as element(v:history) {\n" +
+            "    <v:history>\n" +
+            "        <v:document>{base-uri($doc)}</v:document>\n" +
+            "        <v:revisions>{\n" +
+            "            for $v in collection($v:VERSIONS_COLLECTION || util:collection-name($doc))" +
+            "//v:properties[v:document = util:document-name($doc)]\n" +
+            "            order by xs:long($v/v:revision) ascending\n" +
+            "            return <v:revision rev=\"{$v/v:revision}\">{ $v/v:date, $v/v:user }</v:revision>\n" +
+            "        }</v:revisions>\n" +
+            "    </v:history>\n" +
+            "};\n";
+
+    @Rule
+    public final EmbeddedExist exist = new EmbeddedExist();
+
+    @Test
+    public void annotate() throws Exception {
+        exist.enableVersioning(COLLECTION);
+        exist.store(COLLECTION, "doc.xml", "<doc><a>1</a><b>x</b></doc>");
+        exist.store(COLLECTION, "doc.xml", "<doc><a>2</a><b>x</b></doc>");
+        exist.store(COLLECTION, "doc.xml", "<doc><a>2</a><b>y</b></doc>");
+
+        final String[] annotated = exist.query(PROLOG + "for $r in v:revisions(" + DOC + ") " +
+                "return serialize(v:annotate(" + DOC + ", $r))").split("\n");
+        assertEquals(2, annotated.length);
+        assertEquals("<doc><a xmlns:v=\"http://exist-db.org/versioning\" v:change=\"changed\">" +
+                "<v:wrapper v:change=\"added\">2</v:wrapper><v:wrapper v:change=\"deleted\">1</v:wrapper></a>" +
+                "<b>x</b></doc>", annotated[0]);
+        // the diff of the second revision was taken against the base, but only the change
+        // from the first revision is annotated
+        assertEquals("<doc><a>2</a><b xmlns:v=\"http://exist-db.org/versioning\" v:change=\"changed\">" +
+                "<v:wrapper v:change=\"added\">y</v:wrapper><v:wrapper v:change=\"deleted\">x</v:wrapper></b>" +
+                "</doc>", annotated[1]);
+    }
+
+    @Test
+    public void annotateChained() throws Exception {
+        exist.enableVersioning(COLLECTION, "storage", "chain");
+        exist.store(COLLECTION, "doc.xml", "<doc><a>1</a><b>x</b></doc>");
+        exist.store(COLLECTION, "doc.xml", "<doc><a>2</a><b>x</b></doc>");
+        exist.store(COLLECTION, "doc.xml", "<doc><a>2</a><b>y</b></doc>");
+
+        final String[] annotated = exist.query(PROLOG + "for $r in v:revisions(" + DOC + ") " +
+                "return serialize(v:annotate(" + DOC + ", $r))").split("\n");
+        assertEquals(2, annotated.length);
+        assertEquals("<doc><a>2</a><b xmlns:v=\"http://exist-db.org/versioning\" v:change=\"changed\">" +
+                "<v:wrapper v:change=\"added\">y</v:wrapper><v:wrapper v:change=\"deleted\">x</v:wrapper></b>" +
+                "</doc>", annotated[1]);
+    }
+
+    @Test
+    public void historyMatchesScan() throws Exception {
+        exist.enableVersioning(COLLECTION);
+        storeRevisions(20);
+
+        assertEquals(exist.query(SCAN_PROLOG + "local:revisions(" + DOC + ")"),
+                exist.query(PROLOG + "v:revisions(" + DOC + ")"));
+        assertEquals(exist.query(SCAN_PROLOG + "local:versions(" + DOC + ")/v:properties/v:revision/string()"),
+                exist.query(PROLOG + "v:versions(" + DOC + ")/v:properties/v:revision/string()"));
+        assertEquals("true", exist.query(SCAN_PROLOG +
+                "deep-equal(local:history(" + DOC + "), v:history(" + DOC + "))"));
+    }
+
+    /**
+     * Compares the native history functions with the scans of the versions collection on many
+     * revisions. Run with <code>-Dversioning.benchmark=true</code>; the number of revisions is
+     * set by <code>versioning.benchmark.revisions</code>.
+     */
+    @Test
+    public void benchmarkHistory() throws Exception {
+        assumeTrue(Boolean.getBoolean("versioning.benchmark"));
+        final int revisions = Integer.getInteger("versioning.benchmark.revisions", 10000);
+        final int runs = 5;
+        exist.enableVersioning(COLLECTION);
+        storeRevisions(revisions);
+
+        for (final String function : new String[] { "revisions", "versions", "history" }) {
+            final String scan = SCAN_PROLOG + "count(local:" + function + "(" + DOC + "))";
+            final String index = PROLOG + "count(v:" + function + "(" + DOC + "))";
+            assertEquals(exist.query(scan), exist.query(index));
+            long scanTime = 0;
+            long indexTime = 0;
+            for (int i = 0; i < runs; i++) {
+                long start = System.nanoTime();
+                exist.query(scan);
+                scanTime += System.nanoTime() - start;
+                start = System.nanoTime();
+                exist.query(index);
+                indexTime += System.nanoTime() - start;
+            }
+            System.out.printf("%s, %d revisions: scan %.1f ms, native %.1f ms%n", function, revisions,
+                    scanTime / runs / 1e6, indexTime / runs / 1e6);
+        }
+    }
+
+    /**
+     * Binary revisions stored in full and as delta are restored by v:binary-doc.
+     */
+    @Test
+    public void binaryDoc() throws Exception {
+        exist.enableVersioning(COLLECTION, VersioningTrigger.PARAM_BINARY_DELTA, "yes",
+                VersioningTrigger.PARAM_BINARY_KEYFRAME_INTERVAL, "3");
+        final List<String> stored = new ArrayList<>();
+        for (int i = 0; i < 6; i++) {
+            stored.add(binary(i));
+            exist.query("xmldb:store('" + COLLECTION + "', 'doc.bin', '" + stored.get(i) +
+                    "', 'application/octet-stream')");
+        }
+        assertTrue(Integer.parseInt(exist.query("declare namespace v='http://exist-db.org/versioning'; " +
+                "count(collection('" + VersioningTrigger.VERSIONS_COLLECTION + "')//v:replaced-binary[@base])")) > 0);
+
+        final String path = COLLECTION + "/doc.bin";
+        assertEquals(stored.get(0), exist.query(PROLOG + "util:binary-to-string(v:binary-doc('" + path + "', ()))"));
+        final List<String> restored = new ArrayList<>();
+        for (final long rev : exist.revisions(path).keySet()) {
+            restored.add(exist.query(PROLOG + "util:binary-to-string(v:binary-doc('" + path + "', " + rev + "))"));
+        }
+        assertEquals(stored.subList(1, stored.size()), restored);
+    }
+
+    /**
+     * About 80KB of text with a line changed and a line inserted per revision.
+     */
+    private static String binary(final int revision) {
+        final StringBuilder buf = new StringBuilder();
+        for (int line = 0; line < 5000; line++) {
+            if (line > 0 && line == revision * 700) {
+                buf.append("inserted in revision ").append(revision).append(' ');
+            }
+            buf.append("line ").append(line).append(" of ").append(line == revision * 500 ? revision : 0).append(' ');
+        }
+        return buf.toString();
+    }
+
+    private void storeRevisions(final int count) throws Exception {
+        exist.store(COLLECTION, "doc.xml", "<doc><a>0</a></doc>");
+        for (int i = 1; i <= count; i++) {
+            exist.store(COLLECTION, "doc.xml", "<doc><a>" + i + "</a></doc>");
+        }
+    }
+}
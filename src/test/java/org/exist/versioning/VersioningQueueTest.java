@@ -0,0 +1,236 @@
+/**
+ * Versioning Module for eXist-db XQuery
+ * Copyright (C) 2008 eXist-db <exit-open@lists.sourceforge.net>
+ * http://exist-db.org
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 1, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.exist.versioning;
+
+import org.exist.collections.Collection;
+import org.exist.storage.DBBroker;
+import org.exist.storage.txn.TransactionManager;
+import org.exist.storage.txn.Txn;
+import org.exist.xmldb.XmldbURI;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+public class VersioningQueueTest {
+
+    private final static String COLLECTION = "/db/test";
+    private final static String DOC_PATH = COLLECTION + "/doc.xml";
+    private final static String[] CONTENTS = {
+            "<doc><a>1</a><b>x</b></doc>",
+            "<doc><a>2</a><b>x</b></doc>",
+            "<doc><a>2</a><b>y</b><c/></doc>",
+            "<doc><b>y</b><c>z</c></doc>",
+            "<doc><a>5</a><b>y</b><c>z</c></doc>"
+    };
+
+    @Rule
+    public final EmbeddedExist exist = new EmbeddedExist();
+
+    @Test
+    public void base() throws Exception {
+        exist.enableVersioning(COLLECTION, "async", "yes");
+        assertRestore(false);
+    }
+
+    @Test
+    public void chain() throws Exception {
+        exist.enableVersioning(COLLECTION, "async", "yes", "storage", "chain", "keyframe-interval", "3");
+        assertRestore(true);
+    }
+
+    @Test
+    public void chainBinary() throws Exception {
+        exist.enableVersioning(COLLECTION, "async", "yes", "storage", "chain", "diff-format", "binary",
+                "diff", "tree");
+        assertRestore(true);
+    }
+
+    @Test
+    public void recreated() throws Exception {
+        exist.enableVersioning(COLLECTION, "async", "yes", "storage", "chain");
+        exist.store(COLLECTION, "doc.xml", CONTENTS[0]);
+        exist.store(COLLECTION, "doc.xml", CONTENTS[1]);
+        exist.query("xmldb:remove('" + COLLECTION + "', 'doc.xml')");
+        exist.store(COLLECTION, "doc.xml", CONTENTS[2]);
+        exist.store(COLLECTION, "doc.xml", CONTENTS[3]);
+        exist.awaitQueue();
+
+        final List<String> expected = new ArrayList<>();
+        for (final RevisionIndex.Record record : exist.revisions(DOC_PATH).values()) {
+            if (record.hasDiff()) {
+                expected.add(exist.restore(DOC_PATH, record.getRevision()));
+            }
+        }
+        assertEquals(Arrays.asList(CONTENTS[1], CONTENTS[2], CONTENTS[3]), expected);
+        assertEquals("", exist.query("collection('/db/system/versions')//*:pending"));
+    }
+
+    /**
+     * Jobs run in revision order, even if the transactions storing their stubs commit in
+     * reverse order, and failed jobs are retried before later ones.
+     */
+    @Test
+    @SuppressWarnings("try")
+    public void revisionOrder() throws Exception {
+        final List<Long> processed = Collections.synchronizedList(new ArrayList<>());
+        final VersioningTrigger trigger = new VersioningTrigger() {
+            private int failures = 2;
+
+            @Override
+            boolean storePendingVersion(final DBBroker broker, final Txn transaction, final Collection vCollection,
+                    final XmldbURI versionUri) throws IOException {
+                if (versionUri.toString().endsWith(".1") && failures-- > 0) {
+                    throw new IOException("failure " + failures);
+                }
+                processed.add(Long.parseLong(versionUri.toString().substring("doc.xml.".length())));
+                return true;
+            }
+        };
+        final VersioningQueue queue = VersioningQueue.getInstance(exist.getBrokerPool(), 2, 10);
+        queue.retryDelay = 10;
+
+        final int count = 5;
+        final CountDownLatch submitted = new CountDownLatch(count);
+        final CountDownLatch[] commit = new CountDownLatch[count];
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+        final List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            final long revision = i + 1;
+            commit[i] = new CountDownLatch(1);
+            final CountDownLatch latch = commit[i];
+            final Thread thread = new Thread(() -> {
+                final TransactionManager transact = exist.getBrokerPool().getTransactionManager();
+                try (final DBBroker broker = exist.getBroker();
+                        final Txn transaction = transact.beginTransaction()) {
+                    queue.submit(transaction, new VersioningQueue.Job(trigger, XmldbURI.ROOT_COLLECTION_URI,
+                            XmldbURI.create("doc.xml." + revision), "doc.xml", revision), false);
+                    submitted.countDown();
+                    latch.await();
+                    transact.commit(transaction);
+                } catch (final Throwable e) {
+                    error.set(e);
+                    submitted.countDown();
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        submitted.await();
+        for (int i = count - 1; i >= 0; i--) {
+            commit[i].countDown();
+            threads.get(i).join();
+        }
+        assertNull(error.get());
+        exist.awaitQueue();
+
+        assertEquals(Arrays.asList(1L, 2L, 3L, 4L, 5L), processed);
+    }
+
+    /**
+     * Writers keep committing while the queue is full: a committing transaction holds the lock
+     * on the versions collection the jobs need, so it must not wait for the queue. Versions
+     * which find no place in the queue are generated synchronously.
+     */
+    @Test(timeout = 120000)
+    public void fullQueue() throws Exception {
+        exist.enableVersioning(COLLECTION, "async", "yes", "async-workers", "1", "async-queue-size", "1",
+                "async-queue-timeout", "10", "storage", "chain");
+        final int writers = 3;
+        final int updates = 12;
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+        final List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < writers; i++) {
+            final String name = "doc" + i + ".xml";
+            final Thread thread = new Thread(() -> {
+                try {
+                    for (int j = 0; j < updates; j++) {
+                        exist.store(COLLECTION, name, content(j));
+                    }
+                } catch (final Throwable e) {
+                    error.set(e);
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+        assertNull(error.get());
+        exist.awaitQueue();
+
+        for (int i = 0; i < writers; i++) {
+            final String docPath = COLLECTION + "/doc" + i + ".xml";
+            final List<String> restored = new ArrayList<>();
+            for (final RevisionIndex.Record record : exist.revisions(docPath).values()) {
+                assertFalse("pending".equals(record.getType()));
+                restored.add(exist.restore(docPath, record.getRevision()));
+            }
+            final List<String> expected = new ArrayList<>();
+            for (int j = 1; j < updates; j++) {
+                expected.add(content(j));
+            }
+            assertEquals(expected, restored);
+        }
+        assertEquals("", exist.query("collection('/db/system/versions')//*:pending"));
+    }
+
+    private static String content(final int update) {
+        final StringBuilder buf = new StringBuilder("<doc>");
+        for (int i = 0; i < 20; i++) {
+            buf.append("<p>").append(i == update % 20 ? "changed " + update : "para " + i).append("</p>");
+        }
+        return buf.append("</doc>").toString();
+    }
+
+    private void assertRestore(final boolean chained) throws Exception {
+        for (final String content : CONTENTS) {
+            exist.store(COLLECTION, "doc.xml", content);
+        }
+        exist.awaitQueue();
+
+        final NavigableMap<Long, RevisionIndex.Record> revisions = exist.revisions(DOC_PATH);
+        final List<String> restored = new ArrayList<>();
+        boolean anyChained = false;
+        for (final RevisionIndex.Record record : revisions.values()) {
+            assertFalse("revision " + record.getRevision() + " is still pending", "pending".equals(record.getType()));
+            anyChained |= record.isChained();
+            restored.add(exist.restore(DOC_PATH, record.getRevision()));
+        }
+        assertEquals(chained, anyChained);
+        // the first revision is stored as base
+        assertEquals(Arrays.asList(CONTENTS).subList(CONTENTS.length - restored.size(), CONTENTS.length),
+                restored);
+        assertEquals(CONTENTS.length - 1, restored.size());
+        assertEquals("", exist.query("collection('/db/system/versions')//*:pending"));
+    }
+}
@@ -0,0 +1,135 @@
+/**
+ * Versioning Module for eXist-db XQuery
+ * Copyright (C) 2008 eXist-db <exit-open@lists.sourceforge.net>
+ * http://exist-db.org
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 1, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package org.exist.versioning;
+
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Stores revisions through the trigger and restores each of them.
+ */
+public class VersioningTriggerTest {
+
+    private final static String COLLECTION = "/db/test";
+
+    @Rule
+    public final EmbeddedExist exist = new EmbeddedExist();
+
+    /**
+     * Chained revisions are restored across keyframes, which are stored every few revisions
+     * and for a revision which changes most of the document, also after a restart.
+     */
+    @Test
+    public void chainAcrossKeyframes() throws Exception {
+        for (final String format : new String[] { VersioningTrigger.FORMAT_XML, VersioningTrigger.FORMAT_BINARY }) {
+            final String collection = COLLECTION + "-" + format;
+            exist.enableVersioning(collection, VersioningTrigger.PARAM_STORAGE, VersioningTrigger.STORAGE_CHAIN,
+                    VersioningTrigger.PARAM_KEYFRAME_INTERVAL, "4", VersioningTrigger.PARAM_KEYFRAME_THRESHOLD, "0.5",
+                    VersioningTrigger.PARAM_DIFF_FORMAT, format);
+            final Random random = new Random(7);
+            final List<String> stored = new ArrayList<>();
+            List<String> records = records(50);
+            for (int i = 0; i < 12; i++) {
+                records = i == 6 ? replaced(40) : edit(random, records, i);
+                stored.add(serialize(records));
+                exist.store(collection, "doc.xml", stored.get(i));
+            }
+            assertRestored(collection + "/doc.xml", stored.subList(1, stored.size()));
+            assertTrue(Integer.parseInt(exist.query("count(collection('" + VersioningTrigger.VERSIONS_COLLECTION +
+                    collection + "')//*:keyframe)")) >= 3);
+
+            exist.restart();
+            for (int i = 12; i < 16; i++) {
+                records = edit(random, records, i);
+                stored.add(serialize(records));
+                exist.store(collection, "doc.xml", stored.get(i));
+            }
+            assertRestored(collection + "/doc.xml", stored.subList(1, stored.size()));
+        }
+    }
+
+    /**
+     * @param revisions the content of each revision, in order
+     */
+    private void assertRestored(final String docPath, final List<String> revisions) throws Exception {
+        final long[] numbers = exist.revisions(docPath).keySet().stream().mapToLong(Long::longValue).toArray();
+        assertEquals(revisions.size(), numbers.length);
+        // newest first, so each restore has to start from a keyframe or the base
+        for (int i = numbers.length - 1; i > -1; i--) {
+            assertEquals("revision " + numbers[i], revisions.get(i), exist.restore(docPath, numbers[i]));
+        }
+    }
+
+    /**
+     * Delete, insert or edit a few records.
+     */
+    static List<String> edit(final Random random, final List<String> records, final int revision) {
+        final List<String> edited = new ArrayList<>(records);
+        for (int i = 0; i < 3; i++) {
+            final int pos = random.nextInt(edited.size());
+            switch (random.nextInt(3)) {
+                case 0:
+                    edited.remove(pos);
+                    break;
+                case 1:
+                    edited.add(pos, "<n id='" + revision + "-" + i + "'>new</n>");
+                    break;
+                default:
+                    edited.set(pos, "<r id='" + pos + "'><t>edited " + revision + "</t></r>");
+                    break;
+            }
+        }
+        return edited;
+    }
+
+    static String serialize(final List<String> records) {
+        final StringBuilder xml = new StringBuilder("<doc>");
+        for (final String record : records) {
+            xml.append(record);
+        }
+        return xml.append("</doc>").toString().replace('\'', '"');
+    }
+
+    /**
+     * @return records which have nothing in common with those of {@link #records}
+     */
+    private static List<String> replaced(final int count) {
+        final List<String> records = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            records.add("<x n='" + i + "'>" + i + "</x>");
+        }
+        return records;
+    }
+
+    static List<String> records(final int count) {
+        final List<String> records = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            records.add("<r id='" + i + "'><t>text " + i + "</t>" + (i % 3 == 0 ? "<u/>" : "") + "</r>");
+        }
+        return records;
+    }
+}